@@ -0,0 +1,123 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.ReflectionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the throughput of concurrent writes with each {@link WriteDurability durability}, with and without deduplication. Every file has the same
+ * content, so with deduplication every write links to the same blob, see {@link BlobStore}.</p>
+ * <p>Every thread writes its own files again and again, so the number of files does not grow during the run. The results depend on the file system and the
+ * storage device the data folder is on, so the benchmark should be run on the kind of storage the file-server is deployed on.</p>
+ * <p>Run with <code>gradle jmh</code>. The data folder is created under the system's temporary folder, or under the folder given by the system property
+ * 'benchmark.folder'.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AtomicFileWriterBenchmark {
+
+    private static final int FILES_PER_THREAD = 64;
+    private static final byte[] CONTENT = new byte[4096];
+
+    @Param({"none", "fsync", "group-commit"})
+    public String writeDurability;
+
+    @Param({"false", "true"})
+    public boolean deduplicationEnabled;
+
+    private Path rootFolder;
+    private AtomicFileWriter atomicFileWriter;
+
+    /**
+     * The files of one thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadFiles {
+
+        private final FileDescriptor[] fileDescriptors = new FileDescriptor[FILES_PER_THREAD];
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void createFileDescriptors(AtomicFileWriterBenchmark benchmark) {
+            for (int i = 0; i < fileDescriptors.length; i++) {
+                fileDescriptors[i] = FileDescriptor.fromDepth(benchmark.rootFolder, 2);
+            }
+        }
+
+        private FileDescriptor nextFileDescriptor() {
+            return fileDescriptors[next++ & (FILES_PER_THREAD - 1)];
+        }
+
+    }
+
+    @Setup(Level.Trial)
+    public void createAtomicFileWriter() throws IOException {
+        var parentFolder = Path.of(System.getProperty("benchmark.folder", System.getProperty("java.io.tmpdir")));
+        rootFolder = Files.createTempDirectory(parentFolder, "atomic-file-writer-benchmark");
+
+        var configurationService = new ConfigurationService();
+        inject(configurationService, "writeDurability", writeDurability);
+        inject(configurationService, "groupCommitIntervalMillis", 5L);
+        inject(configurationService, "rootFolder", rootFolder.toString());
+        inject(configurationService, "blobSubfolder", "blobs");
+        inject(configurationService, "deduplicationEnabled", deduplicationEnabled);
+        var blobStore = new BlobStore();
+        inject(blobStore, "configurationService", configurationService);
+        blobStore.init();
+        atomicFileWriter = new AtomicFileWriter();
+        inject(atomicFileWriter, "configurationService", configurationService);
+        inject(atomicFileWriter, "blobStore", blobStore);
+        atomicFileWriter.init();
+    }
+
+    /**
+     * Writes the files of one thread, as done when files are created or updated.
+     */
+    @Benchmark
+    @Threads(8)
+    public FileDescriptor write(ThreadFiles threadFiles) throws IOException {
+        return atomicFileWriter.write(threadFiles.nextFileDescriptor(), new ByteArrayInputStream(CONTENT));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        atomicFileWriter.shutdown();
+        try (var paths = Files.walk(rootFolder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static void inject(Object target, String fieldName, Object value) {
+        var field = ReflectionUtils.findField(target.getClass(), fieldName);
+        if (field == null) {
+            throw new IllegalArgumentException("No field " + fieldName + " in " + target.getClass());
+        }
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+
+}
@@ -0,0 +1,112 @@
+package dk.runerne.fileserver.filehandling;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the cost of compressing files when they are written, and of sending them to clients that accept the encoding of the stored bytes and to
+ * clients that do not, for each {@link ContentCodec codec}. The content is JSON, which is typical of the files stored.</p>
+ * <p>Run with <code>gradle jmh</code>. The data folder is created under the system's temporary folder, or under the folder given by the system property
+ * 'benchmark.folder'.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"none", "gzip", "deflate"})
+    public String codec;
+
+    @Param({"65536"})
+    public int size;
+
+    private Path rootFolder;
+    private ContentCodec contentCodec;
+    private byte[] content;
+    private FileDescriptor writtenFile;
+    private FileDescriptor readFile;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        var parentFolder = Path.of(System.getProperty("benchmark.folder", System.getProperty("java.io.tmpdir")));
+        rootFolder = Files.createTempDirectory(parentFolder, "compression-benchmark");
+        contentCodec = ContentCodec.forName(codec).orElse(null);
+        content = createJson(size);
+        writtenFile = FileDescriptor.fromDepth(rootFolder, 2).ensureDirectoriesExist();
+        readFile = FileDescriptor.fromDepth(rootFolder, 2).ensureDirectoriesExist();
+        readFile.replaceWith(readFile.writeTemporaryFile(new ByteArrayInputStream(content), false, contentCodec, 0));
+    }
+
+    /**
+     * Writes a file, as done when a file is created or updated.
+     */
+    @Benchmark
+    public FileDescriptor write() throws IOException {
+        return writtenFile.replaceWith(writtenFile.writeTemporaryFile(new ByteArrayInputStream(content), false, contentCodec, 0));
+    }
+
+    /**
+     * Sends the stored bytes of a file, as done for a client that accepts the encoding of the file.
+     */
+    @Benchmark
+    public void readAsStored() throws IOException {
+        FileContent.open(readFile).writeTo(OutputStream.nullOutputStream());
+    }
+
+    /**
+     * Sends the decompressed content of a file, as done for a client that does not accept the encoding of the file.
+     */
+    @Benchmark
+    public void readDecoded() throws IOException {
+        FileContent.open(readFile).writeDecodedTo(OutputStream.nullOutputStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        try (var paths = Files.walk(rootFolder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Creates an array of JSON objects of about the given size, with varying values, so it compresses like real data rather than like repeated text.
+     */
+    private static byte[] createJson(int size) {
+        var random = new Random(42);
+        var json = new StringBuilder("[");
+        for (int i = 0; json.length() < size; i++) {
+            json.append(i == 0 ? "" : ",")
+                .append("{\"id\":").append(i)
+                .append(",\"name\":\"Customer ").append(random.nextInt(100_000))
+                .append("\",\"balance\":").append(random.nextInt(1_000_000) / 100.0)
+                .append(",\"active\":").append(random.nextBoolean())
+                .append("}");
+        }
+        return json.append("]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
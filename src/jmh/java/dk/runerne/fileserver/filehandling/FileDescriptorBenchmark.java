@@ -0,0 +1,70 @@
+package dk.runerne.fileserver.filehandling;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures how fast the path of a file is derived from its UUID and depth.</p>
+ * <p>Run with <code>gradle jmh</code>. The gc profiler is enabled in build.gradle, and reports the bytes allocated per operation as
+ * <i>gc.alloc.rate.norm</i>.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileDescriptorBenchmark {
+
+    private static final Path ROOT_FOLDER_PATH = Path.of("data");
+    private static final int NUMBER_OF_IDS = 4096;
+    private static final int MAX_DEPTH = 6;
+
+    private final UUID[] ids = new UUID[NUMBER_OF_IDS];
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID();
+        }
+    }
+
+    /**
+     * Derives the path of one descriptor, as done when a file is created or read.
+     */
+    @Benchmark
+    public Path getPath() {
+        return FileDescriptor.fromUUIDAndDepth(ROOT_FOLDER_PATH, nextId(), 3).getPath();
+    }
+
+    /**
+     * Derives the path at every depth of one file, as done when a file is looked up by probing or moved by the maintenance.
+     */
+    @Benchmark
+    public void getPathAtEveryDepth(Blackhole blackhole) {
+        var fileDescriptor = FileDescriptor.fromUUIDAndDepth(ROOT_FOLDER_PATH, nextId(), 0);
+        for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+            blackhole.consume(fileDescriptor.toDepth(depth).getPath());
+        }
+    }
+
+    private UUID nextId() {
+        return ids[next++ & (NUMBER_OF_IDS - 1)];
+    }
+
+}
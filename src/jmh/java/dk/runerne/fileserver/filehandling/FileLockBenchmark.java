@@ -0,0 +1,205 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.ReflectionUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the throughput of concurrent reads and updates through {@link FileService}, which coordinates the operations on each file with
+ * {@link FileLocks}.</p>
+ * <p>In <i>readDistinctFiles</i> and <i>updateDistinctFiles</i> every thread has its own files, so the threads only wait for each other when their files
+ * share a stripe. Comparing 1 stripe with 1024 stripes shows what the striping saves. In the <i>sameFiles</i> group, readers and writers work on the same
+ * few files. A read that does not find a file fails the benchmark.</p>
+ * <p>Run with <code>gradle jmh</code>. The data folder is created under the system's temporary folder, or under the folder given by the system property
+ * 'benchmark.folder'.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileLockBenchmark {
+
+    private static final int FILES_PER_THREAD = 64;
+    private static final int NUMBER_OF_SHARED_FILES = 4;
+    private static final byte[] CONTENT = new byte[1024];
+
+    @Param({"1", "1024"})
+    public int fileLockStripes;
+
+    private Path rootFolder;
+    private FileService fileService;
+    private final UUID[] sharedIds = new UUID[NUMBER_OF_SHARED_FILES];
+
+    /**
+     * The files of one thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadFiles {
+
+        private final UUID[] ids = new UUID[FILES_PER_THREAD];
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void createFiles(FileLockBenchmark benchmark) {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = benchmark.fileService.create(CONTENT);
+            }
+        }
+
+        private UUID nextId() {
+            return ids[next++ & (FILES_PER_THREAD - 1)];
+        }
+
+    }
+
+    @Setup(Level.Trial)
+    public void createFileService() throws IOException {
+        var parentFolder = Path.of(System.getProperty("benchmark.folder", System.getProperty("java.io.tmpdir")));
+        rootFolder = Files.createTempDirectory(parentFolder, "file-lock-benchmark");
+        Files.createDirectories(rootFolder.resolve("config"));
+
+        var configurationService = new ConfigurationService();
+        inject(configurationService, "rootFolder", rootFolder.toString());
+        inject(configurationService, "dataSubfolder", "data");
+        inject(configurationService, "configSubfolder", "config");
+        inject(configurationService, "fileDepthFilename", "file-depth.txt");
+        inject(configurationService, "defaultFileDepth", 2);
+        inject(configurationService, "storageLayoutEncoding", "base64");
+        inject(configurationService, "storageLayoutSegmentLength", 1);
+        inject(configurationService, "storageLayoutHashInput", "string");
+        inject(configurationService, "locationIndexEnabled", true);
+        inject(configurationService, "existenceFilterEnabled", false);
+        inject(configurationService, "hotFileCacheEnabled", false);
+        inject(configurationService, "relocationQueueEnabled", false);
+        inject(configurationService, "fileLockStripes", fileLockStripes);
+        inject(configurationService, "writeDurability", "none");
+
+        var hotFileCache = new HotFileCache();
+        inject(hotFileCache, "configurationService", configurationService);
+        var fileLocationIndex = new FileLocationIndex();
+        inject(fileLocationIndex, "configurationService", configurationService);
+        var fileExistenceFilter = new FileExistenceFilter();
+        inject(fileExistenceFilter, "configurationService", configurationService);
+        var misplacedFileTracker = new MisplacedFileTracker();
+        inject(misplacedFileTracker, "configurationService", configurationService);
+        var fileLocks = new FileLocks();
+        inject(fileLocks, "configurationService", configurationService);
+        fileLocks.init();
+        var fileDistributorService = new FileDistributorService();
+        inject(fileDistributorService, "configurationService", configurationService);
+        inject(fileDistributorService, "hotFileCache", hotFileCache);
+        inject(fileDistributorService, "fileLocationIndex", fileLocationIndex);
+        inject(fileDistributorService, "fileExistenceFilter", fileExistenceFilter);
+        inject(fileDistributorService, "misplacedFileTracker", misplacedFileTracker);
+        inject(fileDistributorService, "fileLocks", fileLocks);
+        var blobStore = new BlobStore();
+        inject(blobStore, "configurationService", configurationService);
+        blobStore.init();
+        var atomicFileWriter = new AtomicFileWriter();
+        inject(atomicFileWriter, "configurationService", configurationService);
+        inject(atomicFileWriter, "blobStore", blobStore);
+        atomicFileWriter.init();
+        var relocationQueue = new RelocationQueue();
+        inject(relocationQueue, "configurationService", configurationService);
+        relocationQueue.init();
+        fileService = new FileService();
+        inject(fileService, "configurationService", configurationService);
+        inject(fileService, "fileDistributorService", fileDistributorService);
+        inject(fileService, "hotFileCache", hotFileCache);
+        inject(fileService, "fileLocationIndex", fileLocationIndex);
+        inject(fileService, "fileExistenceFilter", fileExistenceFilter);
+        inject(fileService, "relocationQueue", relocationQueue);
+        inject(fileService, "fileLocks", fileLocks);
+        inject(fileService, "atomicFileWriter", atomicFileWriter);
+        inject(fileService, "blobStore", blobStore);
+
+        for (int i = 0; i < sharedIds.length; i++) {
+            sharedIds[i] = fileService.create(CONTENT);
+        }
+    }
+
+    /**
+     * Reads the files of the thread.
+     */
+    @Benchmark
+    @Threads(8)
+    public byte[] readDistinctFiles(ThreadFiles threadFiles) throws FileNotFoundException {
+        return fileService.read(threadFiles.nextId());
+    }
+
+    /**
+     * Updates the files of the thread.
+     */
+    @Benchmark
+    @Threads(8)
+    public void updateDistinctFiles(ThreadFiles threadFiles) throws FileNotFoundException {
+        fileService.update(threadFiles.nextId(), CONTENT);
+    }
+
+    /**
+     * Reads the shared files while they are updated.
+     */
+    @Benchmark
+    @Group("sameFiles")
+    @GroupThreads(6)
+    public byte[] readSharedFiles() throws FileNotFoundException {
+        return fileService.read(nextSharedId());
+    }
+
+    /**
+     * Updates the shared files while they are read.
+     */
+    @Benchmark
+    @Group("sameFiles")
+    @GroupThreads(2)
+    public void updateSharedFiles() throws FileNotFoundException {
+        fileService.update(nextSharedId(), CONTENT);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        try (var paths = Files.walk(rootFolder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private UUID nextSharedId() {
+        return sharedIds[ThreadLocalRandom.current().nextInt(NUMBER_OF_SHARED_FILES)];
+    }
+
+    private static void inject(Object target, String fieldName, Object value) {
+        var field = ReflectionUtils.findField(target.getClass(), fieldName);
+        if (field == null) {
+            throw new IllegalArgumentException("No field " + fieldName + " in " + target.getClass());
+        }
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+
+}
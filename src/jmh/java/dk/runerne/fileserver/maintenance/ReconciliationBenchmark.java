@@ -0,0 +1,157 @@
+package dk.runerne.fileserver.maintenance;
+
+import dk.runerne.fileserver.ConfigurationService;
+import dk.runerne.fileserver.filehandling.BlobStore;
+import dk.runerne.fileserver.filehandling.FileDescriptor;
+import dk.runerne.fileserver.filehandling.FileExistenceFilter;
+import dk.runerne.fileserver.filehandling.FileLocationIndex;
+import dk.runerne.fileserver.filehandling.FileLocks;
+import dk.runerne.fileserver.filehandling.ForegroundLoadMonitor;
+import dk.runerne.fileserver.filehandling.HotFileCache;
+import dk.runerne.fileserver.filehandling.MisplacedFileTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures how long a maintenance job takes to move every file of a data folder to a new requested depth.</p>
+ * <p>The data folder is filled with empty files at depth 2 once per trial. Each invocation then changes the requested depth between 2 and 3, so every file is
+ * misplaced and is moved by the job. The job is not throttled unless the system property 'benchmark.maxFilesPerSecond' is set. Run with <code>gradle jmh</code>. The data folder is created under the system's temporary folder, or under the folder
+ * given by the system property 'benchmark.folder'.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ReconciliationBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int numberOfFiles;
+
+    private Path rootFolder;
+    private ConfigurationService configurationService;
+    private MaintenanceJobService maintenanceJobService;
+    private int requestedDepth = 2;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        var parentFolder = Path.of(System.getProperty("benchmark.folder", System.getProperty("java.io.tmpdir")));
+        rootFolder = Files.createTempDirectory(parentFolder, "reconciliation-benchmark");
+        Files.createDirectories(rootFolder.resolve("config"));
+
+        configurationService = new ConfigurationService();
+        inject(configurationService, "rootFolder", rootFolder.toString());
+        inject(configurationService, "dataSubfolder", "data");
+        inject(configurationService, "configSubfolder", "config");
+        inject(configurationService, "fileDepthFilename", "file-depth.txt");
+        inject(configurationService, "maintenanceCheckpointFilename", "maintenance-checkpoint.properties");
+        inject(configurationService, "defaultFileDepth", requestedDepth);
+        inject(configurationService, "maxMaintenanceConcurrentThreads", Runtime.getRuntime().availableProcessors());
+        inject(configurationService, "storageLayoutEncoding", "base64");
+        inject(configurationService, "storageLayoutSegmentLength", 1);
+        inject(configurationService, "storageLayoutHashInput", "string");
+        inject(configurationService, "locationIndexEnabled", true);
+        inject(configurationService, "existenceFilterEnabled", true);
+        inject(configurationService, "existenceFilterExpectedFiles", (long) numberOfFiles);
+        inject(configurationService, "existenceFilterFalsePositiveRate", 0.01);
+        inject(configurationService, "maintenanceTraversalEngine", "thread-pool");
+        inject(configurationService, "maintenanceMaxFilesPerSecond", Long.getLong("benchmark.maxFilesPerSecond", 0));
+        inject(configurationService, "maintenanceTargetLatencyMillis", 100L);
+        inject(configurationService, "maintenanceMaxInFlightRequests", 32);
+        inject(configurationService, "fileLockStripes", 1024);
+
+        var hotFileCache = new HotFileCache();
+        inject(hotFileCache, "configurationService", configurationService);
+        var fileLocationIndex = new FileLocationIndex();
+        inject(fileLocationIndex, "configurationService", configurationService);
+        var fileExistenceFilter = new FileExistenceFilter();
+        inject(fileExistenceFilter, "configurationService", configurationService);
+        var foregroundLoadMonitor = new ForegroundLoadMonitor();
+        inject(foregroundLoadMonitor, "configurationService", configurationService);
+        var maintenanceThrottle = new MaintenanceThrottle();
+        inject(maintenanceThrottle, "configurationService", configurationService);
+        inject(maintenanceThrottle, "foregroundLoadMonitor", foregroundLoadMonitor);
+        maintenanceThrottle.init();
+        var fileLocks = new FileLocks();
+        inject(fileLocks, "configurationService", configurationService);
+        fileLocks.init();
+        var folderMaintenanceService = new FolderMaintenanceService();
+        inject(folderMaintenanceService, "configurationService", configurationService);
+        inject(folderMaintenanceService, "hotFileCache", hotFileCache);
+        inject(folderMaintenanceService, "fileLocationIndex", fileLocationIndex);
+        inject(folderMaintenanceService, "maintenanceThrottle", maintenanceThrottle);
+        inject(folderMaintenanceService, "fileLocks", fileLocks);
+        var misplacedFileTracker = new MisplacedFileTracker();
+        inject(misplacedFileTracker, "configurationService", configurationService);
+        var blobStore = new BlobStore();
+        inject(blobStore, "configurationService", configurationService);
+        blobStore.init();
+        maintenanceJobService = new MaintenanceJobService();
+        inject(maintenanceJobService, "configurationService", configurationService);
+        inject(maintenanceJobService, "folderMaintenanceService", folderMaintenanceService);
+        inject(maintenanceJobService, "fileExistenceFilter", fileExistenceFilter);
+        inject(maintenanceJobService, "maintenanceThrottle", maintenanceThrottle);
+        inject(maintenanceJobService, "misplacedFileTracker", misplacedFileTracker);
+        inject(maintenanceJobService, "blobStore", blobStore);
+
+        var dataRootFolder = configurationService.getDataRootFolderPath();
+        for (int i = 0; i < numberOfFiles; i++) {
+            var fileDescriptor = FileDescriptor.fromUUIDAndDepth(dataRootFolder, UUID.randomUUID(), requestedDepth).ensureDirectoriesExist();
+            Files.createFile(fileDescriptor.getPath());
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void changeRequestedDepth() throws IOException {
+        requestedDepth = requestedDepth == 2 ? 3 : 2;
+        Files.writeString(configurationService.getFileDepthFilePath(), Integer.toString(requestedDepth));
+        configurationService.refreshRequestedFileDepth();
+    }
+
+    @Benchmark
+    public void moveEveryFile() throws InterruptedException {
+        if (!maintenanceJobService.startJob()) {
+            throw new IllegalStateException("Maintenance job is already running");
+        }
+        while (maintenanceJobService.isJobRunning()) {
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        try (var paths = Files.walk(rootFolder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static void inject(Object target, String fieldName, Object value) {
+        var field = ReflectionUtils.findField(target.getClass(), fieldName);
+        if (field == null) {
+            throw new IllegalArgumentException("No field " + fieldName + " in " + target.getClass());
+        }
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+
+}
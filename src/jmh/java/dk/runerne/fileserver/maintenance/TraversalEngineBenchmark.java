@@ -0,0 +1,95 @@
+package dk.runerne.fileserver.maintenance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Measures how long each {@link TraversalEngine} takes to traverse a deep and a wide folder tree with the same number of files.</p>
+ * <p>The deep tree has four levels of eight folders with eight files in each of the 4096 leaf folders. The wide tree has four folders with 8192 files each.
+ * Run with <code>gradle jmh</code>. The trees are created under the system's temporary folder, or under the folder given by the system property
+ * 'benchmark.folder'.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TraversalEngineBenchmark {
+
+    private static final int FILES = 32768;
+
+    @Param({"THREAD_POOL", "FORK_JOIN", "VIRTUAL_THREADS"})
+    public TraversalEngine engine;
+
+    @Param({"deep", "wide"})
+    public String shape;
+
+    @Param({"8"})
+    public int maxConcurrency;
+
+    private Path rootFolder;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        var parentFolder = Path.of(System.getProperty("benchmark.folder", System.getProperty("java.io.tmpdir")));
+        rootFolder = Files.createTempDirectory(parentFolder, "traversal-benchmark");
+        if (shape.equals("deep")) {
+            createFolders(rootFolder, 4, 8, 8);
+        } else {
+            createFolders(rootFolder, 1, 4, FILES / 4);
+        }
+    }
+
+    @Benchmark
+    public long traverse() throws InterruptedException {
+        var filesFound = new LongAdder();
+        var finished = new CountDownLatch(1);
+        new MultiThreadFolderTraverser(rootFolder, engine, maxConcurrency, (file, depth) -> filesFound.increment(), finished::countDown).start();
+        finished.await();
+        if (filesFound.sum() != FILES) {
+            throw new IllegalStateException("Found " + filesFound.sum() + " files, expected " + FILES);
+        }
+        return filesFound.sum();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        try (var paths = Files.walk(rootFolder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static void createFolders(Path folder, int levels, int foldersPerLevel, int filesPerFolder) throws IOException {
+        for (int i = 0; i < foldersPerLevel; i++) {
+            var subfolder = Files.createDirectory(folder.resolve(Integer.toString(i)));
+            if (levels > 1) {
+                createFolders(subfolder, levels - 1, foldersPerLevel, filesPerFolder);
+            } else {
+                for (int j = 0; j < filesPerFolder; j++) {
+                    Files.createFile(subfolder.resolve(Integer.toString(j)));
+                }
+            }
+        }
+    }
+
+}
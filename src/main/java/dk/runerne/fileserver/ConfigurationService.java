@@ -1,12 +1,28 @@
 package dk.runerne.fileserver;
 
+import dk.runerne.fileserver.filehandling.AtomicFileWriter;
+import dk.runerne.fileserver.filehandling.BatchDownloadService;
+import dk.runerne.fileserver.filehandling.BatchUploadService;
+import dk.runerne.fileserver.filehandling.BlobStore;
+import dk.runerne.fileserver.filehandling.ContentCodec;
+import dk.runerne.fileserver.filehandling.FileLocks;
+import dk.runerne.fileserver.filehandling.HashedStorageLayout;
+import dk.runerne.fileserver.filehandling.RelocationQueue;
+import dk.runerne.fileserver.filehandling.StorageLayout;
+import dk.runerne.fileserver.filehandling.UploadSessionService;
+import dk.runerne.fileserver.filehandling.WriteDurability;
+import dk.runerne.fileserver.maintenance.MaintenanceScheduler;
+import dk.runerne.fileserver.maintenance.MaintenanceThrottle;
+import dk.runerne.fileserver.maintenance.TraversalEngine;
 import lombok.Getter;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.support.CronExpression;
 import org.springframework.stereotype.Service;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Locale;
 import java.util.Optional;
 
 /**
@@ -41,12 +57,33 @@ public class ConfigurationService {
     @Value("${app.config-subfolder: config}")
     private String configSubfolder;
 
+    /**
+     * <p>The subfolder under the root folder where the blobs of deduplicated files are stored, see {@link BlobStore}.</p>
+     * <p>The default value is configured in application.properties or application.yml with the key 'app.blob-subfolder'.</p>
+     */
+    @Value("${app.blob-subfolder: blobs}")
+    private String blobSubfolder;
+
+    /**
+     * <p>The subfolder under the root folder where the staging files of upload sessions are stored, see {@link UploadSessionService}.</p>
+     * <p>The default value is configured in application.properties or application.yml with the key 'app.upload-subfolder'.</p>
+     */
+    @Value("${app.upload-subfolder: uploads}")
+    private String uploadSubfolder;
+
     /**
      * <p>The filename under the config folder where the desired file depth is stored.</p>
      */
     @Value("${app.file-depth-filename}")
     private String fileDepthFilename;
 
+    /**
+     * <p>The filename under the config folder where the progress of a maintenance job is stored, so an interrupted job can be resumed.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.maintenance-checkpoint-filename'.</p>
+     */
+    @Value("${app.maintenance-checkpoint-filename: maintenance-checkpoint.properties}")
+    private String maintenanceCheckpointFilename;
+
     /**
      * <p>The default file depth to use if no file specifies a depth.</p>
      * <p>The default value is configured in application.properties or application.yml with the key 'app.default-file-depth'.</p>
@@ -61,6 +98,317 @@ public class ConfigurationService {
     @Value("${app.max-maintenance-concurrent-threads: 4}")
     private int maxMaintenanceConcurrentThreads;
 
+    /**
+     * <p>The engine running the traversals of maintenance jobs, either 'thread-pool', 'fork-join' or 'virtual-threads'. See {@link TraversalEngine}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.maintenance-traversal-engine'.</p>
+     */
+    @Value("${app.maintenance-traversal-engine: thread-pool}")
+    private String maintenanceTraversalEngine;
+
+    /**
+     * <p>The maximum number of files per second that maintenance jobs may process, or 0 for no limit. Can be changed at runtime, see
+     * {@link MaintenanceThrottle}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.maintenance-max-files-per-second'.</p>
+     */
+    @Getter
+    @Value("${app.maintenance-max-files-per-second: 0}")
+    private long maintenanceMaxFilesPerSecond;
+
+    /**
+     * <p>The maximum number of bytes per second that maintenance jobs may move, or 0 for no limit. Can be changed at runtime, see
+     * {@link MaintenanceThrottle}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.maintenance-max-bytes-per-second'.</p>
+     */
+    @Getter
+    @Value("${app.maintenance-max-bytes-per-second: 0}")
+    private long maintenanceMaxBytesPerSecond;
+
+    /**
+     * <p>Whether maintenance jobs slow down while requests for files are slow or many requests are in progress. Can be changed at runtime, see
+     * {@link MaintenanceThrottle}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.maintenance-adaptive-throttle-enabled'.</p>
+     */
+    @Getter
+    @Value("${app.maintenance-adaptive-throttle-enabled: true}")
+    private boolean maintenanceAdaptiveThrottleEnabled;
+
+    /**
+     * <p>The average latency in milliseconds of requests for files above which the adaptive throttle slows maintenance jobs down.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.maintenance-target-latency-millis'.</p>
+     */
+    @Getter
+    @Value("${app.maintenance-target-latency-millis: 100}")
+    private long maintenanceTargetLatencyMillis;
+
+    /**
+     * <p>The number of requests for files in progress above which the adaptive throttle slows maintenance jobs down.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.maintenance-max-in-flight-requests'.</p>
+     */
+    @Getter
+    @Value("${app.maintenance-max-in-flight-requests: 32}")
+    private int maintenanceMaxInFlightRequests;
+
+    /**
+     * <p>The cron expression of the start of the windows in which maintenance jobs run automatically, e.g. '0 0 1 * * *' for 01:00 every night, or empty
+     * if jobs are only started by hand. See {@link MaintenanceScheduler}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.maintenance-window-cron'.</p>
+     */
+    @Value("${app.maintenance-window-cron:}")
+    private String maintenanceWindowCron;
+
+    /**
+     * <p>The length in minutes of the windows in which maintenance jobs run automatically.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.maintenance-window-duration-minutes'.</p>
+     */
+    @Getter
+    @Value("${app.maintenance-window-duration-minutes: 240}")
+    private long maintenanceWindowDurationMinutes;
+
+    /**
+     * <p>The base path of the REST API.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'api.base-path'.</p>
+     */
+    @Getter
+    @Value("${api.base-path: /api/v1}")
+    private String apiBasePath;
+
+    /**
+     * <p>Whether files that are read at another depth than the requested one are moved by a background {@link RelocationQueue} instead of by the request
+     * that reads them.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.relocation-queue-enabled'.</p>
+     */
+    @Getter
+    @Value("${app.relocation-queue-enabled: true}")
+    private boolean relocationQueueEnabled;
+
+    /**
+     * <p>The maximum number of files waiting to be moved by the {@link RelocationQueue}. Files found while the queue is full are not moved until they are read
+     * again or a maintenance job moves them.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.relocation-queue-capacity'.</p>
+     */
+    @Getter
+    @Value("${app.relocation-queue-capacity: 10000}")
+    private int relocationQueueCapacity;
+
+    /**
+     * <p>The number of threads moving the files of the {@link RelocationQueue}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.relocation-worker-threads'.</p>
+     */
+    @Getter
+    @Value("${app.relocation-worker-threads: 2}")
+    private int relocationWorkerThreads;
+
+    /**
+     * <p>The number of read/write locks shared by the files, see {@link FileLocks}. More locks make operations on different files wait less often for each
+     * other. The number is rounded up to a power of two.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.file-lock-stripes'.</p>
+     */
+    @Getter
+    @Value("${app.file-lock-stripes: 1024}")
+    private int fileLockStripes;
+
+    /**
+     * <p>How durably files are written, either 'none', 'fsync' or 'group-commit'. See {@link WriteDurability}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.write-durability'.</p>
+     */
+    @Value("${app.write-durability: none}")
+    private String writeDurability;
+
+    /**
+     * <p>The longest time in milliseconds the {@link AtomicFileWriter} waits for writes that are being prepared, so they are forced to the storage device
+     * together with the writes already waiting, when the write durability is 'group-commit'.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.group-commit-interval-millis'.</p>
+     */
+    @Getter
+    @Value("${app.group-commit-interval-millis: 5}")
+    private long groupCommitIntervalMillis;
+
+    /**
+     * <p>The number of threads writing the files of batch uploads in parallel, see {@link BatchUploadService}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.batch-upload-threads'.</p>
+     */
+    @Getter
+    @Value("${app.batch-upload-threads: 4}")
+    private int batchUploadThreads;
+
+    /**
+     * <p>The largest file in bytes of a batch upload that is read into memory and written in parallel with the other files of the batch. Larger files are
+     * streamed to disk one at a time.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.batch-upload-max-buffered-size'.</p>
+     */
+    @Getter
+    @Value("${app.batch-upload-max-buffered-size: 262144}")
+    private int batchUploadMaxBufferedSize;
+
+    /**
+     * <p>The number of threads opening the files of batch downloads ahead of the response, see {@link BatchDownloadService}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.batch-download-threads'.</p>
+     */
+    @Getter
+    @Value("${app.batch-download-threads: 4}")
+    private int batchDownloadThreads;
+
+    /**
+     * <p>The largest file in bytes of a batch download that is read into memory ahead of the response. Larger files are only opened ahead, and are read when
+     * they are written to the response.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.batch-download-max-buffered-size'.</p>
+     */
+    @Getter
+    @Value("${app.batch-download-max-buffered-size: 262144}")
+    private int batchDownloadMaxBufferedSize;
+
+    /**
+     * <p>The largest number of files that can be requested by one batch download, see {@link BatchDownloadService}. Larger requests are rejected.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.batch-download-max-files'.</p>
+     */
+    @Getter
+    @Value("${app.batch-download-max-files: 10000}")
+    private int batchDownloadMaxFiles;
+
+    /**
+     * <p>Whether files with the same content are stored only once, see {@link BlobStore}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.deduplication-enabled'.</p>
+     */
+    @Getter
+    @Value("${app.deduplication-enabled: false}")
+    private boolean deduplicationEnabled;
+
+    /**
+     * <p>The size in bytes of the chunks of an upload session, when the client does not choose it, see {@link UploadSessionService}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.upload-chunk-size'.</p>
+     */
+    @Getter
+    @Value("${app.upload-chunk-size: 8388608}")
+    private long uploadChunkSize;
+
+    /**
+     * <p>The number of minutes an upload session is kept without receiving any chunks, before it is considered abandoned and deleted.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.upload-session-timeout-minutes'.</p>
+     */
+    @Getter
+    @Value("${app.upload-session-timeout-minutes: 1440}")
+    private long uploadSessionTimeoutMinutes;
+
+    /**
+     * <p>The content coding files are compressed with when they are written, e.g. 'gzip' or 'deflate', or 'none' to store files as they are. See
+     * {@link ContentCodec}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.compression-codec'.</p>
+     */
+    @Value("${app.compression-codec: none}")
+    private String compressionCodec;
+
+    /**
+     * <p>The smallest size in bytes of a file that is compressed. Smaller files are stored as they are, since they gain little from compression. Sizes above
+     * 64 KiB are taken as 64 KiB.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.compression-min-size'.</p>
+     */
+    @Getter
+    @Value("${app.compression-min-size: 1024}")
+    private int compressionMinSize;
+
+    /**
+     * <p>Whether small, frequently read files are kept in the in-memory hot-file cache.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.hot-file-cache-enabled'.</p>
+     */
+    @Getter
+    @Value("${app.hot-file-cache-enabled: true}")
+    private boolean hotFileCacheEnabled;
+
+    /**
+     * <p>The size in bytes of the largest file that is kept in the hot-file cache.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.hot-file-cache-max-entry-size'.</p>
+     */
+    @Getter
+    @Value("${app.hot-file-cache-max-entry-size: 65536}")
+    private long hotFileCacheMaxEntrySize;
+
+    /**
+     * <p>The total number of bytes of file content the hot-file cache may hold.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.hot-file-cache-max-total-size'.</p>
+     */
+    @Getter
+    @Value("${app.hot-file-cache-max-total-size: 67108864}")
+    private long hotFileCacheMaxTotalSize;
+
+    /**
+     * <p>Whether the depth of each file is kept in an in-memory index, so files can be located without probing every depth.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.location-index-enabled'.</p>
+     */
+    @Getter
+    @Value("${app.location-index-enabled: true}")
+    private boolean locationIndexEnabled;
+
+    /**
+     * <p>Whether the UUIDs of all stored files are kept in a Bloom filter, so lookups of files that do not exist are rejected without accessing the disk.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.existence-filter-enabled'.</p>
+     */
+    @Getter
+    @Value("${app.existence-filter-enabled: true}")
+    private boolean existenceFilterEnabled;
+
+    /**
+     * <p>The number of files the existence filter is sized for. If more files are stored, the rate of false positives rises above the configured rate.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.existence-filter-expected-files'.</p>
+     */
+    @Getter
+    @Value("${app.existence-filter-expected-files: 10000000}")
+    private long existenceFilterExpectedFiles;
+
+    /**
+     * <p>The share of lookups of files that do not exist that the existence filter may let through to the disk.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.existence-filter-false-positive-rate'.</p>
+     */
+    @Getter
+    @Value("${app.existence-filter-false-positive-rate: 0.01}")
+    private double existenceFilterFalsePositiveRate;
+
+    /**
+     * <p>The encoding of the hash that names the folders of a file, either 'base64' or 'hex'. See {@link HashedStorageLayout}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.storage-layout-encoding'.</p>
+     */
+    @Value("${app.storage-layout-encoding: base64}")
+    private String storageLayoutEncoding;
+
+    /**
+     * <p>The number of characters of the encoded hash in the name of each folder. Together with the encoding, it determines the fan-out of each level, e.g.
+     * 64 for one Base64 character, 256 for two hexadecimal characters or 4096 for two Base64 characters.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.storage-layout-segment-length'.</p>
+     */
+    @Value("${app.storage-layout-segment-length: 1}")
+    private int storageLayoutSegmentLength;
+
+    /**
+     * <p>The representation of the UUID that is hashed, either 'string' or 'bytes'.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.storage-layout-hash-input'.</p>
+     */
+    @Value("${app.storage-layout-hash-input: string}")
+    private String storageLayoutHashInput;
+
+    /**
+     * <p>The number of seconds between checks of the file with the requested file depth, when changes to it are not reported by the file system. See
+     * {@link FileDepthWatcher}.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.file-depth-poll-interval-seconds'.</p>
+     */
+    @Getter
+    @Value("${app.file-depth-poll-interval-seconds: 30}")
+    private long fileDepthPollIntervalSeconds;
+
+    /**
+     * <p>Whether a change of the requested file depth starts a maintenance job that migrates every file to the new depth. While it runs, files are read from
+     * both depths, and are not moved when they are read.</p>
+     * <p>The value is configured in application.properties or application.yml with the key 'app.depth-migration-enabled'.</p>
+     */
+    @Getter
+    @Value("${app.depth-migration-enabled: true}")
+    private boolean depthMigrationEnabled;
+
+    private StorageLayout storageLayout;
+
+    /**
+     * The requested file depth, determined when first needed and refreshed by {@link #refreshRequestedFileDepth()}.
+     */
+    private volatile Integer requestedFileDepth;
+
     /**
      * Get the path to the data root folder.
      * @return The path to the data root folder.
@@ -73,20 +421,163 @@ public class ConfigurationService {
     }
 
     /**
-     * <p>Determines the requested file depth.</p>
+     * <p>Gets the storage layout of the data root folder, which determines the folders in which a file is stored.</p>
+     * <p>The layout must not be changed once files have been stored, since existing files would no longer be found. The default layout is
+     * {@link StorageLayout#DEFAULT}.</p>
+     * @return The storage layout.
+     */
+    public StorageLayout getStorageLayout() {
+        if (storageLayout == null) {
+            try {
+                storageLayout = new HashedStorageLayout(
+                    HashedStorageLayout.Encoding.valueOf(storageLayoutEncoding.trim().toUpperCase(Locale.ROOT)),
+                    storageLayoutSegmentLength,
+                    HashedStorageLayout.HashInput.valueOf(storageLayoutHashInput.trim().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("Invalid storage layout. Please check 'app.storage-layout-encoding', 'app.storage-layout-segment-length' and "
+                                                    + "'app.storage-layout-hash-input' in application properties or application.yml.", e);
+            }
+        }
+        return storageLayout;
+    }
+
+    /**
+     * Gets the engine running the traversals of maintenance jobs.
+     * @return The configured engine.
+     * @throws IllegalStateException if the configured engine is unknown.
+     */
+    public TraversalEngine getMaintenanceTraversalEngine() {
+        try {
+            return TraversalEngine.valueOf(maintenanceTraversalEngine.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid maintenance traversal engine. Please check 'app.maintenance-traversal-engine' in application properties or "
+                                                + "application.yml.", e);
+        }
+    }
+
+    /**
+     * Gets how durably files are written.
+     * @return The configured durability.
+     * @throws IllegalStateException if the configured durability is unknown.
+     */
+    public WriteDurability getWriteDurability() {
+        try {
+            return WriteDurability.valueOf(writeDurability.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid write durability. Please check 'app.write-durability' in application properties or application.yml.", e);
+        }
+    }
+
+    /**
+     * Gets the codec files are compressed with when they are written.
+     * @return The configured codec, or an empty Optional if files are stored as they are.
+     * @throws IllegalStateException if the configured codec is unknown.
+     */
+    public Optional<ContentCodec> getCompressionCodec() {
+        if (compressionCodec == null || compressionCodec.isBlank() || compressionCodec.trim().equalsIgnoreCase("none")) {
+            return Optional.empty();
+        }
+
+        var codec = ContentCodec.forName(compressionCodec);
+        if (codec.isEmpty()) {
+            throw new IllegalStateException("Invalid compression codec. Please check 'app.compression-codec' in application properties or application.yml.");
+        }
+        return codec;
+    }
+
+    /**
+     * Gets the schedule of the windows in which maintenance jobs run automatically.
+     * @return The cron expression of the start of the windows, or an empty Optional if no windows are configured.
+     * @throws IllegalStateException if the configured expression is invalid.
+     */
+    public Optional<CronExpression> getMaintenanceWindowSchedule() {
+        if (maintenanceWindowCron == null || maintenanceWindowCron.isBlank()) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(CronExpression.parse(maintenanceWindowCron.trim()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid maintenance window. Please check 'app.maintenance-window-cron' in application properties or application.yml.",
+                                            e);
+        }
+    }
+
+    /**
+     * <p>Gets the requested file depth.</p>
+     * <p>The file depth is determined the first time it is needed (see {@link #refreshRequestedFileDepth()}) and kept in memory. Changes to the file with the
+     * file depth are picked up by the {@link FileDepthWatcher}.</p>
+     * @return The requested file depth.
+     */
+    public int getRequestedFileDepth() {
+        var depth = requestedFileDepth;
+        if (depth == null) {
+            depth = refreshRequestedFileDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * <p>Determines the requested file depth again and keeps it in memory.</p>
      * <p>The file depth is determined by attempting to get the file depth information from different sources. This is done in the following order:</p>
      * <ol>
      *     <li>By reading the value from a file. (see {@link #getFileDepthFromFile()}).</li>
      *     <li>By reading the value from the configuration in <b>application.properties</b> or <b>application</b> (see {@link #defaultFileDepth}).</li>
      *     <li>Using the default value which is the value 4.</li>
      * </ol>
-     * <p>The first source that provides a valid value is used.</p>
+     * <p>The first source that provides a valid value is used. If the file cannot be read, or the depth is larger than the {@link StorageLayout#getMaxDepth()
+     * maximum depth} of the storage layout, the value in memory is not changed.</p>
      * @return The requested file depth.
+     * @throws IllegalStateException if the depth is negative or larger than the maximum depth of the storage layout.
      */
-    public int getRequestedFileDepth() {
-        return getFileDepthFromFile()
-                   .or(this::getDefaultConfiguredFileDepth)
-                   .orElse(DEFAULT_DEPTH);
+    public synchronized int refreshRequestedFileDepth() {
+        int depth = getFileDepthFromFile()
+                        .or(this::getDefaultConfiguredFileDepth)
+                        .orElse(DEFAULT_DEPTH);
+        var maxDepth = getStorageLayout().getMaxDepth();
+        if (depth < 0 || depth > maxDepth) {
+            throw new IllegalStateException("Invalid requested file depth " + depth + ". The storage layout allows depths from 0 to " + maxDepth + ".");
+        }
+        requestedFileDepth = depth;
+        return depth;
+    }
+
+    /**
+     * Get the path to the file with the requested file depth.
+     * @return The path to the file. The file may not exist.
+     */
+    public Path getFileDepthFilePath() {
+        return getConfigRootFolderPath().resolve(fileDepthFilename);
+    }
+
+    /**
+     * Get the path to the file with the progress of the latest maintenance job.
+     * @return The path to the file. The file may not exist.
+     */
+    public Path getMaintenanceCheckpointFilePath() {
+        return getConfigRootFolderPath().resolve(maintenanceCheckpointFilename);
+    }
+
+    /**
+     * Get the path to the blob root folder. The blob folder is located under the root folder on the path specified by {@link #blobSubfolder}.
+     * @return The path to the blob root folder.
+     */
+    public Path getBlobRootFolderPath() {
+        if (blobSubfolder == null || blobSubfolder.isEmpty()) {
+            throw new IllegalStateException("Blob subfolder is not configured. Please set 'app.blob-subfolder' in application properties or application.yml.");
+        }
+        return Paths.get(getRootFolder(), blobSubfolder);
+    }
+
+    /**
+     * Get the path to the upload root folder. The upload folder is located under the root folder on the path specified by {@link #uploadSubfolder}.
+     * @return The path to the upload root folder.
+     */
+    public Path getUploadRootFolderPath() {
+        if (uploadSubfolder == null || uploadSubfolder.isEmpty()) {
+            throw new IllegalStateException("Upload subfolder is not configured. Please set 'app.upload-subfolder' in application properties or application.yml.");
+        }
+        return Paths.get(getRootFolder(), uploadSubfolder);
     }
 
     /**
@@ -117,7 +608,7 @@ public class ConfigurationService {
      * @return An Optional containing the file depth if the file exists and is readable, otherwise an empty Optional.
      */
     private Optional<Integer> getFileDepthFromFile() {
-        Path fileDepthPath = getConfigRootFolderPath().resolve(fileDepthFilename);
+        Path fileDepthPath = getFileDepthFilePath();
         if (!fileDepthPath.toFile().exists()) {
             return Optional.empty();
         }
@@ -0,0 +1,18 @@
+package dk.runerne.fileserver;
+
+import lombok.Data;
+
+/**
+ * Published by the {@link FileDepthWatcher} when the requested file depth has changed. Files stored at the old depth remain there until they are moved by the
+ * maintenance, or when they are read.
+ */
+@Data
+public class FileDepthChangedEvent {
+
+    /** The requested file depth before the change. */
+    private final int oldDepth;
+
+    /** The requested file depth after the change. */
+    private final int newDepth;
+
+}
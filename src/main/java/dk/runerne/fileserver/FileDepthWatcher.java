@@ -0,0 +1,153 @@
+package dk.runerne.fileserver;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Keeps the requested file depth held by the {@link ConfigurationService} up to date with the file it is read from, and publishes a
+ * {@link FileDepthChangedEvent} when it changes.</p>
+ * <p>The config folder is watched by a {@link WatchService}, so a change is picked up as soon as the file is written. Since some file systems, e.g. network
+ * shares and volumes mounted into containers, do not report changes, the file is also read every 'app.file-depth-poll-interval-seconds' seconds. If the
+ * config folder cannot be watched, e.g. because it does not exist yet, the file is only read at that interval, and watching is attempted again.</p>
+ */
+@Service
+@Slf4j
+public class FileDepthWatcher {
+
+    @Autowired private ConfigurationService configurationService;
+    @Autowired private ApplicationEventPublisher applicationEventPublisher;
+
+    private Thread thread;
+
+    /**
+     * Starts watching the file with the requested file depth in the background when the application has started.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        thread = new Thread(this::watch, "file-depth-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the file.
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Reads the requested file depth again, and publishes a {@link FileDepthChangedEvent} if it has changed. If the file cannot be read, the current depth is
+     * kept.
+     * @return <i>true</i> if the depth has changed.
+     */
+    public synchronized boolean refresh() {
+        var oldDepth = configurationService.getRequestedFileDepth();
+        int newDepth;
+        try {
+            newDepth = configurationService.refreshRequestedFileDepth();
+        } catch (RuntimeException e) {
+            log.warn("Error refreshing the requested file depth. Keeping depth {}.", oldDepth, e);
+            return false;
+        }
+
+        if (newDepth == oldDepth) {
+            return false;
+        }
+
+        log.info("Requested file depth changed from {} to {}", oldDepth, newDepth);
+        applicationEventPublisher.publishEvent(new FileDepthChangedEvent(oldDepth, newDepth));
+        return true;
+    }
+
+    private void watch() {
+        var pollIntervalSeconds = Math.max(1, configurationService.getFileDepthPollIntervalSeconds());
+        WatchService watchService = null;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (watchService == null) {
+                    watchService = createWatchService();
+                }
+
+                if (watchService == null) {
+                    TimeUnit.SECONDS.sleep(pollIntervalSeconds);
+                } else {
+                    var key = watchService.poll(pollIntervalSeconds, TimeUnit.SECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        if (!key.reset()) {
+                            closeWatchService(watchService);
+                            watchService = null;
+                        }
+                    }
+                }
+                refreshSafely();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeWatchService(watchService);
+        }
+    }
+
+    /**
+     * Refreshes the depth, and logs rather than throws the errors of the listeners of the event, e.g. when the running maintenance job cannot be terminated,
+     * so the watcher keeps running and later changes are picked up.
+     */
+    private void refreshSafely() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            log.error("Error handling a change of the requested file depth", e);
+        }
+    }
+
+    private WatchService createWatchService() {
+        var configFolder = configurationService.getFileDepthFilePath().getParent();
+        WatchService watchService = null;
+        try {
+            watchService = configFolder.getFileSystem().newWatchService();
+            configFolder.register(watchService,
+                                  StandardWatchEventKinds.ENTRY_CREATE,
+                                  StandardWatchEventKinds.ENTRY_MODIFY,
+                                  StandardWatchEventKinds.ENTRY_DELETE);
+            return watchService;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Cannot watch {}, polling the requested file depth instead: {}", configFolder, e.toString());
+            closeWatchService(watchService);
+            return null;
+        }
+    }
+
+    private static void closeWatchService(WatchService watchService) {
+        if (watchService == null) {
+            return;
+        }
+
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("Error closing watch service", e);
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package dk.runerne.fileserver.filehandling;
+
+import java.util.Locale;
+
+/**
+ * <p>Evaluates the <b>Accept-Encoding</b> header of a request.</p>
+ * <p>The header is a comma-separated list of content codings, each optionally followed by a quality value, e.g. <i>gzip, deflate;q=0.5</i>. A coding with the
+ * quality value 0 is not acceptable. The wildcard <i>*</i> matches any coding that is not listed, and <i>x-gzip</i> is the same coding as <i>gzip</i>.</p>
+ */
+final class AcceptEncoding {
+
+    private static final String WILDCARD = "*";
+    private static final String GZIP = "gzip";
+    private static final String X_GZIP = "x-gzip";
+
+    /**
+     * Checks whether the client accepts content with the given coding.
+     * @param headerValue The value of the <b>Accept-Encoding</b> header, or <i>null</i> if the request has no such header.
+     * @param encoding    The content coding, e.g. <i>gzip</i>.
+     * @return <i>true</i> if the coding is listed, or matched by the wildcard, with a quality value above 0.
+     */
+    static boolean accepts(String headerValue, String encoding) {
+        if (headerValue == null || encoding == null) {
+            return false;
+        }
+
+        var coding = normalize(encoding);
+        Boolean wildcard = null;
+        for (var element : headerValue.split(",")) {
+            var parameters = element.split(";");
+            var name = normalize(parameters[0]);
+            if (name.equals(coding)) {
+                return isAcceptable(parameters);
+            }
+            if (name.equals(WILDCARD)) {
+                wildcard = isAcceptable(parameters);
+            }
+        }
+        return Boolean.TRUE.equals(wildcard);
+    }
+
+    private static String normalize(String coding) {
+        var name = coding.trim().toLowerCase(Locale.ROOT);
+        return name.equals(X_GZIP) ? GZIP : name;
+    }
+
+    /**
+     * Checks the quality value among the parameters of a listed coding. A missing or invalid quality value is taken as 1.
+     */
+    private static boolean isAcceptable(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            var parameter = parameters[i].trim();
+            if (parameter.length() > 2 && parameter.substring(0, 2).equalsIgnoreCase("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim()) > 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return true;
+    }
+
+    private AcceptEncoding() {
+    }
+
+}
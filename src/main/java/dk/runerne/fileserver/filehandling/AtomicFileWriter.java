@@ -0,0 +1,344 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Writes files atomically, with the configured {@link WriteDurability durability}.</p>
+ * <p>A write is done in two steps. The data is first {@link #prepare(FileDescriptor, InputStream) written} to a temporary file next to the file, and then
+ * {@link #commit(FileDescriptor, Path) committed} by renaming the temporary file to the file. A reader therefore never sees a partly written file, and the
+ * caller can stream the data without holding the lock of the file, and only take it for the rename.</p>
+ * <p>With the durability 'fsync' and 'group-commit', the data of the temporary file is forced to the storage device when it has been written, and the
+ * folder of the file is forced after the rename, so the rename survives a crash. With 'group-commit', the renames are done by a single committer thread in
+ * batches, and each folder is forced only once per batch. A batch holds the commits that arrived while the previous batch was forced. While other writes
+ * are still being prepared, the committer waits up to the configured interval for them to join the batch, but a single writer does not wait. On journaling
+ * file systems, where forcing a folder writes the journal, concurrent writes thereby share the cost of writing the journal.</p>
+ * <p>If a {@link ContentCodec compression codec} is configured, files of at least the configured size are compressed while they are written, unless their
+ * data proves incompressible, see {@link FileDescriptor#writeTemporaryFile(InputStream, boolean, ContentCodec, int)}.</p>
+ * <p>The durability is configured with the keys 'app.write-durability' and 'app.group-commit-interval-millis', and the compression with the keys
+ * 'app.compression-codec' and 'app.compression-min-size'.</p>
+ */
+@Service
+@Slf4j
+public class AtomicFileWriter {
+
+    /**
+     * How often the committer checks whether writes are still being prepared, while it waits for them.
+     */
+    private static final long MAX_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    @Autowired private ConfigurationService configurationService;
+    @Autowired private BlobStore blobStore;
+
+    /**
+     * The durability of the writes.
+     */
+    @Getter private WriteDurability writeDurability;
+
+    /**
+     * The codec files are compressed with, or <i>null</i> if files are stored as they are.
+     */
+    @Getter private ContentCodec contentCodec;
+
+    private int compressionMinSize;
+
+    private final BlockingQueue<PendingCommit> pendingCommits = new LinkedBlockingQueue<>();
+    private final AtomicInteger preparing = new AtomicInteger();
+    private Thread committer;
+
+    /**
+     * Reads the durability and the compression, and starts the committer thread, if the durability is 'group-commit'. Compression is disabled if the file
+     * system cannot record the encoding of the files.
+     */
+    @PostConstruct
+    public void init() {
+        writeDurability = configurationService.getWriteDurability();
+        contentCodec = configurationService.getCompressionCodec().orElse(null);
+        compressionMinSize = configurationService.getCompressionMinSize();
+        if (contentCodec != null && !isCompressionSupported()) {
+            contentCodec = null;
+        }
+        if (writeDurability != WriteDurability.GROUP_COMMIT) {
+            return;
+        }
+
+        var intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, configurationService.getGroupCommitIntervalMillis()));
+        committer = new Thread(() -> runCommitter(intervalNanos), "group-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    private boolean isCompressionSupported() {
+        try {
+            if (FileMetadata.isSupported(Files.createDirectories(configurationService.getDataRootFolderPath()))) {
+                return true;
+            }
+            log.warn("Compression is disabled, since the file system does not support extended attributes");
+        } catch (IOException e) {
+            log.warn("Compression is disabled, since the data folder is not available: {}", e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Stops the committer thread. Commits that have not been done fail.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (committer != null) {
+            committer.interrupt();
+        }
+    }
+
+    /**
+     * Writes the content of the given input stream to the given file, replacing its current content.
+     * @param fileDescriptor The file to write.
+     * @param inputStream The input stream to read the data from. It is read until it is exhausted, but it is not closed.
+     * @return The given FileDescriptor.
+     * @throws IOException If an I/O error occurs while reading the stream or writing the file. The file is then unchanged.
+     */
+    public FileDescriptor write(FileDescriptor fileDescriptor, InputStream inputStream) throws IOException {
+        var temporaryPath = prepare(fileDescriptor, inputStream);
+        try {
+            return commit(fileDescriptor, temporaryPath);
+        } catch (IOException | RuntimeException e) {
+            discard(temporaryPath);
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the content of the given file with a file written elsewhere on the same file system, e.g. the staging file of an upload session.
+     * @param fileDescriptor The file to write.
+     * @param stagedPath The path of the written file. It is moved or deleted, unless an I/O error occurs before it is read.
+     * @return The given FileDescriptor.
+     * @throws IOException If an I/O error occurs while reading or renaming the written file, or writing the file. The file is then unchanged.
+     */
+    public FileDescriptor write(FileDescriptor fileDescriptor, Path stagedPath) throws IOException {
+        var temporaryPath = prepare(fileDescriptor, stagedPath);
+        try {
+            return commit(fileDescriptor, temporaryPath);
+        } catch (IOException | RuntimeException e) {
+            discard(temporaryPath);
+            throw e;
+        }
+    }
+
+    /**
+     * Turns a file written elsewhere on the same file system into a temporary file next to the given file, like
+     * {@link #prepare(FileDescriptor, InputStream)}. If the content is not to be compressed, the written file is renamed, so its content is not copied, see
+     * {@link FileDescriptor#adoptTemporaryFile(Path, boolean)}. Otherwise, it is compressed into a new temporary file and deleted.
+     * @param fileDescriptor The file to write.
+     * @param stagedPath The path of the written file.
+     * @return The path of the temporary file. It must either be committed or {@link #discard(Path) discarded}.
+     * @throws IOException If an I/O error occurs while reading, renaming or deleting the written file, or writing the temporary file. No temporary file is
+     *                     then left behind.
+     */
+    public Path prepare(FileDescriptor fileDescriptor, Path stagedPath) throws IOException {
+        if (contentCodec != null && Files.size(stagedPath) >= compressionMinSize) {
+            Path temporaryPath;
+            try (var inputStream = Files.newInputStream(stagedPath)) {
+                temporaryPath = prepare(fileDescriptor, inputStream);
+            }
+            try {
+                Files.delete(stagedPath);
+            } catch (IOException | RuntimeException e) {
+                // The written file is kept, so the compressed copy is discarded to let a retry start over
+                discard(temporaryPath);
+                throw e;
+            }
+            return temporaryPath;
+        }
+
+        preparing.incrementAndGet();
+        try {
+            var temporaryPath = fileDescriptor.adoptTemporaryFile(stagedPath, writeDurability != WriteDurability.NONE);
+            try {
+                return blobStore.share(temporaryPath);
+            } catch (IOException | RuntimeException e) {
+                discard(temporaryPath);
+                throw e;
+            }
+        } finally {
+            preparing.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the content of the given input stream to a temporary file next to the given file. The file itself is not changed until the temporary file is
+     * {@link #commit(FileDescriptor, Path) committed}. If deduplication is enabled, the temporary file is {@link BlobStore#share(Path) shared} with the
+     * files of the same content.
+     * @param fileDescriptor The file to write.
+     * @param inputStream The input stream to read the data from. It is read until it is exhausted, but it is not closed.
+     * @return The path of the temporary file. It must either be committed or {@link #discard(Path) discarded}.
+     * @throws IOException If an I/O error occurs while reading the stream or writing the temporary file.
+     */
+    public Path prepare(FileDescriptor fileDescriptor, InputStream inputStream) throws IOException {
+        preparing.incrementAndGet();
+        try {
+            var temporaryPath = fileDescriptor.writeTemporaryFile(inputStream, writeDurability != WriteDurability.NONE, contentCodec, compressionMinSize);
+            try {
+                return blobStore.share(temporaryPath);
+            } catch (IOException | RuntimeException e) {
+                discard(temporaryPath);
+                throw e;
+            }
+        } finally {
+            preparing.decrementAndGet();
+        }
+    }
+
+    /**
+     * Replaces the given file with the given temporary file. With the durability 'group-commit', the call returns when the batch of the commit has been
+     * forced to the storage device.
+     * @param fileDescriptor The file to replace.
+     * @param temporaryPath The path of a temporary file written by {@link #prepare(FileDescriptor, InputStream)}.
+     * @return The given FileDescriptor.
+     * @throws IOException If an I/O error occurs during the rename, or while forcing the folder of the file to the storage device.
+     */
+    public FileDescriptor commit(FileDescriptor fileDescriptor, Path temporaryPath) throws IOException {
+        switch (writeDurability) {
+            case NONE -> fileDescriptor.replaceWith(temporaryPath);
+            case FSYNC -> {
+                fileDescriptor.replaceWith(temporaryPath);
+                forceFolder(fileDescriptor.getFolderPath());
+            }
+            case GROUP_COMMIT -> awaitGroupCommit(fileDescriptor, temporaryPath);
+        }
+        return fileDescriptor;
+    }
+
+    /**
+     * Deletes a temporary file that is not going to be committed.
+     * @param temporaryPath The path of a temporary file written by {@link #prepare(FileDescriptor, InputStream)}.
+     */
+    public void discard(Path temporaryPath) {
+        try {
+            Files.deleteIfExists(temporaryPath);
+        } catch (IOException e) {
+            log.warn("Error deleting temporary file: " + temporaryPath, e);
+        }
+    }
+
+    private void awaitGroupCommit(FileDescriptor fileDescriptor, Path temporaryPath) throws IOException {
+        var pendingCommit = new PendingCommit(fileDescriptor, temporaryPath);
+        pendingCommits.add(pendingCommit);
+        if (committer == null || !committer.isAlive()) {
+            pendingCommits.remove(pendingCommit);
+            throw new IOException("Group committer is not running");
+        }
+
+        try {
+            pendingCommit.committed.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw e;
+        }
+    }
+
+    private void runCommitter(long intervalNanos) {
+        var batch = new ArrayList<PendingCommit>();
+        try {
+            while (true) {
+                batch.add(pendingCommits.take());
+                var deadline = System.nanoTime() + intervalNanos;
+                long remaining;
+                while (preparing.get() > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                    var next = pendingCommits.poll(Math.min(remaining, MAX_POLL_NANOS), TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+                pendingCommits.drainTo(batch);
+                commitBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pendingCommits.drainTo(batch);
+            var stopped = new IOException("Group committer stopped");
+            batch.forEach(pendingCommit -> pendingCommit.committed.completeExceptionally(stopped));
+        }
+    }
+
+    /**
+     * Renames the temporary files of the batch, and forces each folder once. A commit only fails if its own rename fails, or if the folder of its file
+     * cannot be forced.
+     */
+    private void commitBatch(List<PendingCommit> batch) {
+        Map<Path, List<PendingCommit>> folders = new HashMap<>();
+        for (var pendingCommit : batch) {
+            try {
+                pendingCommit.fileDescriptor.replaceWith(pendingCommit.temporaryPath);
+                folders.computeIfAbsent(pendingCommit.fileDescriptor.getFolderPath(), folder -> new ArrayList<>()).add(pendingCommit);
+            } catch (IOException | RuntimeException e) {
+                pendingCommit.committed.completeExceptionally(e);
+            }
+        }
+
+        folders.forEach((folder, pendingCommitsInFolder) -> {
+            try {
+                forceFolder(folder);
+                pendingCommitsInFolder.forEach(pendingCommit -> pendingCommit.committed.complete(null));
+            } catch (IOException e) {
+                pendingCommitsInFolder.forEach(pendingCommit -> pendingCommit.committed.completeExceptionally(e));
+            }
+        });
+        log.trace("Committed {} writes in {} folders", batch.size(), folders.size());
+    }
+
+    /**
+     * Forces the entries of a folder, i.e. the renames in it, to the storage device.
+     */
+    private static void forceFolder(Path folder) throws IOException {
+        try (var channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // Some platforms, e.g. Windows, cannot open a folder as a channel. They write the folder entries as part of the rename.
+            log.trace("Unable to force folder {}: {}", folder, e.getMessage());
+        }
+    }
+
+    /**
+     * A commit waiting for the committer thread.
+     */
+    private static final class PendingCommit {
+
+        private final FileDescriptor fileDescriptor;
+        private final Path temporaryPath;
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        private PendingCommit(FileDescriptor fileDescriptor, Path temporaryPath) {
+            this.fileDescriptor = fileDescriptor;
+            this.temporaryPath = temporaryPath;
+        }
+
+    }
+
+}
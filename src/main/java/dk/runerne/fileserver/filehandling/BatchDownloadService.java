@@ -0,0 +1,228 @@
+package dk.runerne.fileserver.filehandling;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import dk.runerne.fileserver.ConfigurationService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Streams many files in one response, so clients reading many files do not pay a round trip per file.</p>
+ * <p>The response is a sequence of entries, one for each requested UUID and in the same order. Each entry is the size of the file in bytes, as an 8 byte
+ * signed big-endian integer, followed by the content of the file, i.e. the same format as the request of a {@link BatchUploadService batch upload}. A file
+ * that does not exist is given the size {@value #MISSING} and a file that could not be read the size {@value #FAILED}, without any content.</p>
+ * <p>The files are opened ahead of the response by a bounded pool of I/O threads, so the response does not wait for each file to be located and opened in
+ * turn. A file no larger than the configured size is read into memory by the I/O thread as well. At most a fixed number of files per I/O thread are opened
+ * ahead, so the memory held by prefetched files is bounded. Files in the {@link HotFileCache} are served from the cache. Compressed files are decompressed,
+ * since the entries have no encoding.</p>
+ * <p>The UUIDs are {@link #readIds(InputStream) read} from the request as they are parsed, and at most the configured number of files can be requested at
+ * once, so the memory held by a request is bounded as well.</p>
+ * <p>The pool is configured with the keys 'app.batch-download-threads' and 'app.batch-download-max-buffered-size', and the number of files with the key
+ * 'app.batch-download-max-files'.</p>
+ */
+@Service
+@Slf4j
+public class BatchDownloadService {
+
+    /**
+     * The size of an entry for a file that does not exist.
+     */
+    public static final long MISSING = -1;
+
+    /**
+     * The size of an entry for a file that could not be read.
+     */
+    public static final long FAILED = -2;
+
+    /**
+     * The number of files that may be opened ahead of the response for each I/O thread.
+     */
+    private static final int PREFETCHED_FILES_PER_THREAD = 4;
+
+    /**
+     * Size of the buffer collecting small entries into larger writes to the response.
+     */
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Parser factory for the requested UUIDs. The request stream is left open for the servlet container.
+     */
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder().disable(StreamReadFeature.AUTO_CLOSE_SOURCE).build();
+
+    @Autowired private ConfigurationService configurationService;
+    @Autowired private FileService fileService;
+
+    private ThreadPoolExecutor pool;
+    private int prefetchedFiles;
+
+    /**
+     * Starts the I/O threads.
+     */
+    @PostConstruct
+    public void init() {
+        var threads = Math.max(1, configurationService.getBatchDownloadThreads());
+        var threadNumber = new AtomicInteger(0);
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                      new LinkedBlockingQueue<>(),
+                                      runnable -> {
+                                          var thread = new Thread(runnable, "batch-download-" + threadNumber.incrementAndGet());
+                                          thread.setDaemon(true);
+                                          return thread;
+                                      });
+        prefetchedFiles = threads * PREFETCHED_FILES_PER_THREAD;
+    }
+
+    /**
+     * Stops the I/O threads.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the UUIDs of the files to download from a JSON array of strings. The array is parsed as it is read, so a request for more files than allowed is
+     * rejected without binding all of its UUIDs.
+     * @param inputStream The stream holding the array. It is not closed.
+     * @return The UUIDs, in the order of the array.
+     * @throws IllegalArgumentException If the stream does not hold a JSON array of UUIDs, or more UUIDs than configured with 'app.batch-download-max-files'.
+     * @throws RuntimeException If the stream could not be read.
+     */
+    public List<UUID> readIds(InputStream inputStream) {
+        var maxFiles = configurationService.getBatchDownloadMaxFiles();
+        var ids = new ArrayList<UUID>();
+        try (var parser = JSON_FACTORY.createParser(inputStream)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IllegalArgumentException("Expected an array of UUIDs");
+            }
+            for (var token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+                if (token != JsonToken.VALUE_STRING) {
+                    throw new IllegalArgumentException("Expected a UUID, found " + token);
+                }
+                if (ids.size() >= maxFiles) {
+                    throw new IllegalArgumentException("More than " + maxFiles + " files requested");
+                }
+                ids.add(UUID.fromString(parser.getText()));
+            }
+            return ids;
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid array of UUIDs", e);
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading the UUIDs of a batch download", e);
+        }
+    }
+
+    /**
+     * Writes an entry for each of the given files to the given output stream.
+     * @param ids The UUIDs of the files.
+     * @param outputStream The output stream to write the entries to. It is flushed, but not closed.
+     * @throws IOException If an I/O error occurs writing to the output stream. Files that were opened ahead are closed.
+     */
+    public void write(List<UUID> ids, OutputStream outputStream) throws IOException {
+        var maxBufferedSize = configurationService.getBatchDownloadMaxBufferedSize();
+        var prefetched = new ArrayDeque<CompletableFuture<FileContent>>(prefetchedFiles);
+        var entries = new DataOutputStream(new BufferedOutputStream(new NonFlushingOutputStream(outputStream), OUTPUT_BUFFER_SIZE));
+        var next = 0;
+        try {
+            while (next < ids.size() || !prefetched.isEmpty()) {
+                while (next < ids.size() && prefetched.size() < prefetchedFiles) {
+                    var id = ids.get(next++);
+                    prefetched.add(CompletableFuture.supplyAsync(() -> prefetch(id, maxBufferedSize), pool));
+                }
+                writeEntry(prefetched.poll(), entries);
+            }
+            entries.flush();
+            outputStream.flush();
+        } finally {
+            prefetched.forEach(future -> future.thenAccept(BatchDownloadService::closeQuietly));
+        }
+    }
+
+    private FileContent prefetch(UUID id, int maxBufferedSize) {
+        try {
+            var cachedFile = fileService.getCachedFile(id);
+            var content = cachedFile.isPresent() ? FileContent.of(cachedFile.get()) : fileService.open(id);
+            return content.getDecodedSize() <= maxBufferedSize ? content.decode() : content;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static void writeEntry(CompletableFuture<FileContent> future, DataOutputStream entries) throws IOException {
+        FileContent content;
+        try {
+            content = future.join();
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof FileNotFoundException)) {
+                log.warn("Error reading file of a batch download", e.getCause());
+            }
+            entries.writeLong(e.getCause() instanceof FileNotFoundException ? MISSING : FAILED);
+            return;
+        }
+
+        try (content) {
+            entries.writeLong(content.getDecodedSize());
+            content.writeDecodedTo(entries);
+        }
+    }
+
+    private static void closeQuietly(FileContent content) {
+        try {
+            content.close();
+        } catch (IOException e) {
+            log.debug("Error closing prefetched file: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Leaves the flushing of the response to the end, so small entries are sent in few, large writes.
+     */
+    private static final class NonFlushingOutputStream extends FilterOutputStream {
+
+        private NonFlushingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            // The response is flushed when every entry has been written
+        }
+
+        @Override
+        public void close() {
+            // The response is closed by the caller
+        }
+
+    }
+
+}
@@ -0,0 +1,242 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Creates many files from one request, so clients storing many small files do not pay a round trip per file.</p>
+ * <p>The request body is a sequence of entries. Each entry is the size of a file in bytes, as an 8 byte signed big-endian integer, followed by the content
+ * of the file. The body ends after the last entry.</p>
+ * <p>The entries are read in order by the request thread. An entry no larger than the configured size is read into memory and written by a bounded pool of
+ * I/O threads, so several files are written in parallel. A larger entry is streamed to disk by the request thread itself. When the queue of the pool is
+ * full, the request thread writes the entry itself as well, so the memory held by buffered entries is bounded. Every file is written by
+ * {@link FileService#create(InputStream)}, which only creates the folders of a file if they do not exist.</p>
+ * <p>The files of a batch are created all or none: if an entry cannot be read or written, the files already created for the batch are deleted.</p>
+ * <p>The pool is configured with the keys 'app.batch-upload-threads' and 'app.batch-upload-max-buffered-size'.</p>
+ */
+@Service
+@Slf4j
+public class BatchUploadService {
+
+    /**
+     * The number of buffered entries that may wait for each I/O thread.
+     */
+    private static final int QUEUED_ENTRIES_PER_THREAD = 4;
+
+    @Autowired private ConfigurationService configurationService;
+    @Autowired private FileService fileService;
+
+    private ThreadPoolExecutor pool;
+
+    /**
+     * Starts the I/O threads.
+     */
+    @PostConstruct
+    public void init() {
+        var threads = Math.max(1, configurationService.getBatchUploadThreads());
+        var threadNumber = new AtomicInteger(0);
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<>(threads * QUEUED_ENTRIES_PER_THREAD),
+                                      runnable -> {
+                                          var thread = new Thread(runnable, "batch-upload-" + threadNumber.incrementAndGet());
+                                          thread.setDaemon(true);
+                                          return thread;
+                                      },
+                                      new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Stops the I/O threads.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a file for each entry of the given stream.
+     * @param inputStream The stream of entries, see {@link BatchUploadService}. It is read until it is exhausted, but it is not closed.
+     * @return The UUIDs of the created files, in the order of the entries.
+     * @throws IllegalArgumentException If the stream is not a valid sequence of entries. No files are created.
+     * @throws RuntimeException If an entry could not be read or written. No files are created.
+     */
+    public List<UUID> create(InputStream inputStream) {
+        var entries = new DataInputStream(inputStream);
+        var maxBufferedSize = configurationService.getBatchUploadMaxBufferedSize();
+        var created = new ArrayList<CompletableFuture<UUID>>();
+        try {
+            long size;
+            while ((size = readSize(entries)) >= 0) {
+                if (size <= maxBufferedSize) {
+                    var data = readData(entries, (int) size);
+                    created.add(CompletableFuture.supplyAsync(() -> fileService.create(data), pool));
+                } else {
+                    created.add(CompletableFuture.completedFuture(createStreamed(entries, size)));
+                }
+            }
+            return awaitAll(created);
+        } catch (IOException e) {
+            deleteCreated(created);
+            throw new RuntimeException("Error reading batch", e);
+        } catch (RuntimeException e) {
+            deleteCreated(created);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the size of the next entry.
+     * @return The size, or -1 if the stream has ended.
+     */
+    private static long readSize(DataInputStream entries) throws IOException {
+        var first = entries.read();
+        if (first < 0) {
+            return -1;
+        }
+
+        long size = first;
+        try {
+            for (int i = 1; i < Long.BYTES; i++) {
+                size = size << 8 | entries.readUnsignedByte();
+            }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Batch ends within the size of an entry", e);
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size of an entry: " + size);
+        }
+        return size;
+    }
+
+    private static byte[] readData(DataInputStream entries, int size) throws IOException {
+        var data = new byte[size];
+        try {
+            entries.readFully(data);
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Batch ends within an entry", e);
+        }
+        return data;
+    }
+
+    private UUID createStreamed(DataInputStream entries, long size) {
+        var entry = new EntryInputStream(entries, size);
+        var id = fileService.create(entry);
+        if (entry.remaining > 0) {
+            deleteQuietly(id);
+            throw new IllegalArgumentException("Batch ends within an entry");
+        }
+        return id;
+    }
+
+    private static List<UUID> awaitAll(List<CompletableFuture<UUID>> created) {
+        var ids = new ArrayList<UUID>(created.size());
+        for (var future : created) {
+            try {
+                ids.add(future.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw e;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Waits for the files of a failed batch to be written, and deletes them.
+     */
+    private void deleteCreated(List<CompletableFuture<UUID>> created) {
+        for (var future : created) {
+            try {
+                deleteQuietly(future.join());
+            } catch (CompletionException e) {
+                // The file was not created
+            }
+        }
+    }
+
+    private void deleteQuietly(UUID id) {
+        try {
+            fileService.delete(id);
+        } catch (FileNotFoundException | RuntimeException e) {
+            log.warn("Error deleting file with ID " + id + " of a failed batch", e);
+        }
+    }
+
+    /**
+     * The content of one entry. It ends after the size of the entry, and does not close the stream of entries.
+     */
+    private static final class EntryInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private EntryInputStream(InputStream entries, long size) {
+            super(entries);
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            var b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            var read = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            return 0;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // The stream of entries is closed by the caller
+        }
+
+    }
+
+}
@@ -0,0 +1,204 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Stores files with the same content only once, when deduplication is enabled.</p>
+ * <p>Every distinct content is a <i>blob</i> in the blob folder, named by the SHA-256 digest of the content in one of 256 folders named by the first two hex
+ * digits. The file of a UUID is a hard link to its blob, so the UUID is a reference to the content and the number of links of the blob is its
+ * reference count, maintained by the file system. Files are therefore read, moved and deleted exactly as without deduplication, and identical files share
+ * both the disk space and the pages in the operating system's cache. The files of a blob also share its last modified time, which is the time the content was
+ * last written to any of them.</p>
+ * <p>A shared blob is never modified, since files are always replaced by renaming a new file into place, see {@link AtomicFileWriter}. When a file is written,
+ * its temporary file is {@link #share(Path) shared}: if a blob with the same digest, size and encoding exists, the temporary file is replaced by a new link to the blob,
+ * otherwise the temporary file becomes the blob. When the last file of a blob is deleted or updated, only the blob itself links to it, and it is
+ * {@link #release(String) released}. Blobs left behind, e.g. by a crash, are deleted by {@link #collectGarbage()}.</p>
+ * <p>Deduplication requires a file system with hard links and extended attributes. It is configured with the keys 'app.deduplication-enabled' and
+ * 'app.blob-subfolder'.</p>
+ */
+@Service
+@Slf4j
+public class BlobStore {
+
+    private static final String LINK_COUNT_ATTRIBUTE = "unix:nlink";
+
+    @Autowired private ConfigurationService configurationService;
+
+    private volatile boolean enabled;
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Enables deduplication if it is configured, and the file system supports it.
+     */
+    @PostConstruct
+    public void init() {
+        enabled = false;
+        if (!configurationService.isDeduplicationEnabled()) {
+            return;
+        }
+
+        try {
+            var blobRootFolder = Files.createDirectories(configurationService.getBlobRootFolderPath());
+            Files.getAttribute(blobRootFolder, LINK_COUNT_ATTRIBUTE);
+            enabled = true;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            log.warn("Deduplication is disabled, since the file system does not support link counts: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Checks whether files with the same content are stored only once.
+     * @return <i>true</i> if deduplication is enabled.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gets the number of written files that were stored as a link to an existing blob since the application started.
+     * @return The number of files that did not use disk space of their own.
+     */
+    public long getSharedFiles() {
+        return shared.get();
+    }
+
+    /**
+     * <p>Shares the content of a written temporary file with the files of the same content.</p>
+     * <p>If a blob with the digest, size and encoding of the temporary file exists, the temporary file is deleted and a new temporary file linked to the blob is
+     * returned. Otherwise, the temporary file is linked into the blob folder as a new blob and returned. If deduplication is disabled, the digest of the
+     * temporary file is unknown, or the blob cannot be linked, the temporary file is returned as is.</p>
+     * @param temporaryPath The path of a temporary file written by {@link FileDescriptor#writeTemporaryFile(java.io.InputStream, boolean)}.
+     * @return The path of the temporary file to rename into place.
+     * @throws IOException If an I/O error occurs reading the metadata or size of the temporary file.
+     */
+    public Path share(Path temporaryPath) throws IOException {
+        if (!enabled) {
+            return temporaryPath;
+        }
+
+        var digest = FileMetadata.read(temporaryPath).getDigest();
+        if (digest == null) {
+            return temporaryPath;
+        }
+
+        var blobPath = getBlobPath(digest);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                Files.createDirectories(blobPath.getParent());
+                Files.createLink(blobPath, temporaryPath);
+                return temporaryPath; // The content is new, and the temporary file is now the blob
+            } catch (FileAlreadyExistsException e) {
+                var linkedPath = linkExisting(blobPath, temporaryPath);
+                if (linkedPath != null) {
+                    return linkedPath;
+                }
+                // The blob was released after it was found, so the temporary file becomes the blob
+            } catch (IOException | UnsupportedOperationException e) {
+                log.warn("Unable to store {} as a blob: {}", temporaryPath, e.getMessage());
+                return temporaryPath;
+            }
+        }
+        return temporaryPath;
+    }
+
+    /**
+     * Deletes the blob with the given digest, if no file links to it anymore. Does nothing if deduplication is disabled, or the blob does not exist.
+     * @param digest The hex encoded SHA-256 digest of the content, or <i>null</i> if it is unknown.
+     */
+    public void release(String digest) {
+        if (!enabled || digest == null) {
+            return;
+        }
+
+        releaseBlob(getBlobPath(digest));
+    }
+
+    /**
+     * Deletes every blob that no file links to.
+     * @return The number of blobs deleted.
+     */
+    public long collectGarbage() {
+        if (!enabled) {
+            return 0;
+        }
+
+        try (var paths = Files.walk(configurationService.getBlobRootFolderPath())) {
+            var released = paths.filter(Files::isRegularFile)
+                                .filter(this::releaseBlob)
+                                .count();
+            log.info("Deleted {} unreferenced blobs", released);
+            return released;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Error collecting unreferenced blobs", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Gets the path of the blob with the given digest.
+     * @param digest The hex encoded SHA-256 digest of the content.
+     * @return The path of the blob. The blob may not exist.
+     */
+    Path getBlobPath(String digest) {
+        return configurationService.getBlobRootFolderPath().resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    /**
+     * Links a new temporary file next to the given temporary file to the existing blob, and deletes the given temporary file. The last modified time of the
+     * blob is set to now, so the new file is not older than copies of the file it replaces.
+     * @return The path of the new temporary file, or <i>null</i> if the blob no longer exists.
+     */
+    private Path linkExisting(Path blobPath, Path temporaryPath) throws IOException {
+        if (!Objects.equals(FileMetadata.readEncoding(blobPath), FileMetadata.readEncoding(temporaryPath))) {
+            return temporaryPath; // The same content stored with another encoding, e.g. written before compression was configured
+        }
+        if (Files.size(blobPath) != Files.size(temporaryPath)) {
+            log.warn("Blob {} has the digest of {}, but not its size", blobPath, temporaryPath);
+            return temporaryPath;
+        }
+
+        var linkedPath = temporaryPath.resolveSibling(temporaryPath.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                                                          + FileDescriptor.TEMPORARY_FILE_SUFFIX);
+        try {
+            Files.createLink(linkedPath, blobPath);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        Files.delete(temporaryPath);
+        Files.setLastModifiedTime(linkedPath, FileTime.fromMillis(System.currentTimeMillis()));
+        shared.incrementAndGet();
+        return linkedPath;
+    }
+
+    /**
+     * Deletes the blob, if only the blob itself links to its content. A file linked to the blob after the check keeps the content, but is no longer shared
+     * with later files of the same content.
+     */
+    private boolean releaseBlob(Path blobPath) {
+        try {
+            if ((Integer) Files.getAttribute(blobPath, LINK_COUNT_ATTRIBUTE) <= 1) {
+                return Files.deleteIfExists(blobPath);
+            }
+        } catch (NoSuchFileException e) {
+            // Released by another thread
+        } catch (IOException e) {
+            log.warn("Error releasing blob " + blobPath, e);
+        }
+        return false;
+    }
+
+}
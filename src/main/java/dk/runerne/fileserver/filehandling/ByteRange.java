@@ -0,0 +1,136 @@
+package dk.runerne.fileserver.filehandling;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * <p>Represents a single satisfiable byte range of a file, as requested by an HTTP <b>Range</b> header.</p>
+ * <p>Both {@link #start} and {@link #end} are inclusive positions in the file, as in the HTTP <b>Content-Range</b> header.</p>
+ */
+@Data
+public class ByteRange {
+
+    /**
+     * The only range unit supported.
+     */
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * The maximum number of ranges accepted in a single request. Requests with more ranges are served as if no ranges were requested.
+     */
+    static final int MAX_RANGES = 100;
+
+    /** The position of the first byte in the range. */
+    private final long start;
+
+    /** The position of the last byte in the range. */
+    private final long end;
+
+    /**
+     * <p>Parses the value of an HTTP <b>Range</b> header against a file of the given size.</p>
+     * <p>The result is interpreted like this:</p>
+     * <ul>
+     *     <li>An empty Optional means the header must be ignored and the complete file served. This is the case if the header is missing, is not a
+     *     <i>bytes</i> range, cannot be parsed, has more than {@link #MAX_RANGES} ranges, or requests more bytes in total than the file holds.</li>
+     *     <li>An Optional holding an empty list means none of the requested ranges can be satisfied.</li>
+     *     <li>Otherwise, the list holds the satisfiable ranges in the order they were requested, with their ends limited to the size of the file.</li>
+     * </ul>
+     * @param rangeHeader The value of the Range header, or <i>null</i> if the header is not present.
+     * @param size The size of the file in bytes.
+     * @return The satisfiable ranges as described above.
+     */
+    public static Optional<List<ByteRange>> parse(String rangeHeader, long size) {
+        if (rangeHeader == null || !rangeHeader.startsWith(BYTES_UNIT)) {
+            return Optional.empty();
+        }
+
+        var specs = rangeHeader.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return Optional.empty();
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        long total = 0;
+        try {
+            for (var spec : specs) {
+                var range = parseSpec(spec.trim(), size);
+                if (range.isPresent()) {
+                    ranges.add(range.get());
+                    total += range.get().getLength();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+
+        return total > size ? Optional.empty() : Optional.of(ranges);
+    }
+
+    /**
+     * Gets the number of bytes in the range.
+     * @return The number of bytes.
+     */
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Formats the range as the value of an HTTP <b>Content-Range</b> header.
+     * @param size The size of the complete file in bytes.
+     * @return The header value, e.g. <i>bytes 0-499/1234</i>.
+     */
+    public String toContentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * Formats the value of an HTTP <b>Content-Range</b> header for a response to a request that could not be satisfied.
+     * @param size The size of the complete file in bytes.
+     * @return The header value, e.g. <i>bytes *&#47;1234</i>.
+     */
+    public static String toUnsatisfiedContentRange(long size) {
+        return "bytes */" + size;
+    }
+
+    /**
+     * Parses a single range specification.
+     * @return An empty Optional if the specification is valid but cannot be satisfied, otherwise the range.
+     * @throws IllegalArgumentException If the specification is syntactically invalid.
+     */
+    private static Optional<ByteRange> parseSpec(String spec, long size) {
+        var dashIndex = spec.indexOf('-');
+        if (dashIndex < 0) {
+            throw new IllegalArgumentException("Invalid range: " + spec);
+        }
+
+        var first = spec.substring(0, dashIndex).trim();
+        var last = spec.substring(dashIndex + 1).trim();
+        if (first.isEmpty()) {
+            // Suffix range, i.e. the last N bytes
+            var suffixLength = parsePosition(last);
+            return suffixLength == 0 || size == 0
+                       ? Optional.empty()
+                       : Optional.of(new ByteRange(Math.max(0, size - suffixLength), size - 1));
+        }
+
+        var start = parsePosition(first);
+        var end = last.isEmpty() ? Long.MAX_VALUE : parsePosition(last);
+        if (end < start) {
+            throw new IllegalArgumentException("Invalid range: " + spec);
+        }
+        return start >= size
+                   ? Optional.empty()
+                   : Optional.of(new ByteRange(start, Math.min(end, size - 1)));
+    }
+
+    private static long parsePosition(String value) {
+        if (value.isEmpty() || !value.chars().allMatch(Character::isDigit)) {
+            throw new IllegalArgumentException("Invalid range position: " + value);
+        }
+        return Long.parseLong(value);
+    }
+
+}
@@ -0,0 +1,88 @@
+package dk.runerne.fileserver.filehandling;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * <p>The complete content of a small file, held in memory by the {@link HotFileCache}.</p>
+ * <p>The content is kept in a direct buffer outside the Java heap, so a full cache does not add to the work of the garbage collector. The buffer is read-only and
+ * is never modified after the instance has been created, so it can be shared by any number of concurrent downloads.</p>
+ * <p>A compressed file is cached compressed, so the cache holds more files.</p>
+ */
+public class CachedFile {
+
+    /**
+     * The UUID of the file.
+     */
+    @Getter private final UUID id;
+
+    /**
+     * The strong entity tag of the content, or <i>null</i> if the file has no entity tag.
+     */
+    @Getter private final String eTag;
+
+    /**
+     * The last modified time of the file when it was loaded.
+     */
+    @Getter private final Instant lastModified;
+
+    /**
+     * The name of the {@link ContentCodec} that compressed the content, or <i>null</i> if the content is stored as is.
+     */
+    @Getter private final String encoding;
+
+    /**
+     * The size of the content in bytes before it was compressed.
+     */
+    @Getter private final long decodedSize;
+
+    private final ByteBuffer content;
+
+    /**
+     * Loads the complete content of an opened file into memory.
+     * @param content The opened content of the file. It is not closed.
+     * @param eTag    The strong entity tag of the content, or <i>null</i> if the file has no entity tag.
+     * @return A new CachedFile instance.
+     * @throws IOException If an I/O error occurs reading the file.
+     */
+    public static CachedFile load(FileContent content, String eTag) throws IOException {
+        if (content.getSize() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("File is too large to be cached: " + content.getSize() + " bytes");
+        }
+
+        var buffer = ByteBuffer.allocateDirect((int) content.getSize());
+        content.readFully(buffer);
+        return new CachedFile(content.getFileDescriptor().getId(), eTag, content.getLastModified(), content.getEncoding(), content.getDecodedSize(),
+                              buffer.flip().asReadOnlyBuffer());
+    }
+
+    /**
+     * Gets the size of the content in bytes.
+     * @return The size of the content.
+     */
+    public long getSize() {
+        return content.capacity();
+    }
+
+    /**
+     * Gets a view of the content. The view has its own position and limit, so it can be consumed without affecting other users of the content.
+     * @return A read-only buffer holding the complete content.
+     */
+    public ByteBuffer getContent() {
+        return content.duplicate();
+    }
+
+    private CachedFile(UUID id, String eTag, Instant lastModified, String encoding, long decodedSize, ByteBuffer content) {
+        this.id = id;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.encoding = encoding;
+        this.decodedSize = decodedSize;
+        this.content = content;
+    }
+
+}
@@ -0,0 +1,58 @@
+package dk.runerne.fileserver.filehandling;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * <p>Compresses the content of files when they are stored, and decompresses it when they are read.</p>
+ * <p>The {@link #getName() name} of a codec is the HTTP content coding of the compressed data, e.g. <i>gzip</i>. It is recorded in the {@link FileMetadata}
+ * of every file the codec has compressed, so the file is decompressed with the same codec, even if another codec is configured later. A client that accepts
+ * the content coding is sent the stored data as is, with the name in the <b>Content-Encoding</b> header.</p>
+ * <p>The codecs of the JDK are {@link JdkContentCodec built in}. Other codecs are found with {@link java.util.ServiceLoader}, by listing their classes in
+ * <i>META-INF/services/dk.runerne.fileserver.filehandling.ContentCodec</i>.</p>
+ */
+public interface ContentCodec {
+
+    /**
+     * Gets the HTTP content coding of the compressed data.
+     * @return The name of the content coding in lower case, e.g. <i>gzip</i>.
+     */
+    String getName();
+
+    /**
+     * Creates a stream compressing the data written to it. Flushing the stream must write everything written so far to the given output stream, so the size of
+     * the compressed data can be measured. Closing the stream must finish the compressed data and close the given output stream.
+     * @param outputStream The output stream to write the compressed data to.
+     * @return The compressing output stream.
+     * @throws IOException If an I/O error occurs writing to the output stream.
+     */
+    OutputStream encode(OutputStream outputStream) throws IOException;
+
+    /**
+     * Creates a stream decompressing the data read from the given input stream. Closing the stream must close the given input stream.
+     * @param inputStream The input stream holding the compressed data.
+     * @return The decompressing input stream.
+     * @throws IOException If an I/O error occurs reading from the input stream, or if the data is not compressed by this codec.
+     */
+    InputStream decode(InputStream inputStream) throws IOException;
+
+    /**
+     * Finds the codec of the given content coding, among the built-in codecs and the codecs found by {@link java.util.ServiceLoader}.
+     * @param name The name of the content coding. The case is ignored.
+     * @return The codec, or an empty Optional if no codec has the name.
+     */
+    static Optional<ContentCodec> forName(String name) {
+        if (name == null) {
+            return Optional.empty();
+        }
+
+        var lowerCaseName = name.trim().toLowerCase(Locale.ROOT);
+        return JdkContentCodec.REGISTERED.stream()
+                   .filter(codec -> codec.getName().equals(lowerCaseName))
+                   .findFirst();
+    }
+
+}
@@ -0,0 +1,79 @@
+package dk.runerne.fileserver.filehandling;
+
+import java.util.regex.Pattern;
+
+/**
+ * <p>Compares HTTP entity tags, as used in the <b>If-Match</b>, <b>If-None-Match</b> and <b>If-Range</b> headers.</p>
+ * <p>An entity tag is a quoted string, optionally prefixed with <i>W/</i> to mark it as weak. Two entity tags are strongly equal if neither is weak and their
+ * quoted strings are equal. They are weakly equal if their quoted strings are equal, regardless of the prefixes.</p>
+ */
+final class EntityTag {
+
+    private static final String WILDCARD = "*";
+    private static final String WEAK_PREFIX = "W/";
+
+    /**
+     * Matches the wildcard or a single entity tag in a comma-separated list. Commas are allowed inside the quoted strings.
+     */
+    private static final Pattern LIST_ELEMENT = Pattern.compile("\\*|(?:W/)?\"[^\"]*\"");
+
+    /**
+     * Checks whether any of the entity tags in the value of an <b>If-Match</b> or <b>If-None-Match</b> header matches the entity tag of the file.
+     * @param headerValue The header value, i.e. <i>*</i> or a comma-separated list of entity tags.
+     * @param eTag        The strong entity tag of the file, or <i>null</i> if the file has no entity tag.
+     * @param weak        <i>true</i> to use weak comparison, <i>false</i> to use strong comparison.
+     * @return <i>true</i> if the header is the wildcard, or if one of the listed entity tags equals the entity tag of the file.
+     */
+    static boolean anyMatches(String headerValue, String eTag, boolean weak) {
+        var matcher = LIST_ELEMENT.matcher(headerValue);
+        while (matcher.find()) {
+            var element = matcher.group();
+            if (WILDCARD.equals(element) || matches(element, eTag, weak)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares two entity tags.
+     * @param tag  The entity tag from the request.
+     * @param eTag The entity tag of the file, or <i>null</i> if the file has no entity tag.
+     * @param weak <i>true</i> to use weak comparison, <i>false</i> to use strong comparison.
+     * @return <i>true</i> if the entity tags are equal according to the comparison.
+     */
+    static boolean matches(String tag, String eTag, boolean weak) {
+        if (eTag == null) {
+            return false;
+        }
+
+        if (weak) {
+            return stripWeakPrefix(tag).equals(stripWeakPrefix(eTag));
+        }
+
+        return !tag.startsWith(WEAK_PREFIX) && !eTag.startsWith(WEAK_PREFIX) && tag.equals(eTag);
+    }
+
+    /**
+     * Derives the entity tag of the content stored with an encoding, from the entity tag of the content. The encoded content is a different representation,
+     * so it must not share the strong entity tag of the content.
+     * @param eTag     The strong entity tag of the content, or <i>null</i> if the content has no entity tag.
+     * @param encoding The content coding, e.g. <i>gzip</i>.
+     * @return The entity tag of the encoded content, e.g. <i>"digest-gzip"</i> for <i>"digest"</i>, or <i>null</i> if the content has no entity tag.
+     */
+    static String withEncoding(String eTag, String encoding) {
+        if (eTag == null) {
+            return null;
+        }
+
+        return eTag.substring(0, eTag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    private static String stripWeakPrefix(String tag) {
+        return tag.startsWith(WEAK_PREFIX) ? tag.substring(WEAK_PREFIX.length()) : tag;
+    }
+
+    private EntityTag() {
+    }
+
+}
@@ -0,0 +1,336 @@
+package dk.runerne.fileserver.filehandling;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Instant;
+
+/**
+ * <p>Represents the opened content of a stored file, ready to be streamed to a client.</p>
+ * <p>The content is backed by a read-only {@link FileChannel} that is opened when the instance is created. Since the channel stays open, the content can still be
+ * streamed even if the file is relocated or deleted after it has been opened.</p>
+ * <p>The content is transferred using {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which lets the JDK copy the data through a small, reused
+ * native buffer. The heap usage of a transfer is therefore independent of the size of the file.</p>
+ * <p>Content can also be backed by a {@link CachedFile}, in which case it is transferred from memory and no file is opened.</p>
+ * <p>The content is the stored content. If it is compressed, see {@link ContentCodec}, it is transferred compressed, and must be
+ * {@link #writeDecodedTo(OutputStream) decoded} for clients that do not accept its encoding.</p>
+ */
+public class FileContent implements Closeable {
+
+    /**
+     * The number of times a file is opened, if it is replaced while it is opened.
+     */
+    private static final int MAX_OPEN_ATTEMPTS = 3;
+
+    /**
+     * The file descriptor of the file that was opened, or <i>null</i> if the content is backed by a {@link CachedFile}.
+     */
+    @Getter private final FileDescriptor fileDescriptor;
+
+    /**
+     * The size of the file in bytes at the time it was opened.
+     */
+    @Getter private final long size;
+
+    /**
+     * The last modified time of the file at the time it was opened.
+     */
+    @Getter private final Instant lastModified;
+
+    /**
+     * The name of the {@link ContentCodec} that compressed the content, or <i>null</i> if the content is stored as is.
+     */
+    @Getter private final String encoding;
+
+    /**
+     * The size of the content in bytes before it was compressed. The same as the size if the content is stored as is.
+     */
+    @Getter private final long decodedSize;
+
+    /**
+     * The strong entity tag of the content that was opened, see {@link FileMetadata#getETag()}, or <i>null</i> if the digest of the content is unknown.
+     */
+    @Getter private final String eTag;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * Opens the file represented by the given FileDescriptor for reading.
+     * @param fileDescriptor The FileDescriptor of the file to open.
+     * @return A new FileContent instance. The caller is responsible for closing it.
+     * @throws IOException If an I/O error occurs opening the file.
+     */
+    public static FileContent open(FileDescriptor fileDescriptor) throws IOException {
+        if (fileDescriptor == null) {
+            throw new IllegalArgumentException("FileDescriptor cannot be null");
+        }
+
+        return open(fileDescriptor, fileDescriptor.readMetadata());
+    }
+
+    /**
+     * <p>Opens the file represented by the given FileDescriptor for reading, when its metadata has already been read.</p>
+     * <p>The metadata is read again when the file has been opened. If it has changed, the file was replaced after the metadata was read, and it is opened
+     * again, so the content is never decoded with the encoding of another file, and never described by the entity tag of another file. The returned content
+     * holds the metadata of the file that was opened, which may differ from the given metadata.</p>
+     * @param fileDescriptor The FileDescriptor of the file to open.
+     * @param metadata The metadata of the file.
+     * @return A new FileContent instance. The caller is responsible for closing it.
+     * @throws IOException If an I/O error occurs opening the file, or if the size before compression of compressed content is unknown.
+     */
+    public static FileContent open(FileDescriptor fileDescriptor, FileMetadata metadata) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            var channel = fileDescriptor.openReadChannel();
+            try {
+                var openedMetadata = fileDescriptor.readMetadata();
+                if (openedMetadata.equals(metadata)) {
+                    var size = channel.size();
+                    var encoding = metadata.getEncoding();
+                    var decodedSize = encoding == null ? size : getDecodedSize(fileDescriptor, metadata);
+                    return new FileContent(fileDescriptor, channel, null, size, fileDescriptor.getLastModifiedTime().toInstant(), encoding, decodedSize,
+                                           metadata.getETag());
+                }
+                if (attempt == MAX_OPEN_ATTEMPTS) {
+                    throw new IOException("File " + fileDescriptor.getPath() + " was replaced while it was opened");
+                }
+                metadata = openedMetadata;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Creates content backed by the given cached file. Transfers are served from memory.
+     * @param cachedFile The cached file.
+     * @return A new FileContent instance. Closing it has no effect.
+     */
+    public static FileContent of(CachedFile cachedFile) {
+        if (cachedFile == null) {
+            throw new IllegalArgumentException("CachedFile cannot be null");
+        }
+
+        return new FileContent(null, null, cachedFile.getContent(), cachedFile.getSize(), cachedFile.getLastModified(), cachedFile.getEncoding(),
+                               cachedFile.getDecodedSize(), cachedFile.getETag());
+    }
+
+    /**
+     * Reads the complete content into memory and closes the file. Content that is already in memory is returned as is.
+     * @return Content backed by a heap buffer holding the complete content. Closing it has no effect.
+     * @throws IOException If an I/O error occurs, or if the file is shorter than expected.
+     */
+    public FileContent load() throws IOException {
+        if (buffer != null) {
+            return this;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("File is too large to be loaded: " + size + " bytes");
+        }
+
+        try {
+            var loaded = ByteBuffer.allocate((int) size);
+            readFully(loaded);
+            return new FileContent(fileDescriptor, null, loaded.flip().asReadOnlyBuffer(), size, lastModified, encoding, decodedSize, eTag);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Reads the complete content into memory, decompressed, and closes the file. Content that is stored as is is {@link #load() loaded}.
+     * @return Content backed by a heap buffer holding the complete decompressed content. Closing it has no effect.
+     * @throws IOException If an I/O error occurs, or if the content cannot be decompressed.
+     */
+    public FileContent decode() throws IOException {
+        if (encoding == null) {
+            return load();
+        }
+        if (decodedSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("File is too large to be loaded: " + decodedSize + " bytes");
+        }
+
+        try (var decoded = openDecodedStream()) {
+            var loaded = ByteBuffer.wrap(decoded.readNBytes((int) decodedSize));
+            if (loaded.remaining() != decodedSize || decoded.read() >= 0) {
+                throw new IOException("Decompressed content of " + describe() + " is not " + decodedSize + " bytes");
+            }
+            return new FileContent(fileDescriptor, null, loaded.asReadOnlyBuffer(), decodedSize, lastModified, null, decodedSize, eTag);
+        }
+    }
+
+    /**
+     * Checks whether the content is compressed.
+     * @return <i>true</i> if the content is stored with an encoding.
+     */
+    public boolean isEncoded() {
+        return encoding != null;
+    }
+
+    /**
+     * Reads the complete content into the given buffer, starting at its current position.
+     * @param destination The buffer to read into. It must have room for the complete content.
+     * @throws IOException If an I/O error occurs, or if the file is shorter than expected.
+     */
+    public void readFully(ByteBuffer destination) throws IOException {
+        if (buffer != null) {
+            destination.put(buffer.duplicate());
+            return;
+        }
+
+        long transferred = 0;
+        while (transferred < size) {
+            var n = channel.read(destination, transferred);
+            if (n <= 0) {
+                throw new IOException("Unexpected end of file " + fileDescriptor.getPath() + " after " + transferred + " of " + size + " bytes");
+            }
+            transferred += n;
+        }
+    }
+
+    /**
+     * Transfers the complete content to the given output stream and closes the content afterward.
+     * @param outputStream The output stream to write the content to.
+     * @throws IOException If an I/O error occurs during the transfer.
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        try {
+            transferTo(0, size, outputStream);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Transfers the complete content to the given output stream, decompressed, and closes the content afterward. Content that is stored as is is
+     * {@link #writeTo(OutputStream) transferred} as is.
+     * @param outputStream The output stream to write the content to.
+     * @throws IOException If an I/O error occurs during the transfer, or if the content cannot be decompressed.
+     */
+    public void writeDecodedTo(OutputStream outputStream) throws IOException {
+        if (encoding == null) {
+            writeTo(outputStream);
+            return;
+        }
+
+        try (var decoded = openDecodedStream()) {
+            var transferred = decoded.transferTo(outputStream);
+            if (transferred != decodedSize) {
+                throw new IOException("Decompressed content of " + describe() + " is " + transferred + " bytes, not " + decodedSize);
+            }
+            outputStream.flush();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Transfers a part of the content to the given output stream. The content is not closed afterward.
+     * @param position The position in the file of the first byte to transfer.
+     * @param count    The number of bytes to transfer.
+     * @param outputStream The output stream to write the content to.
+     * @throws IOException If an I/O error occurs during the transfer, or if the file is shorter than expected.
+     */
+    public void transferTo(long position, long count, OutputStream outputStream) throws IOException {
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        if (buffer != null) {
+            var range = buffer.duplicate().position((int) position).limit((int) (position + count));
+            while (range.hasRemaining()) {
+                target.write(range);
+            }
+            outputStream.flush();
+            return;
+        }
+
+        long transferred = 0;
+        while (transferred < count) {
+            var n = channel.transferTo(position + transferred, count - transferred, target);
+            if (n <= 0) {
+                throw new IOException("Unexpected end of file " + fileDescriptor.getPath() + " after " + transferred + " of " + count + " bytes");
+            }
+            transferred += n;
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Closes the underlying channel, if any.
+     * @throws IOException If an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private InputStream openDecodedStream() throws IOException {
+        var codec = ContentCodec.forName(encoding).orElseThrow(() -> new IOException("Unknown encoding of " + describe() + ": " + encoding));
+        var stored = buffer != null ? new ByteBufferInputStream(buffer.duplicate()) : Channels.newInputStream(channel.position(0));
+        return codec.decode(stored);
+    }
+
+    private String describe() {
+        return fileDescriptor != null ? fileDescriptor.getPath().toString() : "cached file";
+    }
+
+    private static long getDecodedSize(FileDescriptor fileDescriptor, FileMetadata metadata) throws IOException {
+        if (metadata.getSize() == null) {
+            throw new IOException("Unknown size of the compressed file " + fileDescriptor.getPath());
+        }
+        return metadata.getSize();
+    }
+
+    private FileContent(FileDescriptor fileDescriptor, FileChannel channel, ByteBuffer buffer, long size, Instant lastModified, String encoding,
+                        long decodedSize, String eTag) {
+        this.fileDescriptor = fileDescriptor;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.encoding = encoding;
+        this.decodedSize = decodedSize;
+        this.eTag = eTag;
+    }
+
+    /**
+     * Reads the content of a buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            var read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+    }
+
+}
@@ -1,19 +1,24 @@
 package dk.runerne.fileserver.filehandling;
 
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -26,20 +31,41 @@ import java.util.UUID;
 @Slf4j
 public class FileController {
 
+    /**
+     * The handler building the responses for downloads.
+     */
+    @Autowired FileDownloadHandler fileDownloadHandler;
+
     /**
      * The file service used to perform file operations.
      */
     @Autowired FileService fileService;
 
     /**
-     * Creates a new file with the provided data.
+     * The service creating many files from one request.
+     */
+    @Autowired BatchUploadService batchUploadService;
+
+    /**
+     * The service streaming many files in one response.
+     */
+    @Autowired BatchDownloadService batchDownloadService;
+
+    /**
+     * The service uploading large files in chunks.
+     */
+    @Autowired UploadSessionService uploadSessionService;
+
+    /**
+     * <p>Creates a new file with the provided data.</p>
+     * <p>The request body is streamed directly to disk and is never held in memory as a whole.</p>
      *
-     * @param data the data to be stored in the new file.
+     * @param data the stream of the request body, holding the data to be stored in the new file.
      * @return <p>a ResponseEntity containing the UUID of the created file and HTTP status.</p>
      * <p>The value must be used when later reading, updating and deleting the file.</p>
      */
     @PostMapping()
-    public ResponseEntity<UUID> create(@RequestBody byte[] data) {
+    public ResponseEntity<UUID> create(InputStream data) {
         var start = System.currentTimeMillis();
         try {
             UUID id = fileService.create(data);
@@ -55,16 +81,54 @@ public class FileController {
     }
 
     /**
-     * Reads the file with the specified UUID.
+     * <p>Creates a new file for each entry of the provided batch.</p>
+     * <p>The request body is a sequence of entries, each being the size of a file as an 8 byte big-endian integer followed by the content of the file. Small
+     * files are written in parallel, see {@link BatchUploadService}. Either every file is created, or none.</p>
+     *
+     * @param data the stream of the request body, holding the entries.
+     * @return <p>a ResponseEntity containing the UUIDs of the created files, in the order of the entries, and HTTP status.</p>
+     * <p>The status is 400 Bad Request if the body is not a valid sequence of entries.</p>
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<List<UUID>> createBatch(InputStream data) {
+        var start = System.currentTimeMillis();
+        try {
+            var ids = batchUploadService.create(data);
+            log.debug("Batch creation of {} files took {} ms", ids.size(), System.currentTimeMillis() - start);
+            return ResponseEntity
+                       .status(HttpStatus.CREATED)
+                       .body(ids);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (RuntimeException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * <p>Reads the file with the specified UUID.</p>
+     * <p>The file is streamed directly from disk and is never loaded into memory as a whole. Conditional requests and range requests are supported, see
+     * {@link FileDownloadHandler}.</p>
+     * <p>Small files that are read often are served from the {@link HotFileCache} without accessing the file system.</p>
      *
-     * @param id the UUID of the file to be read.
-     * @return a ResponseEntity containing the file data and HTTP status.
+     * @param id      the UUID of the file to be read.
+     * @param request the HTTP request.
+     * @return a ResponseEntity containing the streamed file data and HTTP status.
      */
     @GetMapping("/{id}")
-    public ResponseEntity<byte[]> read(@PathVariable("id") UUID id) {
+    public ResponseEntity<StreamingResponseBody> read(@PathVariable("id") UUID id, HttpServletRequest request) {
         try {
-            byte[] data = fileService.read(id);
-            return ResponseEntity.ok(data);
+            var cachedFile = fileService.getCachedFile(id);
+            if (cachedFile.isPresent()) {
+                return fileDownloadHandler.handle(cachedFile.get(), request);
+            }
+            var fileDescriptor = fileService.locate(id);
+            try {
+                return fileDownloadHandler.handle(fileDescriptor, request);
+            } catch (FileNotFoundException e) {
+                // The file may have been moved since its location was recorded in the location index
+                return fileDownloadHandler.handle(fileService.relocate(id), request);
+            }
         } catch (FileNotFoundException e) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
         } catch (RuntimeException e) {
@@ -73,14 +137,40 @@ public class FileController {
     }
 
     /**
-     * Updates the file with the specified UUID using the provided data.
+     * <p>Reads the files with the specified UUIDs in one response.</p>
+     * <p>The response is a sequence of entries in the order of the UUIDs, each being the size of a file as an 8 byte big-endian integer followed by the content
+     * of the file. A file that does not exist is reported by the size {@value BatchDownloadService#MISSING}, and a file that could not be read by the size
+     * {@value BatchDownloadService#FAILED}. The files are opened ahead of the response, see {@link BatchDownloadService}.</p>
      *
-     * @param data the new data for the file.
+     * @param data the stream of the request body, holding a JSON array of the UUIDs of the files to be read.
+     * @return <p>a ResponseEntity containing the streamed entries and HTTP status.</p>
+     * <p>The status is 400 Bad Request if the body is not an array of UUIDs, or requests more files than allowed.</p>
+     */
+    @PostMapping("/batch/read")
+    public ResponseEntity<StreamingResponseBody> readBatch(InputStream data) {
+        try {
+            var ids = batchDownloadService.readIds(data);
+            return ResponseEntity
+                       .ok()
+                       .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                       .body(outputStream -> batchDownloadService.write(ids, outputStream));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (RuntimeException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * <p>Updates the file with the specified UUID using the provided data.</p>
+     * <p>The request body is streamed directly to disk and is never held in memory as a whole.</p>
+     *
+     * @param data the stream of the request body, holding the new data for the file.
      * @param id   the UUID of the file to be updated.
      * @return a ResponseEntity with HTTP status.
      */
     @PutMapping("/{id}")
-    public ResponseEntity<Void> update(@RequestBody byte[] data, @PathVariable("id") UUID id) {
+    public ResponseEntity<Void> update(InputStream data, @PathVariable("id") UUID id) {
         try {
             fileService.update(id, data);
             return ResponseEntity.ok().build();
@@ -109,4 +199,107 @@ public class FileController {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * <p>Opens a session for uploading a large file in chunks, see {@link UploadSessionService}.</p>
+     *
+     * @param size      the size in bytes of the file.
+     * @param chunkSize the size in bytes of every chunk but the last. If omitted, the configured chunk size is used.
+     * @return <p>a ResponseEntity containing the state of the new session and HTTP status.</p>
+     * <p>The status is 400 Bad Request if a size is invalid.</p>
+     */
+    @PostMapping("/uploads")
+    public ResponseEntity<UploadSessionStatus> openUpload(@RequestParam("size") long size,
+                                                          @RequestParam(name = "chunkSize", required = false) Long chunkSize) {
+        try {
+            return ResponseEntity
+                       .status(HttpStatus.CREATED)
+                       .body(uploadSessionService.open(size, chunkSize));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (RuntimeException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Reads the state of an upload session, including the chunks received, so an interrupted upload can be resumed by uploading the missing chunks.
+     *
+     * @param sessionId the ID of the session.
+     * @return a ResponseEntity containing the state of the session and HTTP status.
+     */
+    @GetMapping("/uploads/{sessionId}")
+    public ResponseEntity<UploadSessionStatus> readUpload(@PathVariable("sessionId") UUID sessionId) {
+        try {
+            return ResponseEntity.ok(uploadSessionService.getStatus(sessionId));
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (RuntimeException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * <p>Uploads a chunk of the file of an upload session. Chunks can be uploaded in any order and in parallel.</p>
+     * <p>The request body is streamed directly to the position of the chunk in the staging file.</p>
+     *
+     * @param data      the stream of the request body, holding exactly the bytes of the chunk.
+     * @param sessionId the ID of the session.
+     * @param chunk     the number of the chunk, starting at 0.
+     * @return <p>a ResponseEntity with HTTP status.</p>
+     * <p>The status is 400 Bad Request if the chunk number is out of range, or the body does not hold the size of the chunk.</p>
+     */
+    @PutMapping("/uploads/{sessionId}/chunks/{chunk}")
+    public ResponseEntity<Void> uploadChunk(InputStream data, @PathVariable("sessionId") UUID sessionId, @PathVariable("chunk") int chunk) {
+        try {
+            uploadSessionService.writeChunk(sessionId, chunk, data);
+            return ResponseEntity.noContent().build();
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (RuntimeException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * <p>Creates a new file from an upload session, when every chunk has been received. The session is deleted.</p>
+     *
+     * @param sessionId the ID of the session.
+     * @return <p>a ResponseEntity containing the UUID of the created file and HTTP status.</p>
+     * <p>The status is 409 Conflict if chunks are missing.</p>
+     */
+    @PostMapping("/uploads/{sessionId}/commit")
+    public ResponseEntity<UUID> commitUpload(@PathVariable("sessionId") UUID sessionId) {
+        try {
+            return ResponseEntity
+                       .status(HttpStatus.CREATED)
+                       .body(uploadSessionService.commit(sessionId));
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        } catch (RuntimeException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Deletes an upload session and the chunks received.
+     *
+     * @param sessionId the ID of the session.
+     * @return a ResponseEntity with HTTP status.
+     */
+    @DeleteMapping("/uploads/{sessionId}")
+    public ResponseEntity<Void> abortUpload(@PathVariable("sessionId") UUID sessionId) {
+        try {
+            uploadSessionService.abort(sessionId);
+            return ResponseEntity.noContent().build();
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (RuntimeException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+}
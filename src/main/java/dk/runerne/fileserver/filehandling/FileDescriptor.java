@@ -4,17 +4,29 @@ import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
-import java.util.List;
+import java.util.HexFormat;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * <p>Represents a file descriptor that manages file storage and retrieval based on a UUID and a specified directory depth.</p>
@@ -28,6 +40,27 @@ public class FileDescriptor {
 
     private static final String ALGORITHM = "SHA-256";
 
+    /**
+     * Size of the buffer used when copying a stream into a file.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * One direct copy buffer per thread. Request threads are pooled by the servlet container, so the buffers are reused across uploads.
+     */
+    private static final ThreadLocal<ByteBuffer> COPY_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(COPY_BUFFER_SIZE));
+
+    /**
+     * The largest size of compressed content, relative to its size before compression, for which the content is stored compressed. Content that compresses
+     * less is considered incompressible, and is stored as is.
+     */
+    static final double MAX_COMPRESSION_RATIO = 0.9;
+
+    /**
+     * The suffix of the temporary files that new content is written to before it replaces a file.
+     */
+    static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
     /**
      * The unique identifier for the file.
      */
@@ -37,32 +70,70 @@ public class FileDescriptor {
      * The depth of the directory structure in which the file is located.
      */
     @Getter private final int depth;
-    private List<String> hashStrings = null;
     private final Path rootFolderPath;
 
     /**
-     * Creates a FileDescriptor from the given root folder path and file path.
+     * The layout that determines the folders in which the file is stored.
+     */
+    @Getter private final StorageLayout storageLayout;
+
+    /**
+     * The folder names of all levels for the file, as given by the storage layout. They are computed when first needed, and shared with the descriptors
+     * created by {@link #toDepth(int)}, since they do not depend on the depth.
+     */
+    @EqualsAndHashCode.Exclude private byte[] folderNames;
+
+    /**
+     * The full path of the file, computed when first needed.
+     */
+    @EqualsAndHashCode.Exclude private Path path;
+
+    /**
+     * Creates a FileDescriptor from the given root folder path and file path, using the {@link StorageLayout#DEFAULT default} storage layout.
      * @param rootFolderPath The root folder path.
      * @param filePath The file path.
      * @return A new FileDescriptor instance.
      */
     public static FileDescriptor fromPath(Path rootFolderPath, Path filePath) {
+        return fromPath(rootFolderPath, StorageLayout.DEFAULT, filePath);
+    }
+
+    /**
+     * Creates a FileDescriptor from the given root folder path, storage layout and file path.
+     * @param rootFolderPath The root folder path.
+     * @param storageLayout The storage layout of the root folder.
+     * @param filePath The file path.
+     * @return A new FileDescriptor instance.
+     */
+    public static FileDescriptor fromPath(Path rootFolderPath, StorageLayout storageLayout, Path filePath) {
         if (rootFolderPath == null) {
             throw new IllegalArgumentException("Root folder path cannot be null");
         }
 
         var relativePath = rootFolderPath.relativize(filePath);
-        return new FileDescriptor(rootFolderPath, UUID.fromString(filePath.getFileName().toString()), relativePath.getNameCount() - 1);
+        return new FileDescriptor(rootFolderPath, storageLayout, UUID.fromString(filePath.getFileName().toString()), relativePath.getNameCount() - 1);
     }
 
     /**
-     * Creates a FileDescriptor from the given root folder path, UUID, and depth.
+     * Creates a FileDescriptor from the given root folder path, UUID, and depth, using the {@link StorageLayout#DEFAULT default} storage layout.
      * @param rootFolderPath The root folder path.
      * @param id The UUID of the file.
      * @param depth The depth of the directory structure.
      * @return A new FileDescriptor instance.
      */
     public static FileDescriptor fromUUIDAndDepth(Path rootFolderPath, UUID id, int depth) {
+        return fromUUIDAndDepth(rootFolderPath, StorageLayout.DEFAULT, id, depth);
+    }
+
+    /**
+     * Creates a FileDescriptor from the given root folder path, storage layout, UUID, and depth.
+     * @param rootFolderPath The root folder path.
+     * @param storageLayout The storage layout of the root folder.
+     * @param id The UUID of the file.
+     * @param depth The depth of the directory structure.
+     * @return A new FileDescriptor instance.
+     */
+    public static FileDescriptor fromUUIDAndDepth(Path rootFolderPath, StorageLayout storageLayout, UUID id, int depth) {
         if (rootFolderPath == null) {
             throw new IllegalArgumentException("Root folder path cannot be null");
         }
@@ -71,17 +142,29 @@ public class FileDescriptor {
             throw new IllegalArgumentException("'id' cannot be null");
         }
 
-        return new FileDescriptor(rootFolderPath, id, depth);
+        return new FileDescriptor(rootFolderPath, storageLayout, id, depth);
     }
 
     /**
-     * Creates a FileDescriptor from the given root folder path and depth, generating a new UUID.
+     * Creates a FileDescriptor from the given root folder path and depth, generating a new UUID, using the {@link StorageLayout#DEFAULT default} storage
+     * layout.
      * @param rootFolderPath The root folder path.
      * @param depth The depth in the directory structure that the file is located.
      * @return A new FileDescriptor instance.
      */
     public static FileDescriptor fromDepth(Path rootFolderPath, int depth) {
-        return new FileDescriptor(rootFolderPath, UUID.randomUUID(), depth);
+        return fromDepth(rootFolderPath, StorageLayout.DEFAULT, depth);
+    }
+
+    /**
+     * Creates a FileDescriptor from the given root folder path, storage layout and depth, generating a new UUID.
+     * @param rootFolderPath The root folder path.
+     * @param storageLayout The storage layout of the root folder.
+     * @param depth The depth in the directory structure that the file is located.
+     * @return A new FileDescriptor instance.
+     */
+    public static FileDescriptor fromDepth(Path rootFolderPath, StorageLayout storageLayout, int depth) {
+        return new FileDescriptor(rootFolderPath, storageLayout, UUID.randomUUID(), depth);
     }
 
     /**
@@ -93,16 +176,34 @@ public class FileDescriptor {
         if (depth < 0) {
             throw new IllegalArgumentException("Depth cannot be negative");
         }
-        return new FileDescriptor(rootFolderPath, this.id, depth);
+        var fileDescriptor = new FileDescriptor(rootFolderPath, storageLayout, this.id, depth);
+        fileDescriptor.folderNames = folderNames;
+        return fileDescriptor;
     }
 
     /**
-     * Reads all bytes from the file represented by this FileDescriptor.
+     * Reads all bytes from the file represented by this FileDescriptor. Compressed content is decompressed.
      * @return A byte array containing the file's contents.
      * @throws IOException If an I/O error occurs reading from the file.
      */
     public byte[] readAllBytes() throws IOException {
-        return Files.readAllBytes(getPath());
+        var metadata = readMetadata();
+        if (!metadata.isEncoded()) {
+            return Files.readAllBytes(getPath());
+        }
+
+        try (var decoded = metadata.getCodec().decode(Files.newInputStream(getPath()))) {
+            return decoded.readAllBytes();
+        }
+    }
+
+    /**
+     * Opens a read-only channel to the file represented by this FileDescriptor.
+     * @return A FileChannel positioned at the beginning of the file. The caller is responsible for closing it.
+     * @throws IOException If an I/O error occurs opening the file.
+     */
+    public FileChannel openReadChannel() throws IOException {
+        return FileChannel.open(getPath(), StandardOpenOption.READ);
     }
 
     /**
@@ -163,6 +264,18 @@ public class FileDescriptor {
         return this;
     }
 
+    /**
+     * Deletes the folder of the file represented by this FileDescriptor and its parent folders, as far as they are empty. Used to clean up after a file that
+     * could not be written.
+     * @return The current FileDescriptor instance.
+     */
+    public FileDescriptor purgeEmptyFolders() {
+        if (folderExists()) {
+            purgeEmptyFolders(getFolderPath());
+        }
+        return this;
+    }
+
     /**
      * Gets the folder path of the file represented by this FileDescriptor.
      * @return The folder path.
@@ -172,13 +285,18 @@ public class FileDescriptor {
     }
 
     /**
-     * Gets the full path of the file represented by this FileDescriptor.
+     * <p>Gets the full path of the file represented by this FileDescriptor.</p>
+     * <p>The path consists of one folder for each of the first <i>depth</i> levels of the {@link StorageLayout storage layout}, followed by the UUID. It is
+     * computed once and cached.</p>
      * @return The full file path.
      */
     public Path getPath() {
-        return rootFolderPath
-                   .resolve(Path.of("", getHashStrings().toArray(new String[0])))
-                   .resolve(id.toString());
+        var currentPath = path;
+        if (currentPath == null) {
+            currentPath = rootFolderPath.resolve(getRelativePath());
+            path = currentPath;
+        }
+        return currentPath;
     }
 
     /**
@@ -199,31 +317,289 @@ public class FileDescriptor {
      * @throws IOException If an I/O error occurs while writing to the file.
      */
     public FileDescriptor write(byte[] data) throws IOException {
-        Files.write(getPath(), data);
+        return write(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * <p>Writes the content of the given input stream to the file represented by this FileDescriptor.</p>
+     * <p>The data is first written to a {@link #writeTemporaryFile(InputStream, boolean) temporary file} in the folder of the file, which then
+     * {@link #replaceWith(Path) replaces} the file in one step. A reader therefore sees either the old or the new content, never a partly written file. The
+     * data is not forced to the storage device, see {@link AtomicFileWriter} for writes that must survive a crash.</p>
+     * @param inputStream The input stream to read the data from.
+     * @return The current FileDescriptor instance.
+     * @throws IOException If an I/O error occurs while reading the stream or writing to the file.
+     */
+    public FileDescriptor write(InputStream inputStream) throws IOException {
+        return replaceWith(writeTemporaryFile(inputStream, false));
+    }
+
+    /**
+     * <p>Writes the content of the given input stream to a new temporary file in the folder of the file represented by this FileDescriptor. The file itself is
+     * not changed. The content is stored as is.</p>
+     * <p>The data is copied through a fixed-size direct buffer that is reused by the calling thread, so the memory used is the same regardless of the amount of
+     * data written. The input stream is read until it is exhausted, but it is not closed.</p>
+     * <p>While the data is copied, its SHA-256 digest is computed. When the data has been written, the digest is stored in the {@link FileMetadata} of the
+     * temporary file, and it follows the file when it is renamed. If the folder does not exist, it is created. If the write fails, the temporary file is
+     * deleted.</p>
+     * @param inputStream The input stream to read the data from.
+     * @param force Whether the content and metadata are forced to the storage device before the temporary file is closed.
+     * @return The path of the temporary file.
+     * @throws IOException If an I/O error occurs while reading the stream or writing to the temporary file.
+     */
+    public Path writeTemporaryFile(InputStream inputStream, boolean force) throws IOException {
+        return writeTemporaryFile(inputStream, force, null, 0);
+    }
+
+    /**
+     * <p>Writes the content of the given input stream to a new temporary file, like {@link #writeTemporaryFile(InputStream, boolean)}, and compresses it with
+     * the given codec if the content is compressible.</p>
+     * <p>The first block of data is compressed in memory to detect whether the content is compressible. If the content is smaller than the given minimum
+     * size, capped at the {@value #COPY_BUFFER_SIZE} bytes of a block, or the block does not compress to at most {@value #MAX_COMPRESSION_RATIO} of its size,
+     * the content is stored as is. Otherwise, the rest of the data is compressed as it is copied, and the encoding and the size before compression are stored
+     * in the {@link FileMetadata} together with the digest of the content before compression. If the complete content turns out not to be compressible after
+     * all, it is decompressed to a new temporary file, which is returned instead.</p>
+     * @param inputStream The input stream to read the data from.
+     * @param force Whether the content and metadata are forced to the storage device before the temporary file is closed.
+     * @param codec The codec to compress the content with, or <i>null</i> to store the content as is.
+     * @param compressionMinSize The size in bytes of the smallest content that is compressed.
+     * @return The path of the temporary file.
+     * @throws IOException If an I/O error occurs while reading the stream or writing to the temporary file, or if the encoding cannot be stored.
+     */
+    public Path writeTemporaryFile(InputStream inputStream, boolean force, ContentCodec codec, int compressionMinSize) throws IOException {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("Input stream cannot be null");
+        }
+
+        var temporaryPath = newTemporaryPath();
+        var source = Channels.newChannel(inputStream);
+        var buffer = COPY_BUFFER.get().clear();
+        var messageDigest = createMessageDigest();
+        var incompressible = false;
+        try (var channel = openTemporaryFile(temporaryPath)) {
+            while (buffer.hasRemaining() && source.read(buffer) >= 0) {
+                // The first block is read completely, so it can be used to detect whether the content is compressible
+            }
+            buffer.flip();
+
+            var block = codec != null && buffer.remaining() >= Math.min(compressionMinSize, COPY_BUFFER_SIZE) ? new byte[COPY_BUFFER_SIZE] : null;
+            var blockLength = buffer.remaining();
+            var encoder = block != null ? startEncoding(codec, block, buffer.duplicate(), channel) : null;
+            if (encoder == null) {
+                copy(source, buffer, channel, messageDigest);
+                new FileMetadata(HexFormat.of().formatHex(messageDigest.digest())).write(temporaryPath);
+            } else {
+                var size = copyEncoded(inputStream, block, blockLength, encoder, messageDigest);
+                new FileMetadata(HexFormat.of().formatHex(messageDigest.digest()), codec.getName(), size).write(temporaryPath);
+                incompressible = channel.size() > size * MAX_COMPRESSION_RATIO;
+            }
+            if (force && !incompressible) {
+                channel.force(true);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporaryPath);
+            throw e;
+        }
+
+        if (incompressible) {
+            try (var decoded = codec.decode(Files.newInputStream(temporaryPath))) {
+                return writeTemporaryFile(decoded, force);
+            } finally {
+                Files.deleteIfExists(temporaryPath);
+            }
+        }
+        return temporaryPath;
+    }
+
+    /**
+     * <p>Turns a file written elsewhere on the same file system into a temporary file of this FileDescriptor, like one written by
+     * {@link #writeTemporaryFile(InputStream, boolean)}, without copying its content.</p>
+     * <p>The content is read once to compute its digest, and the file is then renamed to a temporary file next to the file represented by this
+     * FileDescriptor, where the digest is stored in its {@link FileMetadata}. If the folder does not exist, it is created. If the file is on another file
+     * system, it is copied.</p>
+     * @param stagedPath The path of the written file. It no longer exists when the method returns normally.
+     * @param force Whether the content and metadata are forced to the storage device.
+     * @return The path of the temporary file.
+     * @throws IOException If an I/O error occurs while reading, renaming or forcing the file.
+     */
+    public Path adoptTemporaryFile(Path stagedPath, boolean force) throws IOException {
+        var messageDigest = createMessageDigest();
+        var buffer = COPY_BUFFER.get();
+        try (var channel = FileChannel.open(stagedPath, StandardOpenOption.READ)) {
+            while (channel.read(buffer.clear()) >= 0) {
+                messageDigest.update(buffer.flip());
+            }
+        }
+
+        var temporaryPath = newTemporaryPath();
+        try {
+            Files.move(stagedPath, temporaryPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            if (!Files.exists(stagedPath)) {
+                throw e;
+            }
+            // The folder did not exist, or was purged after the last file in it was deleted.
+            ensureDirectoriesExist();
+            Files.move(stagedPath, temporaryPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(stagedPath, temporaryPath);
+        }
+
+        try {
+            new FileMetadata(HexFormat.of().formatHex(messageDigest.digest())).write(temporaryPath);
+            if (force) {
+                try (var channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporaryPath);
+            throw e;
+        }
+        return temporaryPath;
+    }
+
+    /**
+     * <p>Replaces the file represented by this FileDescriptor with the given temporary file, by renaming the temporary file. The rename is atomic when the
+     * file system supports it, so the file is never missing or partly written.</p>
+     * @param temporaryPath The path of a temporary file written by {@link #writeTemporaryFile(InputStream, boolean)}.
+     * @return The current FileDescriptor instance.
+     * @throws IOException If an I/O error occurs during the rename.
+     */
+    public FileDescriptor replaceWith(Path temporaryPath) throws IOException {
+        try {
+            Files.move(temporaryPath, getPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryPath, getPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
         return this;
     }
 
-    private List<String> getHashStrings() {
-        if (hashStrings != null) {
-            return hashStrings;
+    /**
+     * Checks if the given path is a temporary file written by {@link #writeTemporaryFile(InputStream, boolean)}.
+     * @param path The path to check.
+     * @return true if the file name is the name of a temporary file, false otherwise.
+     */
+    public static boolean isTemporaryFile(Path path) {
+        var fileName = path.getFileName();
+        return fileName != null && fileName.toString().endsWith(TEMPORARY_FILE_SUFFIX);
+    }
+
+    /**
+     * Reads the metadata stored with the file represented by this FileDescriptor. The content of the file is not read.
+     * @return The metadata of the file.
+     * @throws IOException If the file does not exist, or an I/O error occurs.
+     */
+    public FileMetadata readMetadata() throws IOException {
+        return FileMetadata.read(getPath());
+    }
+
+    private String getRelativePath() {
+        var names = getFolderNames();
+        var name = id.toString();
+        var segmentLength = storageLayout.getSegmentLength();
+        var folders = Math.min(storageLayout.getMaxDepth(), depth);
+        var separator = rootFolderPath.getFileSystem().getSeparator().charAt(0);
+        var chars = new char[folders * (segmentLength + 1) + name.length()];
+        var position = 0;
+        for (int i = 0; i < folders * segmentLength; i++) {
+            chars[position++] = (char) names[i];
+            if ((i + 1) % segmentLength == 0) {
+                chars[position++] = separator;
+            }
+        }
+        name.getChars(0, name.length(), chars, position);
+        return new String(chars);
+    }
+
+    private byte[] getFolderNames() {
+        if (folderNames != null) {
+            return folderNames;
         }
 
         if (id == null) {
             throw new IllegalArgumentException("UUID cannot be null");
         }
 
+        folderNames = storageLayout.getFolderNames(id);
+        return folderNames;
+    }
+
+    private Path newTemporaryPath() {
+        return getFolderPath().resolve(id + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + TEMPORARY_FILE_SUFFIX);
+    }
+
+    private FileChannel openTemporaryFile(Path temporaryPath) throws IOException {
+        try {
+            return FileChannel.open(temporaryPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        } catch (NoSuchFileException e) {
+            // The folder did not exist, or was purged after the last file in it was deleted.
+            ensureDirectoriesExist();
+            return FileChannel.open(temporaryPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        }
+    }
+
+    /**
+     * Copies the data in the buffer, and the rest of the data of the source, to the channel.
+     */
+    private static void copy(ReadableByteChannel source, ByteBuffer buffer, FileChannel channel, MessageDigest messageDigest) throws IOException {
+        while (true) {
+            messageDigest.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+            if (source.read(buffer) < 0) {
+                return;
+            }
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Compresses the first block of data in memory. If the block is compressible, the compressed block is written to the channel, and the returned stream
+     * compresses the rest of the data to the channel. Otherwise, nothing is written to the channel, and <i>null</i> is returned.
+     */
+    private static OutputStream startEncoding(ContentCodec codec, byte[] block, ByteBuffer firstBlock, FileChannel channel) throws IOException {
+        var blockLength = firstBlock.remaining();
+        firstBlock.get(block, 0, blockLength);
+        var compressedBlock = new ByteArrayOutputStream(blockLength);
+        var target = new RedirectableOutputStream(compressedBlock);
+        var encoder = codec.encode(target);
+        encoder.write(block, 0, blockLength);
+        encoder.flush();
+        if (compressedBlock.size() > blockLength * MAX_COMPRESSION_RATIO) {
+            encoder.close(); // Releases the resources of the codec
+            return null;
+        }
+
+        var channelOutputStream = new BufferedOutputStream(Channels.newOutputStream(channel), COPY_BUFFER_SIZE);
+        compressedBlock.writeTo(channelOutputStream);
+        target.redirect(channelOutputStream);
+        return encoder;
+    }
+
+    /**
+     * Compresses the rest of the data after the first block, which has already been written to the encoder.
+     * @return The size of the data before compression.
+     */
+    private static long copyEncoded(InputStream inputStream, byte[] block, int blockLength, OutputStream encoder, MessageDigest messageDigest)
+        throws IOException {
+        try (encoder) {
+            messageDigest.update(block, 0, blockLength);
+            long size = blockLength;
+            int read;
+            while ((read = inputStream.read(block)) >= 0) {
+                messageDigest.update(block, 0, read);
+                encoder.write(block, 0, read);
+                size += read;
+            }
+            return size;
+        }
+    }
+
+    private static MessageDigest createMessageDigest() {
         try {
-            var hashBytes = MessageDigest.getInstance(ALGORITHM)
-                                .digest(id.toString().getBytes(StandardCharsets.UTF_8));
-            var base64Hash = Base64.getUrlEncoder()
-                                 .withoutPadding()
-                                 .encodeToString(hashBytes);
-            hashStrings = base64Hash
-                              .substring(0, Math.min(base64Hash.length(), depth))
-                              .chars()
-                              .mapToObj(c -> String.valueOf((char) c))
-                              .collect(Collectors.toList());
-            return hashStrings;
+            return MessageDigest.getInstance(ALGORITHM);
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(ALGORITHM + " algorithm not found", e);
         }
@@ -239,7 +615,7 @@ public class FileDescriptor {
 
         try {
             log.debug("Deleting empty folder: {}", path);
-            if (!Files.newDirectoryStream(path).iterator().hasNext()) {
+            if (isEmptyFolder(path)) {
                 Files.delete(path);
                 log.debug("Deleted empty folder: {}", path);
                 purgeEmptyFolders(path.getParent());
@@ -251,8 +627,44 @@ public class FileDescriptor {
         }
     }
 
-    private FileDescriptor(Path rootFolderPath, UUID id, int depth) {
+    private static boolean isEmptyFolder(Path path) throws IOException {
+        try (var entries = Files.newDirectoryStream(path)) {
+            return !entries.iterator().hasNext();
+        }
+    }
+
+    /**
+     * Writes to an output stream that can be replaced while it is written to. Closing the stream flushes the current output stream, but does not close it.
+     */
+    private static final class RedirectableOutputStream extends FilterOutputStream {
+
+        private RedirectableOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        private void redirect(OutputStream outputStream) {
+            out = outputStream;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+
+    }
+
+    private FileDescriptor(Path rootFolderPath, StorageLayout storageLayout, UUID id, int depth) {
+        if (storageLayout == null) {
+            throw new IllegalArgumentException("Storage layout cannot be null");
+        }
+
         this.rootFolderPath = rootFolderPath;
+        this.storageLayout = storageLayout;
         this.id = id;
         this.depth = depth;
     }
@@ -7,6 +7,7 @@ import org.springframework.stereotype.Service;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
@@ -15,12 +16,23 @@ import java.util.UUID;
  * <p>Service for distributing files across different directory depths and managing orphaned files.</p>
  * <p>This service provides methods to clean up orphaned files, retrieve all file descriptors for a given UUID,
  * and ensure that files are stored at the correct directory depth as specified in the configuration.</p>
+ * <p>While files are migrated to a new requested depth by a maintenance job, see {@link #startMigration(int)}, files are read from where they are and are not
+ * moved by {@link #ensureCorrectLevel(FileDescriptor)}, and a file is looked up at the new and the old depth before every depth is probed.</p>
+ * <p>Reads do not move misplaced files themselves, but leave it to the {@link RelocationQueue}, see {@link #relocate(FileDescriptor)}.</p>
+ * <p>Files are moved under the write lock of their UUID, see {@link FileLocks}.</p>
  */
 @Service
 @Slf4j
 public class FileDistributorService {
 
     @Autowired private ConfigurationService configurationService;
+    @Autowired private HotFileCache hotFileCache;
+    @Autowired private FileLocationIndex fileLocationIndex;
+    @Autowired private FileExistenceFilter fileExistenceFilter;
+    @Autowired private MisplacedFileTracker misplacedFileTracker;
+    @Autowired private FileLocks fileLocks;
+
+    private volatile Integer migrationSourceDepth;
 
     /**
      * Cleans up orphaned files for the given FileDescriptor, keeping only the specified depth from the configuration.
@@ -32,7 +44,8 @@ public class FileDistributorService {
     }
 
     /**
-     * Retrieves all FileDescriptors for the given UUID across all directory depths.
+     * <p>Retrieves all FileDescriptors for the given UUID across all directory depths.</p>
+     * <p>If the {@link FileExistenceFilter} tells that the file does not exist, an empty Set is returned without accessing the file system.</p>
      *
      * @param id the UUID of the file.
      * @return a Set of FileDescriptors corresponding to the given UUID.
@@ -43,8 +56,13 @@ public class FileDistributorService {
         }
 
         Set<FileDescriptor> fileDescriptors = new HashSet<>();
-        for (int level = 0; ; level++) {
-            var candidate = FileDescriptor.fromUUIDAndDepth(configurationService.getDataRootFolderPath(), id, level);
+        if (!fileExistenceFilter.mightExist(id)) {
+            return fileDescriptors;
+        }
+
+        var storageLayout = configurationService.getStorageLayout();
+        for (int level = 0; level <= storageLayout.getMaxDepth(); level++) {
+            var candidate = FileDescriptor.fromUUIDAndDepth(configurationService.getDataRootFolderPath(), storageLayout, id, level);
             if (!candidate.folderExists()) {
                 return fileDescriptors; // Stop if the folder does not exist
             }
@@ -53,11 +71,72 @@ public class FileDistributorService {
                 fileDescriptors.add(candidate);
             }
         }
+        return fileDescriptors;
+    }
+
+    /**
+     * <p>Retrieves the FileDescriptors for the given UUID at the requested depth and at the depth files are being migrated from.</p>
+     * <p>Only these two depths are looked up, so the result can be empty even if the file exists at another depth. If no migration is in progress, or the
+     * {@link FileExistenceFilter} tells that the file does not exist, an empty Set is returned without accessing the file system.</p>
+     *
+     * @param id the UUID of the file.
+     * @return a Set of FileDescriptors corresponding to the given UUID.
+     */
+    public Set<FileDescriptor> getMigratingFileDescriptorsForId(UUID id) {
+        if (id == null) {
+            throw new IllegalArgumentException("ID cannot be null");
+        }
+
+        Set<FileDescriptor> fileDescriptors = new HashSet<>();
+        var sourceDepth = migrationSourceDepth;
+        if (sourceDepth == null || !fileExistenceFilter.mightExist(id)) {
+            return fileDescriptors;
+        }
+
+        var target = FileDescriptor.fromUUIDAndDepth(configurationService.getDataRootFolderPath(), configurationService.getStorageLayout(), id,
+                                                     configurationService.getRequestedFileDepth());
+        if (target.fileExists()) {
+            fileDescriptors.add(target);
+        }
+        var source = target.toDepth(sourceDepth);
+        if (source.fileExists()) {
+            fileDescriptors.add(source);
+        }
+        return fileDescriptors;
+    }
+
+    /**
+     * Tells that files are being migrated from the given depth to the requested depth. Until {@link #finishMigration()} is called, files are not moved when
+     * they are read.
+     *
+     * @param sourceDepth the depth the files are being migrated from.
+     */
+    public void startMigration(int sourceDepth) {
+        migrationSourceDepth = sourceDepth;
+    }
+
+    /**
+     * Tells that the migration started by {@link #startMigration(int)} has completed or has been abandoned. Files that are not at the requested depth are
+     * moved when they are read again.
+     */
+    public void finishMigration() {
+        migrationSourceDepth = null;
+    }
+
+    /**
+     * Checks whether files are being migrated to the requested depth.
+     *
+     * @return <i>true</i> if a migration is in progress.
+     */
+    public boolean isMigrating() {
+        return migrationSourceDepth != null;
     }
 
     /**
      * Ensures that the given FileDescriptor is at the correct directory depth as specified in the configuration.
-     * If not, it moves the file to the correct depth.
+     * If not, it moves the file to the correct depth. While a migration is in progress, the file is left where it is. Either way, the misplaced file is
+     * recorded by the {@link MisplacedFileTracker}, so maintenance processes its bucket early.
+     * The file is also left where it is if another thread holds its lock, or if it has been moved or deleted since it was found.
      *
      * @param fileDescriptor the FileDescriptor to check and potentially move.
      * @return the FileDescriptor at the correct directory depth.
@@ -70,23 +149,83 @@ public class FileDistributorService {
         if (fileDescriptor.getDepth() == requestedDepth)
             return fileDescriptor;
 
-        log.info("Path {} does not match requested depth {}, normalizing to correct level", path, requestedDepth);
-        var requestedFileDescriptor = fileDescriptor.toDepth(requestedDepth);
+        misplacedFileTracker.record(fileDescriptor.getId());
+        if (isMigrating())
+            return fileDescriptor;
+
+        var lock = fileLocks.writeLock(fileDescriptor.getId());
+        if (!lock.tryLock())
+            return fileDescriptor; // The file is in use, and is moved when it is found again
+
         try {
-            requestedFileDescriptor.ensureDirectoriesExist();
-            Files.deleteIfExists(requestedFileDescriptor.getPath());
+            if (!fileDescriptor.fileExists())
+                return fileDescriptor;
+            return moveToRequestedDepth(fileDescriptor, requestedDepth);
+        } catch (IOException e) {
+            return fileDescriptor;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            log.info("Moving file from {} to {}", path, requestedFileDescriptor.getPath());
-            fileDescriptor.moveTo(requestedFileDescriptor);
+    /**
+     * <p>Moves a file that was found at another depth than the requested one to the requested depth. Used by the {@link RelocationQueue}, which runs some
+     * time after the file was found.</p>
+     * <p>The file is therefore left where it is if it has been moved or deleted since, if it is now at the requested depth, or if files are being migrated.
+     * If a copy that is at least as recent has been written at the requested depth meanwhile, e.g. by an update, the misplaced copy is deleted instead of
+     * replacing it.</p>
+     *
+     * @param fileDescriptor the FileDescriptor of the misplaced file.
+     * @return <i>true</i> if the file was moved or the misplaced copy was deleted, <i>false</i> if it was left where it is.
+     */
+    public boolean relocate(FileDescriptor fileDescriptor) {
+        var requestedDepth = configurationService.getRequestedFileDepth();
+        if (fileDescriptor.getDepth() == requestedDepth) {
+            return false;
+        }
 
-            if (fileDescriptor.getDepth() > requestedDepth) {
-                cleanUpSubFolders(requestedFileDescriptor.toDepth(requestedDepth));
+        var lock = fileLocks.writeLock(fileDescriptor.getId());
+        lock.lock();
+        try {
+            if (isMigrating() || !fileDescriptor.fileExists()) {
+                return false;
             }
 
-            return requestedFileDescriptor;
+            var requestedFileDescriptor = fileDescriptor.toDepth(requestedDepth);
+            if (requestedFileDescriptor.fileExists()
+                    && requestedFileDescriptor.getLastModifiedTime().compareTo(fileDescriptor.getLastModifiedTime()) >= 0) {
+                log.info("Deleting {}, a more recent copy is at {}", fileDescriptor.getPath(), requestedFileDescriptor.getPath());
+                fileDescriptor.purge();
+                return true;
+            }
+            moveToRequestedDepth(fileDescriptor, requestedDepth);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
         } catch (IOException e) {
-            return fileDescriptor;
+            throw new RuntimeException("Error relocating file " + fileDescriptor.getPath(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private FileDescriptor moveToRequestedDepth(FileDescriptor fileDescriptor, int requestedDepth) throws IOException {
+        var path = fileDescriptor.getPath();
+        log.info("Path {} does not match requested depth {}, normalizing to correct level", path, requestedDepth);
+        var requestedFileDescriptor = fileDescriptor.toDepth(requestedDepth);
+        requestedFileDescriptor.ensureDirectoriesExist();
+        Files.deleteIfExists(requestedFileDescriptor.getPath());
+
+        log.info("Moving file from {} to {}", path, requestedFileDescriptor.getPath());
+        fileDescriptor.moveTo(requestedFileDescriptor);
+        fileLocationIndex.put(fileDescriptor.getId(), requestedDepth);
+        hotFileCache.invalidate(fileDescriptor.getId());
+
+        if (fileDescriptor.getDepth() > requestedDepth) {
+            cleanUpSubFolders(requestedFileDescriptor.toDepth(requestedDepth));
         }
+
+        return requestedFileDescriptor;
     }
 
     private static void cleanUpSubFolders(FileDescriptor fileDescriptor) throws IOException {
@@ -95,20 +234,24 @@ public class FileDistributorService {
         for (int level = deepestLevel; level > targetDepth; level--) {
             var lowerFileDescriptor = fileDescriptor.toDepth(level);
             var folderPath = lowerFileDescriptor.getPath().getParent();
-            if (Files.list(folderPath).count() > 0) {
-                return;
+            try (var entries = Files.list(folderPath)) {
+                if (entries.findAny().isPresent()) {
+                    return;
+                }
             }
             Files.delete(folderPath);
         }
     }
 
     private static int findDeepestLevel(FileDescriptor fileDescriptor) {
-        for (int level = fileDescriptor.getDepth(); ; level++) {
+        var maxDepth = fileDescriptor.getStorageLayout().getMaxDepth();
+        for (int level = fileDescriptor.getDepth(); level <= maxDepth; level++) {
             var lowerFileDescriptor = fileDescriptor.toDepth(level);
             if (!lowerFileDescriptor.folderExists()) {
                 return level - 1;
             }
         }
+        return maxDepth;
     }
 
     private void cleanUpOrphans(FileDescriptor fileDescriptor, int depthToKeep) {
@@ -118,8 +261,9 @@ public class FileDistributorService {
 
         log.debug("Cleaning up orphans for UUID: {}, keeping depth: {}", fileDescriptor.getId(), depthToKeep);
 
-        // Clean up upper levels
-        for (int level = 0; level < depthToKeep; level++) {
+        // Clean up upper levels. Levels beyond the maximum depth are the same folder as the maximum depth, so they must not be visited.
+        var maxDepth = fileDescriptor.getStorageLayout().getMaxDepth();
+        for (int level = 0; level < Math.min(depthToKeep, maxDepth); level++) {
             var candiateToBePurged = fileDescriptor.toDepth(level);
             if (candiateToBePurged.fileExists()) {
                 candiateToBePurged.purge();
@@ -127,7 +271,7 @@ public class FileDistributorService {
         }
 
         // Clean up lower levels
-        for (int level = depthToKeep + 1; ; level++) {
+        for (int level = depthToKeep + 1; level <= maxDepth; level++) {
             var lowerFileDescriptor = fileDescriptor.toDepth(level);
             if (!lowerFileDescriptor.folderExists()) {
                 return; // Stop if the folder does not exist
@@ -0,0 +1,311 @@
+package dk.runerne.fileserver.filehandling;
+
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * <p>Builds the HTTP response for downloading an opened file.</p>
+ * <p>The handler implements the parts of HTTP that concern the transfer of the file content:</p>
+ * <ul>
+ *     <li>The <b>If-Match</b> and <b>If-None-Match</b> preconditions, answered with <i>412 Precondition Failed</i> and <i>304 Not Modified</i>. The strong
+ *     entity tag of a file is derived from the digest stored in its {@link FileMetadata}, so the preconditions are evaluated without opening the file.</li>
+ *     <li>Range requests, answered with <i>206 Partial Content</i>. A single range is sent as is, several ranges as <i>multipart/byteranges</i>.</li>
+ *     <li>The <b>If-Range</b> precondition, using the entity tag or the last modified time of the file as validator.</li>
+ *     <li>The <b>Accept-Encoding</b> header, for files stored compressed (see {@link ContentCodec}). If the client accepts the encoding of the file, the stored
+ *     bytes are sent as they are, with the encoding in the <b>Content-Encoding</b> header and an entity tag of their own (see
+ *     {@link EntityTag#withEncoding(String, String)}), and ranges apply to the stored bytes. Otherwise, the content is decompressed while it is sent, and
+ *     ranges are ignored. Responses for compressed files vary by <b>Accept-Encoding</b>.</li>
+ * </ul>
+ * <p>Files that are small enough for the {@link HotFileCache} are read completely when they are opened, added to the cache, and served from memory.</p>
+ * <p>All ranges are transferred with positional reads of the file (see {@link FileContent#transferTo(long, long, OutputStream)}), so only the requested bytes are
+ * read from disk.</p>
+ * <p>The content is always streamed from the channel that was opened when the headers were built, so it matches them even if the file is replaced or moved
+ * meanwhile.</p>
+ */
+@Component
+@Slf4j
+public class FileDownloadHandler {
+
+    private static final String BYTES = "bytes";
+    private static final String CRLF = "\r\n";
+
+    @Autowired private HotFileCache hotFileCache;
+
+    /**
+     * <p>Builds the response for downloading the given file, honouring the <b>If-Match</b>, <b>If-None-Match</b>, <b>Range</b> and <b>If-Range</b> headers of
+     * the request.</p>
+     * <p>The preconditions are evaluated before the file is opened. If the file is replaced before it is opened, they are evaluated again for the content that
+     * was opened, and the response always carries the entity tag of that content. If the file is opened, it is closed when the response body has been written,
+     * or immediately if no body is written by the application.</p>
+     *
+     * @param fileDescriptor the FileDescriptor of the file to download.
+     * @param request        the HTTP request.
+     * @return the ResponseEntity to return from the controller.
+     * @throws FileNotFoundException if the file does not exist.
+     */
+    public ResponseEntity<StreamingResponseBody> handle(FileDescriptor fileDescriptor, HttpServletRequest request) throws FileNotFoundException {
+        var generation = hotFileCache.getGeneration(fileDescriptor.getId());
+        String evaluatedETag;
+        FileContent content;
+        try {
+            var metadata = fileDescriptor.readMetadata();
+            evaluatedETag = metadata.getETag();
+            var preconditionResponse = evaluatePreconditions(getRepresentationETag(evaluatedETag, metadata.getEncoding(), request), metadata.isEncoded(),
+                                                             request);
+            if (preconditionResponse.isPresent()) {
+                return preconditionResponse.get();
+            }
+
+            content = FileContent.open(fileDescriptor, metadata);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("File with ID " + fileDescriptor.getId() + " does not exist.");
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening file with ID " + fileDescriptor.getId(), e);
+        }
+
+        var eTag = content.getETag();
+        if (!Objects.equals(eTag, evaluatedETag)) {
+            // The file was replaced after the preconditions were evaluated, so they are evaluated again for the content that was opened
+            var preconditionResponse = evaluatePreconditions(getRepresentationETag(eTag, content.getEncoding(), request), content.isEncoded(), request);
+            if (preconditionResponse.isPresent()) {
+                closeQuietly(content);
+                return preconditionResponse.get();
+            }
+        }
+
+        if (hotFileCache.isCacheable(content.getSize())) {
+            return handle(loadIntoCache(content, eTag, generation), request);
+        }
+
+        return handle(content, eTag, request);
+    }
+
+    /**
+     * <p>Builds the response for downloading a file from the {@link HotFileCache}, honouring the same headers as
+     * {@link #handle(FileDescriptor, HttpServletRequest)}. No file is opened.</p>
+     *
+     * @param cachedFile the cached content of the file to download.
+     * @param request    the HTTP request.
+     * @return the ResponseEntity to return from the controller.
+     */
+    public ResponseEntity<StreamingResponseBody> handle(CachedFile cachedFile, HttpServletRequest request) {
+        var encoded = cachedFile.getEncoding() != null;
+        var preconditionResponse = evaluatePreconditions(getRepresentationETag(cachedFile.getETag(), cachedFile.getEncoding(), request), encoded, request);
+        return preconditionResponse.orElseGet(() -> handle(FileContent.of(cachedFile), cachedFile.getETag(), request));
+    }
+
+    /**
+     * Gets the entity tag of the representation sent to the client: the entity tag of the encoded content if the file is stored with an encoding the client
+     * accepts, otherwise the entity tag of the file.
+     */
+    private static String getRepresentationETag(String eTag, String encoding, HttpServletRequest request) {
+        return isSentEncoded(encoding, request) ? EntityTag.withEncoding(eTag, encoding) : eTag;
+    }
+
+    private static boolean isSentEncoded(String encoding, HttpServletRequest request) {
+        return encoding != null && AcceptEncoding.accepts(request.getHeader(HttpHeaders.ACCEPT_ENCODING), encoding);
+    }
+
+    /**
+     * Evaluates the <b>If-Match</b> and <b>If-None-Match</b> headers against the entity tag of the representation.
+     * @return the response to send if a precondition decides the outcome, otherwise an empty Optional.
+     */
+    private static Optional<ResponseEntity<StreamingResponseBody>> evaluatePreconditions(String eTag, boolean encoded, HttpServletRequest request) {
+        var ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+        if (ifMatch != null && !EntityTag.anyMatches(ifMatch, eTag, false)) {
+            return Optional.of(ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build());
+        }
+
+        var ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && EntityTag.anyMatches(ifNoneMatch, eTag, true)) {
+            var response = ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag);
+            if (encoded) {
+                response.varyBy(HttpHeaders.ACCEPT_ENCODING);
+            }
+            return Optional.of(response.build());
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Reads the complete content into the hot-file cache and closes it.
+     */
+    private CachedFile loadIntoCache(FileContent content, String eTag, long generation) {
+        try (content) {
+            var cachedFile = CachedFile.load(content, eTag);
+            hotFileCache.put(cachedFile, generation);
+            return cachedFile;
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading file " + content.getFileDescriptor().getPath(), e);
+        }
+    }
+
+    private ResponseEntity<StreamingResponseBody> handle(FileContent content, String eTag, HttpServletRequest request) {
+        if (content.isEncoded()) {
+            if (!isSentEncoded(content.getEncoding(), request)) {
+                return handleDecoded(content, eTag);
+            }
+            eTag = EntityTag.withEncoding(eTag, content.getEncoding());
+        }
+
+        var size = content.getSize();
+        var rangeHeader = ifRangeMatches(content, eTag, request) ? request.getHeader(HttpHeaders.RANGE) : null;
+        var ranges = ByteRange.parse(rangeHeader, size);
+
+        if (ranges.isEmpty()) {
+            return handleSingleRange(content, eTag, HttpStatus.OK, new ByteRange(0, size - 1));
+        }
+
+        if (ranges.get().isEmpty()) {
+            closeQuietly(content);
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                       .header(HttpHeaders.CONTENT_RANGE, ByteRange.toUnsatisfiedContentRange(size))
+                       .build();
+        }
+
+        if (ranges.get().size() == 1) {
+            return handleSingleRange(content, eTag, HttpStatus.PARTIAL_CONTENT, ranges.get().get(0));
+        }
+
+        return handleMultipleRanges(content, eTag, ranges.get());
+    }
+
+    private ResponseEntity<StreamingResponseBody> handleSingleRange(FileContent content, String eTag, HttpStatus status, ByteRange range) {
+        var response = ResponseEntity.status(status)
+                           .header(HttpHeaders.ACCEPT_RANGES, BYTES)
+                           .eTag(eTag)
+                           .lastModified(content.getLastModified())
+                           .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                           .contentLength(range.getLength());
+        addEncoding(response, content);
+        if (status == HttpStatus.PARTIAL_CONTENT) {
+            response.header(HttpHeaders.CONTENT_RANGE, range.toContentRange(content.getSize()));
+        }
+
+        if (range.getLength() == 0) {
+            closeQuietly(content);
+            return response.build();
+        }
+
+        return response.body(outputStream -> {
+            try (content) {
+                content.transferTo(range.getStart(), range.getLength(), outputStream);
+            }
+        });
+    }
+
+    private ResponseEntity<StreamingResponseBody> handleMultipleRanges(FileContent content, String eTag, List<ByteRange> ranges) {
+        var boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        var size = content.getSize();
+
+        long contentLength = getEndDelimiter(boundary).length;
+        for (var range : ranges) {
+            contentLength += getPartHeader(boundary, range, size).length + range.getLength();
+        }
+
+        var response = ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                           .header(HttpHeaders.ACCEPT_RANGES, BYTES)
+                           .eTag(eTag)
+                           .lastModified(content.getLastModified())
+                           .contentType(new MediaType("multipart", "byteranges", Map.of("boundary", boundary)))
+                           .contentLength(contentLength);
+        addEncoding(response, content);
+        return response.body(outputStream -> {
+            try (content) {
+                for (var range : ranges) {
+                    outputStream.write(getPartHeader(boundary, range, size));
+                    content.transferTo(range.getStart(), range.getLength(), outputStream);
+                }
+                outputStream.write(getEndDelimiter(boundary));
+                outputStream.flush();
+            }
+        });
+    }
+
+    /**
+     * Builds the response for a compressed file, for a client that does not accept its encoding. The content is decompressed while it is sent, and any
+     * range is ignored, since the positions of the decompressed bytes in the file are unknown.
+     */
+    private static ResponseEntity<StreamingResponseBody> handleDecoded(FileContent content, String eTag) {
+        return ResponseEntity.ok()
+                   .eTag(eTag)
+                   .lastModified(content.getLastModified())
+                   .varyBy(HttpHeaders.ACCEPT_ENCODING)
+                   .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                   .contentLength(content.getDecodedSize())
+                   .body(content::writeDecodedTo);
+    }
+
+    /**
+     * Adds the headers of content sent as it is stored, if it is stored with an encoding.
+     */
+    private static void addEncoding(ResponseEntity.BodyBuilder response, FileContent content) {
+        if (content.isEncoded()) {
+            response.header(HttpHeaders.CONTENT_ENCODING, content.getEncoding())
+                    .varyBy(HttpHeaders.ACCEPT_ENCODING);
+        }
+    }
+
+    private static byte[] getPartHeader(String boundary, ByteRange range, long size) {
+        return (CRLF + "--" + boundary + CRLF
+                    + HttpHeaders.CONTENT_TYPE + ": " + MediaType.APPLICATION_OCTET_STREAM_VALUE + CRLF
+                    + HttpHeaders.CONTENT_RANGE + ": " + range.toContentRange(size) + CRLF
+                    + CRLF).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] getEndDelimiter(String boundary) {
+        return (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Evaluates the <b>If-Range</b> header. If the header is missing, the range request is unconditional. If it holds an entity tag, it matches only if it is
+     * strongly equal to the entity tag of the file. If it holds a date, it matches only if it equals the last modified time of the file.
+     */
+    private static boolean ifRangeMatches(FileContent content, String eTag, HttpServletRequest request) {
+        var ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return EntityTag.matches(ifRange.trim(), eTag, false);
+        }
+
+        try {
+            var date = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return Instant.ofEpochMilli(date).equals(content.getLastModified().truncatedTo(ChronoUnit.SECONDS));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(FileContent content) {
+        try {
+            content.close();
+        } catch (IOException e) {
+            log.warn("Error closing file content for {}", content.getFileDescriptor(), e);
+        }
+    }
+
+}
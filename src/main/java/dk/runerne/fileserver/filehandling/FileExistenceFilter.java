@@ -0,0 +1,153 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A Bloom filter holding the UUIDs of all stored files, used to reject lookups of files that do not exist without accessing the file system.</p>
+ * <p>A Bloom filter can tell for certain that a UUID has never been added, but may report that a UUID has been added when it has not (a false positive). A
+ * negative answer is therefore used to reject a lookup at once, while a positive answer is verified by looking on disk.</p>
+ * <p>The filter is filled by a traversal of the data folder when the application starts, see {@link FileInventoryService}, and every created file is added to
+ * it. Until the traversal has completed, the filter is not <i>ready</i> and every lookup is done on disk.</p>
+ * <p>UUIDs cannot be removed from a Bloom filter, so deleted files remain in it until it is rebuilt. They only add false positives. The filter is rebuilt by
+ * every maintenance traversal that completes.</p>
+ * <p>The filter is configured with the keys 'app.existence-filter-enabled', 'app.existence-filter-expected-files' and
+ * 'app.existence-filter-false-positive-rate'. At 10 million files and 1% false positives, it uses 12 MB.</p>
+ */
+@Service
+@Slf4j
+public class FileExistenceFilter {
+
+    @Autowired private ConfigurationService configurationService;
+
+    private volatile Bits bits;
+    private volatile Bits rebuildBits;
+
+    /**
+     * Checks whether a file with the given UUID may exist.
+     * @param id The UUID of the file.
+     * @return <i>false</i> if the file definitely does not exist, <i>true</i> if it may exist or the filter is not ready.
+     */
+    public boolean mightExist(UUID id) {
+        var currentBits = bits;
+        return currentBits == null || currentBits.mightContain(id);
+    }
+
+    /**
+     * Checks whether the filter is ready, i.e. a negative answer from {@link #mightExist(UUID)} can be trusted.
+     * @return <i>true</i> if the filter is enabled and has been filled by a complete traversal.
+     */
+    public boolean isReady() {
+        return bits != null;
+    }
+
+    /**
+     * Adds the UUID of a file to the filter. Must be called when a file has been written, before its UUID is handed out.
+     * @param id The UUID of the file.
+     */
+    public void add(UUID id) {
+        var currentRebuildBits = rebuildBits;
+        if (currentRebuildBits != null) {
+            currentRebuildBits.add(id);
+        }
+        var currentBits = bits;
+        if (currentBits != null) {
+            currentBits.add(id);
+        }
+    }
+
+    /**
+     * Starts a rebuild of the filter. Until the rebuild is completed, the UUIDs of all created files and all files found by the traversal must be
+     * {@link #add(UUID) added}, and the current filter remains in use.
+     * @return <i>true</i> if the rebuild was started, <i>false</i> if the filter is disabled or a rebuild is already in progress.
+     */
+    public synchronized boolean startRebuild() {
+        if (!configurationService.isExistenceFilterEnabled() || rebuildBits != null) {
+            return false;
+        }
+
+        rebuildBits = new Bits(configurationService.getExistenceFilterExpectedFiles(), configurationService.getExistenceFilterFalsePositiveRate());
+        return true;
+    }
+
+    /**
+     * Completes a rebuild started by {@link #startRebuild()}. The rebuilt filter replaces the current one and the filter becomes ready.
+     */
+    public synchronized void completeRebuild() {
+        if (rebuildBits == null) {
+            return;
+        }
+
+        bits = rebuildBits;
+        rebuildBits = null;
+        log.info("Existence filter rebuilt with {} bits and {} hash functions", bits.numberOfBits, bits.numberOfHashes);
+    }
+
+    /**
+     * Abandons a rebuild started by {@link #startRebuild()}, e.g. because the traversal was terminated. The current filter remains in use.
+     */
+    public synchronized void abortRebuild() {
+        rebuildBits = null;
+    }
+
+    /**
+     * The bit set of a Bloom filter. The bit positions of a UUID are derived from its own bits by double hashing.
+     */
+    static final class Bits {
+
+        private final AtomicLongArray words;
+        private final long numberOfBits;
+        private final int numberOfHashes;
+
+        Bits(long expectedInsertions, double falsePositiveRate) {
+            var n = Math.max(1, expectedInsertions);
+            var optimalBits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            var numberOfWords = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (optimalBits + 63) / 64));
+            words = new AtomicLongArray(numberOfWords);
+            numberOfBits = numberOfWords * 64L;
+            numberOfHashes = (int) Math.max(1, Math.round((double) numberOfBits / n * Math.log(2)));
+        }
+
+        void add(UUID id) {
+            var hash1 = mix(id.getMostSignificantBits() ^ id.getLeastSignificantBits());
+            var hash2 = mix(id.getLeastSignificantBits() + 0x9E3779B97F4A7C15L) | 1;
+            for (int i = 0; i < numberOfHashes; i++) {
+                var bit = Math.floorMod(hash1 + i * hash2, numberOfBits);
+                var mask = 1L << bit;
+                var index = (int) (bit >>> 6);
+                var word = words.get(index);
+                while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                    word = words.get(index);
+                }
+            }
+        }
+
+        boolean mightContain(UUID id) {
+            var hash1 = mix(id.getMostSignificantBits() ^ id.getLeastSignificantBits());
+            var hash2 = mix(id.getLeastSignificantBits() + 0x9E3779B97F4A7C15L) | 1;
+            for (int i = 0; i < numberOfHashes; i++) {
+                var bit = Math.floorMod(hash1 + i * hash2, numberOfBits);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * The finalizer of the SplitMix64 generator, spreading the bits of a value evenly.
+         */
+        private static long mix(long value) {
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            return value ^ (value >>> 31);
+        }
+
+    }
+
+}
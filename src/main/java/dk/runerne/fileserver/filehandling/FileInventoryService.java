@@ -0,0 +1,126 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.common.UUIDUtil;
+import dk.runerne.fileserver.ConfigurationService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Builds the in-memory inventories of the stored files, the {@link FileLocationIndex} and the {@link FileExistenceFilter}, by a single traversal of the
+ * data folder.</p>
+ * <p>The inventories are built in the background when the application has started. Until the traversal has completed, they are incomplete, and lookups of
+ * files that are not in them are done on disk.</p>
+ */
+@Service
+@Slf4j
+public class FileInventoryService {
+
+    @Autowired private ConfigurationService configurationService;
+    @Autowired private FileLocationIndex fileLocationIndex;
+    @Autowired private FileExistenceFilter fileExistenceFilter;
+
+    private final AtomicBoolean building = new AtomicBoolean(false);
+
+    /**
+     * Builds the inventories in the background when the application has started, if any of them are enabled.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildOnStartup() {
+        if (!configurationService.isLocationIndexEnabled() && !configurationService.isExistenceFilterEnabled()) {
+            return;
+        }
+
+        var thread = new Thread(this::build, "file-inventory-builder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Records every file in the data folder in the inventories. When done, the location index becomes authoritative and the existence filter becomes ready.
+     * @return <i>true</i> if the inventories were built, <i>false</i> if they were already being built by another thread, or the traversal failed.
+     */
+    public boolean build() {
+        if (!building.compareAndSet(false, true)) {
+            return false;
+        }
+
+        var rebuildingFilter = fileExistenceFilter.startRebuild();
+        try {
+            var start = System.currentTimeMillis();
+            var dataRootFolder = configurationService.getDataRootFolderPath();
+            var requestedDepth = configurationService.getRequestedFileDepth();
+            if (Files.isDirectory(dataRootFolder)) {
+                Files.walkFileTree(dataRootFolder, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (attributes.isRegularFile()) {
+                            addFoundFile(dataRootFolder, file, requestedDepth);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                        return skipIfDeleted(e);
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                        return e == null ? FileVisitResult.CONTINUE : skipIfDeleted(e);
+                    }
+                });
+            }
+
+            fileLocationIndex.markAuthoritative();
+            if (rebuildingFilter) {
+                fileExistenceFilter.completeRebuild();
+            }
+            log.info("File inventory built with {} indexed files in {} ms", fileLocationIndex.size(), System.currentTimeMillis() - start);
+            return true;
+        } catch (IOException e) {
+            if (rebuildingFilter) {
+                fileExistenceFilter.abortRebuild();
+            }
+            log.error("Error building file inventory. Files are looked up on disk.", e);
+            return false;
+        } finally {
+            building.set(false);
+        }
+    }
+
+    private void addFoundFile(Path dataRootFolder, Path path, int requestedDepth) {
+        var fileName = path.getFileName().toString();
+        if (!UUIDUtil.isValidUUID(fileName)) {
+            return;
+        }
+
+        var id = UUID.fromString(fileName);
+        fileExistenceFilter.add(id);
+        fileLocationIndex.addFoundFile(id, dataRootFolder.relativize(path).getNameCount() - 1, requestedDepth);
+    }
+
+    /**
+     * Skips a file or folder that was deleted during the traversal, e.g. a folder purged when its last file was deleted or moved. Other errors abort the
+     * traversal.
+     */
+    private static FileVisitResult skipIfDeleted(IOException e) throws IOException {
+        if (e instanceof NoSuchFileException) {
+            return FileVisitResult.CONTINUE;
+        }
+        throw e;
+    }
+
+}
@@ -0,0 +1,108 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.OptionalInt;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>An in-memory index of the depth at which each file is stored.</p>
+ * <p>Without the index, a file is found by probing every depth from 0 and down until a folder is missing, which costs at least two file system calls per
+ * level. With the index, the location of a file is known without accessing the file system at all.</p>
+ * <p>The index is kept up to date by every operation that creates, moves or deletes a file. When the application starts, the index is built by a traversal of
+ * the data folder in the background, see {@link FileInventoryService}. Until the traversal has completed, the index is not <i>authoritative</i>, and files
+ * that are not in the index are looked up by probing. Once it is authoritative, a file that is not in the index does not exist.</p>
+ * <p>An entry can briefly point to a location where the file no longer is, e.g. if the file is deleted while the index is being built. Callers that fail to
+ * find a file at the indexed location must therefore {@link #remove(UUID) remove} the entry and look the file up by probing.</p>
+ * <p>The index is enabled with the key 'app.location-index-enabled'. It uses about 100 bytes of heap per file.</p>
+ */
+@Service
+public class FileLocationIndex {
+
+    @Autowired private ConfigurationService configurationService;
+
+    private final ConcurrentHashMap<UUID, Integer> depths = new ConcurrentHashMap<>();
+    private volatile boolean authoritative = false;
+
+    /**
+     * Gets the depth at which the file with the given UUID is stored, according to the index.
+     * @param id The UUID of the file.
+     * @return The depth of the file, or an empty OptionalInt if the file is not in the index or the index is disabled.
+     */
+    public OptionalInt getDepth(UUID id) {
+        if (!configurationService.isLocationIndexEnabled()) {
+            return OptionalInt.empty();
+        }
+
+        var depth = depths.get(id);
+        return depth == null ? OptionalInt.empty() : OptionalInt.of(depth);
+    }
+
+    /**
+     * Checks whether the index holds every file in the storage, so a file that is not in the index does not exist.
+     * @return <i>true</i> if the index is enabled and has been completely built.
+     */
+    public boolean isAuthoritative() {
+        return configurationService.isLocationIndexEnabled() && authoritative;
+    }
+
+    /**
+     * Records the depth at which a file is stored. Must be called after the file has been written to or moved to that depth.
+     * @param id    The UUID of the file.
+     * @param depth The depth of the file.
+     */
+    public void put(UUID id, int depth) {
+        if (configurationService.isLocationIndexEnabled()) {
+            depths.put(id, depth);
+        }
+    }
+
+    /**
+     * Removes a file from the index. Must be called after the file has been deleted.
+     * @param id The UUID of the file.
+     */
+    public void remove(UUID id) {
+        depths.remove(id);
+    }
+
+    /**
+     * Gets the number of files in the index.
+     * @return The number of files.
+     */
+    public int size() {
+        return depths.size();
+    }
+
+    /**
+     * <p>Records a file found by a traversal of the data folder.</p>
+     * <p>Files that have been recorded by other operations are not overwritten, since they are more recent than the traversal. If a file is found at more
+     * than one depth, the requested depth is preferred.</p>
+     * @param id             The UUID of the file.
+     * @param depth          The depth at which the file was found.
+     * @param requestedDepth The requested file depth.
+     */
+    void addFoundFile(UUID id, int depth, int requestedDepth) {
+        if (!configurationService.isLocationIndexEnabled()) {
+            return;
+        }
+
+        if (depth == requestedDepth) {
+            depths.put(id, depth);
+        } else {
+            depths.putIfAbsent(id, depth);
+        }
+    }
+
+    /**
+     * Makes the index authoritative. Must be called when a traversal of the complete data folder has been recorded.
+     */
+    void markAuthoritative() {
+        if (configurationService.isLocationIndexEnabled()) {
+            authoritative = true;
+        }
+    }
+
+}
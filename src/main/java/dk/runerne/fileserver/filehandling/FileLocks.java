@@ -0,0 +1,83 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>Coordinates the operations on the same file, so a file is not moved, updated or deleted while it is being located and opened, and is not moved by two
+ * threads at once.</p>
+ * <p>The files share a fixed number of read/write locks, the <i>stripes</i>, and the stripe of a file is chosen by the hash of its UUID. Operations on
+ * different files therefore rarely wait for each other, and the memory used does not grow with the number of files. Operations that locate and open a file
+ * take the read lock, so reads never wait for each other. Operations that write, move or delete a file take the write lock.</p>
+ * <p>A read lock is held while a file is located and opened, but not while it is streamed to a client. A thread never holds the locks of two files at once,
+ * and never takes the write lock while it holds the read lock, so the locks cannot deadlock.</p>
+ * <p>The number of stripes is configured with the key 'app.file-lock-stripes'.</p>
+ */
+@Service
+public class FileLocks {
+
+    /**
+     * The largest number of stripes.
+     */
+    static final int MAX_STRIPES = 1 << 16;
+
+    @Autowired private ConfigurationService configurationService;
+
+    private ReentrantReadWriteLock[] stripes;
+    private int mask;
+
+    /**
+     * Creates the stripes.
+     */
+    @PostConstruct
+    public void init() {
+        var numberOfStripes = 1;
+        while (numberOfStripes < configurationService.getFileLockStripes() && numberOfStripes < MAX_STRIPES) {
+            numberOfStripes <<= 1;
+        }
+
+        stripes = new ReentrantReadWriteLock[numberOfStripes];
+        for (int i = 0; i < numberOfStripes; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        mask = numberOfStripes - 1;
+    }
+
+    /**
+     * Gets the lock to hold while a file is located and opened.
+     * @param id The UUID of the file.
+     * @return The read lock of the stripe of the file.
+     */
+    public Lock readLock(UUID id) {
+        return getStripe(id).readLock();
+    }
+
+    /**
+     * Gets the lock to hold while a file is written, moved or deleted.
+     * @param id The UUID of the file.
+     * @return The write lock of the stripe of the file.
+     */
+    public Lock writeLock(UUID id) {
+        return getStripe(id).writeLock();
+    }
+
+    /**
+     * Gets the number of stripes.
+     * @return The number of read/write locks shared by the files.
+     */
+    public int getNumberOfStripes() {
+        return stripes.length;
+    }
+
+    private ReentrantReadWriteLock getStripe(UUID id) {
+        var hash = id.hashCode();
+        return stripes[(hash ^ hash >>> 16) & mask];
+    }
+
+}
@@ -0,0 +1,211 @@
+package dk.runerne.fileserver.filehandling;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * <p>Metadata stored together with a file in the file-server storage.</p>
+ * <p>The metadata is persisted as user-defined extended attributes on the file itself. Extended attributes follow the file when it is moved or renamed within
+ * the storage, and disappear when the file is deleted, so they never need to be maintained separately from the file.</p>
+ * <p>If the file system does not support user-defined extended attributes, no metadata is stored, and the values read are <i>null</i>. The content of a
+ * compressed file cannot be read without its encoding, so the encoding and the size of a compressed file are never silently dropped: writing them fails
+ * instead.</p>
+ */
+@Data
+@Slf4j
+public class FileMetadata {
+
+    /**
+     * Metadata with no values.
+     */
+    public static final FileMetadata NONE = new FileMetadata(null);
+
+    private static final String DIGEST_ATTRIBUTE = "fileserver.sha256";
+    private static final String ENCODING_ATTRIBUTE = "fileserver.encoding";
+    private static final String SIZE_ATTRIBUTE = "fileserver.size";
+
+    /**
+     * The largest attribute value read. All values are short, so a single read with a buffer of this size is enough.
+     */
+    private static final int MAX_ATTRIBUTE_SIZE = 256;
+
+    /**
+     * The hex encoded SHA-256 digest of the content of the file, or <i>null</i> if it is unknown.
+     */
+    private final String digest;
+
+    /**
+     * The name of the {@link ContentCodec} that compressed the stored content, or <i>null</i> if the content is stored as is.
+     */
+    private final String encoding;
+
+    /**
+     * The size in bytes of the content before it was compressed, or <i>null</i> if the content is stored as is.
+     */
+    private final Long size;
+
+    /**
+     * Creates the metadata of content stored as is.
+     * @param digest The hex encoded SHA-256 digest of the content, or <i>null</i> if it is unknown.
+     */
+    public FileMetadata(String digest) {
+        this(digest, null, null);
+    }
+
+    /**
+     * Creates the metadata of content stored with the given encoding.
+     * @param digest   The hex encoded SHA-256 digest of the content before it was compressed, or <i>null</i> if it is unknown.
+     * @param encoding The name of the {@link ContentCodec} that compressed the content, or <i>null</i> if it is stored as is.
+     * @param size     The size in bytes of the content before it was compressed, or <i>null</i> if it is stored as is.
+     */
+    public FileMetadata(String digest, String encoding, Long size) {
+        this.digest = digest;
+        this.encoding = encoding;
+        this.size = size;
+    }
+
+    /**
+     * Reads the metadata of the file at the given path. The content of the file is not read.
+     * @param path The path of the file.
+     * @return The metadata of the file. Values that are not stored are <i>null</i>.
+     * @throws IOException If the file does not exist, or an I/O error occurs.
+     */
+    public static FileMetadata read(Path path) throws IOException {
+        var view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return NONE;
+        }
+
+        var encoding = readAttribute(path, view, ENCODING_ATTRIBUTE);
+        if (encoding == null) {
+            return new FileMetadata(readAttribute(path, view, DIGEST_ATTRIBUTE));
+        }
+
+        var size = readAttribute(path, view, SIZE_ATTRIBUTE);
+        try {
+            return new FileMetadata(readAttribute(path, view, DIGEST_ATTRIBUTE), encoding, size == null ? null : Long.valueOf(size));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid size " + size + " of " + path, e);
+        }
+    }
+
+    /**
+     * Reads only the encoding of the file at the given path.
+     * @param path The path of the file.
+     * @return The name of the {@link ContentCodec} that compressed the content, or <i>null</i> if the content is stored as is.
+     * @throws IOException If the file does not exist, or an I/O error occurs.
+     */
+    public static String readEncoding(Path path) throws IOException {
+        var view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        return view == null ? null : readAttribute(path, view, ENCODING_ATTRIBUTE);
+    }
+
+    /**
+     * Writes the metadata to the file at the given path. Values that are <i>null</i> are removed from the file.
+     * @param path The path of the file.
+     * @throws IOException If the file does not exist, or an I/O error occurs. Also if the encoding cannot be stored, e.g. because the file system does not
+     * support extended attributes.
+     */
+    public void write(Path path) throws IOException {
+        var view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            if (encoding != null) {
+                throw new IOException("Unable to store the encoding of " + path + ", the file system does not support extended attributes");
+            }
+            return;
+        }
+
+        writeAttribute(path, view, DIGEST_ATTRIBUTE, digest, false);
+        writeAttribute(path, view, SIZE_ATTRIBUTE, size == null ? null : size.toString(), true);
+        writeAttribute(path, view, ENCODING_ATTRIBUTE, encoding, true);
+    }
+
+    /**
+     * Checks whether metadata can be stored with the files in the given folder.
+     * @param folderPath The path of an existing folder.
+     * @return <i>true</i> if the file system of the folder supports user-defined extended attributes.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static boolean isSupported(Path folderPath) throws IOException {
+        return Files.getFileStore(folderPath).supportsFileAttributeView(UserDefinedFileAttributeView.class);
+    }
+
+    /**
+     * Checks whether the stored content is compressed.
+     * @return <i>true</i> if the content is stored with an encoding.
+     */
+    public boolean isEncoded() {
+        return encoding != null;
+    }
+
+    /**
+     * Gets the codec that compressed the stored content.
+     * @return The codec of the encoding.
+     * @throws IOException If the content is stored as is, or no codec has the name of the encoding.
+     */
+    public ContentCodec getCodec() throws IOException {
+        return ContentCodec.forName(encoding).orElseThrow(() -> new IOException("Unknown encoding: " + encoding));
+    }
+
+    /**
+     * Gets the strong entity tag of the content, derived from its digest.
+     * @return The quoted entity tag, or <i>null</i> if the digest is unknown.
+     */
+    public String getETag() {
+        return digest == null ? null : "\"" + digest + "\"";
+    }
+
+    /**
+     * Reads a single attribute. A missing attribute and a file system without support for extended attributes both give <i>null</i>.
+     */
+    private static String readAttribute(Path path, UserDefinedFileAttributeView view, String name) throws IOException {
+        var buffer = ByteBuffer.allocate(MAX_ATTRIBUTE_SIZE);
+        try {
+            view.read(name, buffer);
+        } catch (FileSystemException e) {
+            rethrowIfFileIsMissing(path, e);
+            return null;
+        }
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes a single attribute. A required value that cannot be stored fails the write, other values are only logged.
+     */
+    private static void writeAttribute(Path path, UserDefinedFileAttributeView view, String name, String value, boolean required) throws IOException {
+        try {
+            if (value != null) {
+                view.write(name, StandardCharsets.US_ASCII.encode(value));
+            } else {
+                view.delete(name);
+            }
+        } catch (FileSystemException e) {
+            rethrowIfFileIsMissing(path, e);
+            if (required && value != null) {
+                throw e;
+            }
+            if (value != null) {
+                log.debug("Unable to store extended attribute {} on {}: {}", name, path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Some platforms report a missing attribute as a missing file, so a {@link NoSuchFileException} is only rethrown if the file itself is missing.
+     */
+    private static void rethrowIfFileIsMissing(Path path, FileSystemException e) throws FileSystemException {
+        if (e instanceof NoSuchFileException && !Files.exists(path)) {
+            throw e;
+        }
+    }
+
+}
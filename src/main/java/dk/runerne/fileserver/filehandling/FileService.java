@@ -5,15 +5,27 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
 import java.util.UUID;
 
 /**
  * <p>Service for handling file operations such as create, read, update, and delete.</p>
  * <p>This service interacts with the file system based on configurations provided by {@link ConfigurationService}
  * and utilizes {@link FileDistributorService} for managing file distribution and orphan cleanup.</p>
+ * <p>Operations on the same file are coordinated by the {@link FileLocks}: a file is located and opened under the read lock of its UUID, and is written or
+ * deleted under the write lock.</p>
  */
 @Service
 @Slf4j
@@ -21,6 +33,13 @@ public class FileService {
 
     @Autowired private ConfigurationService configurationService;
     @Autowired private FileDistributorService fileDistributorService;
+    @Autowired private HotFileCache hotFileCache;
+    @Autowired private FileLocationIndex fileLocationIndex;
+    @Autowired private FileExistenceFilter fileExistenceFilter;
+    @Autowired private RelocationQueue relocationQueue;
+    @Autowired private FileLocks fileLocks;
+    @Autowired private AtomicFileWriter atomicFileWriter;
+    @Autowired private BlobStore blobStore;
 
     /**
      * <p>Creates a new file with the given data and returns its UUID.</p>
@@ -30,12 +49,53 @@ public class FileService {
      * @return the UUID of the newly created file.
      */
     public UUID create(byte[] data) {
+        return create(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * <p>Creates a new file with the data read from the given input stream and returns its UUID.</p>
+     * <p>The UUID is randomly generated. The data is streamed to disk, so the size of the file is not limited by the available memory. The file is written
+     * by the {@link AtomicFileWriter}, so it does not appear until it has been completely written. If the stream fails before it is exhausted, the file is
+     * not created.</p>
+     *
+     * @param inputStream the stream providing the data to be written to the file.
+     * @return the UUID of the newly created file.
+     */
+    public UUID create(InputStream inputStream) {
+        return create(fileDescriptor -> atomicFileWriter.write(fileDescriptor, inputStream));
+    }
+
+    /**
+     * <p>Creates a new file from a file written elsewhere on the same file system, e.g. the staging file of an {@link UploadSessionService upload session},
+     * and returns its UUID.</p>
+     * <p>The UUID is randomly generated. The written file is renamed into place, so its content is not copied, unless it is to be compressed, see
+     * {@link AtomicFileWriter#prepare(FileDescriptor, Path)}.</p>
+     *
+     * @param stagedPath the path of the written file. It is moved or deleted.
+     * @return the UUID of the newly created file.
+     */
+    public UUID create(Path stagedPath) {
+        return create(fileDescriptor -> atomicFileWriter.write(fileDescriptor, stagedPath));
+    }
+
+    private UUID create(FileWriter writer) {
+        var fileDescriptor = FileDescriptor.fromDepth(configurationService.getDataRootFolderPath(), configurationService.getStorageLayout(),
+                                                      configurationService.getRequestedFileDepth());
         try {
-            return FileDescriptor.fromDepth(configurationService.getDataRootFolderPath(), configurationService.getRequestedFileDepth())
-                       .ensureDirectoriesExist()
-                       .write(data)
-                       .getId();
-        } catch (IOException e) {
+            writer.write(fileDescriptor);
+            fileExistenceFilter.add(fileDescriptor.getId());
+            fileLocationIndex.put(fileDescriptor.getId(), fileDescriptor.getDepth());
+            return fileDescriptor.getId();
+        } catch (IOException | RuntimeException e) {
+            if (fileDescriptor.fileExists()) {
+                fileDescriptor.purge();
+            } else {
+                // The folders created for the file are left behind when the temporary file could not be written or committed
+                fileDescriptor.purgeEmptyFolders();
+            }
+            if (e instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
             throw new RuntimeException("Error creating file", e);
         }
     }
@@ -49,63 +109,320 @@ public class FileService {
      * @throws FileNotFoundException if the file with the specified UUID does not exist.
      */
     public void update(UUID id, byte[] data) throws FileNotFoundException {
+        update(id, new ByteArrayInputStream(data));
+    }
+
+    /**
+     * <p>Updates the file with the specified UUID with new data read from the given input stream.</p>
+     * <p>If the file does not exist, a {@link FileNotFoundException} is thrown. The data is streamed to disk, so the size of the file is not limited by the
+     * available memory.</p>
+     * <p>The new data is written at the requested depth, and copies of the file at other depths are deleted, even if the file has not been moved to the
+     * requested depth yet.</p>
+     * <p>The data is streamed to a temporary file without holding the lock of the file, so reads of the file are not blocked by a slow upload. The write lock
+     * is only held while the temporary file replaces the file, see {@link AtomicFileWriter}. Readers see either the old or the new content.</p>
+     * <p>If deduplication is enabled, the blobs of the old content are released, see {@link BlobStore}.</p>
+     *
+     * @param id          the UUID of the file to be updated.
+     * @param inputStream the stream providing the new data to be written to the file.
+     * @throws FileNotFoundException if the file with the specified UUID does not exist.
+     */
+    public void update(UUID id, InputStream inputStream) throws FileNotFoundException {
+        var fileDescriptor = FileDescriptor.fromUUIDAndDepth(configurationService.getDataRootFolderPath(), configurationService.getStorageLayout(), id,
+                                                             configurationService.getRequestedFileDepth());
+        Path temporaryPath = null;
         try {
-            var fileDescriptor = FileDescriptor.fromUUIDAndDepth(configurationService.getDataRootFolderPath(), id, configurationService.getRequestedFileDepth());
             if (!fileDescriptor.fileExists()) {
-                throw new FileNotFoundException("File with ID " + id + " does not exist.");
+                var readLock = fileLocks.readLock(id);
+                readLock.lock();
+                try {
+                    find(id, fileLocationIndex.getDepth(id)); // Fails before the data is read, if the file does not exist
+                } finally {
+                    readLock.unlock();
+                }
+            }
+            temporaryPath = atomicFileWriter.prepare(fileDescriptor, inputStream);
+
+            var lock = fileLocks.writeLock(id);
+            lock.lock();
+            try {
+                if (!fileDescriptor.fileExists()) {
+                    find(id, fileLocationIndex.getDepth(id));
+                }
+                var oldDigests = readDigests(blobStore.isEnabled() ? fileDistributorService.getAllFileDescriptorsForId(id) : Set.of());
+                atomicFileWriter.commit(fileDescriptor, temporaryPath);
+                temporaryPath = null;
+                fileLocationIndex.put(id, fileDescriptor.getDepth());
+                hotFileCache.invalidate(id);
+                fileDistributorService.cleanUpOrphans(fileDescriptor);
+                oldDigests.forEach(blobStore::release);
+            } finally {
+                lock.unlock();
             }
-            fileDescriptor.write(data);
-            fileDistributorService.cleanUpOrphans(fileDescriptor);
         } catch (FileNotFoundException e) {
             throw e;
         } catch (IOException e) {
             throw new RuntimeException("Error updating file with ID " + id, e);
+        } finally {
+            if (temporaryPath != null) {
+                atomicFileWriter.discard(temporaryPath);
+            }
         }
     }
 
     /**
      * <p>Reads the file with the specified UUID and returns its data.</p>
      * <p>If the file does not exist, a {@link FileNotFoundException} is thrown.</p>
+     * <p>The complete file is loaded into memory. Use {@link #open(UUID)} to stream large files.</p>
+     * <p>The file is read under the read lock of its UUID, so it is not moved, updated or deleted while it is read.</p>
      *
      * @param id the UUID of the file to be read.
      * @return the data of the file as a byte array.
      * @throws FileNotFoundException if the file with the specified UUID does not exist.
      */
     public byte[] read(UUID id) throws FileNotFoundException {
-        var fileDescriptors = fileDistributorService.getAllFileDescriptorsForId(id);
-        if (fileDescriptors.isEmpty()) {
-            throw new FileNotFoundException("File with ID " + id + " does not exist.");
+        try {
+            return openLocated(id, FileDescriptor::readAllBytes);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading file with ID " + id, e);
         }
+    }
 
+    /**
+     * <p>Opens the file with the specified UUID for streaming.</p>
+     * <p>If the file does not exist, a {@link FileNotFoundException} is thrown.</p>
+     * <p>The file is opened under the read lock of its UUID before this method returns, so the returned content stays readable even if the file is relocated
+     * afterward.</p>
+     *
+     * @param id the UUID of the file to be opened.
+     * @return the opened content of the file. The caller is responsible for closing it.
+     * @throws FileNotFoundException if the file with the specified UUID does not exist.
+     */
+    public FileContent open(UUID id) throws FileNotFoundException {
         try {
-            var youngestFileDescriptor = fileDescriptors.stream()
-                                             .max(Comparator.comparing(fileDescriptor -> {
-                                                 try {
-                                                     return fileDescriptor.getLastModifiedTime();
-                                                 } catch (IOException e) {
-                                                     throw new RuntimeException("Error getting last modified time for file " + fileDescriptor.getPath(), e);
-                                                 }
-                                             }));
-            return fileDistributorService.ensureCorrectLevel(youngestFileDescriptor.get()).readAllBytes();
+            return openLocated(id, FileContent::open);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            throw new FileNotFoundException("File with ID " + id + " does not exist.");
         } catch (IOException e) {
-            throw new RuntimeException("Error reading file with ID " + id, e);
+            throw new RuntimeException("Error opening file with ID " + id, e);
         }
     }
 
     /**
      * <p>Deletes the file with the specified UUID.</p>
      * <p>If the file does not exist, a {@link FileNotFoundException} is thrown.</p>
+     * <p>If deduplication is enabled, the blobs of the file are released, see {@link BlobStore}.</p>
      *
      * @param id the UUID of the file to be deleted.
      * @throws FileNotFoundException if the file with the specified UUID does not exist.
      */
     public void delete(UUID id) throws FileNotFoundException {
-        var fileDescriptors = fileDistributorService.getAllFileDescriptorsForId(id);
+        var lock = fileLocks.writeLock(id);
+        lock.lock();
+        try {
+            var fileDescriptors = fileDistributorService.getAllFileDescriptorsForId(id);
+            if (fileDescriptors.isEmpty()) {
+                throw new FileNotFoundException("File with ID " + id + " does not exist.");
+            }
+
+            var digests = readDigests(blobStore.isEnabled() ? fileDescriptors : Set.of());
+            fileDescriptors.forEach(FileDescriptor::purge);
+            fileLocationIndex.remove(id);
+            hotFileCache.invalidate(id);
+            digests.forEach(blobStore::release);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Gets the file with the specified UUID from the {@link HotFileCache}.</p>
+     * <p>The file system is not accessed, so a file that is not cached is not looked up. Use {@link #locate(UUID)} to find it.</p>
+     *
+     * @param id the UUID of the file.
+     * @return the cached content of the file, or an empty Optional if it is not cached.
+     */
+    public Optional<CachedFile> getCachedFile(UUID id) {
+        return hotFileCache.get(id);
+    }
+
+    /**
+     * <p>Locates the file with the specified UUID without opening it.</p>
+     * <p>If the file is in the {@link FileLocationIndex} at the requested depth, it is located without accessing the file system. If the index is
+     * authoritative and the file is not in it, a {@link FileNotFoundException} is thrown without accessing the file system. Otherwise, every depth is probed,
+     * and if the file exists at more than one depth, the most recently modified one is used. While files are migrated to a new depth, the new and the old
+     * depth are looked up before every depth is probed.</p>
+     * <p>A file that is not at the requested depth is returned where it is, and is moved to the requested depth in the background by the
+     * {@link RelocationQueue}, unless files are being migrated. If the queue is disabled, the file is moved before it is returned.</p>
+     * <p>The file is located under the read lock of its UUID, but the lock is released before this method returns, so the file may be moved before the
+     * caller opens it. A caller that does not find the file at the returned location must call {@link #relocate(UUID)}.</p>
+     *
+     * @param id the UUID of the file to be located.
+     * @return the FileDescriptor of the file.
+     * @throws FileNotFoundException if the file with the specified UUID does not exist.
+     */
+    public FileDescriptor locate(UUID id) throws FileNotFoundException {
+        var depth = fileLocationIndex.getDepth(id);
+        if (isRequestedDepth(depth)) {
+            return atDepth(id, depth.getAsInt()); // Located without accessing the file system
+        }
+
+        FileDescriptor fileDescriptor;
+        var lock = fileLocks.readLock(id);
+        lock.lock();
+        try {
+            fileDescriptor = find(id, depth);
+        } finally {
+            lock.unlock();
+        }
+        return toRequestedDepth(fileDescriptor);
+    }
+
+    /**
+     * <p>Locates the file with the specified UUID by probing every depth, ignoring the {@link FileLocationIndex}. The index is updated with the result.</p>
+     * <p>Must be used when a file was not found at the location returned by {@link #locate(UUID)}.</p>
+     *
+     * @param id the UUID of the file to be located.
+     * @return the FileDescriptor of the file.
+     * @throws FileNotFoundException if the file with the specified UUID does not exist.
+     */
+    public FileDescriptor relocate(UUID id) throws FileNotFoundException {
+        FileDescriptor fileDescriptor;
+        var lock = fileLocks.readLock(id);
+        lock.lock();
+        try {
+            fileDescriptor = findAgain(id);
+        } finally {
+            lock.unlock();
+        }
+        return toRequestedDepth(fileDescriptor);
+    }
+
+    /**
+     * Locates and opens a file under the read lock of its UUID, so it is not moved, updated or deleted meanwhile. A file that is not at the requested depth is
+     * moved after the lock is released.
+     */
+    private <T> T openLocated(UUID id, FileOpener<T> opener) throws IOException {
+        var depth = fileLocationIndex.getDepth(id);
+        var probed = !isRequestedDepth(depth);
+        FileDescriptor fileDescriptor;
+        T result;
+        var lock = fileLocks.readLock(id);
+        lock.lock();
+        try {
+            fileDescriptor = probed ? find(id, depth) : atDepth(id, depth.getAsInt());
+            try {
+                result = opener.open(fileDescriptor);
+            } catch (NoSuchFileException e) {
+                // The file may have been changed outside the file server since its location was recorded in the location index
+                fileDescriptor = findAgain(id);
+                probed = true;
+                result = opener.open(fileDescriptor);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (probed) {
+            toRequestedDepth(fileDescriptor);
+        }
+        return result;
+    }
+
+    /**
+     * Finds a file that is not in the {@link FileLocationIndex} at the requested depth. Must be called while the read or write lock of the file is held.
+     */
+    private FileDescriptor find(UUID id, OptionalInt depth) throws FileNotFoundException {
+        if (depth.isPresent()) {
+            var fileDescriptor = atDepth(id, depth.getAsInt());
+            if (fileDescriptor.fileExists()) {
+                return fileDescriptor;
+            }
+            fileLocationIndex.remove(id);
+        } else if (fileLocationIndex.isAuthoritative()) {
+            throw new FileNotFoundException("File with ID " + id + " does not exist.");
+        }
+
+        return probe(id);
+    }
+
+    private boolean isRequestedDepth(OptionalInt depth) {
+        return depth.isPresent() && depth.getAsInt() == configurationService.getRequestedFileDepth();
+    }
+
+    private FileDescriptor atDepth(UUID id, int depth) {
+        return FileDescriptor.fromUUIDAndDepth(configurationService.getDataRootFolderPath(), configurationService.getStorageLayout(), id, depth);
+    }
+
+    private FileDescriptor findAgain(UUID id) throws FileNotFoundException {
+        fileLocationIndex.remove(id);
+        return probe(id);
+    }
+
+    private FileDescriptor probe(UUID id) throws FileNotFoundException {
+        var fileDescriptors = fileDistributorService.getMigratingFileDescriptorsForId(id);
+        if (fileDescriptors.isEmpty()) {
+            fileDescriptors = fileDistributorService.getAllFileDescriptorsForId(id);
+        }
         if (fileDescriptors.isEmpty()) {
             throw new FileNotFoundException("File with ID " + id + " does not exist.");
         }
 
-        fileDescriptors.forEach(FileDescriptor::purge);
+        var youngestFileDescriptor = fileDescriptors.stream()
+                                         .max(Comparator.comparing(fileDescriptor -> {
+                                             try {
+                                                 return fileDescriptor.getLastModifiedTime();
+                                             } catch (IOException e) {
+                                                 throw new RuntimeException("Error getting last modified time for file " + fileDescriptor.getPath(), e);
+                                             }
+                                         }));
+        var fileDescriptor = youngestFileDescriptor.get();
+        fileLocationIndex.put(id, fileDescriptor.getDepth());
+        return fileDescriptor;
+    }
+
+    /**
+     * Moves a file that is not at the requested depth, or leaves it to the {@link RelocationQueue}. Must not be called while the read lock of the file is
+     * held, since the file cannot be moved then.
+     */
+    private FileDescriptor toRequestedDepth(FileDescriptor fileDescriptor) {
+        if (relocationQueue.isEnabled()
+                && fileDescriptor.getDepth() != configurationService.getRequestedFileDepth()
+                && !fileDistributorService.isMigrating()) {
+            relocationQueue.enqueue(fileDescriptor);
+            return fileDescriptor;
+        }
+        return fileDistributorService.ensureCorrectLevel(fileDescriptor);
+    }
+
+    /**
+     * Reads the digests of the given copies of a file, so their blobs can be released when the copies have been deleted. A digest that cannot be read is
+     * left to {@link BlobStore#collectGarbage()}.
+     */
+    private static List<String> readDigests(Collection<FileDescriptor> fileDescriptors) {
+        var digests = new ArrayList<String>(fileDescriptors.size());
+        for (var fileDescriptor : fileDescriptors) {
+            try {
+                digests.add(fileDescriptor.readMetadata().getDigest());
+            } catch (IOException e) {
+                log.debug("Unable to read the digest of {}: {}", fileDescriptor.getPath(), e.getMessage());
+            }
+        }
+        return digests;
+    }
+
+    @FunctionalInterface
+    private interface FileOpener<T> {
+
+        T open(FileDescriptor fileDescriptor) throws IOException;
+
+    }
+
+    @FunctionalInterface
+    private interface FileWriter {
+
+        void write(FileDescriptor fileDescriptor) throws IOException;
+
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+package dk.runerne.fileserver.filehandling;
+
+import lombok.Data;
+
+/**
+ * The load from requests for files during a period, as sampled by the {@link ForegroundLoadMonitor}.
+ */
+@Data
+public class ForegroundLoad {
+
+    /** A sample with no requests. */
+    public static final ForegroundLoad NONE = new ForegroundLoad(0, 0.0, 0);
+
+    /** The number of requests completed during the period. */
+    private final long requests;
+
+    /** The average latency in milliseconds of the requests completed during the period, or 0.0 if none were completed. */
+    private final double averageLatencyMillis;
+
+    /** The number of requests in progress when the sample was taken. */
+    private final int inFlightRequests;
+
+}
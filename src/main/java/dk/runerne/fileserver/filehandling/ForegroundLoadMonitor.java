@@ -0,0 +1,71 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the latency of the requests for files handled by {@link FileController}, and the number of them in progress, so background work such as
+ * maintenance can give way to them.</p>
+ * <p>The latency is measured until the controller has returned. The body of a download is streamed afterward and is not included, but locating and opening the
+ * file is, which is the part that suffers when the disk is busy.</p>
+ */
+@Component
+public class ForegroundLoadMonitor extends OncePerRequestFilter {
+
+    @Autowired private ConfigurationService configurationService;
+
+    private int inFlightRequests = 0;
+    private long requests = 0;
+    private long totalLatencyNanos = 0;
+
+    /**
+     * Gets the load since the previous sample, and starts a new period.
+     * @return the load during the period.
+     */
+    public synchronized ForegroundLoad sample() {
+        var load = new ForegroundLoad(requests,
+                                      requests == 0 ? 0.0 : (double) totalLatencyNanos / requests / TimeUnit.MILLISECONDS.toNanos(1),
+                                      inFlightRequests);
+        requests = 0;
+        totalLatencyNanos = 0;
+        return load;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        var path = request.getRequestURI().substring(request.getContextPath().length());
+        var fileApiPath = configurationService.getApiBasePath() + "/file";
+        return !path.equals(fileApiPath) && !path.startsWith(fileApiPath + "/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        var startNanos = requestStarted();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            requestCompleted(startNanos);
+        }
+    }
+
+    private synchronized long requestStarted() {
+        inFlightRequests++;
+        return System.nanoTime();
+    }
+
+    private synchronized void requestCompleted(long startNanos) {
+        inFlightRequests--;
+        requests++;
+        totalLatencyNanos += System.nanoTime() - startNanos;
+    }
+
+}
@@ -0,0 +1,174 @@
+package dk.runerne.fileserver.filehandling;
+
+import lombok.EqualsAndHashCode;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * <p>A {@link StorageLayout} that names the folders of a file by segments of the encoded SHA-256 hash of its UUID.</p>
+ * <p>The fan-out of the layout is determined by the encoding and the segment length:</p>
+ * <table>
+ *     <caption>Fan-out and maximum depth</caption>
+ *     <tr><th>Encoding</th><th>Segment length</th><th>Fan-out</th><th>Maximum depth</th></tr>
+ *     <tr><td>BASE64</td><td>1</td><td>64</td><td>43</td></tr>
+ *     <tr><td>BASE64</td><td>2</td><td>4096</td><td>21</td></tr>
+ *     <tr><td>HEX</td><td>1</td><td>16</td><td>64</td></tr>
+ *     <tr><td>HEX</td><td>2</td><td>256</td><td>32</td></tr>
+ *     <tr><td>HEX</td><td>3</td><td>4096</td><td>21</td></tr>
+ * </table>
+ * <p>The number of files in each folder at the bottom is the number of files divided by the fan-out to the power of the depth. A layout with a wider
+ * fan-out reaches the same number of files per folder with fewer levels, and thereby fewer folders to traverse on every access.</p>
+ * <p>The hash is either computed from the string representation of the UUID, as the layout has always done, or from the 16 bytes of the UUID, which avoids
+ * formatting it.</p>
+ */
+@EqualsAndHashCode
+public final class HashedStorageLayout implements StorageLayout {
+
+    private static final String ALGORITHM = "SHA-256";
+    private static final int DIGEST_LENGTH = 32;
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    /**
+     * One digest and scratch buffers per thread, so computing the folder names does not allocate them.
+     */
+    private static final ThreadLocal<Hasher> HASHER = ThreadLocal.withInitial(Hasher::new);
+
+    /**
+     * The encodings of the hash.
+     */
+    public enum Encoding {
+
+        /** URL-safe Base64 without padding. 6 bits per character. */
+        BASE64(6, 43),
+
+        /** Lower case hexadecimal. 4 bits per character. */
+        HEX(4, 64);
+
+        private final int bitsPerCharacter;
+        private final int length;
+
+        Encoding(int bitsPerCharacter, int length) {
+            this.bitsPerCharacter = bitsPerCharacter;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * The representations of the UUID that are hashed.
+     */
+    public enum HashInput {
+
+        /** The 36 characters of the string representation of the UUID. */
+        STRING,
+
+        /** The 16 bytes of the UUID, most significant first. */
+        BYTES
+
+    }
+
+    private final Encoding encoding;
+    private final int segmentLength;
+    private final HashInput hashInput;
+
+    /**
+     * Creates a layout.
+     * @param encoding      The encoding of the hash.
+     * @param segmentLength The number of characters of the encoded hash used for each level.
+     * @param hashInput     The representation of the UUID that is hashed.
+     */
+    public HashedStorageLayout(Encoding encoding, int segmentLength, HashInput hashInput) {
+        if (encoding == null || hashInput == null) {
+            throw new IllegalArgumentException("Encoding and hash input cannot be null");
+        }
+
+        if (segmentLength < 1 || segmentLength * encoding.bitsPerCharacter > 24) {
+            throw new IllegalArgumentException("Segment length must be between 1 and " + 24 / encoding.bitsPerCharacter + " for encoding " + encoding);
+        }
+
+        this.encoding = encoding;
+        this.segmentLength = segmentLength;
+        this.hashInput = hashInput;
+    }
+
+    @Override
+    public byte[] getFolderNames(UUID id) {
+        var digest = HASHER.get().hash(id, hashInput);
+        var folderNames = new byte[encoding.length];
+        if (encoding == Encoding.BASE64) {
+            Base64.getUrlEncoder().withoutPadding().encode(digest, folderNames);
+        } else {
+            for (int i = 0; i < DIGEST_LENGTH; i++) {
+                folderNames[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+                folderNames[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+            }
+        }
+        return folderNames;
+    }
+
+    @Override
+    public int getSegmentLength() {
+        return segmentLength;
+    }
+
+    @Override
+    public int getMaxDepth() {
+        return encoding.length / segmentLength;
+    }
+
+    @Override
+    public long getFanOut() {
+        return 1L << (encoding.bitsPerCharacter * segmentLength);
+    }
+
+    @Override
+    public String toString() {
+        return encoding + "/" + segmentLength + "/" + hashInput;
+    }
+
+    /**
+     * Computes SHA-256 hashes of UUIDs, reusing the digest and the buffers between calls. An instance must only be used by one thread, and the returned
+     * array is overwritten by the next call.
+     */
+    private static final class Hasher {
+
+        private final MessageDigest messageDigest;
+        private final byte[] stringInput = new byte[36];
+        private final ByteBuffer bytesInput = ByteBuffer.allocate(16);
+        private final byte[] digest = new byte[DIGEST_LENGTH];
+
+        Hasher() {
+            try {
+                messageDigest = MessageDigest.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(ALGORITHM + " algorithm not found", e);
+            }
+        }
+
+        byte[] hash(UUID id, HashInput hashInput) {
+            if (hashInput == HashInput.STRING) {
+                var name = id.toString();
+                for (int i = 0; i < stringInput.length; i++) {
+                    stringInput[i] = (byte) name.charAt(i);
+                }
+                messageDigest.update(stringInput);
+            } else {
+                messageDigest.update(bytesInput.clear().putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()).array());
+            }
+
+            try {
+                messageDigest.digest(digest, 0, DIGEST_LENGTH);
+            } catch (DigestException e) {
+                throw new RuntimeException("Error computing " + ALGORITHM + " digest", e);
+            }
+            return digest;
+        }
+
+    }
+
+}
@@ -0,0 +1,196 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A bounded in-memory cache holding the complete content of small, frequently read files.</p>
+ * <p>The cache is a segmented LRU with a budget in bytes. New entries are admitted to a <i>probation</i> segment, and are promoted to a <i>protected</i> segment
+ * when they are read again. The protected segment may use up to {@link #PROTECTED_SHARE} of the budget. When it is full, its least recently used entry is
+ * demoted to the probation segment, and when the total budget is exceeded, the least recently used entries of the probation segment are evicted. A burst of
+ * files that are read only once can therefore not push the frequently read files out of the cache.</p>
+ * <p>The cache must be invalidated whenever the content of a file changes, or the file is deleted or moved. To avoid caching content that was read while it
+ * was being changed, a loader takes a {@link #getGeneration(UUID) generation} before reading the file, and the entry is only admitted if no invalidation of
+ * the file has happened since.</p>
+ * <p>The cache is configured with the keys 'app.hot-file-cache-enabled', 'app.hot-file-cache-max-entry-size' and 'app.hot-file-cache-max-total-size'.</p>
+ */
+@Service
+@Slf4j
+public class HotFileCache {
+
+    /**
+     * The share of the budget that the protected segment may use.
+     */
+    static final double PROTECTED_SHARE = 0.8;
+
+    /**
+     * The number of generation counters. Invalidations of files that share a counter make each other's loads fail, which only costs a cache miss.
+     */
+    private static final int GENERATION_STRIPES = 1024;
+
+    @Autowired private ConfigurationService configurationService;
+
+    private final LinkedHashMap<UUID, CachedFile> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<UUID, CachedFile> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Gets the cached content of a file. A hit promotes the entry to the protected segment.
+     * @param id The UUID of the file.
+     * @return The cached content, or an empty Optional if the file is not cached or the cache is disabled.
+     */
+    public Optional<CachedFile> get(UUID id) {
+        if (!configurationService.isHotFileCacheEnabled()) {
+            return Optional.empty();
+        }
+
+        CachedFile cachedFile;
+        synchronized (this) {
+            cachedFile = protectedSegment.get(id);
+            if (cachedFile == null) {
+                cachedFile = probation.remove(id);
+                if (cachedFile != null) {
+                    probationBytes -= cachedFile.getSize();
+                    promote(cachedFile);
+                }
+            }
+        }
+
+        (cachedFile != null ? hits : misses).increment();
+        return Optional.ofNullable(cachedFile);
+    }
+
+    /**
+     * Checks whether a file of the given size may be cached.
+     * @param size The size of the file in bytes.
+     * @return <i>true</i> if the cache is enabled and the file is small enough to be cached. A file must also fit in the part of the budget that the protected
+     * segment cannot use, so it is never evicted immediately.
+     */
+    public boolean isCacheable(long size) {
+        return configurationService.isHotFileCacheEnabled()
+                   && size <= configurationService.getHotFileCacheMaxEntrySize()
+                   && size <= configurationService.getHotFileCacheMaxTotalSize() * (1 - PROTECTED_SHARE);
+    }
+
+    /**
+     * Gets the current generation of a file. The generation must be taken before the file is read, and passed to {@link #put(CachedFile, long)}.
+     * @param id The UUID of the file.
+     * @return The generation.
+     */
+    public long getGeneration(UUID id) {
+        return generations.get(stripe(id));
+    }
+
+    /**
+     * Adds a file to the probation segment of the cache, evicting the least recently used entries if the budget is exceeded. The file is not added if it has
+     * been invalidated since the given generation was taken, or if it is not {@link #isCacheable(long) cacheable}.
+     * @param cachedFile The content of the file.
+     * @param generation The generation of the file, taken before it was read.
+     * @return <i>true</i> if the file was added to the cache.
+     */
+    public boolean put(CachedFile cachedFile, long generation) {
+        if (!isCacheable(cachedFile.getSize())) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (generations.get(stripe(cachedFile.getId())) != generation) {
+                log.debug("Not caching file {}, it was invalidated while it was loaded", cachedFile.getId());
+                return false;
+            }
+
+            removeEntry(cachedFile.getId());
+            probation.put(cachedFile.getId(), cachedFile);
+            probationBytes += cachedFile.getSize();
+            evictToBudget();
+        }
+        return true;
+    }
+
+    /**
+     * Removes a file from the cache, and makes loads of the file that are in progress fail to add it. Must be called whenever a file is changed, deleted or
+     * moved.
+     * @param id The UUID of the file.
+     */
+    public void invalidate(UUID id) {
+        synchronized (this) {
+            generations.incrementAndGet(stripe(id));
+            removeEntry(id);
+        }
+    }
+
+    /**
+     * Gets the statistics of the cache.
+     * @return The current statistics.
+     */
+    public HotFileCacheStatistics getStatistics() {
+        synchronized (this) {
+            return new HotFileCacheStatistics(
+                configurationService.isHotFileCacheEnabled(),
+                hits.sum(),
+                misses.sum(),
+                evictions.sum(),
+                probation.size() + protectedSegment.size(),
+                probationBytes + protectedBytes,
+                configurationService.getHotFileCacheMaxTotalSize());
+        }
+    }
+
+    private void promote(CachedFile cachedFile) {
+        protectedSegment.put(cachedFile.getId(), cachedFile);
+        protectedBytes += cachedFile.getSize();
+
+        var maxProtectedBytes = (long) (configurationService.getHotFileCacheMaxTotalSize() * PROTECTED_SHARE);
+        var iterator = protectedSegment.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes && iterator.hasNext()) {
+            var demoted = iterator.next().getValue();
+            iterator.remove();
+            protectedBytes -= demoted.getSize();
+            probation.put(demoted.getId(), demoted);
+            probationBytes += demoted.getSize();
+        }
+        evictToBudget();
+    }
+
+    private void evictToBudget() {
+        var maxTotalBytes = configurationService.getHotFileCacheMaxTotalSize();
+        var iterator = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxTotalBytes && iterator.hasNext()) {
+            Map.Entry<UUID, CachedFile> evicted = iterator.next();
+            iterator.remove();
+            probationBytes -= evicted.getValue().getSize();
+            evictions.increment();
+        }
+    }
+
+    private void removeEntry(UUID id) {
+        var removed = probation.remove(id);
+        if (removed != null) {
+            probationBytes -= removed.getSize();
+        }
+        removed = protectedSegment.remove(id);
+        if (removed != null) {
+            protectedBytes -= removed.getSize();
+        }
+    }
+
+    private static int stripe(UUID id) {
+        return (id.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+}
@@ -0,0 +1,28 @@
+package dk.runerne.fileserver.filehandling;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * <p>This controller handles HTTP requests for inspecting the hot-file cache.</p>
+ * <p>The base path for all endpoints in this controller is configured via the 'api.base-path' property.</p>
+ * <p>The class implements the controller level and forwards all valid requests to the appropriate methods in {@link HotFileCache}</p>.
+ */
+@RestController
+@RequestMapping("${api.base-path}/hot-file-cache")
+public class HotFileCacheController {
+
+    @Autowired private HotFileCache hotFileCache;
+
+    /**
+     * Gets the statistics of the hot-file cache.
+     * @return the statistics of the cache.
+     */
+    @GetMapping("/statistics")
+    public HotFileCacheStatistics getStatistics() {
+        return hotFileCache.getStatistics();
+    }
+
+}
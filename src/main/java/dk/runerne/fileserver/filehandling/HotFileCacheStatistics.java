@@ -0,0 +1,40 @@
+package dk.runerne.fileserver.filehandling;
+
+import lombok.Data;
+
+/**
+ * Statistics of the {@link HotFileCache}. The counters are accumulated since the application was started.
+ */
+@Data
+public class HotFileCacheStatistics {
+
+    /** Whether the cache is enabled. */
+    private final boolean enabled;
+
+    /** The number of reads served from the cache. */
+    private final long hits;
+
+    /** The number of reads that were not served from the cache. */
+    private final long misses;
+
+    /** The number of entries removed from the cache to stay within the budget. */
+    private final long evictions;
+
+    /** The number of files currently in the cache. */
+    private final int entries;
+
+    /** The number of bytes of file content currently in the cache. */
+    private final long size;
+
+    /** The maximum number of bytes of file content the cache may hold. */
+    private final long maxSize;
+
+    /** Gets the share of reads served from the cache.
+     * @return The hit ratio between 0.0 and 1.0, or 0.0 if nothing has been read yet.
+     */
+    public double getHitRatio() {
+        var total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+}
@@ -0,0 +1,58 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Records in which top-level folders of the data folder, the <i>buckets</i>, misplaced files have most recently been found, so maintenance can process
+ * the buckets where files are being misplaced first.</p>
+ * <p>A file is misplaced when it is found at another depth than the requested one, e.g. because it is read before a maintenance job has moved it after a
+ * depth change, or because it has been restored from a backup. Every copy of a file below the top level is in the bucket named by the first segment of its
+ * {@link StorageLayout#getFolderNames(UUID) folder names}.</p>
+ * <p>The activity is held in memory and is forgotten when the application restarts. It only orders the work of maintenance, and never makes it skip a
+ * bucket.</p>
+ */
+@Service
+public class MisplacedFileTracker {
+
+    @Autowired private ConfigurationService configurationService;
+
+    private final ConcurrentHashMap<String, Long> lastFound = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    /**
+     * Records that a misplaced copy of a file has been found.
+     * @param id The UUID of the file.
+     */
+    public void record(UUID id) {
+        lastFound.put(getBucket(id), sequence.incrementAndGet());
+    }
+
+    /**
+     * Gets the name of the bucket in which every copy of a file below the top level is stored.
+     * @param id The UUID of the file.
+     * @return The name of the top-level folder.
+     */
+    public String getBucket(UUID id) {
+        var storageLayout = configurationService.getStorageLayout();
+        return new String(storageLayout.getFolderNames(id), 0, storageLayout.getSegmentLength(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Gets a comparator that orders buckets by priority: the buckets in which a misplaced file has been found first, the most recent first, and then the
+     * other buckets by name.
+     * @return The comparator of bucket names.
+     */
+    public Comparator<String> byMostRecentActivity() {
+        return Comparator.<String>comparingLong(bucket -> -lastFound.getOrDefault(bucket, 0L))
+                   .thenComparing(Comparator.naturalOrder());
+    }
+
+}
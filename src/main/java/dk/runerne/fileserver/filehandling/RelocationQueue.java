@@ -0,0 +1,142 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Moves files that are read at another depth than the requested one to the requested depth in the background, so the requests that read them are served
+ * from where the files are, without waiting for folders to be created, files to be moved and empty folders to be deleted.</p>
+ * <p>The queue is bounded, and a file is only queued once until it has been moved. When the queue is full, further files are rejected rather than making
+ * the requests wait. A rejected file is queued again the next time it is read, and is moved by the next maintenance job in any case. Since the files are
+ * moved some time after they were found, each file is checked again before it is moved, see {@link FileDistributorService#relocate(FileDescriptor)}.</p>
+ * <p>The queue is configured with the keys 'app.relocation-queue-enabled', 'app.relocation-queue-capacity' and 'app.relocation-worker-threads'. When it is
+ * disabled, files are moved by the requests that read them.</p>
+ */
+@Service
+@Slf4j
+public class RelocationQueue {
+
+    @Autowired private ConfigurationService configurationService;
+    @Autowired private FileDistributorService fileDistributorService;
+    @Autowired private MisplacedFileTracker misplacedFileTracker;
+
+    private final Set<UUID> pending = ConcurrentHashMap.newKeySet();
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder relocated = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private ThreadPoolExecutor pool;
+
+    /**
+     * Starts the worker threads, if the queue is enabled.
+     */
+    @PostConstruct
+    public void init() {
+        if (!configurationService.isRelocationQueueEnabled()) {
+            return;
+        }
+
+        var workerThreads = Math.max(1, configurationService.getRelocationWorkerThreads());
+        var threadNumber = new AtomicInteger(0);
+        pool = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<>(Math.max(1, configurationService.getRelocationQueueCapacity())),
+                                      runnable -> {
+                                          var thread = new Thread(runnable, "relocation-worker-" + threadNumber.incrementAndGet());
+                                          thread.setDaemon(true);
+                                          return thread;
+                                      });
+    }
+
+    /**
+     * Stops the worker threads. Files that have not been moved are left where they are.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks whether the queue is enabled. If it is not, files must be moved by the requests that read them.
+     * @return <i>true</i> if misplaced files may be {@link #enqueue(FileDescriptor) enqueued}.
+     */
+    public boolean isEnabled() {
+        return pool != null;
+    }
+
+    /**
+     * Queues a file that was found at another depth than the requested one to be moved to the requested depth. Never waits. The misplaced file is recorded
+     * by the {@link MisplacedFileTracker}.
+     * @param fileDescriptor The FileDescriptor of the misplaced file.
+     * @return <i>true</i> if the file is queued, possibly already, <i>false</i> if the queue is full.
+     */
+    public boolean enqueue(FileDescriptor fileDescriptor) {
+        misplacedFileTracker.record(fileDescriptor.getId());
+        if (!pending.add(fileDescriptor.getId())) {
+            deduplicated.increment();
+            return true;
+        }
+
+        try {
+            pool.execute(() -> relocate(fileDescriptor));
+            enqueued.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(fileDescriptor.getId());
+            rejected.increment();
+            log.debug("Relocation queue is full, leaving {} where it is", fileDescriptor.getPath());
+            return false;
+        }
+    }
+
+    /**
+     * Gets the statistics of the queue.
+     * @return The current statistics.
+     */
+    public RelocationQueueStatistics getStatistics() {
+        var currentPool = pool;
+        return new RelocationQueueStatistics(
+            currentPool != null,
+            configurationService.getRelocationQueueCapacity(),
+            currentPool == null ? 0 : currentPool.getQueue().size(),
+            currentPool == null ? 0 : currentPool.getActiveCount(),
+            enqueued.sum(),
+            deduplicated.sum(),
+            rejected.sum(),
+            relocated.sum(),
+            skipped.sum(),
+            failed.sum());
+    }
+
+    private void relocate(FileDescriptor fileDescriptor) {
+        LongAdder outcome;
+        try {
+            outcome = fileDistributorService.relocate(fileDescriptor) ? relocated : skipped;
+        } catch (RuntimeException e) {
+            outcome = failed;
+            log.warn("Error relocating file {}", fileDescriptor.getId(), e);
+        } finally {
+            pending.remove(fileDescriptor.getId());
+        }
+        outcome.increment();
+    }
+
+}
@@ -0,0 +1,28 @@
+package dk.runerne.fileserver.filehandling;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * <p>This controller handles HTTP requests for inspecting the relocation queue.</p>
+ * <p>The base path for all endpoints in this controller is configured via the 'api.base-path' property.</p>
+ * <p>The class implements the controller level and forwards all valid requests to the appropriate methods in {@link RelocationQueue}</p>.
+ */
+@RestController
+@RequestMapping("${api.base-path}/relocation-queue")
+public class RelocationQueueController {
+
+    @Autowired private RelocationQueue relocationQueue;
+
+    /**
+     * Gets the statistics of the relocation queue.
+     * @return the statistics of the queue.
+     */
+    @GetMapping("/statistics")
+    public RelocationQueueStatistics getStatistics() {
+        return relocationQueue.getStatistics();
+    }
+
+}
@@ -0,0 +1,41 @@
+package dk.runerne.fileserver.filehandling;
+
+import lombok.Data;
+
+/**
+ * Statistics of the {@link RelocationQueue}. The counters are accumulated since the application was started.
+ */
+@Data
+public class RelocationQueueStatistics {
+
+    /** Whether the queue is enabled. */
+    private final boolean enabled;
+
+    /** The maximum number of files waiting to be moved. */
+    private final int capacity;
+
+    /** The number of files currently waiting to be moved. */
+    private final int queued;
+
+    /** The number of files currently being moved. */
+    private final int active;
+
+    /** The number of files queued. */
+    private final long enqueued;
+
+    /** The number of files found while they were already queued. */
+    private final long deduplicated;
+
+    /** The number of files not queued because the queue was full. */
+    private final long rejected;
+
+    /** The number of files moved to the requested depth, or whose misplaced copy was deleted because a more recent copy was at the requested depth. */
+    private final long relocated;
+
+    /** The number of files left where they were, because they had been moved or deleted since they were queued, or files were being migrated. */
+    private final long skipped;
+
+    /** The number of files that could not be moved. */
+    private final long failed;
+
+}
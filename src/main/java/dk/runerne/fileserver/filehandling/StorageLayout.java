@@ -0,0 +1,45 @@
+package dk.runerne.fileserver.filehandling;
+
+import java.util.UUID;
+
+/**
+ * <p>Determines the folders in which a file is stored.</p>
+ * <p>A file stored at depth <i>n</i> is located in <i>n</i> nested folders below the data root folder. The name of each folder is a segment of
+ * {@link #getSegmentLength() segment length} characters, taken in order from the {@link #getFolderNames(UUID) folder names} of the UUID of the file. The
+ * number of different folder names on each level is the {@link #getFanOut() fan-out} of the layout.</p>
+ * <p>The layout of a data folder must not be changed once files have been stored in it, since the files would then be looked for in other folders.</p>
+ */
+public interface StorageLayout {
+
+    /**
+     * The layout used if nothing else is configured: one URL-safe Base64 character of the SHA-256 hash of the string representation of the UUID per level.
+     */
+    StorageLayout DEFAULT = new HashedStorageLayout(HashedStorageLayout.Encoding.BASE64, 1, HashedStorageLayout.HashInput.STRING);
+
+    /**
+     * Gets the names of the folders of all levels for a file, concatenated. The characters are ASCII characters, one byte each. The array must not be
+     * modified.
+     * @param id The UUID of the file.
+     * @return The folder names, at least {@link #getMaxDepth()} times {@link #getSegmentLength()} characters long.
+     */
+    byte[] getFolderNames(UUID id);
+
+    /**
+     * Gets the number of characters in the name of a folder.
+     * @return The segment length.
+     */
+    int getSegmentLength();
+
+    /**
+     * Gets the largest depth at which files can be stored. A larger requested file depth is rejected.
+     * @return The maximum depth.
+     */
+    int getMaxDepth();
+
+    /**
+     * Gets the number of different folder names on each level.
+     * @return The fan-out.
+     */
+    long getFanOut();
+
+}
@@ -0,0 +1,260 @@
+package dk.runerne.fileserver.filehandling;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>An upload session, persisted in the upload folder so an upload can be resumed after the application has been restarted.</p>
+ * <p>A session is made of three files named by its ID: the <i>.properties</i> file holds the size of the file and of its chunks, the <i>.data</i> file is the
+ * staging file the chunks are written into at their positions, and the <i>.chunks</i> file is a log of the numbers of the received chunks, each as a 4 byte
+ * big-endian integer. A chunk is logged only when it has been completely written, so a chunk that was being written when the application stopped is
+ * uploaded again.</p>
+ * <p>Chunks are written under the read lock of the session, so they are written in parallel, while the session is committed or deleted under the write
+ * lock.</p>
+ */
+final class UploadSession {
+
+    private static final String PROPERTIES_SUFFIX = ".properties";
+    private static final String DATA_SUFFIX = ".data";
+    private static final String CHUNKS_SUFFIX = ".chunks";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> COPY_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(COPY_BUFFER_SIZE));
+
+    private static final String SIZE = "size";
+    private static final String CHUNK_SIZE = "chunkSize";
+
+    private final UUID id;
+    private final long size;
+    private final long chunkSize;
+    private final int numberOfChunks;
+    private final Path folderPath;
+    private final BitSet receivedChunks = new BitSet();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile long lastActivityMillis;
+    private volatile boolean closed;
+
+    private UploadSession(UUID id, long size, long chunkSize, Path folderPath, long lastActivityMillis) {
+        this.id = id;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.numberOfChunks = (int) ((size + chunkSize - 1) / chunkSize);
+        this.folderPath = folderPath;
+        this.lastActivityMillis = lastActivityMillis;
+    }
+
+    /**
+     * Creates a new session, and its files.
+     * @param folderPath The upload folder.
+     * @param size The size in bytes of the file to upload.
+     * @param chunkSize The size in bytes of every chunk but the last.
+     * @return The new session.
+     * @throws IllegalArgumentException If a size is invalid, or the file has too many chunks.
+     * @throws IOException If an I/O error occurs creating the files.
+     */
+    static UploadSession create(Path folderPath, long size, long chunkSize) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size: " + size);
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        if ((size + chunkSize - 1) / chunkSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many chunks of " + chunkSize + " bytes for a file of " + size + " bytes");
+        }
+
+        var session = new UploadSession(UUID.randomUUID(), size, chunkSize, folderPath, System.currentTimeMillis());
+        Files.createDirectories(folderPath);
+        Files.createFile(session.getDataPath());
+        Files.createFile(session.getChunksPath());
+        session.saveProperties();
+        return session;
+    }
+
+    /**
+     * Reads a session created by {@link #create(Path, long, long)}.
+     * @param propertiesPath The path of the <i>.properties</i> file of the session.
+     * @return The session.
+     * @throws IOException If an I/O error occurs, or if the files of the session are invalid.
+     */
+    static UploadSession load(Path propertiesPath) throws IOException {
+        var properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(propertiesPath)) {
+            properties.load(reader);
+        }
+
+        var fileName = propertiesPath.getFileName().toString();
+        UploadSession session;
+        try {
+            var id = UUID.fromString(fileName.substring(0, fileName.length() - PROPERTIES_SUFFIX.length()));
+            var size = Long.parseLong(properties.getProperty(SIZE));
+            var chunkSize = Long.parseLong(properties.getProperty(CHUNK_SIZE));
+            session = new UploadSession(id, size, chunkSize, propertiesPath.getParent(), 0);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid upload session " + propertiesPath, e);
+        }
+
+        var chunks = ByteBuffer.wrap(Files.readAllBytes(session.getChunksPath()));
+        while (chunks.remaining() >= Integer.BYTES) {
+            var chunk = chunks.getInt();
+            if (chunk >= 0 && chunk < session.numberOfChunks) {
+                session.receivedChunks.set(chunk);
+            }
+        }
+        session.lastActivityMillis = Math.max(Files.getLastModifiedTime(propertiesPath).toMillis(),
+                                              Files.getLastModifiedTime(session.getChunksPath()).toMillis());
+        return session;
+    }
+
+    /**
+     * Checks whether the given path is the <i>.properties</i> file of a session.
+     * @param path The path to check.
+     * @return <i>true</i> if the file name ends with the suffix of the <i>.properties</i> file.
+     */
+    static boolean isPropertiesFile(Path path) {
+        return path.getFileName().toString().endsWith(PROPERTIES_SUFFIX);
+    }
+
+    UUID getId() {
+        return id;
+    }
+
+    ReadWriteLock getLock() {
+        return lock;
+    }
+
+    Path getDataPath() {
+        return folderPath.resolve(id + DATA_SUFFIX);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    long getLastActivityMillis() {
+        return lastActivityMillis;
+    }
+
+    /**
+     * Writes a chunk into the staging file at its position. Must be called under the read lock.
+     * @param chunk The number of the chunk.
+     * @param source The channel to read the chunk from. It must hold exactly the bytes of the chunk.
+     * @param force Whether the chunk is forced to the storage device before it is logged as received.
+     * @throws IllegalArgumentException If the chunk number is out of range, or the source does not hold the size of the chunk.
+     * @throws IOException If an I/O error occurs reading the source or writing the chunk.
+     */
+    void writeChunk(int chunk, ReadableByteChannel source, boolean force) throws IOException {
+        if (chunk < 0 || chunk >= numberOfChunks) {
+            throw new IllegalArgumentException("Chunk " + chunk + " is not between 0 and " + (numberOfChunks - 1));
+        }
+
+        lastActivityMillis = System.currentTimeMillis();
+        var position = chunk * chunkSize;
+        var length = Math.min(chunkSize, size - position);
+        var buffer = COPY_BUFFER.get();
+        try (var channel = FileChannel.open(getDataPath(), StandardOpenOption.WRITE)) {
+            long written = 0;
+            while (written < length && source.read(buffer.clear().limit((int) Math.min(COPY_BUFFER_SIZE, length - written))) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer, position + written);
+                }
+            }
+            if (written < length) {
+                throw new IllegalArgumentException("Chunk " + chunk + " is " + written + " bytes, not " + length);
+            }
+            if (source.read(buffer.clear().limit(1)) >= 0) {
+                throw new IllegalArgumentException("Chunk " + chunk + " is longer than " + length + " bytes");
+            }
+            if (force) {
+                channel.force(false);
+            }
+        }
+        logReceived(chunk);
+    }
+
+    /**
+     * Checks whether every chunk has been received.
+     * @return <i>true</i> if the upload is complete.
+     */
+    synchronized boolean isComplete() {
+        return receivedChunks.cardinality() == numberOfChunks;
+    }
+
+    /**
+     * Gets the state of the session.
+     * @param timeoutMillis The time after the last activity the session is deleted.
+     * @return The state of the session.
+     */
+    synchronized UploadSessionStatus getStatus(long timeoutMillis) {
+        List<Integer> received = receivedChunks.stream().boxed().toList();
+        return new UploadSessionStatus(id, size, chunkSize, numberOfChunks, received, Instant.ofEpochMilli(lastActivityMillis + timeoutMillis));
+    }
+
+    /**
+     * Marks the session as closed and deletes its files. The staging file may already have been moved by a commit. Must be called under the write lock.
+     * @throws IOException If an I/O error occurs deleting the files.
+     */
+    void delete() throws IOException {
+        closed = true;
+        Files.deleteIfExists(getDataPath());
+        Files.deleteIfExists(getChunksPath());
+        Files.deleteIfExists(getPropertiesPath());
+    }
+
+    private synchronized void logReceived(int chunk) throws IOException {
+        if (receivedChunks.get(chunk)) {
+            return;
+        }
+
+        try (var channel = FileChannel.open(getChunksPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            var entry = ByteBuffer.allocate(Integer.BYTES).putInt(chunk).flip();
+            while (entry.hasRemaining()) {
+                channel.write(entry);
+            }
+        }
+        receivedChunks.set(chunk);
+    }
+
+    private void saveProperties() throws IOException {
+        var properties = new Properties();
+        properties.setProperty(SIZE, Long.toString(size));
+        properties.setProperty(CHUNK_SIZE, Long.toString(chunkSize));
+
+        var path = getPropertiesPath();
+        var temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporaryPath)) {
+            properties.store(writer, "Upload session");
+        }
+        try {
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path getPropertiesPath() {
+        return folderPath.resolve(id + PROPERTIES_SUFFIX);
+    }
+
+    private Path getChunksPath() {
+        return folderPath.resolve(id + CHUNKS_SUFFIX);
+    }
+
+}
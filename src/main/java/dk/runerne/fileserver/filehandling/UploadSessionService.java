@@ -0,0 +1,283 @@
+package dk.runerne.fileserver.filehandling;
+
+import dk.runerne.fileserver.ConfigurationService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Uploads large files in chunks, so an upload interrupted by a network error is resumed rather than started over.</p>
+ * <p>A client {@link #open(long, Long) opens} a session for a file of a given size, which is split into numbered chunks of the same size, except the last.
+ * The chunks are {@link #writeChunk(UUID, int, InputStream) uploaded} in any order, also in parallel, and each is written at its position in a staging file
+ * in the upload folder. The client can {@link #getStatus(UUID) ask} which chunks have been received, and upload the missing chunks again. When every chunk has
+ * been received, the session is {@link #commit(UUID) committed}: the staging file is renamed into place as a new file, see
+ * {@link FileService#create(Path)}, so the data is not copied.</p>
+ * <p>Sessions are persisted, see {@link UploadSession}, and survive a restart of the application. A session that has not received any chunks for the
+ * configured timeout is considered abandoned, and is deleted by a background thread.</p>
+ * <p>The sessions are configured with the keys 'app.upload-subfolder', 'app.upload-chunk-size' and 'app.upload-session-timeout-minutes'.</p>
+ */
+@Service
+@Slf4j
+public class UploadSessionService {
+
+    /**
+     * How often abandoned sessions are looked for.
+     */
+    private static final long COLLECT_INTERVAL_MINUTES = 1;
+
+    @Autowired private ConfigurationService configurationService;
+    @Autowired private FileService fileService;
+    @Autowired private AtomicFileWriter atomicFileWriter;
+
+    private final Map<UUID, UploadSession> sessions = new ConcurrentHashMap<>();
+    private ScheduledThreadPoolExecutor collector;
+
+    /**
+     * Loads the sessions persisted in the upload folder, and starts the thread deleting abandoned sessions. Files in the upload folder that do not belong to a
+     * valid session are deleted.
+     */
+    @PostConstruct
+    public void init() {
+        loadSessions();
+
+        collector = new ScheduledThreadPoolExecutor(1, runnable -> {
+            var thread = new Thread(runnable, "upload-session-collector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        collector.scheduleWithFixedDelay(this::collectAbandoned, COLLECT_INTERVAL_MINUTES, COLLECT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stops the thread deleting abandoned sessions. The sessions are kept, and can be resumed when the application is started again.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (collector != null) {
+            collector.shutdownNow();
+        }
+    }
+
+    /**
+     * Opens a session for uploading a file.
+     * @param size The size in bytes of the file.
+     * @param chunkSize The size in bytes of every chunk but the last, or <i>null</i> to use the configured chunk size.
+     * @return The state of the new session.
+     * @throws IllegalArgumentException If a size is invalid.
+     */
+    public UploadSessionStatus open(long size, Long chunkSize) {
+        try {
+            var session = UploadSession.create(configurationService.getUploadRootFolderPath(), size,
+                                               chunkSize != null ? chunkSize : configurationService.getUploadChunkSize());
+            sessions.put(session.getId(), session);
+            log.debug("Opened upload session {} for {} bytes", session.getId(), size);
+            return session.getStatus(getTimeoutMillis());
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening upload session", e);
+        }
+    }
+
+    /**
+     * Gets the state of a session, including the chunks received.
+     * @param sessionId The ID of the session.
+     * @return The state of the session.
+     * @throws FileNotFoundException If the session does not exist.
+     */
+    public UploadSessionStatus getStatus(UUID sessionId) throws FileNotFoundException {
+        return getSession(sessionId).getStatus(getTimeoutMillis());
+    }
+
+    /**
+     * Writes a chunk of the file of a session. Chunks of the same session can be written in parallel. A chunk that has already been received is written
+     * again.
+     * @param sessionId The ID of the session.
+     * @param chunk The number of the chunk, starting at 0.
+     * @param inputStream The content of the chunk. It must hold exactly the size of the chunk. It is read until it is exhausted, but it is not closed.
+     * @throws FileNotFoundException If the session does not exist.
+     * @throws IllegalArgumentException If the chunk number is out of range, or the stream does not hold the size of the chunk. The chunk is not received.
+     */
+    public void writeChunk(UUID sessionId, int chunk, InputStream inputStream) throws FileNotFoundException {
+        var session = getSession(sessionId);
+        var lock = session.getLock().readLock();
+        lock.lock();
+        try {
+            ensureOpen(session);
+            session.writeChunk(chunk, Channels.newChannel(inputStream), atomicFileWriter.getWriteDurability() != WriteDurability.NONE);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing chunk " + chunk + " of upload session " + sessionId, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Creates the file of a session, when every chunk has been received, and deletes the session.
+     * @param sessionId The ID of the session.
+     * @return The UUID of the created file.
+     * @throws FileNotFoundException If the session does not exist.
+     * @throws IllegalStateException If chunks are missing. The session is kept.
+     */
+    public UUID commit(UUID sessionId) throws FileNotFoundException {
+        var session = getSession(sessionId);
+        var lock = session.getLock().writeLock();
+        lock.lock();
+        try {
+            ensureOpen(session);
+            if (!session.isComplete()) {
+                throw new IllegalStateException("Upload session " + sessionId + " has missing chunks");
+            }
+
+            try {
+                var id = fileService.create(session.getDataPath());
+                log.debug("Committed upload session {} as file {}", sessionId, id);
+                return id;
+            } finally {
+                // The staging file is gone once it has been adopted, or discarded by a failed commit, so the session cannot be committed again
+                if (!Files.exists(session.getDataPath())) {
+                    delete(session);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes a session and the chunks received.
+     * @param sessionId The ID of the session.
+     * @throws FileNotFoundException If the session does not exist.
+     */
+    public void abort(UUID sessionId) throws FileNotFoundException {
+        var session = getSession(sessionId);
+        var lock = session.getLock().writeLock();
+        lock.lock();
+        try {
+            ensureOpen(session);
+            delete(session);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the sessions that have not received any chunks for the configured timeout. A session that is being written or committed is skipped.
+     * @return The number of sessions deleted.
+     */
+    public int collectAbandoned() {
+        var expired = System.currentTimeMillis() - getTimeoutMillis();
+        var deleted = 0;
+        for (var session : sessions.values()) {
+            if (session.getLastActivityMillis() >= expired) {
+                continue;
+            }
+
+            var lock = session.getLock().writeLock();
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (!session.isClosed() && session.getLastActivityMillis() < expired) {
+                    delete(session);
+                    deleted++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (deleted > 0) {
+            log.info("Deleted {} abandoned upload sessions", deleted);
+        }
+        return deleted;
+    }
+
+    private UploadSession getSession(UUID sessionId) throws FileNotFoundException {
+        var session = sessions.get(sessionId);
+        if (session == null) {
+            throw new FileNotFoundException("Upload session with ID " + sessionId + " does not exist.");
+        }
+        return session;
+    }
+
+    /**
+     * Checks that the session has not been committed or deleted since it was looked up.
+     */
+    private static void ensureOpen(UploadSession session) throws FileNotFoundException {
+        if (session.isClosed()) {
+            throw new FileNotFoundException("Upload session with ID " + session.getId() + " does not exist.");
+        }
+    }
+
+    private void delete(UploadSession session) {
+        sessions.remove(session.getId());
+        try {
+            session.delete();
+        } catch (IOException e) {
+            log.warn("Error deleting upload session " + session.getId(), e);
+        }
+    }
+
+    private long getTimeoutMillis() {
+        return TimeUnit.MINUTES.toMillis(configurationService.getUploadSessionTimeoutMinutes());
+    }
+
+    private void loadSessions() {
+        var folderPath = configurationService.getUploadRootFolderPath();
+        if (!Files.isDirectory(folderPath)) {
+            return;
+        }
+
+        try (var paths = Files.list(folderPath)) {
+            paths.filter(UploadSession::isPropertiesFile).forEach(path -> {
+                try {
+                    var session = UploadSession.load(path);
+                    sessions.put(session.getId(), session);
+                } catch (IOException e) {
+                    log.warn("Ignoring invalid upload session {}: {}", path, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading upload sessions from " + folderPath, e);
+        }
+
+        try (var paths = Files.list(folderPath)) {
+            paths.filter(path -> !isSessionFile(path)).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.warn("Error deleting {}", path, e);
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Error deleting files of invalid upload sessions from {}", folderPath, e);
+        }
+        log.info("Loaded {} upload sessions", sessions.size());
+    }
+
+    /**
+     * Checks whether the file belongs to a loaded session.
+     */
+    private boolean isSessionFile(Path path) {
+        var fileName = path.getFileName().toString();
+        var dot = fileName.indexOf('.');
+        try {
+            return dot > 0 && sessions.containsKey(UUID.fromString(fileName.substring(0, dot)));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+}
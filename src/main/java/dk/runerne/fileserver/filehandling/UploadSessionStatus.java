@@ -0,0 +1,41 @@
+package dk.runerne.fileserver.filehandling;
+
+import lombok.Data;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The state of an upload session, see {@link UploadSessionService}.
+ */
+@Data
+public class UploadSessionStatus {
+
+    /** The ID of the session. */
+    private final UUID id;
+
+    /** The size in bytes of the file being uploaded. */
+    private final long size;
+
+    /** The size in bytes of every chunk but the last, which holds the rest of the file. */
+    private final long chunkSize;
+
+    /** The number of chunks of the file. */
+    private final int numberOfChunks;
+
+    /** The numbers of the chunks that have been received, in ascending order. */
+    private final List<Integer> receivedChunks;
+
+    /** The time the session is deleted, if no more chunks are received. */
+    private final Instant expiresAt;
+
+    /**
+     * Checks whether every chunk has been received, so the session can be committed.
+     * @return <i>true</i> if the upload is complete.
+     */
+    public boolean isComplete() {
+        return receivedChunks.size() == numberOfChunks;
+    }
+
+}
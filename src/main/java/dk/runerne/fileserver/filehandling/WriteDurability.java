@@ -0,0 +1,25 @@
+package dk.runerne.fileserver.filehandling;
+
+/**
+ * Enum representing how durably the {@link AtomicFileWriter} writes files, i.e. whether a written file survives a crash of the operating system or a power
+ * failure.
+ */
+public enum WriteDurability {
+    /**
+     * The data is left in the operating system's cache, which writes it to the storage device later. A crash may lose the most recent writes, but never
+     * leaves a partly written file.
+     */
+    NONE,
+
+    /**
+     * Each write forces the file and its folder to the storage device before it returns.
+     */
+    FSYNC,
+
+    /**
+     * The writes arriving within a short interval are forced to the storage device together, and each write returns when its batch has been forced. A write
+     * waits up to the interval longer, but concurrent writes share the cost of forcing the data.
+     */
+    GROUP_COMMIT,
+
+}
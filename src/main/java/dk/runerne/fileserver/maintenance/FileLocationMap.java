@@ -0,0 +1,163 @@
+package dk.runerne.fileserver.maintenance;
+
+import java.util.UUID;
+
+/**
+ * <p>A compact map from the UUID of a file to the set of depths at which copies of the file have been found.</p>
+ * <p>The map is filled by a traversal of the data folder, so it must hold millions of entries without the overhead of boxed keys and entry objects. The
+ * entries are held in primitive arrays with open addressing: two longs for the UUID and one long holding the depths as a bit set, i.e. 24 bytes per
+ * slot.</p>
+ * <p>The map is divided into {@link #SEGMENTS} segments by the hash of the UUID. Each segment is locked separately, so the threads of a traversal rarely
+ * wait for each other, and the segments can be processed in parallel afterwards.</p>
+ */
+class FileLocationMap {
+
+    /**
+     * The number of bits of the hash of a UUID that select its segment.
+     */
+    private static final int SEGMENT_BITS = 6;
+
+    /**
+     * The number of segments.
+     */
+    static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+    /**
+     * The largest depth that can be recorded, limited by the number of bits in the bit set of depths.
+     */
+    static final int MAX_DEPTH = Long.SIZE - 1;
+
+    /**
+     * Receives the entries of the map.
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+
+        /**
+         * Receives an entry.
+         * @param id     The UUID of the file.
+         * @param depths The depths at which copies of the file were found. Bit <i>n</i> is set if a copy was found at depth <i>n</i>.
+         */
+        void accept(UUID id, long depths);
+
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    FileLocationMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Records that a copy of a file was found at a depth.
+     * @param id    The UUID of the file.
+     * @param depth The depth, between 0 and {@link #MAX_DEPTH}.
+     */
+    void add(UUID id, int depth) {
+        if (depth < 0 || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Depth must be between 0 and " + MAX_DEPTH);
+        }
+
+        var msb = id.getMostSignificantBits();
+        var lsb = id.getLeastSignificantBits();
+        var hash = hash(msb, lsb);
+        segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))].add(msb, lsb, hash, 1L << depth);
+    }
+
+    /**
+     * Gets the number of files in the map.
+     * @return The number of files.
+     */
+    long size() {
+        long size = 0;
+        for (var segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Passes every entry of a segment to a consumer. The segment must not be changed while this is in progress.
+     * @param segment  The index of the segment, between 0 and {@link #SEGMENTS} - 1.
+     * @param consumer The consumer.
+     */
+    void forEach(int segment, EntryConsumer consumer) {
+        segments[segment].forEach(consumer);
+    }
+
+    private static long hash(long msb, long lsb) {
+        var value = msb ^ Long.rotateLeft(lsb, 32);
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * One segment of the map: a hash table with linear probing, which doubles its capacity when it is more than 2/3 full. An empty slot has no depths.
+     */
+    private static final class Segment {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        private long[] mostSignificantBits = new long[INITIAL_CAPACITY];
+        private long[] leastSignificantBits = new long[INITIAL_CAPACITY];
+        private long[] depths = new long[INITIAL_CAPACITY];
+        private int size = 0;
+
+        synchronized void add(long msb, long lsb, long hash, long depth) {
+            var mask = depths.length - 1;
+            var slot = (int) hash & mask;
+            while (depths[slot] != 0) {
+                if (mostSignificantBits[slot] == msb && leastSignificantBits[slot] == lsb) {
+                    depths[slot] |= depth;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            mostSignificantBits[slot] = msb;
+            leastSignificantBits[slot] = lsb;
+            depths[slot] = depth;
+            if (++size * 3 > depths.length * 2) {
+                grow();
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void forEach(EntryConsumer consumer) {
+            for (int slot = 0; slot < depths.length; slot++) {
+                if (depths[slot] != 0) {
+                    consumer.accept(new UUID(mostSignificantBits[slot], leastSignificantBits[slot]), depths[slot]);
+                }
+            }
+        }
+
+        private void grow() {
+            var oldMostSignificantBits = mostSignificantBits;
+            var oldLeastSignificantBits = leastSignificantBits;
+            var oldDepths = depths;
+            mostSignificantBits = new long[oldDepths.length * 2];
+            leastSignificantBits = new long[oldDepths.length * 2];
+            depths = new long[oldDepths.length * 2];
+            var mask = depths.length - 1;
+            for (int i = 0; i < oldDepths.length; i++) {
+                if (oldDepths[i] != 0) {
+                    var slot = (int) hash(oldMostSignificantBits[i], oldLeastSignificantBits[i]) & mask;
+                    while (depths[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    mostSignificantBits[slot] = oldMostSignificantBits[i];
+                    leastSignificantBits[slot] = oldLeastSignificantBits[i];
+                    depths[slot] = oldDepths[i];
+                }
+            }
+        }
+
+    }
+
+}
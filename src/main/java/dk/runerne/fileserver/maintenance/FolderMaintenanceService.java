@@ -2,9 +2,16 @@ package dk.runerne.fileserver.maintenance;
 
 import dk.runerne.common.UUIDUtil;
 import dk.runerne.fileserver.ConfigurationService;
+import dk.runerne.fileserver.FileDepthChangedEvent;
 import dk.runerne.fileserver.filehandling.FileDescriptor;
+import dk.runerne.fileserver.filehandling.FileLocationIndex;
+import dk.runerne.fileserver.filehandling.FileLocks;
+import dk.runerne.fileserver.filehandling.HotFileCache;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
@@ -12,8 +19,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 /**
@@ -24,12 +33,17 @@ import java.util.stream.Collectors;
 public class FolderMaintenanceService {
 
     @Autowired private ConfigurationService configurationService;
+    @Autowired private HotFileCache hotFileCache;
+    @Autowired private FileLocationIndex fileLocationIndex;
+    @Autowired private MaintenanceThrottle maintenanceThrottle;
+    @Autowired private FileLocks fileLocks;
 
     private Path dataRootFolder;
-    private Integer requestedFileDepth;
+    private volatile Integer requestedFileDepth;
 
     /**
-     * Maintains the file at the specified path by ensuring it is at the correct depth and removing duplicates.
+     * Maintains the file at the specified path by ensuring it is at the correct depth and removing duplicates. The copies of the file are found by probing
+     * the depths at which the file can be stored. A maintenance job finds them by a single traversal instead, see {@link Reconciliation}.
      *
      * @param filePath the path of the file to maintain.
      * @param depth    the current depth of the file.
@@ -44,24 +58,110 @@ public class FolderMaintenanceService {
             return;
         }
 
+        if (depth > FileLocationMap.MAX_DEPTH) {
+            log.warn(MessageFormat.format("Skipping misplaced file deeper than {0} levels: {1}", FileLocationMap.MAX_DEPTH, filePath));
+            return;
+        }
+
+        var id = UUID.fromString(filePath.getFileName().toString());
+        reconcile(id, findDepths(id) | 1L << depth);
+    }
+
+    /**
+     * Moves the most recent copy of a file to the requested depth, and deletes the other copies. The move waits for the {@link MaintenanceThrottle}. The
+     * copies are moved and deleted under the write lock of the file, see {@link FileLocks}, but the lock is not held while waiting for the throttle.
+     *
+     * @param id     the UUID of the file.
+     * @param depths the depths at which copies of the file were found, as a bit set in which bit <i>n</i> is set if a copy was found at depth <i>n</i>. The
+     *               requested depth is always checked, whether its bit is set or not.
+     */
+    public void reconcile(UUID id, long depths) {
+        var requestedDepth = getRequestedFileDepth();
+        var target = FileDescriptor.fromUUIDAndDepth(getDataRootFolder(), configurationService.getStorageLayout(), id, requestedDepth);
         try {
-            var fileBeingProcessed = FileDescriptor.fromPath(getDataRootFolder(), filePath);
-            var candidates = findFilesByNameInHierarchy(getDataRootFolder(), filePath.getFileName().toString());
-            var mostRecentCandidate = getMostRecentFileDescritptor(candidates);
-            var targetPath = FileDescriptor.fromUUIDAndDepth(getDataRootFolder(), fileBeingProcessed.getId(), getRequestedFileDepth());
-            moveToRequestedFileDepth(mostRecentCandidate, targetPath);
-            var filesToDelete = makeSublistExcluding(candidates, targetPath);
-            deleteFilesAndPurgeFolders(filesToDelete);
+            if (maintenanceThrottle.isLimitingBytes()) {
+                var candidates = findCandidates(target, depths);
+                if (candidates.isEmpty()) {
+                    return; // Nothing to move or delete
+                }
+                var mostRecentCandidate = getMostRecentFileDescritptor(candidates);
+                if (!mostRecentCandidate.equals(target)) {
+                    maintenanceThrottle.acquireBytes(Files.size(mostRecentCandidate.getPath()));
+                }
+            }
+
+            var lock = fileLocks.writeLock(id);
+            lock.lock();
+            try {
+                // Found under the lock, since the file may have been updated, moved or deleted while waiting for the throttle or the lock
+                var candidates = findCandidates(target, depths);
+                if (candidates.isEmpty()) {
+                    return; // Nothing to move or delete
+                }
+                var mostRecentCandidate = getMostRecentFileDescritptor(candidates);
+                moveToRequestedFileDepth(mostRecentCandidate, target);
+                var filesToDelete = makeSublistExcluding(candidates, target);
+                fileLocationIndex.put(id, requestedDepth);
+                deleteFilesAndPurgeFolders(filesToDelete);
+                hotFileCache.invalidate(id);
+            } finally {
+                lock.unlock();
+            }
         } catch (IOException e) {
-            log.error(MessageFormat.format("IOException while processing misplaced file: {0}", filePath), e);
+            log.error(MessageFormat.format("IOException while processing misplaced file: {0}", id), e);
         }
     }
 
-    private static List<FileDescriptor> findFilesByNameInHierarchy(Path rootFolder, String fileName) throws IOException {
-        return Files.walk(rootFolder)
-                   .filter(path -> Files.isRegularFile(path) && path.getFileName().toString().equals(fileName))
-                   .map(path -> FileDescriptor.fromPath(rootFolder, path))
-                   .collect(Collectors.toList());
+    /**
+     * Makes the maintenance move files to the new requested file depth.
+     *
+     * @param event the event describing the change.
+     */
+    @EventListener
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onFileDepthChanged(FileDepthChangedEvent event) {
+        requestedFileDepth = null;
+    }
+
+    /**
+     * Finds the copies of a file that exist at the requested depth and at the given depths.
+     * @return The copies, or an empty List if the only copy is at the requested depth.
+     */
+    private List<FileDescriptor> findCandidates(FileDescriptor target, long depths) {
+        var candidates = new ArrayList<FileDescriptor>();
+        if (target.fileExists()) {
+            candidates.add(target);
+        }
+        for (var remaining = depths; remaining != 0; remaining &= remaining - 1) {
+            var depth = Long.numberOfTrailingZeros(remaining);
+            if (depth != target.getDepth()) {
+                var candidate = target.toDepth(depth);
+                if (candidate.fileExists()) {
+                    candidates.add(candidate);
+                }
+            }
+        }
+
+        if (candidates.size() == 1 && candidates.get(0).equals(target)) {
+            candidates.clear();
+        }
+        return candidates;
+    }
+
+    private long findDepths(UUID id) {
+        var storageLayout = configurationService.getStorageLayout();
+        var maxDepth = Math.min(storageLayout.getMaxDepth(), FileLocationMap.MAX_DEPTH);
+        long depths = 0;
+        for (int depth = 0; depth <= maxDepth; depth++) {
+            var candidate = FileDescriptor.fromUUIDAndDepth(getDataRootFolder(), storageLayout, id, depth);
+            if (!candidate.folderExists()) {
+                break;
+            }
+            if (candidate.fileExists()) {
+                depths |= 1L << depth;
+            }
+        }
+        return depths;
     }
 
     private static FileDescriptor getMostRecentFileDescritptor(List<FileDescriptor> fileDescriptors) throws IOException {
@@ -108,9 +208,9 @@ public class FolderMaintenanceService {
 
     private void deleteEmptyFoldersUpwards(Path startFolder) throws IOException {
         Path currentFolder = startFolder;
-        while (currentFolder != null && !currentFolder.equals(dataRootFolder)) {
+        while (currentFolder != null && !currentFolder.equals(getDataRootFolder())) {
             try {
-                if (Files.list(currentFolder).findAny().isEmpty()) {
+                if (isEmptyFolder(currentFolder)) {
                     log.debug(MessageFormat.format("Deleting empty folder: {0}", currentFolder));
                     Files.delete(currentFolder);
                     currentFolder = currentFolder.getParent();
@@ -124,6 +224,12 @@ public class FolderMaintenanceService {
         }
     }
 
+    private static boolean isEmptyFolder(Path folder) throws IOException {
+        try (var entries = Files.list(folder)) {
+            return entries.findAny().isEmpty();
+        }
+    }
+
     private Path getDataRootFolder() {
         if (dataRootFolder == null) {
             dataRootFolder = configurationService.getDataRootFolderPath();
@@ -132,10 +238,12 @@ public class FolderMaintenanceService {
     }
 
     private int getRequestedFileDepth() {
-        if (requestedFileDepth == null) {
-            requestedFileDepth = configurationService.getRequestedFileDepth();
+        var depth = requestedFileDepth;
+        if (depth == null) {
+            depth = configurationService.getRequestedFileDepth();
+            requestedFileDepth = depth;
         }
-        return requestedFileDepth;
+        return depth;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,203 @@
+package dk.runerne.fileserver.maintenance;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>The progress of a maintenance job, persisted in the config folder so an interrupted job can be resumed where it stopped.</p>
+ * <p>A job processes the data folder one top-level folder, a <i>bucket</i>, at a time. The folders of a file are named by segments taken in order from the
+ * same {@link dk.runerne.fileserver.filehandling.StorageLayout#getFolderNames(java.util.UUID) folder names} at every depth, so every copy of a file below
+ * the top level is in the same bucket, and a bucket can be traversed and reconciled on its own. The files stored directly in the data folder are processed
+ * before the buckets.</p>
+ * <p>The checkpoint holds the names of the completed buckets, whether the files in the data folder have been processed, and counters of the work done. It is
+ * written when each bucket has completed, and is only valid for the requested file depth it was made for.</p>
+ */
+@Slf4j
+class MaintenanceCheckpoint {
+
+    private static final String REQUESTED_FILE_DEPTH = "requestedFileDepth";
+    private static final String START_TIME = "startTime";
+    private static final String ROOT_FILES_COMPLETED = "rootFilesCompleted";
+    private static final String COMPLETED_BUCKETS = "completedBuckets";
+    private static final String NUMBER_PROCESSED = "numberProcessed";
+    private static final String FILES_RECONCILED = "filesReconciled";
+    private static final String FAILED_FILES = "failedFiles";
+
+    private final int requestedFileDepth;
+    private final Instant startTime;
+    private final Set<String> completedBuckets = new TreeSet<>();
+    private boolean rootFilesCompleted = false;
+    private long numberProcessed = 0;
+    private long filesReconciled = 0;
+    private long failedFiles = 0;
+
+    private MaintenanceCheckpoint(int requestedFileDepth, Instant startTime) {
+        this.requestedFileDepth = requestedFileDepth;
+        this.startTime = startTime;
+    }
+
+    /**
+     * Creates the checkpoint of a job that has not processed anything yet.
+     * @param requestedFileDepth The requested file depth the job moves files to.
+     * @return The new checkpoint.
+     */
+    static MaintenanceCheckpoint start(int requestedFileDepth) {
+        return new MaintenanceCheckpoint(requestedFileDepth, Instant.now());
+    }
+
+    /**
+     * Reads a checkpoint written by {@link #save(Path)}.
+     * @param path The path of the checkpoint file.
+     * @return The checkpoint, or an empty Optional if the file does not exist.
+     */
+    static Optional<MaintenanceCheckpoint> load(Path path) {
+        if (!Files.exists(path)) {
+            return Optional.empty();
+        }
+
+        var properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+            var checkpoint = new MaintenanceCheckpoint(
+                Integer.parseInt(properties.getProperty(REQUESTED_FILE_DEPTH)),
+                Instant.parse(properties.getProperty(START_TIME))
+            );
+            checkpoint.rootFilesCompleted = Boolean.parseBoolean(properties.getProperty(ROOT_FILES_COMPLETED));
+            Arrays.stream(properties.getProperty(COMPLETED_BUCKETS, "").split(","))
+                .filter(bucket -> !bucket.isEmpty())
+                .forEach(checkpoint.completedBuckets::add);
+            checkpoint.numberProcessed = Long.parseLong(properties.getProperty(NUMBER_PROCESSED, "0"));
+            checkpoint.filesReconciled = Long.parseLong(properties.getProperty(FILES_RECONCILED, "0"));
+            checkpoint.failedFiles = Long.parseLong(properties.getProperty(FAILED_FILES, "0"));
+            return Optional.of(checkpoint);
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException("Error reading maintenance checkpoint from " + path, e);
+        }
+    }
+
+    /**
+     * Deletes a checkpoint file, if it exists.
+     * @param path The path of the checkpoint file.
+     */
+    static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new RuntimeException("Error deleting maintenance checkpoint " + path, e);
+        }
+    }
+
+    /**
+     * Writes the checkpoint. It is written to a temporary file that is then moved in place, so a checkpoint that is being written when the application stops
+     * is never read.
+     * @param path The path of the checkpoint file.
+     */
+    synchronized void save(Path path) {
+        var properties = new Properties();
+        properties.setProperty(REQUESTED_FILE_DEPTH, Integer.toString(requestedFileDepth));
+        properties.setProperty(START_TIME, startTime.toString());
+        properties.setProperty(ROOT_FILES_COMPLETED, Boolean.toString(rootFilesCompleted));
+        properties.setProperty(COMPLETED_BUCKETS, String.join(",", completedBuckets));
+        properties.setProperty(NUMBER_PROCESSED, Long.toString(numberProcessed));
+        properties.setProperty(FILES_RECONCILED, Long.toString(filesReconciled));
+        properties.setProperty(FAILED_FILES, Long.toString(failedFiles));
+
+        var temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (Writer writer = Files.newBufferedWriter(temporaryPath)) {
+                properties.store(writer, "Maintenance job checkpoint");
+            }
+            try {
+                Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing maintenance checkpoint to " + path, e);
+        }
+    }
+
+    /**
+     * Records that the files in the data folder have been processed.
+     * @param processed  The number of files processed.
+     * @param reconciled The number of misplaced files reconciled.
+     * @param failed     The number of files that could not be reconciled.
+     */
+    synchronized void completeRootFiles(long processed, long reconciled, long failed) {
+        rootFilesCompleted = true;
+        addCounters(processed, reconciled, failed);
+    }
+
+    /**
+     * Records that a bucket has been traversed and its misplaced files reconciled.
+     * @param bucket     The name of the bucket.
+     * @param processed  The number of files and folders processed.
+     * @param reconciled The number of misplaced files reconciled.
+     * @param failed     The number of files that could not be reconciled.
+     */
+    synchronized void completeBucket(String bucket, long processed, long reconciled, long failed) {
+        completedBuckets.add(bucket);
+        addCounters(processed, reconciled, failed);
+    }
+
+    /**
+     * Checks whether the checkpoint was made by a job that has processed anything, i.e. resuming from it skips work.
+     * @return <i>true</i> if the files in the data folder or any bucket have been processed.
+     */
+    synchronized boolean hasProgress() {
+        return rootFilesCompleted || !completedBuckets.isEmpty();
+    }
+
+    synchronized boolean isRootFilesCompleted() {
+        return rootFilesCompleted;
+    }
+
+    synchronized boolean isBucketCompleted(String bucket) {
+        return completedBuckets.contains(bucket);
+    }
+
+    synchronized int getNumberOfCompletedBuckets() {
+        return completedBuckets.size();
+    }
+
+    int getRequestedFileDepth() {
+        return requestedFileDepth;
+    }
+
+    Instant getStartTime() {
+        return startTime;
+    }
+
+    synchronized long getNumberProcessed() {
+        return numberProcessed;
+    }
+
+    synchronized long getFilesReconciled() {
+        return filesReconciled;
+    }
+
+    synchronized long getFailedFiles() {
+        return failedFiles;
+    }
+
+    private void addCounters(long processed, long reconciled, long failed) {
+        numberProcessed += processed;
+        filesReconciled += reconciled;
+        failedFiles += failed;
+    }
+
+}
@@ -5,27 +5,32 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 /**
  * <p>This controller handles HTTP requests for managing maintenance jobs on the file server.</p>
  * <p>The base path for all endpoints in this controller is configured via the 'api.base-path' property.</p>
- * <p>The class implements the controller level and forwards all valid requests to the appropriate methods in {@link MaintenanceJobService}</p>.
+ * <p>The class implements the controller level and forwards all valid requests to the appropriate methods in {@link MaintenanceJobService} and
+ * {@link MaintenanceThrottle}</p>.
  */
 @RestController
 @RequestMapping("${api.base-path}/maintenance-job")
 public class MaintenanceJobController {
 
     @Autowired private MaintenanceJobService maintenanceJobService;
+    @Autowired private MaintenanceThrottle maintenanceThrottle;
 
     /**
      * Starts a maintenance job.
+     * @param resume whether to skip the parts of the data folder completed by an earlier job that was terminated or interrupted.
      * @return a ResponseEntity indicating the result of the operation.
      */
     @PostMapping("/start")
-    public ResponseEntity<String> start() {
-        return maintenanceJobService.startJob()
+    public ResponseEntity<String> start(@RequestParam(name = "resume", defaultValue = "false") boolean resume) {
+        return maintenanceJobService.startJob(resume)
                    ? ResponseEntity.ok("Maintenance job started successfully.")
                    : ResponseEntity.status(HttpStatus.CONFLICT).body("Maintenance job is already running. Please wait until it completes.");
     }
@@ -52,4 +57,38 @@ public class MaintenanceJobController {
         return maintenanceJobService.getJobStatus();
     }
 
-}
\ No newline at end of file
+    /**
+     * Gets the settings and the current state of the maintenance throttle.
+     * @return the status of the throttle.
+     */
+    @GetMapping("/throttle")
+    public MaintenanceThrottleStatus getThrottle() {
+        return maintenanceThrottle.getStatus();
+    }
+
+    /**
+     * Changes the settings of the maintenance throttle. Settings that are not given are left unchanged. The change applies to a running job at once.
+     * @param maxFilesPerSecond   the maximum number of files per second, or 0 for no limit.
+     * @param maxBytesPerSecond   the maximum number of bytes moved per second, or 0 for no limit.
+     * @param adaptive            whether to slow down when requests for files are slow or many are in progress.
+     * @param targetLatencyMillis the average latency in milliseconds of requests for files above which to slow down.
+     * @param maxInFlightRequests the number of requests for files in progress above which to slow down.
+     * @return a ResponseEntity with the new status of the throttle, or BAD_REQUEST if a setting is negative.
+     */
+    @PutMapping("/throttle")
+    public ResponseEntity<MaintenanceThrottleStatus> setThrottle(
+        @RequestParam(name = "maxFilesPerSecond", required = false) Long maxFilesPerSecond,
+        @RequestParam(name = "maxBytesPerSecond", required = false) Long maxBytesPerSecond,
+        @RequestParam(name = "adaptive", required = false) Boolean adaptive,
+        @RequestParam(name = "targetLatencyMillis", required = false) Long targetLatencyMillis,
+        @RequestParam(name = "maxInFlightRequests", required = false) Integer maxInFlightRequests
+    ) {
+        try {
+            maintenanceThrottle.update(maxFilesPerSecond, maxBytesPerSecond, adaptive, targetLatencyMillis, maxInFlightRequests);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(maintenanceThrottle.getStatus());
+    }
+
+}
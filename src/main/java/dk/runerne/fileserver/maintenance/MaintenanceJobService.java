@@ -1,69 +1,231 @@
 package dk.runerne.fileserver.maintenance;
 
+import dk.runerne.common.UUIDUtil;
 import dk.runerne.fileserver.ConfigurationService;
+import dk.runerne.fileserver.FileDepthChangedEvent;
+import dk.runerne.fileserver.filehandling.BlobStore;
+import dk.runerne.fileserver.filehandling.FileDescriptor;
+import dk.runerne.fileserver.filehandling.FileDistributorService;
+import dk.runerne.fileserver.filehandling.FileExistenceFilter;
+import dk.runerne.fileserver.filehandling.MisplacedFileTracker;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Service for managing maintenance jobs on the file server.
- * It allows starting, terminating, and checking the status of maintenance jobs.
+ * <p>Service for managing maintenance jobs on the file server.
+ * It allows starting, terminating, and checking the status of maintenance jobs.</p>
+ * <p>When the requested file depth changes, a job is started automatically to migrate every file to the new depth, see
+ * {@link #onFileDepthChanged(FileDepthChangedEvent)}.</p>
  */
 @Service
 @Slf4j
 public class MaintenanceJobService {
 
+    /**
+     * The time since a temporary file was last written after which it is considered abandoned, e.g. by a crash during a write, and is deleted.
+     */
+    static final Duration ABANDONED_TEMPORARY_FILE_AGE = Duration.ofHours(1);
+
+    /**
+     * The generation of no job, returned when a job is not started, see {@link #startJobGeneration(boolean)}.
+     */
+    public static final long NO_JOB = 0;
+
     @Autowired private ConfigurationService configurationService;
     @Autowired private FolderMaintenanceService folderMaintenanceService;
+    @Autowired private FileExistenceFilter fileExistenceFilter;
+    @Autowired private FileDistributorService fileDistributorService;
+    @Autowired private MaintenanceThrottle maintenanceThrottle;
+    @Autowired private MisplacedFileTracker misplacedFileTracker;
+    @Autowired private BlobStore blobStore;
 
     private final AtomicBoolean jobIsRunning = new AtomicBoolean(false);
-    private MultiThreadFolderTraverser multiThreadFolderTraverser;
+    private final Object phaseLock = new Object();
+    private volatile boolean jobIsTerminated = false;
+    private volatile MultiThreadFolderTraverser multiThreadFolderTraverser;
+    private volatile Reconciliation reconciliation;
+    private volatile boolean jobIsMigrating = false;
+    private volatile MaintenanceCheckpoint checkpoint;
+    private volatile int numberOfBuckets = 0;
+    private volatile ExecutorService jobExecutor;
+    private volatile long jobGeneration = NO_JOB;
 
     /**
-     * Starts a maintenance job if one is not already running.
+     * <p>Starts a maintenance job from the beginning, if one is not already running.</p>
      * @return true if the job was started successfully, false if a job is already running.
+     * @see #startJob(boolean)
      */
     public boolean startJob() {
+        return startJob(false);
+    }
+
+    /**
+     * <p>Starts a maintenance job if one is not already running.</p>
+     * <p>The job processes the files stored directly in the data folder, and then each top-level folder, a <i>bucket</i>, in turn. The buckets in which
+     * misplaced files have most recently been found are processed first, see {@link MisplacedFileTracker}. A bucket is traversed
+     * once, recording where misplaced files are, and then they are moved to the requested depth and their duplicates deleted in parallel, see
+     * {@link Reconciliation}. Every copy of a file is in the same bucket, see {@link MaintenanceCheckpoint}.</p>
+     * <p>When a bucket has completed, it is recorded in a checkpoint in the config folder. If the job is terminated or the application stops, a new job can
+     * resume from the checkpoint, skipping the completed buckets. The checkpoint is deleted when every bucket has completed without errors.</p>
+     * <p>Both phases wait for the {@link MaintenanceThrottle}, so the job does not saturate the disk.</p>
+     * <p>The job also rebuilds the {@link FileExistenceFilter}, so deleted files are removed from it. The rebuilt filter is only used if every folder was
+     * traversed by this job.</p>
+     * @param resume whether to skip the buckets completed by an earlier job. The checkpoint is ignored if it was made for another requested file depth.
+     * @return true if the job was started successfully, false if a job is already running.
+     */
+    public boolean startJob(boolean resume) {
+        return startJob(null, resume) != NO_JOB;
+    }
+
+    /**
+     * <p>Starts a maintenance job like {@link #startJob(boolean)}, and returns the generation identifying it, so the caller can later check or terminate
+     * that job only, and not a job that has replaced it, e.g. a migration started by {@link #onFileDepthChanged(FileDepthChangedEvent)}.</p>
+     * @param resume whether to skip the buckets completed by an earlier job.
+     * @return the generation of the started job, or {@link #NO_JOB} if a job is already running.
+     */
+    public long startJobGeneration(boolean resume) {
+        return startJob(null, resume);
+    }
+
+    /**
+     * <p>Migrates every file to the new requested file depth, if 'app.depth-migration-enabled' is set.</p>
+     * <p>A running maintenance job is terminated, since it may have skipped files at the new depth, and a new job is started. Until it has completed, files
+     * are read from both depths and are not moved when they are read, see {@link FileDistributorService#startMigration(int)}.</p>
+     *
+     * @param event the event describing the change.
+     */
+    @EventListener
+    public synchronized void onFileDepthChanged(FileDepthChangedEvent event) {
+        if (!configurationService.isDepthMigrationEnabled()) {
+            return;
+        }
+
+        if (jobIsRunning.get()) {
+            log.info("Terminating the running maintenance job to migrate files to depth {}.", event.getNewDepth());
+            terminateJob();
+        }
+
+        if (startJob(event, false) == NO_JOB) {
+            log.warn("Files could not be migrated to depth {}. They are moved when they are read.", event.getNewDepth());
+        }
+    }
+
+    private synchronized long startJob(FileDepthChangedEvent migration, boolean resume) {
         if (!jobIsRunning.compareAndSet(false, true)) {
             log.info("Maintenance job is already running. Please wait until it completes.");
-            return false;
+            return NO_JOB;
         }
-        multiThreadFolderTraverser = new MultiThreadFolderTraverser(
-            configurationService.getDataRootFolderPath(),
-            configurationService.getMaxMaintenanceConcurrentThreads(),
-            (folder, depth) -> folderMaintenanceService.maintainFile(folder, depth),
-            () -> {
-                jobIsRunning.set(false);
-            }
-        ).start();
+        var generation = ++jobGeneration;
+        jobIsTerminated = false;
+        multiThreadFolderTraverser = null;
+        reconciliation = null;
+        numberOfBuckets = 0;
+        checkpoint = resume ? loadCheckpoint() : MaintenanceCheckpoint.start(configurationService.getRequestedFileDepth());
+        jobIsMigrating = migration != null;
+        if (jobIsMigrating) {
+            fileDistributorService.startMigration(migration.getOldDepth());
+            log.info("Migrating files from depth {} to depth {}.", migration.getOldDepth(), migration.getNewDepth());
+        }
+        var rebuildingFilter = fileExistenceFilter.startRebuild();
+        var currentCheckpoint = checkpoint;
+        jobExecutor = Executors.newSingleThreadExecutor();
+        jobExecutor.execute(() -> runJob(currentCheckpoint, rebuildingFilter));
+        jobExecutor.shutdown();
 
         log.info("Maintenance job started.");
-        return true;
+        return generation;
     }
 
     /**
-     * Terminates the currently running maintenance job.
+     * Terminates the currently running maintenance job. The buckets it has completed remain recorded in the checkpoint, see {@link #startJob(boolean)}.
      * @return true if the job was terminated successfully, false if no job was running.
      */
     public boolean terminateJob() {
-        if (!jobIsRunning.get() || multiThreadFolderTraverser == null) {
+        if (!jobIsRunning.get()) {
             log.info("No maintenance job is currently running.");
             return false;
         }
 
         log.info("Terminating maintenance job process.");
-        multiThreadFolderTraverser.terminate();
+        synchronized (phaseLock) {
+            jobIsTerminated = true;
+            if (multiThreadFolderTraverser != null) {
+                multiThreadFolderTraverser.terminate();
+            }
+            if (reconciliation != null) {
+                reconciliation.terminate();
+            }
+        }
+        awaitJobExecutor();
 
         return true;
     }
 
+    /**
+     * Terminates the running maintenance job, if it is the job of the given generation.
+     * @param generation the generation returned by {@link #startJobGeneration(boolean)}.
+     * @return true if the job was terminated, false if it is no longer running, e.g. because it has completed or another job has replaced it.
+     */
+    public synchronized boolean terminateJob(long generation) {
+        return isJobRunning(generation) && terminateJob();
+    }
+
+    /**
+     * Checks whether a maintenance job is running, i.e. it has been started and has not yet completed or been terminated.
+     * @return true if a job is running.
+     */
+    public boolean isJobRunning() {
+        return jobIsRunning.get();
+    }
+
+    /**
+     * Checks whether the maintenance job of the given generation is running.
+     * @param generation the generation returned by {@link #startJobGeneration(boolean)}.
+     * @return true if that job is running, false if it has completed, been terminated, or been replaced by another job.
+     */
+    public boolean isJobRunning(long generation) {
+        return generation != NO_JOB && jobGeneration == generation && jobIsRunning.get();
+    }
+
     /**
      * Gets the status of the current maintenance job.
      * @return the status of the maintenance job.
      */
     public MaintenanceJobStatus getJobStatus() {
+        var status = getPhaseStatus();
+        if (jobIsMigrating && status.getState() == MaintenanceJobState.MAINTAINING) {
+            status = MaintenanceJobStatus.maintainingWithMetrics(MaintenanceJobState.MIGRATING, status.getProgressMetrics());
+        }
+        var currentCheckpoint = checkpoint;
+        return jobIsRunning.get() && currentCheckpoint != null
+                   ? status.withBuckets(currentCheckpoint.getNumberOfCompletedBuckets(), numberOfBuckets)
+                   : status;
+    }
+
+    private MaintenanceJobStatus getPhaseStatus() {
+        var currentReconciliation = reconciliation;
+        if (currentReconciliation != null && currentReconciliation.isStarted()) {
+            return currentReconciliation.getMaintenanceStatus();
+        }
+
         if (multiThreadFolderTraverser != null) {
             return multiThreadFolderTraverser.getMaintenanceStatus();
         }
@@ -71,4 +233,216 @@ public class MaintenanceJobService {
         return jobIsRunning.get() ? MaintenanceJobStatus.maintaining() :  MaintenanceJobStatus.idle();
     }
 
-}
\ No newline at end of file
+    private MaintenanceCheckpoint loadCheckpoint() {
+        var requestedFileDepth = configurationService.getRequestedFileDepth();
+        var path = configurationService.getMaintenanceCheckpointFilePath();
+        try {
+            var loaded = MaintenanceCheckpoint.load(path);
+            if (loaded.isEmpty()) {
+                log.info("No maintenance checkpoint found. Starting from the beginning.");
+            } else if (loaded.get().getRequestedFileDepth() != requestedFileDepth) {
+                log.info("The maintenance checkpoint was made for depth {}, not depth {}. Starting from the beginning.",
+                    loaded.get().getRequestedFileDepth(), requestedFileDepth);
+            } else {
+                log.info("Resuming the maintenance job started at {}.", loaded.get().getStartTime());
+                return loaded.get();
+            }
+        } catch (RuntimeException e) {
+            log.warn("The maintenance checkpoint cannot be read. Starting from the beginning.", e);
+        }
+        return MaintenanceCheckpoint.start(requestedFileDepth);
+    }
+
+    private void runJob(MaintenanceCheckpoint currentCheckpoint, boolean rebuildingFilter) {
+        var traversedEverything = !currentCheckpoint.hasProgress();
+        try {
+            traversedEverything &= maintainDataFolder(currentCheckpoint, rebuildingFilter);
+        } catch (RuntimeException e) {
+            traversedEverything = false;
+            log.error("Error running maintenance job", e);
+        } finally {
+            finishJob(rebuildingFilter, traversedEverything);
+        }
+    }
+
+    private boolean maintainDataFolder(MaintenanceCheckpoint currentCheckpoint, boolean rebuildingFilter) {
+        var dataRootFolder = configurationService.getDataRootFolderPath();
+        var checkpointPath = configurationService.getMaintenanceCheckpointFilePath();
+        var rootFiles = new ArrayList<Path>();
+        var buckets = new ArrayList<Path>();
+        try (var entries = Files.newDirectoryStream(dataRootFolder)) {
+            entries.forEach(entry -> (Files.isDirectory(entry) ? buckets : rootFiles).add(entry));
+        } catch (IOException e) {
+            throw new RuntimeException("Error listing the data folder " + dataRootFolder, e);
+        }
+        buckets.sort(Comparator.comparing(bucket -> bucket.getFileName().toString(), misplacedFileTracker.byMostRecentActivity()));
+        numberOfBuckets = buckets.size();
+        currentCheckpoint.save(checkpointPath);
+
+        var succeeded = true;
+        if (!currentCheckpoint.isRootFilesCompleted()) {
+            succeeded = maintainRootFiles(rootFiles, currentCheckpoint, rebuildingFilter);
+            currentCheckpoint.save(checkpointPath);
+        }
+        for (var bucket : buckets) {
+            if (jobIsTerminated) {
+                return false;
+            }
+            if (!currentCheckpoint.isBucketCompleted(bucket.getFileName().toString())) {
+                succeeded &= maintainBucket(bucket, currentCheckpoint, rebuildingFilter);
+                currentCheckpoint.save(checkpointPath);
+            }
+        }
+
+        if (succeeded && !jobIsTerminated) {
+            log.info("Maintenance job processed {} files and folders and reconciled {} misplaced files since {}.",
+                currentCheckpoint.getNumberProcessed(), currentCheckpoint.getFilesReconciled(), currentCheckpoint.getStartTime());
+            MaintenanceCheckpoint.delete(checkpointPath);
+            blobStore.collectGarbage(); // Blobs of copies deleted by the job, or left behind by a crash
+        }
+        return succeeded && !jobIsTerminated;
+    }
+
+    private boolean maintainRootFiles(List<Path> rootFiles, MaintenanceCheckpoint currentCheckpoint, boolean rebuildingFilter) {
+        var finished = new CompletableFuture<Void>();
+        var rootReconciliation = newReconciliation(() -> finished.complete(null));
+        synchronized (phaseLock) {
+            if (jobIsTerminated) {
+                return false;
+            }
+            multiThreadFolderTraverser = null;
+            reconciliation = rootReconciliation;
+        }
+
+        for (var file : rootFiles) {
+            if (jobIsTerminated) {
+                break;
+            }
+            processFile(rootReconciliation, file, 0, rebuildingFilter);
+        }
+        rootReconciliation.start();
+        finished.join();
+
+        if (jobIsTerminated) {
+            return false;
+        }
+        var reconciled = rootReconciliation.getMaintenanceStatus().getProgressMetrics().getNumberProcessed();
+        currentCheckpoint.completeRootFiles(rootFiles.size(), reconciled, rootReconciliation.getFailedFiles());
+        return true;
+    }
+
+    private boolean maintainBucket(Path bucket, MaintenanceCheckpoint currentCheckpoint, boolean rebuildingFilter) {
+        var finished = new CompletableFuture<Void>();
+        var bucketReconciliation = newReconciliation(() -> finished.complete(null));
+        MultiThreadFolderTraverser bucketTraverser;
+        synchronized (phaseLock) {
+            if (jobIsTerminated) {
+                return false;
+            }
+            bucketTraverser = new MultiThreadFolderTraverser(
+                bucket,
+                configurationService.getMaintenanceTraversalEngine(),
+                configurationService.getMaxMaintenanceConcurrentThreads(),
+                (file, depth) -> processFile(bucketReconciliation, file, depth + 1, rebuildingFilter),
+                () -> {
+                    if (jobIsTerminated) {
+                        finished.complete(null);
+                    } else {
+                        bucketReconciliation.start();
+                    }
+                }
+            );
+            multiThreadFolderTraverser = bucketTraverser;
+            reconciliation = bucketReconciliation;
+            bucketTraverser.start();
+        }
+        finished.join();
+
+        if (jobIsTerminated) {
+            return false;
+        }
+        if (bucketTraverser.getFailedFolders() > 0) {
+            log.warn("Maintenance job could not traverse every folder in {}. It is processed again when the job is resumed.", bucket);
+            return false;
+        }
+        var processed = bucketTraverser.getMaintenanceStatus().getProgressMetrics().getNumberProcessed();
+        var reconciled = bucketReconciliation.getMaintenanceStatus().getProgressMetrics().getNumberProcessed();
+        currentCheckpoint.completeBucket(bucket.getFileName().toString(), processed, reconciled, bucketReconciliation.getFailedFiles());
+        return true;
+    }
+
+    private Reconciliation newReconciliation(Runnable completionCallback) {
+        return new Reconciliation(
+            folderMaintenanceService,
+            maintenanceThrottle,
+            configurationService::getRequestedFileDepth,
+            configurationService.getMaxMaintenanceConcurrentThreads(),
+            completionCallback
+        );
+    }
+
+    private void processFile(Reconciliation currentReconciliation, Path file, int depth, boolean rebuildingFilter) {
+        maintenanceThrottle.acquireFiles(1);
+        if (FileDescriptor.isTemporaryFile(file)) {
+            deleteIfAbandoned(file);
+            return;
+        }
+        currentReconciliation.record(file, depth);
+        if (rebuildingFilter) {
+            addToExistenceFilter(file);
+        }
+    }
+
+    private void deleteIfAbandoned(Path temporaryFile) {
+        try {
+            var abandonedBefore = FileTime.from(Instant.now().minus(ABANDONED_TEMPORARY_FILE_AGE));
+            if (Files.getLastModifiedTime(temporaryFile).compareTo(abandonedBefore) < 0) {
+                Files.deleteIfExists(temporaryFile);
+                log.info("Deleted abandoned temporary file: {}", temporaryFile);
+            }
+        } catch (IOException e) {
+            // The write has completed or failed since the file was found, and the file is gone.
+            log.debug("Unable to check temporary file {}: {}", temporaryFile, e.getMessage());
+        }
+    }
+
+    private void addToExistenceFilter(Path file) {
+        var fileName = file.getFileName().toString();
+        if (UUIDUtil.isValidUUID(fileName)) {
+            fileExistenceFilter.add(UUID.fromString(fileName));
+        }
+    }
+
+    private void awaitJobExecutor() {
+        var currentJobExecutor = jobExecutor;
+        if (currentJobExecutor == null) {
+            return;
+        }
+
+        try {
+            if (!currentJobExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Maintenance job did not stop within a minute.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void finishJob(boolean rebuildingFilter, boolean traversedEverything) {
+        if (rebuildingFilter) {
+            if (traversedEverything) {
+                fileExistenceFilter.completeRebuild();
+            } else {
+                log.info("Maintenance job did not traverse every folder. The existence filter is not replaced.");
+                fileExistenceFilter.abortRebuild();
+            }
+        }
+        if (jobIsMigrating) {
+            fileDistributorService.finishMigration();
+            jobIsMigrating = false;
+        }
+        jobIsRunning.set(false);
+        log.info("Maintenance job finished.");
+    }
+
+}
@@ -14,4 +14,9 @@ public enum MaintenanceJobState {
      */
     MAINTAINING,
 
+    /**
+     * The maintenance job is currently running, migrating files to a new requested file depth.
+     */
+    MIGRATING,
+
 }
\ No newline at end of file
@@ -11,6 +11,12 @@ public class MaintenanceJobStatus {
     private final MaintenanceJobState state;
     private final MaintenanceProgressMetrics progressMetrics;
 
+    /** The number of top-level folders of the data folder that the job has completed, including those completed before it was resumed. */
+    private final int bucketsCompleted;
+
+    /** The number of top-level folders of the data folder, or 0 if the job has not listed them yet. */
+    private final int numberOfBuckets;
+
     /**
      * Creates a MaintenanceJobStatus instance representing an idle state.
      * @return a MaintenanceJobStatus instance with IDLE state and default progress metrics.
@@ -37,9 +43,25 @@ public class MaintenanceJobStatus {
         return new MaintenanceJobStatus(jobState, progressMetrics);
     }
 
+    /**
+     * Creates a copy of this status with the progress of the job through the top-level folders of the data folder.
+     * @param bucketsCompleted the number of top-level folders completed.
+     * @param numberOfBuckets the number of top-level folders.
+     * @return a MaintenanceJobStatus instance with the same state and progress metrics.
+     */
+    public MaintenanceJobStatus withBuckets(int bucketsCompleted, int numberOfBuckets) {
+        return new MaintenanceJobStatus(state, progressMetrics, bucketsCompleted, numberOfBuckets);
+    }
+
     private MaintenanceJobStatus(MaintenanceJobState state, MaintenanceProgressMetrics progressMetrics) {
+        this(state, progressMetrics, 0, 0);
+    }
+
+    private MaintenanceJobStatus(MaintenanceJobState state, MaintenanceProgressMetrics progressMetrics, int bucketsCompleted, int numberOfBuckets) {
         this.state = state;
         this.progressMetrics = progressMetrics;
+        this.bucketsCompleted = bucketsCompleted;
+        this.numberOfBuckets = numberOfBuckets;
     }
 
 }
\ No newline at end of file
@@ -92,6 +92,27 @@ public class MaintenanceProgressMetrics {
         return getProgress() / elapsed.toMillis() * 1000.0; // progress per second
     }
 
+    /** Gets the number of files and folders processed per second.
+     * @return The throughput, or 0.0 if startTime or statusTime is <i>null</i> or elapsed time is zero.
+     */
+    public double getThroughput() {
+        if (startTime == null || statusTime == null) {
+            return 0.0;
+        }
+        Duration elapsed = getElapsedTime();
+        if (elapsed.isZero()) {
+            return 0.0;
+        }
+        return numberProcessed / (double) elapsed.toMillis() * 1000.0;
+    }
+
+    /** Gets the number of files and folders that remain to be processed.
+     * @return The remaining number, never negative.
+     */
+    public int getNumberRemaining() {
+        return Math.max(0, numberToProcess - numberProcessed);
+    }
+
     /** Gets the current progress as a fraction between 0.0 and 1.0.
      * @return The progress as a double.
      */
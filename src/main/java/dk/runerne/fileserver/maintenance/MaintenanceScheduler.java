@@ -0,0 +1,151 @@
+package dk.runerne.fileserver.maintenance;
+
+import dk.runerne.fileserver.ConfigurationService;
+import dk.runerne.fileserver.FileDepthChangedEvent;
+import dk.runerne.fileserver.filehandling.MisplacedFileTracker;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.support.CronExpression;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+
+/**
+ * <p>Runs maintenance jobs in off-peak windows, so the data folder is kept tidy without anyone starting and stopping jobs by hand.</p>
+ * <p>A window starts at every time matched by the cron expression 'app.maintenance-window-cron' and lasts 'app.maintenance-window-duration-minutes'
+ * minutes. When a window starts, a job is started that resumes from the checkpoint of the previous one, see {@link MaintenanceJobService#startJob(boolean)}.
+ * If the job has not completed when the window ends, it is terminated, and the next window continues where it stopped. A job that completes starts over
+ * in the next window. The buckets where misplaced files have most recently been found are processed first, see {@link MisplacedFileTracker}.</p>
+ * <p>If a job is already running when a window starts, e.g. one started by hand, it is left running when the window ends. So is a job that replaces the job
+ * of the window, e.g. a migration to a new file depth, see {@link MaintenanceJobService#onFileDepthChanged(FileDepthChangedEvent)}.</p>
+ */
+@Service
+@Slf4j
+public class MaintenanceScheduler {
+
+    /**
+     * The longest time between checks of whether the job started in a window has completed.
+     */
+    static final Duration POLL_INTERVAL = Duration.ofSeconds(10);
+
+    @Autowired private ConfigurationService configurationService;
+    @Autowired private MaintenanceJobService maintenanceJobService;
+
+    private Clock clock = Clock.systemDefaultZone();
+    private Thread thread;
+
+    /**
+     * Starts waiting for the maintenance windows in the background when the application has started, if any windows are configured.
+     * @throws IllegalStateException if the windows are not configured correctly.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        var schedule = configurationService.getMaintenanceWindowSchedule();
+        if (schedule.isEmpty()) {
+            log.info("No maintenance windows are configured. Maintenance jobs are only started by hand.");
+            return;
+        }
+        var duration = Duration.ofMinutes(configurationService.getMaintenanceWindowDurationMinutes());
+        if (duration.isNegative() || duration.isZero()) {
+            throw new IllegalStateException("Invalid maintenance window duration. Please check 'app.maintenance-window-duration-minutes' in application "
+                                                + "properties or application.yml.");
+        }
+
+        thread = new Thread(() -> run(schedule.get(), duration), "maintenance-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops waiting for the maintenance windows. A running job is left running.
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Finds the window that is open at the given time, or else the next window.
+     * @param schedule The cron expression of the start of the windows.
+     * @param duration The length of the windows.
+     * @param now      The time.
+     * @return The start of the window, which is not after <i>now</i> if the window is open, or <i>null</i> if the schedule has no more windows.
+     */
+    static ZonedDateTime findWindowStart(CronExpression schedule, Duration duration, ZonedDateTime now) {
+        return schedule.next(now.minus(duration));
+    }
+
+    /**
+     * Runs a maintenance job until the end of a window.
+     * @param end The end of the window.
+     * @throws InterruptedException if the scheduler is stopped.
+     */
+    void runWindow(ZonedDateTime end) throws InterruptedException {
+        log.info("Maintenance window open until {}.", end);
+        var job = MaintenanceJobService.NO_JOB;
+        try {
+            job = maintenanceJobService.startJobGeneration(true);
+        } catch (RuntimeException e) {
+            log.error("Error starting the maintenance job of the window", e);
+        }
+
+        while (ZonedDateTime.now(clock).isBefore(end)) {
+            sleepUntil(end);
+            if (job != MaintenanceJobService.NO_JOB && !maintenanceJobService.isJobRunning(job)) {
+                log.info("Maintenance job of the window completed, or was replaced by another job, within the window.");
+                job = MaintenanceJobService.NO_JOB;
+            }
+        }
+
+        // Only the job started by this window is terminated, not e.g. a migration that has replaced it
+        if (job != MaintenanceJobService.NO_JOB && maintenanceJobService.terminateJob(job)) {
+            log.info("Maintenance window closed. The maintenance job continues in the next window.");
+        }
+    }
+
+    private void run(CronExpression schedule, Duration duration) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                var now = ZonedDateTime.now(clock);
+                var windowStart = findWindowStart(schedule, duration, now);
+                if (windowStart == null) {
+                    log.warn("The maintenance window schedule has no more windows.");
+                    return;
+                }
+
+                if (windowStart.isAfter(now)) {
+                    log.info("Next maintenance window starts at {}.", windowStart);
+                    while (ZonedDateTime.now(clock).isBefore(windowStart)) {
+                        sleepUntil(windowStart);
+                    }
+                }
+                runWindow(windowStart.plus(duration));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sleepUntil(ZonedDateTime time) throws InterruptedException {
+        var remaining = Duration.between(ZonedDateTime.now(clock), time);
+        if (remaining.compareTo(POLL_INTERVAL) > 0) {
+            remaining = POLL_INTERVAL;
+        }
+        if (!remaining.isNegative()) {
+            Thread.sleep(remaining.toMillis() + 1);
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package dk.runerne.fileserver.maintenance;
+
+import dk.runerne.fileserver.ConfigurationService;
+import dk.runerne.fileserver.filehandling.ForegroundLoad;
+import dk.runerne.fileserver.filehandling.ForegroundLoadMonitor;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>Limits the rate at which maintenance jobs process files and move bytes, so they do not saturate the disk at the expense of requests for files.</p>
+ * <p>Each rate is limited by a {@link TokenBucket}. The limits are configured with the keys 'app.maintenance-max-files-per-second' and
+ * 'app.maintenance-max-bytes-per-second', and can be changed at runtime through the maintenance job controller.</p>
+ * <p>In adaptive mode, the load from requests for files is sampled from the {@link ForegroundLoadMonitor} every {@link #ADJUST_INTERVAL_MILLIS} ms. If their
+ * average latency exceeds the target, or too many are in progress, the allowed share of the limits is halved, down to {@link #MIN_FACTOR}. Otherwise it is
+ * raised by {@link #INCREASE_STEP} until the full limits are allowed. When a rate is not limited, the share applies to the rate the maintenance achieved when
+ * it first had to slow down. A rate that was 0 at that time, e.g. the bytes moved while a job is still traversing, stays unlimited until it is observed to
+ * be above 0 while the requests are still slow. A sample taken more than {@link #STALE_INTERVALS} intervals after the previous one, e.g. when a job starts
+ * after an idle period, only starts a new window of observation.</p>
+ */
+@Service
+@Slf4j
+public class MaintenanceThrottle {
+
+    /** The interval in milliseconds between adjustments of the adaptive throttle. */
+    static final long ADJUST_INTERVAL_MILLIS = 250;
+
+    /**
+     * The number of adjustment intervals after which the activity of the maintenance is no longer a measure of its current rate, e.g. after the idle time
+     * between two jobs. Such a window is discarded rather than used for an adjustment.
+     */
+    static final int STALE_INTERVALS = 4;
+
+    /** The smallest share of the limits that the adaptive throttle allows. */
+    static final double MIN_FACTOR = 0.05;
+
+    /** The amount by which the adaptive throttle raises the allowed share of the limits when the load from requests is acceptable. */
+    static final double INCREASE_STEP = 0.1;
+
+    @Autowired private ConfigurationService configurationService;
+    @Autowired private ForegroundLoadMonitor foregroundLoadMonitor;
+
+    private final LongSupplier nanoClock;
+    private final TokenBucket fileBucket;
+    private final TokenBucket byteBucket;
+    private final LongAdder filesProcessed = new LongAdder();
+    private final LongAdder bytesMoved = new LongAdder();
+
+    private volatile long maxFilesPerSecond;
+    private volatile long maxBytesPerSecond;
+    private volatile boolean adaptive;
+    private volatile long targetLatencyMillis;
+    private volatile int maxInFlightRequests;
+
+    private double factor = 1.0;
+    private double filesBaseRate;
+    private double bytesBaseRate;
+    private long lastAdjustNanos;
+    private ForegroundLoad foregroundLoad = ForegroundLoad.NONE;
+
+    /**
+     * Constructs a MaintenanceThrottle using the system clock.
+     */
+    public MaintenanceThrottle() {
+        this(System::nanoTime);
+    }
+
+    MaintenanceThrottle(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        fileBucket = new TokenBucket(nanoClock);
+        byteBucket = new TokenBucket(nanoClock);
+        lastAdjustNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * Reads the initial settings from the configuration.
+     */
+    @PostConstruct
+    public void init() {
+        update(configurationService.getMaintenanceMaxFilesPerSecond(),
+               configurationService.getMaintenanceMaxBytesPerSecond(),
+               configurationService.isMaintenanceAdaptiveThrottleEnabled(),
+               configurationService.getMaintenanceTargetLatencyMillis(),
+               configurationService.getMaintenanceMaxInFlightRequests());
+    }
+
+    /**
+     * Changes the settings. Settings that are <i>null</i> are left unchanged.
+     *
+     * @param maxFilesPerSecond   the maximum number of files per second, or 0 for no limit.
+     * @param maxBytesPerSecond   the maximum number of bytes per second, or 0 for no limit.
+     * @param adaptive            whether to slow down when requests for files are slow or many are in progress.
+     * @param targetLatencyMillis the average latency in milliseconds of requests for files above which to slow down.
+     * @param maxInFlightRequests the number of requests for files in progress above which to slow down.
+     * @throws IllegalArgumentException if a setting is negative.
+     */
+    public synchronized void update(Long maxFilesPerSecond, Long maxBytesPerSecond, Boolean adaptive, Long targetLatencyMillis, Integer maxInFlightRequests) {
+        if (isNegative(maxFilesPerSecond) || isNegative(maxBytesPerSecond) || isNegative(targetLatencyMillis)
+                || maxInFlightRequests != null && maxInFlightRequests < 0) {
+            throw new IllegalArgumentException("Throttle settings cannot be negative");
+        }
+
+        if (maxFilesPerSecond != null) {
+            this.maxFilesPerSecond = maxFilesPerSecond;
+        }
+        if (maxBytesPerSecond != null) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+        if (adaptive != null) {
+            this.adaptive = adaptive;
+        }
+        if (targetLatencyMillis != null) {
+            this.targetLatencyMillis = targetLatencyMillis;
+        }
+        if (maxInFlightRequests != null) {
+            this.maxInFlightRequests = maxInFlightRequests;
+        }
+
+        factor = 1.0;
+        filesBaseRate = this.maxFilesPerSecond;
+        bytesBaseRate = this.maxBytesPerSecond;
+        applyRates();
+        log.info("Maintenance throttle set to {} files/s, {} bytes/s, adaptive {}", this.maxFilesPerSecond, this.maxBytesPerSecond, this.adaptive);
+    }
+
+    /**
+     * Waits until the maintenance may process more files. If the waiting thread is interrupted, it returns at once with its interrupt status set.
+     *
+     * @param files the number of files.
+     */
+    public void acquireFiles(int files) {
+        sleep(reserveFiles(files));
+    }
+
+    /**
+     * Waits until the maintenance may move more bytes. If the waiting thread is interrupted, it returns at once with its interrupt status set.
+     *
+     * @param bytes the number of bytes.
+     */
+    public void acquireBytes(long bytes) {
+        sleep(reserveBytes(bytes));
+    }
+
+    /**
+     * Checks whether the bytes moved are limited, so callers only need to find the size of the files they move when it is.
+     *
+     * @return <i>true</i> if the bytes moved are limited, or may become limited by the adaptive throttle.
+     */
+    public boolean isLimitingBytes() {
+        return maxBytesPerSecond > 0 || adaptive;
+    }
+
+    /**
+     * Gets the settings and the current state of the throttle.
+     *
+     * @return the status.
+     */
+    public synchronized MaintenanceThrottleStatus getStatus() {
+        return new MaintenanceThrottleStatus(maxFilesPerSecond, maxBytesPerSecond, adaptive, targetLatencyMillis, maxInFlightRequests,
+                                             factor, fileBucket.getRate(), byteBucket.getRate(), foregroundLoad);
+    }
+
+    long reserveFiles(int files) {
+        adjustIfDue();
+        filesProcessed.add(files);
+        return fileBucket.reserve(files);
+    }
+
+    long reserveBytes(long bytes) {
+        adjustIfDue();
+        bytesMoved.add(bytes);
+        return byteBucket.reserve(bytes);
+    }
+
+    private void adjustIfDue() {
+        if (!adaptive || nanoClock.getAsLong() - lastAdjustNanos < TimeUnit.MILLISECONDS.toNanos(ADJUST_INTERVAL_MILLIS)) {
+            return;
+        }
+
+        synchronized (this) {
+            var now = nanoClock.getAsLong();
+            var elapsedNanos = now - lastAdjustNanos;
+            if (!adaptive || elapsedNanos < TimeUnit.MILLISECONDS.toNanos(ADJUST_INTERVAL_MILLIS)) {
+                return;
+            }
+
+            lastAdjustNanos = now;
+            if (elapsedNanos > TimeUnit.MILLISECONDS.toNanos(ADJUST_INTERVAL_MILLIS) * STALE_INTERVALS) {
+                filesProcessed.reset();
+                bytesMoved.reset();
+                return;
+            }
+
+            var elapsedSeconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+            var observedFilesPerSecond = filesProcessed.sumThenReset() / elapsedSeconds;
+            var observedBytesPerSecond = bytesMoved.sumThenReset() / elapsedSeconds;
+            foregroundLoad = foregroundLoadMonitor.sample();
+
+            if (isOverloaded(foregroundLoad)) {
+                if (filesBaseRate == 0) {
+                    filesBaseRate = observedFilesPerSecond;
+                }
+                if (bytesBaseRate == 0) {
+                    bytesBaseRate = observedBytesPerSecond;
+                }
+                if (filesBaseRate == 0 && bytesBaseRate == 0) {
+                    // Nothing has been observed to limit, and a rate of 0 would mean no limit
+                    return;
+                }
+                factor = Math.max(MIN_FACTOR, factor / 2);
+            } else if (factor < 1.0) {
+                factor = Math.min(1.0, factor + INCREASE_STEP);
+            } else {
+                return;
+            }
+
+            if (factor == 1.0) {
+                filesBaseRate = maxFilesPerSecond;
+                bytesBaseRate = maxBytesPerSecond;
+            }
+            applyRates();
+            log.debug("Maintenance throttle factor {} after foreground load {}", factor, foregroundLoad);
+        }
+    }
+
+    private boolean isOverloaded(ForegroundLoad load) {
+        return load.getAverageLatencyMillis() > targetLatencyMillis || load.getInFlightRequests() > maxInFlightRequests;
+    }
+
+    private void applyRates() {
+        fileBucket.setRate(filesBaseRate * factor);
+        byteBucket.setRate(bytesBaseRate * factor);
+    }
+
+    private static boolean isNegative(Long value) {
+        return value != null && value < 0;
+    }
+
+    private static void sleep(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package dk.runerne.fileserver.maintenance;
+
+import dk.runerne.fileserver.filehandling.ForegroundLoad;
+import lombok.Data;
+
+/**
+ * The settings and the current state of the {@link MaintenanceThrottle}.
+ */
+@Data
+public class MaintenanceThrottleStatus {
+
+    /** The maximum number of files per second that maintenance jobs may process, or 0 for no limit. */
+    private final long maxFilesPerSecond;
+
+    /** The maximum number of bytes per second that maintenance jobs may move, or 0 for no limit. */
+    private final long maxBytesPerSecond;
+
+    /** Whether maintenance jobs slow down when requests for files are slow or many are in progress. */
+    private final boolean adaptive;
+
+    /** The average latency in milliseconds of requests for files above which maintenance jobs slow down. */
+    private final long targetLatencyMillis;
+
+    /** The number of requests for files in progress above which maintenance jobs slow down. */
+    private final int maxInFlightRequests;
+
+    /** The share of the limits currently allowed by the adaptive throttle, between {@link MaintenanceThrottle#MIN_FACTOR} and 1.0. */
+    private final double factor;
+
+    /** The number of files per second currently allowed, or 0.0 for no limit. */
+    private final double currentFilesPerSecond;
+
+    /** The number of bytes per second currently allowed, or 0.0 for no limit. */
+    private final double currentBytesPerSecond;
+
+    /** The load from requests for files during the latest period of the adaptive throttle. */
+    private final ForegroundLoad foregroundLoad;
+
+}
@@ -6,36 +6,52 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
 import java.util.function.BiConsumer;
-import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 /**
  * <p>Utility for traversing a folder structure in a multi-threaded manner.</p>
  * <p>This class allows for concurrent processing of files within a specified folder structure, enabling efficient handling of large datasets. It supports processing files at a specified depth and
  * provides mechanisms to track progress and terminate the traversal.</p>
+ * <p>The number of files and folders is not counted before the traversal starts, since that would double its I/O. Instead, each folder is assigned a share of
+ * the tree, which is split evenly between its entries, and the total is estimated from the number of entries processed and the share of the tree they make
+ * up. Since the entries of each folder are processed in random order, the estimate converges towards the actual number as the traversal proceeds.</p>
+ * <p>The tasks are run by the selected {@link TraversalEngine}.</p>
  */
 @Slf4j
 public class MultiThreadFolderTraverser {
 
+    /**
+     * The maximum number of entries of a folder processed by one task of the {@link TraversalEngine#FORK_JOIN} engine.
+     */
+    static final int SPLIT_THRESHOLD = 256;
+
     private final Path dataRootFolder;
     private final ExecutorService pool;
+    private final Semaphore ioPermits;
     private final AtomicInteger activeJobs = new AtomicInteger(0);
     private final CompletableFuture<Void> finished = new CompletableFuture<>();
     private final BiConsumer<Path, Integer> fileProcessor;
 
     private final AtomicInteger filesProcessed = new AtomicInteger(0);
-    private final AtomicInteger filesToProcess = new AtomicInteger(0);
+    private final DoubleAdder shareProcessed = new DoubleAdder();
+    private final AtomicInteger failedFolders = new AtomicInteger(0);
 
     private Instant startTime;
 
     /**
-     * Constructs a MultiThreadFolderTraverser.
+     * Constructs a MultiThreadFolderTraverser running on a fixed pool of threads.
      *
      * @param dataRootFolder     the root folder to start traversal from.
      * @param maxConcurrency     the maximum number of concurrent threads to use.
@@ -47,9 +63,39 @@ public class MultiThreadFolderTraverser {
         int maxConcurrency,
         BiConsumer<Path, Integer> fileProcessor,
         Runnable completionCallback
+    ) {
+        this(dataRootFolder, TraversalEngine.THREAD_POOL, maxConcurrency, fileProcessor, completionCallback);
+    }
+
+    /**
+     * Constructs a MultiThreadFolderTraverser.
+     *
+     * @param dataRootFolder     the root folder to start traversal from.
+     * @param engine             the engine running the tasks of the traversal.
+     * @param maxConcurrency     the maximum number of concurrent threads to use, or for {@link TraversalEngine#VIRTUAL_THREADS}, the maximum number of
+     *                           folders processed concurrently.
+     * @param fileProcessor      a consumer to process misplaced files.
+     * @param completionCallback a runnable to execute upon completion of the traversal.
+     */
+    public MultiThreadFolderTraverser(
+        Path dataRootFolder,
+        TraversalEngine engine,
+        int maxConcurrency,
+        BiConsumer<Path, Integer> fileProcessor,
+        Runnable completionCallback
     ) {
         this.dataRootFolder = dataRootFolder;
-        pool = Executors.newFixedThreadPool(maxConcurrency);
+        var virtualThreadPool = engine == TraversalEngine.VIRTUAL_THREADS ? newVirtualThreadPerTaskExecutor() : null;
+        if (virtualThreadPool != null) {
+            pool = virtualThreadPool;
+            ioPermits = new Semaphore(maxConcurrency);
+        } else if (engine == TraversalEngine.FORK_JOIN) {
+            pool = new ForkJoinPool(maxConcurrency);
+            ioPermits = null;
+        } else {
+            pool = Executors.newFixedThreadPool(maxConcurrency);
+            ioPermits = null;
+        }
         this.fileProcessor = fileProcessor;
         finished.thenRun(completionCallback);
     }
@@ -61,7 +107,6 @@ public class MultiThreadFolderTraverser {
      */
     public MultiThreadFolderTraverser start() {
         this.startTime = Instant.now();
-        filesToProcess.set(countTotalNumberOfFiles(dataRootFolder));
         submitJob(dataRootFolder, 0, 1.0);
         return this;
     }
@@ -91,18 +136,28 @@ public class MultiThreadFolderTraverser {
             new MaintenanceProgressMetrics(
                 startTime,
                 Instant.now(),
-                filesToProcess.get(),
+                estimateNumberToProcess(),
                 filesProcessed.get()
             )
         );
     }
 
-    private static int countTotalNumberOfFiles(Path path) {
-        try (var stream = Files.walk(path)) {
-            return (int) (stream.filter(p -> Files.isRegularFile(p) || Files.isDirectory(p)).count());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Gets the number of folders that could not be traversed. If any folder failed, not every file has been processed.
+     *
+     * @return the number of failed folders.
+     */
+    public int getFailedFolders() {
+        return failedFolders.get();
+    }
+
+    private int estimateNumberToProcess() {
+        var processed = filesProcessed.get();
+        var share = shareProcessed.sum();
+        if (share <= 0.0) {
+            return 0;
         }
+        return (int) Math.max(processed, Math.min(Integer.MAX_VALUE, Math.round(processed / share)));
     }
 
     private MaintenanceJobState getMaintenanceState() {
@@ -112,34 +167,106 @@ public class MultiThreadFolderTraverser {
     }
 
     private void submitJob(Path folder, int depth, double part) {
+        submit(folder, () -> processFolder(folder, depth, part));
+    }
+
+    private void submit(Path folder, Runnable job) {
+        submit(() -> {
+            try {
+                job.run();
+            } catch (RuntimeException e) {
+                failedFolders.incrementAndGet();
+                log.error("Error traversing folder {}", folder, e);
+            }
+        });
+    }
+
+    private void submit(Runnable job) {
         activeJobs.incrementAndGet();
-        pool.submit(() -> {
+        Runnable countedJob = () -> {
             try {
-                processFolder(folder, depth, part);
+                job.run();
             } finally {
                 if (activeJobs.decrementAndGet() == 0) {
+                    pool.shutdown();
                     finished.complete(null);
                 }
             }
-        });
+        };
+
+        if (pool instanceof ForkJoinPool forkJoinPool
+                && Thread.currentThread() instanceof ForkJoinWorkerThread workerThread
+                && workerThread.getPool() == forkJoinPool) {
+            ForkJoinTask.adapt(countedJob).fork();
+        } else {
+            pool.execute(countedJob);
+        }
     }
 
     private void processFolder(Path folder, int depth, double part) {
+        if (ioPermits != null) {
+            try {
+                ioPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
         try {
-            var files = Files.list(folder).collect(Collectors.toList());
-            Collections.shuffle(files);
-            var itemRate = part / files.size();
-            files.forEach(path -> {
-                if (Files.isDirectory(path)) {
-                    submitJob(path, depth + 1, itemRate);
-                } else {
-                    fileProcessor.accept(path, depth);
-                }
-                filesProcessed.incrementAndGet();
-            });
+            var entries = listFolder(folder);
+            processEntries(folder, entries, 0, entries.size(), depth, part);
+        } finally {
+            if (ioPermits != null) {
+                ioPermits.release();
+            }
+        }
+    }
+
+    private static List<Path> listFolder(Path folder) {
+        var entries = new ArrayList<Path>();
+        try (var directoryStream = Files.newDirectoryStream(folder)) {
+            directoryStream.forEach(entries::add);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        Collections.shuffle(entries);
+        return entries;
+    }
+
+    private void processEntries(Path folder, List<Path> entries, int from, int to, int depth, double part) {
+        if (entries.isEmpty()) {
+            shareProcessed.add(part);
+            return;
+        }
+
+        var itemRate = part / entries.size();
+        while (pool instanceof ForkJoinPool && to - from > SPLIT_THRESHOLD) {
+            var splitFrom = (from + to) >>> 1;
+            var splitTo = to;
+            submit(folder, () -> processEntries(folder, entries, splitFrom, splitTo, depth, part));
+            to = splitFrom;
+        }
+
+        for (int i = from; i < to; i++) {
+            var path = entries.get(i);
+            if (Files.isDirectory(path)) {
+                submitJob(path, depth + 1, itemRate);
+            } else {
+                fileProcessor.accept(path, depth);
+                shareProcessed.add(itemRate);
+            }
+            filesProcessed.incrementAndGet();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads are not available in Java {}. Using a fixed pool of threads instead.", Runtime.version().feature());
+            return null;
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,194 @@
+package dk.runerne.fileserver.maintenance;
+
+import dk.runerne.common.UUIDUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * <p>Moves misplaced files to the requested depth, and deletes duplicate copies, in two phases.</p>
+ * <p>In the first phase, every file found by a traversal of the data folder is {@link #record(Path, int) recorded}. The depths of the files that are not at
+ * the requested depth are collected in a compact {@link FileLocationMap}. In the second phase, which is {@link #start() started} when the traversal has
+ * completed, the segments of the map are processed in parallel, and each misplaced file is reconciled by
+ * {@link FolderMaintenanceService#reconcile(UUID, long)}.</p>
+ * <p>Every copy of a file is thereby found by the one traversal, and reconciling a file only accesses the locations where it was found.</p>
+ */
+@Slf4j
+public class Reconciliation {
+
+    private final FileLocationMap fileLocationMap = new FileLocationMap();
+    private final FolderMaintenanceService folderMaintenanceService;
+    private final MaintenanceThrottle maintenanceThrottle;
+    private final IntSupplier requestedFileDepth;
+    private final int maxConcurrency;
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
+
+    private final AtomicInteger filesProcessed = new AtomicInteger(0);
+    private final AtomicInteger failedFiles = new AtomicInteger(0);
+    private final AtomicInteger activeSegments = new AtomicInteger(0);
+
+    private ExecutorService pool;
+    private volatile Instant startTime;
+    private volatile int filesToProcess = 0;
+    private boolean terminated = false;
+
+    /**
+     * Constructs a Reconciliation.
+     *
+     * @param folderMaintenanceService the service that reconciles each misplaced file.
+     * @param maintenanceThrottle      the throttle that each file waits for before it is reconciled.
+     * @param requestedFileDepth       supplies the requested file depth.
+     * @param maxConcurrency           the maximum number of files to reconcile concurrently.
+     * @param completionCallback       a runnable to execute when the second phase has completed or has been terminated.
+     */
+    public Reconciliation(
+        FolderMaintenanceService folderMaintenanceService,
+        MaintenanceThrottle maintenanceThrottle,
+        IntSupplier requestedFileDepth,
+        int maxConcurrency,
+        Runnable completionCallback
+    ) {
+        this.folderMaintenanceService = folderMaintenanceService;
+        this.maintenanceThrottle = maintenanceThrottle;
+        this.requestedFileDepth = requestedFileDepth;
+        this.maxConcurrency = maxConcurrency;
+        finished.thenRun(completionCallback);
+    }
+
+    /**
+     * Records a file found by the traversal. Files at the requested depth and files that are not named by a UUID are not recorded. May be called by several
+     * threads concurrently.
+     *
+     * @param filePath the path of the file.
+     * @param depth    the depth of the file.
+     */
+    public void record(Path filePath, int depth) {
+        if (depth == requestedFileDepth.getAsInt()) {
+            return;
+        }
+
+        var fileName = filePath.getFileName().toString();
+        if (!UUIDUtil.isValidUUID(fileName)) {
+            log.warn(MessageFormat.format("Skipping misplaced file with invalid UUID name: {0}", filePath));
+            return;
+        }
+
+        if (depth > FileLocationMap.MAX_DEPTH) {
+            log.warn(MessageFormat.format("Skipping misplaced file deeper than {0} levels: {1}", FileLocationMap.MAX_DEPTH, filePath));
+            return;
+        }
+
+        fileLocationMap.add(UUID.fromString(fileName), depth);
+    }
+
+    /**
+     * Starts the second phase, reconciling every recorded file. Must be called when the traversal has completed.
+     */
+    public synchronized void start() {
+        if (pool != null) {
+            return;
+        }
+
+        startTime = Instant.now();
+        filesToProcess = (int) Math.min(Integer.MAX_VALUE, fileLocationMap.size());
+        log.info("Reconciling {} misplaced files", filesToProcess);
+        if (terminated || filesToProcess == 0) {
+            finished.complete(null);
+            return;
+        }
+
+        pool = Executors.newFixedThreadPool(maxConcurrency);
+        activeSegments.set(FileLocationMap.SEGMENTS);
+        for (int segment = 0; segment < FileLocationMap.SEGMENTS; segment++) {
+            var currentSegment = segment;
+            pool.submit(() -> processSegment(currentSegment));
+        }
+    }
+
+    /**
+     * Terminates the second phase. Files that have not been reconciled yet are left where they are.
+     */
+    public synchronized void terminate() {
+        terminated = true;
+        if (pool == null) {
+            return;
+        }
+
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            finished.complete(null);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks whether the second phase has been started.
+     *
+     * @return <i>true</i> if the second phase has been started.
+     */
+    public boolean isStarted() {
+        return startTime != null;
+    }
+
+    /**
+     * Retrieves the status of the second phase.
+     *
+     * @return the current MaintenanceJobStatus.
+     */
+    public MaintenanceJobStatus getMaintenanceStatus() {
+        return MaintenanceJobStatus.maintainingWithMetrics(
+            finished.isDone() ? MaintenanceJobState.IDLE : MaintenanceJobState.MAINTAINING,
+            new MaintenanceProgressMetrics(
+                startTime,
+                Instant.now(),
+                filesToProcess,
+                filesProcessed.get()
+            )
+        );
+    }
+
+    /**
+     * Gets the number of files that could not be reconciled.
+     *
+     * @return the number of failed files.
+     */
+    public int getFailedFiles() {
+        return failedFiles.get();
+    }
+
+    private void processSegment(int segment) {
+        try {
+            fileLocationMap.forEach(segment, (id, depths) -> {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+
+                maintenanceThrottle.acquireFiles(1);
+                try {
+                    folderMaintenanceService.reconcile(id, depths);
+                } catch (RuntimeException e) {
+                    failedFiles.incrementAndGet();
+                    log.error("Error reconciling file {}", id, e);
+                }
+                filesProcessed.incrementAndGet();
+            });
+        } finally {
+            if (activeSegments.decrementAndGet() == 0) {
+                pool.shutdown();
+                finished.complete(null);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package dk.runerne.fileserver.maintenance;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>A token bucket limiting the rate at which permits, e.g. files or bytes, are handed out.</p>
+ * <p>The bucket is refilled at the configured rate and holds at most one second's worth of permits, so short bursts are allowed after idle periods. A caller
+ * {@link #reserve(long) reserves} permits, and is told how long to wait before using them. Permits can be reserved beyond the content of the bucket, so a
+ * request larger than the bucket is delayed rather than rejected.</p>
+ */
+final class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final LongSupplier nanoClock;
+    private double ratePerSecond = 0;
+    private double tokens = 0;
+    private long lastRefillNanos;
+
+    /**
+     * Constructs an unlimited TokenBucket.
+     *
+     * @param nanoClock the clock, in nanoseconds, see {@link System#nanoTime()}.
+     */
+    TokenBucket(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        lastRefillNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * Changes the rate. Permits already reserved are not affected.
+     *
+     * @param ratePerSecond the number of permits per second, or 0 for no limit.
+     */
+    synchronized void setRate(double ratePerSecond) {
+        refill();
+        this.ratePerSecond = Math.max(0, ratePerSecond);
+        tokens = Math.min(tokens, this.ratePerSecond);
+    }
+
+    /**
+     * Gets the rate.
+     *
+     * @return the number of permits per second, or 0 for no limit.
+     */
+    synchronized double getRate() {
+        return ratePerSecond;
+    }
+
+    /**
+     * Reserves permits.
+     *
+     * @param permits the number of permits.
+     * @return the number of nanoseconds the caller must wait before using the permits, 0 if they can be used at once.
+     */
+    synchronized long reserve(long permits) {
+        if (ratePerSecond <= 0) {
+            return 0;
+        }
+
+        refill();
+        tokens -= permits;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / ratePerSecond * NANOS_PER_SECOND);
+    }
+
+    private void refill() {
+        var now = nanoClock.getAsLong();
+        if (ratePerSecond > 0) {
+            tokens = Math.min(ratePerSecond, tokens + (now - lastRefillNanos) / NANOS_PER_SECOND * ratePerSecond);
+        }
+        lastRefillNanos = now;
+    }
+
+}
@@ -0,0 +1,24 @@
+package dk.runerne.fileserver.maintenance;
+
+/**
+ * Enum representing the ways a {@link MultiThreadFolderTraverser} can run its tasks.
+ */
+public enum TraversalEngine {
+    /**
+     * A fixed pool of threads, with one task per folder.
+     */
+    THREAD_POOL,
+
+    /**
+     * A work-stealing ForkJoinPool, with one task per folder. The entries of a folder with many entries are split recursively between several tasks, so a
+     * wide folder is processed by several threads.
+     */
+    FORK_JOIN,
+
+    /**
+     * One virtual thread per folder, with a semaphore limiting the number of folders that access the disk at once. Virtual threads require Java 21. On
+     * earlier versions, a fixed pool of threads is used instead.
+     */
+    VIRTUAL_THREADS,
+
+}
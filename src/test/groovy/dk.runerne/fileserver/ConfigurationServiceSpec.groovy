@@ -1,9 +1,13 @@
 package dk.runerne.fileserver
 
+import dk.runerne.fileserver.filehandling.HashedStorageLayout
+import dk.runerne.fileserver.filehandling.StorageLayout
+import dk.runerne.fileserver.maintenance.TraversalEngine
 import org.springframework.test.util.ReflectionTestUtils
 import spock.lang.Specification
 import spock.lang.Unroll
 
+import java.nio.file.Files
 import java.nio.file.Path
 
 @Unroll
@@ -11,6 +15,12 @@ class ConfigurationServiceSpec extends Specification {
 
     private ConfigurationService configurationService = new ConfigurationService()
 
+    void setup() {
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutEncoding', 'base64')
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutSegmentLength', 1)
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutHashInput', 'string')
+    }
+
     void 'getDataRootFolderPath - OK'() {
         given:
         ReflectionTestUtils.setField(configurationService, 'rootFolder', '/root')
@@ -97,6 +107,57 @@ class ConfigurationServiceSpec extends Specification {
         e.cause.message == 'For input string: "This is not a number"'
     }
 
+    void 'getRequestedFileDepth - Kept in memory until refreshed'() {
+        given:
+        Path configFolderPath = Path.of('build/temp/configuration-service/config')
+        Files.createDirectories(configFolderPath)
+        Files.writeString(configFolderPath.resolve('file-depth.txt'), '5')
+        ReflectionTestUtils.setField(configurationService, 'rootFolder', 'build/temp/configuration-service')
+        ReflectionTestUtils.setField(configurationService, 'configSubfolder', 'config')
+        ReflectionTestUtils.setField(configurationService, 'fileDepthFilename', 'file-depth.txt')
+        configurationService.getRequestedFileDepth()
+
+        when:
+        Files.writeString(configFolderPath.resolve('file-depth.txt'), '7')
+
+        then:
+        configurationService.getRequestedFileDepth() == 5
+
+        when:
+        int output = configurationService.refreshRequestedFileDepth()
+
+        then:
+        output == 7
+        configurationService.getRequestedFileDepth() == 7
+
+        cleanup:
+        configFolderPath.parent.toFile().deleteDir()
+    }
+
+    void 'refreshRequestedFileDepth - Depth beyond the storage layout'() {
+        given:
+        Path configFolderPath = Path.of('build/temp/configuration-service/config')
+        Files.createDirectories(configFolderPath)
+        Files.writeString(configFolderPath.resolve('file-depth.txt'), '21')
+        ReflectionTestUtils.setField(configurationService, 'rootFolder', 'build/temp/configuration-service')
+        ReflectionTestUtils.setField(configurationService, 'configSubfolder', 'config')
+        ReflectionTestUtils.setField(configurationService, 'fileDepthFilename', 'file-depth.txt')
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutSegmentLength', 2)
+        configurationService.getRequestedFileDepth()
+
+        when:
+        Files.writeString(configFolderPath.resolve('file-depth.txt'), '22')
+        configurationService.refreshRequestedFileDepth()
+
+        then:
+        IllegalStateException e = thrown(IllegalStateException)
+        e.message == 'Invalid requested file depth 22. The storage layout allows depths from 0 to 21.'
+        configurationService.getRequestedFileDepth() == 21
+
+        cleanup:
+        configFolderPath.parent.toFile().deleteDir()
+    }
+
     void 'getRequestedFileDepth - From non-existing file'() {
         given:
         ReflectionTestUtils.setField(configurationService, 'rootFolder', 'src/test/resources')
@@ -168,4 +229,97 @@ class ConfigurationServiceSpec extends Specification {
         output == 10
     }
 
-}
\ No newline at end of file
+    void 'getStorageLayout - OK'() {
+        given:
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutEncoding', 'hex')
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutSegmentLength', 2)
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutHashInput', 'bytes')
+
+        when:
+        StorageLayout output = configurationService.getStorageLayout()
+
+        then:
+        output == new HashedStorageLayout(HashedStorageLayout.Encoding.HEX, 2, HashedStorageLayout.HashInput.BYTES)
+        output.fanOut == 256
+    }
+
+    void 'getStorageLayout - Default'() {
+        given:
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutEncoding', 'base64')
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutSegmentLength', 1)
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutHashInput', 'string')
+
+        expect:
+        configurationService.getStorageLayout() == StorageLayout.DEFAULT
+    }
+
+    void 'getStorageLayout - Invalid - #scenarie'() {
+        given:
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutEncoding', encoding)
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutSegmentLength', segmentLength)
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutHashInput', 'string')
+
+        when:
+        configurationService.getStorageLayout()
+
+        then:
+        thrown(IllegalStateException)
+
+        where:
+        encoding | segmentLength || scenarie
+        'base32' | 1             || 'Unknown encoding'
+        'base64' | 0             || 'Segment length too small'
+        'base64' | 5             || 'Segment length too large'
+    }
+
+    void 'getMaintenanceTraversalEngine - #value'() {
+        given:
+        ReflectionTestUtils.setField(configurationService, 'maintenanceTraversalEngine', value)
+
+        expect:
+        configurationService.getMaintenanceTraversalEngine() == expectedOutput
+
+        where:
+        value               || expectedOutput
+        'thread-pool'       || TraversalEngine.THREAD_POOL
+        ' fork-join '       || TraversalEngine.FORK_JOIN
+        'VIRTUAL_THREADS'   || TraversalEngine.VIRTUAL_THREADS
+    }
+
+    void 'getMaintenanceTraversalEngine - Invalid'() {
+        given:
+        ReflectionTestUtils.setField(configurationService, 'maintenanceTraversalEngine', 'green-threads')
+
+        when:
+        configurationService.getMaintenanceTraversalEngine()
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    void 'getMaintenanceWindowSchedule - #value'() {
+        given:
+        ReflectionTestUtils.setField(configurationService, 'maintenanceWindowCron', value)
+
+        expect:
+        configurationService.getMaintenanceWindowSchedule().map { it.toString() }.orElse(null) == expectedOutput
+
+        where:
+        value              || expectedOutput
+        null               || null
+        ' '                || null
+        ' 0 0 1 * * * '    || '0 0 1 * * *'
+    }
+
+    void 'getMaintenanceWindowSchedule - Invalid'() {
+        given:
+        ReflectionTestUtils.setField(configurationService, 'maintenanceWindowCron', 'at night')
+
+        when:
+        configurationService.getMaintenanceWindowSchedule()
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+}
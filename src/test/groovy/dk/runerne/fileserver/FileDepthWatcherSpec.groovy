@@ -0,0 +1,139 @@
+package dk.runerne.fileserver
+
+import org.springframework.context.ApplicationEventPublisher
+import org.springframework.test.util.ReflectionTestUtils
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CopyOnWriteArrayList
+
+class FileDepthWatcherSpec extends Specification {
+
+    private static final Path ROOT_FOLDER_PATH = Path.of('build/temp/file-depth-watcher')
+    private static final Path FILE_DEPTH_PATH = ROOT_FOLDER_PATH.resolve('config/file-depth.txt')
+
+    private FileDepthWatcher fileDepthWatcher = new FileDepthWatcher()
+    private List<FileDepthChangedEvent> events = new CopyOnWriteArrayList<>()
+
+    void setup() {
+        ConfigurationService configurationService = new ConfigurationService()
+        ReflectionTestUtils.setField(configurationService, 'rootFolder', ROOT_FOLDER_PATH.toString())
+        ReflectionTestUtils.setField(configurationService, 'configSubfolder', 'config')
+        ReflectionTestUtils.setField(configurationService, 'fileDepthFilename', 'file-depth.txt')
+        ReflectionTestUtils.setField(configurationService, 'defaultFileDepth', 3)
+        ReflectionTestUtils.setField(configurationService, 'fileDepthPollIntervalSeconds', 1L)
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutEncoding', 'base64')
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutSegmentLength', 1)
+        ReflectionTestUtils.setField(configurationService, 'storageLayoutHashInput', 'string')
+        fileDepthWatcher.configurationService = configurationService
+        fileDepthWatcher.applicationEventPublisher = { Object event -> events << event } as ApplicationEventPublisher
+    }
+
+    void cleanup() {
+        fileDepthWatcher.stop()
+        ROOT_FOLDER_PATH.toFile().deleteDir()
+    }
+
+    void 'refresh - Changed'() {
+        given:
+        fileDepthWatcher.configurationService.getRequestedFileDepth()
+        writeFileDepth('5')
+
+        when:
+        boolean output = fileDepthWatcher.refresh()
+
+        then:
+        output
+        fileDepthWatcher.configurationService.getRequestedFileDepth() == 5
+        events == [new FileDepthChangedEvent(3, 5)]
+    }
+
+    void 'refresh - Unchanged'() {
+        given:
+        writeFileDepth('3')
+
+        when:
+        boolean output = fileDepthWatcher.refresh()
+
+        then:
+        !output
+        events.isEmpty()
+    }
+
+    void 'refresh - Illegal content keeps the current depth'() {
+        given:
+        fileDepthWatcher.configurationService.getRequestedFileDepth()
+        writeFileDepth('This is not a number')
+
+        when:
+        boolean output = fileDepthWatcher.refresh()
+
+        then:
+        !output
+        fileDepthWatcher.configurationService.getRequestedFileDepth() == 3
+        events.isEmpty()
+    }
+
+    void 'start - Change of a watched file'() {
+        given:
+        writeFileDepth('3')
+        fileDepthWatcher.configurationService.getRequestedFileDepth()
+
+        when:
+        fileDepthWatcher.start()
+        writeFileDepth('6')
+        waitForEvent()
+
+        then:
+        events == [new FileDepthChangedEvent(3, 6)]
+    }
+
+    void 'start - Config folder created later is polled'() {
+        given:
+        fileDepthWatcher.configurationService.getRequestedFileDepth()
+
+        when:
+        fileDepthWatcher.start()
+        writeFileDepth('2')
+        waitForEvent()
+
+        then:
+        events == [new FileDepthChangedEvent(3, 2)]
+    }
+
+    void 'start - Failing listener does not stop the watcher'() {
+        given:
+        writeFileDepth('3')
+        fileDepthWatcher.configurationService.getRequestedFileDepth()
+        fileDepthWatcher.applicationEventPublisher = { Object event ->
+            events << event
+            if (events.size() == 1) {
+                throw new RuntimeException('Error terminating job')
+            }
+        } as ApplicationEventPublisher
+
+        when:
+        fileDepthWatcher.start()
+        writeFileDepth('6')
+        waitForEvent()
+        writeFileDepth('7')
+        waitForEvent(2)
+
+        then:
+        events == [new FileDepthChangedEvent(3, 6), new FileDepthChangedEvent(6, 7)]
+    }
+
+    private static void writeFileDepth(String content) {
+        Files.createDirectories(FILE_DEPTH_PATH.parent)
+        Files.writeString(FILE_DEPTH_PATH, content)
+    }
+
+    private void waitForEvent(int count = 1) {
+        long deadline = System.currentTimeMillis() + 10_000
+        while (events.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+}
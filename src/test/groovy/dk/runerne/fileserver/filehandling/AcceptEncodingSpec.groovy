@@ -0,0 +1,32 @@
+package dk.runerne.fileserver.filehandling
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class AcceptEncodingSpec extends Specification {
+
+    void "accepts - #scenarie"() {
+        expect:
+        AcceptEncoding.accepts(header, 'gzip') == expectedOutput
+
+        where:
+        header                 || expectedOutput | scenarie
+        null                   || false          | 'No header'
+        ''                     || false          | 'Empty header'
+        'gzip'                 || true           | 'Listed'
+        'deflate, GZIP'        || true           | 'Listed in another case'
+        'br;q=1.0, gzip;q=0.8' || true           | 'Listed with a quality value'
+        'x-gzip'               || true           | 'Listed by its alias'
+        'deflate'              || false          | 'Not listed'
+        'gzip;q=0'             || false          | 'Not acceptable'
+        'gzip; q=0.000'        || false          | 'Not acceptable with whitespace'
+        '*'                    || true           | 'Wildcard'
+        '*;q=0'                || false          | 'Wildcard not acceptable'
+        '*, gzip;q=0'          || false          | 'Wildcard, but not acceptable'
+        'gzip;q=0, *'          || false          | 'Not acceptable, but wildcard'
+        'identity'             || false          | 'Identity only'
+        'gzip;q=invalid'       || true           | 'Invalid quality value'
+    }
+
+}
@@ -0,0 +1,263 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+import static dk.runerne.fileserver.TestConstants.TEST_FILE_CONTENT
+import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
+
+class AtomicFileWriterSpec extends Specification {
+
+    private AtomicFileWriter atomicFileWriter = new AtomicFileWriter()
+
+    void cleanup() {
+        atomicFileWriter.shutdown()
+    }
+
+    void 'write - #writeDurability'() {
+        given:
+        init(writeDurability)
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4)
+
+        when:
+        FileDescriptor output = atomicFileWriter.write(fileDescriptor, new ByteArrayInputStream(TEST_FILE_CONTENT))
+
+        then:
+        output == fileDescriptor
+        Files.readAllBytes(fileDescriptor.path) == TEST_FILE_CONTENT
+        listTemporaryFiles(fileDescriptor).empty
+
+        cleanup:
+        fileDescriptor.purge()
+
+        where:
+        writeDurability << WriteDurability.values()
+    }
+
+    void 'prepare - File is not changed until committed'() {
+        given:
+        init(WriteDurability.FSYNC)
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4).ensureDirectoriesExist().write("Original content".getBytes())
+
+        when:
+        Path temporaryPath = atomicFileWriter.prepare(fileDescriptor, new ByteArrayInputStream(TEST_FILE_CONTENT))
+
+        then:
+        Files.readAllBytes(fileDescriptor.path) == "Original content".getBytes()
+
+        when:
+        atomicFileWriter.commit(fileDescriptor, temporaryPath)
+
+        then:
+        Files.readAllBytes(fileDescriptor.path) == TEST_FILE_CONTENT
+        !Files.exists(temporaryPath)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'discard'() {
+        given:
+        init(WriteDurability.NONE)
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4).ensureDirectoriesExist().write("Original content".getBytes())
+        Path temporaryPath = atomicFileWriter.prepare(fileDescriptor, new ByteArrayInputStream(TEST_FILE_CONTENT))
+
+        when:
+        atomicFileWriter.discard(temporaryPath)
+
+        then:
+        !Files.exists(temporaryPath)
+        Files.readAllBytes(fileDescriptor.path) == "Original content".getBytes()
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'write - Concurrent group commits'() {
+        given:
+        init(WriteDurability.GROUP_COMMIT)
+        List<FileDescriptor> fileDescriptors = (1..16).collect { FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4) }
+        def executor = Executors.newFixedThreadPool(8)
+
+        when:
+        executor.invokeAll(fileDescriptors.collect { fileDescriptor ->
+            (Callable) { atomicFileWriter.write(fileDescriptor, new ByteArrayInputStream(fileDescriptor.id.toString().bytes)) }
+        }).each { it.get() }
+
+        then:
+        fileDescriptors.every { Files.readAllBytes(it.path) == it.id.toString().bytes }
+
+        cleanup:
+        executor.shutdown()
+        fileDescriptors.each { it.purge() }
+    }
+
+    void 'commit - Rename fails in a group commit'() {
+        given:
+        init(WriteDurability.GROUP_COMMIT)
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4).ensureDirectoriesExist()
+        Path missingPath = fileDescriptor.folderPath.resolve("${fileDescriptor.id}.0.tmp")
+
+        when:
+        atomicFileWriter.commit(fileDescriptor, missingPath)
+
+        then:
+        thrown(IOException)
+        !fileDescriptor.fileExists()
+
+        cleanup:
+        fileDescriptor.ensureDirectoriesExist().write(TEST_FILE_CONTENT).purge()
+    }
+
+    void 'prepare - Temporary file is shared with the blob store'() {
+        given:
+        init(WriteDurability.NONE)
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4)
+        Path sharedPath = fileDescriptor.folderPath.resolve("${fileDescriptor.id}.shared.tmp")
+
+        when:
+        Path output = atomicFileWriter.prepare(fileDescriptor, new ByteArrayInputStream(TEST_FILE_CONTENT))
+
+        then:
+        output == sharedPath
+        1 * atomicFileWriter.blobStore.share(_) >> { Path temporaryPath -> Files.move(temporaryPath, sharedPath) }
+
+        cleanup:
+        atomicFileWriter.discard(sharedPath)
+        fileDescriptor.ensureDirectoriesExist().write(TEST_FILE_CONTENT).purge()
+    }
+
+    void 'prepare - Sharing fails'() {
+        given:
+        init(WriteDurability.NONE)
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4)
+        atomicFileWriter.blobStore = Mock(BlobStore) {
+            share(_) >> { throw new IOException('Error sharing') }
+        }
+
+        when:
+        atomicFileWriter.prepare(fileDescriptor, new ByteArrayInputStream(TEST_FILE_CONTENT))
+
+        then:
+        thrown(IOException)
+        listTemporaryFiles(fileDescriptor).empty
+
+        cleanup:
+        fileDescriptor.ensureDirectoriesExist().write(TEST_FILE_CONTENT).purge()
+    }
+
+    void 'write - Compressed'() {
+        given:
+        init(WriteDurability.NONE, JdkContentCodec.GZIP)
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4)
+        byte[] data = ('{"name": "value"}, ' * 1000).bytes
+
+        when:
+        atomicFileWriter.write(fileDescriptor, new ByteArrayInputStream(data))
+
+        then:
+        atomicFileWriter.contentCodec == JdkContentCodec.GZIP
+        fileDescriptor.readMetadata().encoding == 'gzip'
+        Files.size(fileDescriptor.path) < data.length / 10
+        fileDescriptor.readAllBytes() == data
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'write - Staged file #scenarie'() {
+        given:
+        init(WriteDurability.NONE, contentCodec)
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4)
+        Path stagedPath = Files.createDirectories(Path.of('build/temp/staging')).resolve('staged.data')
+        byte[] data = ('{"name": "value"}, ' * 1000).bytes
+        Files.write(stagedPath, data)
+
+        when:
+        atomicFileWriter.write(fileDescriptor, stagedPath)
+
+        then:
+        !Files.exists(stagedPath)
+        fileDescriptor.readMetadata().encoding == encoding
+        fileDescriptor.readAllBytes() == data
+        listTemporaryFiles(fileDescriptor).empty
+
+        cleanup:
+        fileDescriptor.purge()
+
+        where:
+        scenarie                      | contentCodec         | encoding
+        'is moved into place'         | null                 | null
+        'is compressed when enabled'  | JdkContentCodec.GZIP | 'gzip'
+    }
+
+    void 'write - Compressed staged file cannot be deleted'() {
+        given:
+        init(WriteDurability.NONE, JdkContentCodec.GZIP)
+        Path stagedPath = Files.createDirectories(Path.of('build/temp/staging')).resolve('staged.data')
+        byte[] data = ('{"name": "value"}, ' * 1000).bytes
+        Files.write(stagedPath, data)
+        FileDescriptor fileDescriptor = Spy(FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4)) {
+            // The staged file is gone when it is to be deleted after it has been compressed
+            writeTemporaryFile(*_) >> { callRealMethod().tap { Files.delete(stagedPath) } }
+        }
+
+        when:
+        atomicFileWriter.write(fileDescriptor, stagedPath)
+
+        then:
+        thrown(NoSuchFileException)
+        !fileDescriptor.fileExists()
+        listTemporaryFiles(fileDescriptor).empty
+
+        cleanup:
+        fileDescriptor.purgeEmptyFolders()
+    }
+
+    void 'commit - Group committer is stopped'() {
+        given:
+        init(WriteDurability.GROUP_COMMIT)
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4)
+        Path temporaryPath = atomicFileWriter.prepare(fileDescriptor, new ByteArrayInputStream(TEST_FILE_CONTENT))
+        atomicFileWriter.shutdown()
+        atomicFileWriter.committer.join(5000)
+
+        when:
+        atomicFileWriter.commit(fileDescriptor, temporaryPath)
+
+        then:
+        IOException e = thrown(IOException)
+        e.message == 'Group committer is not running'
+
+        cleanup:
+        atomicFileWriter.discard(temporaryPath)
+        fileDescriptor.ensureDirectoriesExist().write(TEST_FILE_CONTENT).purge()
+    }
+
+    private void init(WriteDurability writeDurability, ContentCodec contentCodec = null) {
+        atomicFileWriter.configurationService = Mock(ConfigurationService) {
+            getWriteDurability() >> writeDurability
+            getGroupCommitIntervalMillis() >> 2
+            getCompressionCodec() >> Optional.ofNullable(contentCodec)
+            getCompressionMinSize() >> 1024
+            getDataRootFolderPath() >> TEST_ROOT_FOLDER_PATH
+        }
+        atomicFileWriter.blobStore = Mock(BlobStore) {
+            share(_) >> { Path temporaryPath -> temporaryPath }
+        }
+        atomicFileWriter.init()
+    }
+
+    private static List<Path> listTemporaryFiles(FileDescriptor fileDescriptor) {
+        Files.list(fileDescriptor.folderPath).withCloseable { stream ->
+            return stream.filter { FileDescriptor.isTemporaryFile(it) }.toList()
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+
+import static dk.runerne.fileserver.TestConstants.TEST_REQUSTED_FILE_DEPTH
+import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
+
+class BatchDownloadServiceSpec extends Specification {
+
+    private BatchDownloadService batchDownloadService = new BatchDownloadService()
+    private List<FileDescriptor> files = []
+
+    void setup() {
+        batchDownloadService.configurationService = Mock(ConfigurationService) {
+            getBatchDownloadThreads() >> 2
+            getBatchDownloadMaxBufferedSize() >> 8
+            getBatchDownloadMaxFiles() >> 3
+        }
+        batchDownloadService.fileService = Mock(FileService) {
+            getCachedFile(_) >> Optional.empty()
+        }
+        batchDownloadService.init()
+    }
+
+    void cleanup() {
+        batchDownloadService.shutdown()
+        files.each { it.purge() }
+    }
+
+    void 'readIds'() {
+        given:
+        List<UUID> ids = [UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID()]
+        InputStream inputStream = new ByteArrayInputStream(" [ ${ids.collect { '"' + it + '"' }.join(', ')} ] ".bytes)
+
+        expect:
+        batchDownloadService.readIds(inputStream) == ids
+    }
+
+    void 'readIds - #scenario'() {
+        when:
+        batchDownloadService.readIds(new ByteArrayInputStream(body.bytes))
+
+        then:
+        IllegalArgumentException e = thrown(IllegalArgumentException)
+        e.message == message
+
+        where:
+        scenario         | body                                                 || message
+        'Too many files' | '["' + ([UUID.randomUUID()] * 4).join('", "') + '"]' || 'More than 3 files requested'
+        'Not an array'   | '{}'                                                 || 'Expected an array of UUIDs'
+        'Empty body'     | ''                                                   || 'Expected an array of UUIDs'
+        'Not a string'   | '[1]'                                                || 'Expected a UUID, found VALUE_NUMBER_INT'
+        'Not a UUID'     | '["not-a-uuid"]'                                     || 'Invalid UUID string: not-a-uuid'
+        'Unclosed array' | '["' + UUID.randomUUID() + '"'                       || 'Invalid array of UUIDs'
+    }
+
+    void 'write - Entries are written in the order of the IDs'() {
+        given:
+        List<String> contents = (1..20).collect { "File ${it}".toString() }
+        List<UUID> ids = contents.collect { createFile(it.bytes) }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        batchDownloadService.write(ids, outputStream)
+
+        then:
+        readEntries(outputStream.toByteArray()) == contents
+    }
+
+    void 'write - Missing and unreadable files'() {
+        given:
+        UUID existingId = createFile('Small'.bytes)
+        UUID missingId = UUID.randomUUID()
+        UUID failingId = UUID.randomUUID()
+        batchDownloadService.fileService.open(missingId) >> { throw new FileNotFoundException("File with ID ${missingId} does not exist.") }
+        batchDownloadService.fileService.open(failingId) >> { throw new RuntimeException('Error opening file') }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        batchDownloadService.write([missingId, existingId, failingId], outputStream)
+
+        then:
+        readEntries(outputStream.toByteArray()) == [BatchDownloadService.MISSING, 'Small', BatchDownloadService.FAILED]
+    }
+
+    void 'write - Large file is streamed'() {
+        given:
+        byte[] large = new byte[100_000]
+        new Random(42).nextBytes(large)
+        UUID largeId = createFile(large)
+        UUID smallId = createFile('Small'.bytes)
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        batchDownloadService.write([largeId, smallId], outputStream)
+
+        then:
+        ByteBuffer output = ByteBuffer.wrap(outputStream.toByteArray())
+        output.getLong() == large.length
+        byte[] largeOutput = new byte[large.length]
+        output.get(largeOutput)
+        largeOutput == large
+        output.getLong() == 5
+    }
+
+    void 'write - Cached file'() {
+        given:
+        UUID id = createFile('Cached'.bytes)
+        FileContent content = FileContent.open(files.last())
+        CachedFile cachedFile = CachedFile.load(content, null)
+        content.close()
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        batchDownloadService.write([id], outputStream)
+
+        then:
+        readEntries(outputStream.toByteArray()) == ['Cached']
+
+        and:
+        1 * batchDownloadService.fileService.getCachedFile(id) >> Optional.of(cachedFile)
+        0 * batchDownloadService.fileService.open(_)
+    }
+
+    void 'write - Compressed files are decompressed'() {
+        given:
+        byte[] small = ('Small ' * 100).bytes
+        byte[] large = ('Large ' * 10_000).bytes
+        List<UUID> ids = [createCompressedFile(small), createCompressedFile(large)]
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        batchDownloadService.write(ids, outputStream)
+
+        then:
+        readEntries(outputStream.toByteArray()) == [new String(small), new String(large)]
+    }
+
+    void 'write - File is closed when the response fails before its content'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, TEST_REQUSTED_FILE_DEPTH).ensureDirectoriesExist().write(new byte[100])
+        files << fileDescriptor
+        FileContent opened = null
+        batchDownloadService.fileService.open(fileDescriptor.id) >> { opened = FileContent.open(fileDescriptor) }
+        batchDownloadService.fileService.open(_) >> { UUID id -> throw new FileNotFoundException("File with ID ${id} does not exist.") }
+        // The sizes of the missing files fill the output buffer, so writing the size of the file flushes it to the failing response
+        List<UUID> missingIds = (1..(64 * 1024 / Long.BYTES)).collect { UUID.randomUUID() }
+        OutputStream outputStream = new OutputStream() {
+            @Override
+            void write(int b) throws IOException {
+                throw new IOException('Connection reset')
+            }
+        }
+
+        when:
+        batchDownloadService.write(missingIds + fileDescriptor.id, outputStream)
+
+        then:
+        thrown(IOException)
+        opened != null
+        !opened.channel.open
+    }
+
+    void 'write - No IDs'() {
+        given:
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        batchDownloadService.write([], outputStream)
+
+        then:
+        outputStream.size() == 0
+    }
+
+    private UUID createFile(byte[] data) {
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, TEST_REQUSTED_FILE_DEPTH).ensureDirectoriesExist().write(data)
+        files << fileDescriptor
+        batchDownloadService.fileService.open(fileDescriptor.id) >> { FileContent.open(fileDescriptor) }
+        return fileDescriptor.id
+    }
+
+    private UUID createCompressedFile(byte[] data) {
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, TEST_REQUSTED_FILE_DEPTH).ensureDirectoriesExist()
+        fileDescriptor.replaceWith(fileDescriptor.writeTemporaryFile(new ByteArrayInputStream(data), false, JdkContentCodec.GZIP, 0))
+        files << fileDescriptor
+        batchDownloadService.fileService.open(fileDescriptor.id) >> { FileContent.open(fileDescriptor) }
+        return fileDescriptor.id
+    }
+
+    private static List<Object> readEntries(byte[] response) {
+        ByteBuffer buffer = ByteBuffer.wrap(response)
+        List<Object> entries = []
+        while (buffer.hasRemaining()) {
+            long size = buffer.getLong()
+            if (size < 0) {
+                entries << size
+            } else {
+                byte[] content = new byte[size]
+                buffer.get(content)
+                entries << new String(content)
+            }
+        }
+        return entries
+    }
+
+}
@@ -0,0 +1,123 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+
+class BatchUploadServiceSpec extends Specification {
+
+    private BatchUploadService batchUploadService = new BatchUploadService()
+
+    void setup() {
+        batchUploadService.configurationService = Mock(ConfigurationService) {
+            getBatchUploadThreads() >> 2
+            getBatchUploadMaxBufferedSize() >> 8
+        }
+        batchUploadService.fileService = Mock(FileService)
+        batchUploadService.init()
+    }
+
+    void cleanup() {
+        batchUploadService.shutdown()
+    }
+
+    void 'create - Files are created in the order of the entries'() {
+        given:
+        List<String> contents = (1..20).collect { "File ${it}".toString() }
+        batchUploadService.fileService.create(_ as byte[]) >> { byte[] data -> idOf(new String(data)) }
+
+        when:
+        List<UUID> output = batchUploadService.create(batch(contents.collect { it.bytes }))
+
+        then:
+        output == contents.collect { idOf(it) }
+    }
+
+    void 'create - Large entry is streamed'() {
+        given:
+        byte[] small = 'Small'.bytes
+        byte[] large = 'A larger file'.bytes
+        batchUploadService.fileService.create(_ as byte[]) >> { byte[] data -> idOf(new String(data)) }
+        batchUploadService.fileService.create(_ as InputStream) >> { InputStream stream -> idOf(new String(stream.readAllBytes())) }
+
+        when:
+        List<UUID> output = batchUploadService.create(batch([large, small, large]))
+
+        then:
+        output == [idOf('A larger file'), idOf('Small'), idOf('A larger file')]
+    }
+
+    void 'create - Empty batch'() {
+        when:
+        List<UUID> output = batchUploadService.create(new ByteArrayInputStream(new byte[0]))
+
+        then:
+        output.empty
+        0 * batchUploadService.fileService._
+    }
+
+    void 'create - #scenario'() {
+        given:
+        UUID createdId = UUID.randomUUID()
+        batchUploadService.fileService.create(_ as byte[]) >> createdId
+        batchUploadService.fileService.create(_ as InputStream) >> { InputStream stream -> stream.readAllBytes(); createdId }
+
+        when:
+        batchUploadService.create(new ByteArrayInputStream(body))
+
+        then:
+        thrown(IllegalArgumentException)
+        deletions * batchUploadService.fileService.delete(createdId)
+
+        where:
+        scenario                       | body                                                               | deletions
+        'Batch ends within a size'     | concat(batch(['File'.bytes]).readAllBytes(), new byte[3])          | 1
+        'Batch ends within an entry'   | concat(batch(['File'.bytes]).readAllBytes(), size(5), 'Fil'.bytes) | 1
+        'Batch ends within large file' | concat(batch(['File'.bytes]).readAllBytes(), size(100), 'L'.bytes) | 2
+        'Negative size'                | size(-1)                                                           | 0
+    }
+
+    void 'create - Write fails'() {
+        given:
+        UUID createdId = UUID.randomUUID()
+        batchUploadService.fileService.create(_ as byte[]) >> { byte[] data ->
+            if (new String(data) == 'Fails') {
+                throw new RuntimeException('Error creating file')
+            }
+            return createdId
+        }
+
+        when:
+        batchUploadService.create(batch(['File 1'.bytes, 'Fails'.bytes, 'File 2'.bytes]))
+
+        then:
+        RuntimeException e = thrown(RuntimeException)
+        e.message == 'Error creating file'
+        2 * batchUploadService.fileService.delete(createdId)
+    }
+
+    private static UUID idOf(String content) {
+        return UUID.nameUUIDFromBytes(content.bytes)
+    }
+
+    private static byte[] size(long size) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(size).array()
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        parts.each { output.write(it) }
+        return output.toByteArray()
+    }
+
+    private static ByteArrayInputStream batch(List<byte[]> contents) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream()
+        contents.each { content ->
+            output.write(size(content.length))
+            output.write(content)
+        }
+        return new ByteArrayInputStream(output.toByteArray())
+    }
+
+}
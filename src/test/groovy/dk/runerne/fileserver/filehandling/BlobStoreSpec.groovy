@@ -0,0 +1,158 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static dk.runerne.fileserver.TestConstants.TEST_FILE_CONTENT
+import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
+
+class BlobStoreSpec extends Specification {
+
+    private static final Path BLOB_ROOT_FOLDER_PATH = Path.of('build/temp/blobs')
+
+    private BlobStore blobStore = new BlobStore()
+    private List<FileDescriptor> files = []
+
+    void setup() {
+        blobStore.configurationService = Mock(ConfigurationService) {
+            isDeduplicationEnabled() >> true
+            getBlobRootFolderPath() >> BLOB_ROOT_FOLDER_PATH
+        }
+        blobStore.init()
+    }
+
+    void cleanup() {
+        files.each { if (it.fileExists()) it.purge() }
+        if (Files.exists(BLOB_ROOT_FOLDER_PATH)) {
+            Files.walk(BLOB_ROOT_FOLDER_PATH)
+                    .sorted(Comparator.reverseOrder())
+                    .forEach { path -> Files.deleteIfExists(path) }
+        }
+    }
+
+    void 'init - Disabled'() {
+        given:
+        BlobStore disabledBlobStore = new BlobStore(configurationService: Mock(ConfigurationService) {
+            isDeduplicationEnabled() >> false
+        })
+
+        when:
+        disabledBlobStore.init()
+
+        then:
+        !disabledBlobStore.enabled
+    }
+
+    void 'share - New content becomes a blob'() {
+        when:
+        FileDescriptor fileDescriptor = write(TEST_FILE_CONTENT)
+
+        then:
+        Path blobPath = blobStore.getBlobPath(fileDescriptor.readMetadata().digest)
+        Files.isSameFile(blobPath, fileDescriptor.path)
+        blobStore.sharedFiles == 0
+    }
+
+    void 'share - Same content is stored once'() {
+        given:
+        FileDescriptor first = write(TEST_FILE_CONTENT)
+
+        when:
+        FileDescriptor second = write(TEST_FILE_CONTENT)
+
+        then:
+        Files.isSameFile(first.path, second.path)
+        Files.readAllBytes(second.path) == TEST_FILE_CONTENT
+        second.readMetadata().digest == first.readMetadata().digest
+        blobStore.sharedFiles == 1
+        listTemporaryFiles(second).empty
+    }
+
+    void 'share - Different content is stored separately'() {
+        given:
+        FileDescriptor first = write(TEST_FILE_CONTENT)
+
+        when:
+        FileDescriptor second = write('Other content'.bytes)
+
+        then:
+        !Files.isSameFile(first.path, second.path)
+        blobStore.sharedFiles == 0
+    }
+
+    void 'share - Disabled'() {
+        given:
+        blobStore.configurationService = Mock(ConfigurationService) {
+            isDeduplicationEnabled() >> false
+        }
+        blobStore.init()
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 2)
+        files << fileDescriptor
+        Path temporaryPath = fileDescriptor.writeTemporaryFile(new ByteArrayInputStream(TEST_FILE_CONTENT), false)
+
+        when:
+        Path output = blobStore.share(temporaryPath)
+
+        then:
+        output == temporaryPath
+        Files.getAttribute(temporaryPath, 'unix:nlink') == 1
+
+        cleanup:
+        Files.deleteIfExists(temporaryPath)
+    }
+
+    void 'release - Blob is deleted with its last file'() {
+        given:
+        FileDescriptor first = write(TEST_FILE_CONTENT)
+        FileDescriptor second = write(TEST_FILE_CONTENT)
+        String digest = first.readMetadata().digest
+        Path blobPath = blobStore.getBlobPath(digest)
+
+        when:
+        first.purge()
+        blobStore.release(digest)
+
+        then:
+        Files.exists(blobPath)
+
+        when:
+        second.purge()
+        blobStore.release(digest)
+
+        then:
+        !Files.exists(blobPath)
+    }
+
+    void 'collectGarbage - Unreferenced blobs are deleted'() {
+        given:
+        FileDescriptor kept = write(TEST_FILE_CONTENT)
+        FileDescriptor deleted = write('Other content'.bytes)
+        Path keptBlobPath = blobStore.getBlobPath(kept.readMetadata().digest)
+        Path deletedBlobPath = blobStore.getBlobPath(deleted.readMetadata().digest)
+        deleted.purge()
+
+        when:
+        long output = blobStore.collectGarbage()
+
+        then:
+        output == 1
+        Files.exists(keptBlobPath)
+        !Files.exists(deletedBlobPath)
+    }
+
+    private FileDescriptor write(byte[] data) {
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 2)
+        files << fileDescriptor
+        return fileDescriptor.replaceWith(blobStore.share(fileDescriptor.writeTemporaryFile(new ByteArrayInputStream(data), false)))
+    }
+
+    private static List<Path> listTemporaryFiles(FileDescriptor fileDescriptor) {
+        Files.list(fileDescriptor.folderPath).withCloseable { stream ->
+            return stream.filter { FileDescriptor.isTemporaryFile(it) }.toList()
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package dk.runerne.fileserver.filehandling
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class ByteRangeSpec extends Specification {
+
+    void "parse - #scenarie"() {
+        when:
+        Optional<List<ByteRange>> output = ByteRange.parse(header, 1000)
+
+        then:
+        output == expectedOutput
+
+        where:
+        header                  || expectedOutput                                                         | scenarie
+        null                    || Optional.empty()                                                       | 'No header'
+        'items=0-10'            || Optional.empty()                                                       | 'Unsupported unit'
+        'bytes=0-499'           || Optional.of([new ByteRange(0, 499)])                                   | 'First 500 bytes'
+        'bytes=500-999'         || Optional.of([new ByteRange(500, 999)])                                 | 'Last 500 bytes by position'
+        'bytes=500-'            || Optional.of([new ByteRange(500, 999)])                                 | 'Open ended'
+        'bytes=-300'            || Optional.of([new ByteRange(700, 999)])                                 | 'Suffix'
+        'bytes=-5000'           || Optional.of([new ByteRange(0, 999)])                                   | 'Suffix longer than file'
+        'bytes=900-5000'        || Optional.of([new ByteRange(900, 999)])                                 | 'End beyond file'
+        'bytes=0-0, -1'         || Optional.of([new ByteRange(0, 0), new ByteRange(999, 999)])            | 'Two ranges with whitespace'
+        'bytes=0-9,2000-,20-29' || Optional.of([new ByteRange(0, 9), new ByteRange(20, 29)])              | 'Unsatisfiable range is skipped'
+        'bytes=1000-'           || Optional.of([])                                                        | 'Start at end of file'
+        'bytes=-0'              || Optional.of([])                                                        | 'Empty suffix'
+        'bytes=10-5'            || Optional.empty()                                                       | 'Last before first'
+        'bytes=abc-'            || Optional.empty()                                                       | 'Not a number'
+        'bytes=+1-5'            || Optional.empty()                                                       | 'Signed number'
+        'bytes=5'               || Optional.empty()                                                       | 'No dash'
+        'bytes=0-999,0-999'     || Optional.empty()                                                       | 'More bytes than the file holds'
+    }
+
+    void 'parse - Too many ranges'() {
+        given:
+        String header = 'bytes=' + (0..ByteRange.MAX_RANGES).collect { "${it}-${it}" }.join(',')
+
+        when:
+        Optional<List<ByteRange>> output = ByteRange.parse(header, 1000)
+
+        then:
+        output.isEmpty()
+    }
+
+    void 'parse - Empty file'() {
+        expect:
+        ByteRange.parse('bytes=-10', 0) == Optional.of([])
+        ByteRange.parse('bytes=0-', 0) == Optional.of([])
+    }
+
+    void 'getLength'() {
+        expect:
+        new ByteRange(10, 19).length == 10
+        new ByteRange(0, -1).length == 0
+    }
+
+    void 'toContentRange'() {
+        expect:
+        new ByteRange(0, 499).toContentRange(1234) == 'bytes 0-499/1234'
+        ByteRange.toUnsatisfiedContentRange(1234) == 'bytes */1234'
+    }
+
+}
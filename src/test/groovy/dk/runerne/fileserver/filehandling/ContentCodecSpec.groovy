@@ -0,0 +1,57 @@
+package dk.runerne.fileserver.filehandling
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class ContentCodecSpec extends Specification {
+
+    void 'encode and decode - #codec'() {
+        given:
+        byte[] data = ('<item>Some content</item>' * 1000).bytes
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        codec.encode(outputStream).withCloseable { it.write(data) }
+
+        then:
+        outputStream.size() < data.length / 10
+        codec.decode(new ByteArrayInputStream(outputStream.toByteArray())).bytes == data
+
+        where:
+        codec << JdkContentCodec.values()
+    }
+
+    void 'encode - Flush writes everything written so far - #codec'() {
+        given:
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+        OutputStream encoder = codec.encode(outputStream)
+
+        when:
+        encoder.write('Some content'.bytes)
+        encoder.flush()
+
+        then:
+        outputStream.size() > 0
+
+        cleanup:
+        encoder.close()
+
+        where:
+        codec << JdkContentCodec.values()
+    }
+
+    void "forName - #scenarie"() {
+        expect:
+        ContentCodec.forName(name) == expectedOutput
+
+        where:
+        name      || expectedOutput                        | scenarie
+        'gzip'    || Optional.of(JdkContentCodec.GZIP)     | 'gzip'
+        'deflate' || Optional.of(JdkContentCodec.DEFLATE)  | 'deflate'
+        ' GZIP '  || Optional.of(JdkContentCodec.GZIP)     | 'Case and whitespace are ignored'
+        'br'      || Optional.empty()                      | 'Unknown codec'
+        null      || Optional.empty()                      | 'No name'
+    }
+
+}
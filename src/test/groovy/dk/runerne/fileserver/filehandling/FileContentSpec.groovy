@@ -0,0 +1,297 @@
+package dk.runerne.fileserver.filehandling
+
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedChannelException
+
+import static dk.runerne.fileserver.TestConstants.TEST_FILE_CONTENT
+import static dk.runerne.fileserver.TestConstants.TEST_REQUSTED_FILE_DEPTH
+import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
+
+class FileContentSpec extends Specification {
+
+    void 'open - OK'() {
+        given:
+        FileDescriptor fileDescriptor = createFile(TEST_FILE_CONTENT)
+
+        when:
+        FileContent output = FileContent.open(fileDescriptor)
+
+        then:
+        output.fileDescriptor == fileDescriptor
+        output.size == TEST_FILE_CONTENT.length
+
+        cleanup:
+        output.close()
+        fileDescriptor.purge()
+    }
+
+    void 'open - File replaced after its metadata was read'() {
+        given:
+        FileDescriptor fileDescriptor = createFile(TEST_FILE_CONTENT)
+        FileMetadata staleMetadata = new FileMetadata('0' * 64)
+
+        when:
+        FileContent output = FileContent.open(fileDescriptor, staleMetadata)
+
+        then:
+        output.eTag == fileDescriptor.readMetadata().ETag
+        output.eTag != staleMetadata.ETag
+
+        cleanup:
+        output.close()
+        fileDescriptor.purge()
+    }
+
+    void 'open - No file descriptor'() {
+        when:
+        FileContent.open(null)
+
+        then:
+        IllegalArgumentException e = thrown(IllegalArgumentException)
+        e.message == 'FileDescriptor cannot be null'
+    }
+
+    void 'open - File does not exist'() {
+        when:
+        FileContent.open(FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, TEST_REQUSTED_FILE_DEPTH))
+
+        then:
+        thrown(IOException)
+    }
+
+    void 'writeTo - Content is transferred and closed'() {
+        given:
+        byte[] data = new byte[200_000]
+        new Random(42).nextBytes(data)
+        FileDescriptor fileDescriptor = createFile(data)
+        FileContent content = FileContent.open(fileDescriptor)
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        content.writeTo(outputStream)
+
+        then:
+        outputStream.toByteArray() == data
+
+        when:
+        content.transferTo(0, 1, new ByteArrayOutputStream())
+
+        then:
+        thrown(ClosedChannelException)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'writeTo - Content survives relocation of the file'() {
+        given:
+        FileDescriptor fileDescriptor = createFile(TEST_FILE_CONTENT)
+        FileContent content = FileContent.open(fileDescriptor)
+        FileDescriptor relocated = fileDescriptor.moveTo(fileDescriptor.toDepth(TEST_REQUSTED_FILE_DEPTH + 1))
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        content.writeTo(outputStream)
+
+        then:
+        outputStream.toByteArray() == TEST_FILE_CONTENT
+
+        cleanup:
+        relocated.purge()
+    }
+
+    void 'transferTo - Part of the content'() {
+        given:
+        FileDescriptor fileDescriptor = createFile(TEST_FILE_CONTENT)
+        FileContent content = FileContent.open(fileDescriptor)
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        content.transferTo(5, 4, outputStream)
+
+        then:
+        outputStream.toByteArray() == 'cont'.bytes
+
+        cleanup:
+        content.close()
+        fileDescriptor.purge()
+    }
+
+    void 'transferTo - Beyond end of file'() {
+        given:
+        FileDescriptor fileDescriptor = createFile(TEST_FILE_CONTENT)
+        FileContent content = FileContent.open(fileDescriptor)
+
+        when:
+        content.transferTo(5, 100, new ByteArrayOutputStream())
+
+        then:
+        IOException e = thrown(IOException)
+        e.message.startsWith('Unexpected end of file')
+
+        cleanup:
+        content.close()
+        fileDescriptor.purge()
+    }
+
+    void 'readFully'() {
+        given:
+        FileDescriptor fileDescriptor = createFile(TEST_FILE_CONTENT)
+        FileContent content = FileContent.open(fileDescriptor)
+        ByteBuffer buffer = ByteBuffer.allocate(TEST_FILE_CONTENT.length)
+
+        when:
+        content.readFully(buffer)
+
+        then:
+        buffer.array() == TEST_FILE_CONTENT
+
+        cleanup:
+        content.close()
+        fileDescriptor.purge()
+    }
+
+    void 'load - Content is read into memory and the file is closed'() {
+        given:
+        FileDescriptor fileDescriptor = createFile(TEST_FILE_CONTENT)
+        FileContent content = FileContent.open(fileDescriptor)
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        FileContent output = content.load()
+        fileDescriptor.purge()
+        output.writeTo(outputStream)
+
+        then:
+        output.fileDescriptor == fileDescriptor
+        output.size == TEST_FILE_CONTENT.length
+        output.load().is(output)
+        outputStream.toByteArray() == TEST_FILE_CONTENT
+
+        when:
+        content.transferTo(0, 1, new ByteArrayOutputStream())
+
+        then:
+        thrown(ClosedChannelException)
+    }
+
+    void 'of - Content is served from the cached file'() {
+        given:
+        FileDescriptor fileDescriptor = createFile(TEST_FILE_CONTENT)
+        FileContent fileContent = FileContent.open(fileDescriptor)
+        CachedFile cachedFile = CachedFile.load(fileContent, null)
+        fileContent.close()
+        fileDescriptor.purge()
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        FileContent output = FileContent.of(cachedFile)
+        output.transferTo(5, 7, outputStream)
+
+        then:
+        output.fileDescriptor == null
+        output.size == TEST_FILE_CONTENT.length
+        output.lastModified == cachedFile.lastModified
+        outputStream.toByteArray() == 'content'.bytes
+    }
+
+    void 'decode - Compressed content is decompressed into memory'() {
+        given:
+        byte[] data = ('Compressible content ' * 100).bytes
+        FileDescriptor fileDescriptor = createCompressedFile(data)
+        FileContent content = FileContent.open(fileDescriptor)
+
+        when:
+        FileContent output = content.decode()
+        fileDescriptor.purge()
+
+        then:
+        content.encoded
+        content.encoding == 'gzip'
+        content.size < data.length
+        content.decodedSize == data.length
+        !output.encoded
+        output.size == data.length
+        readContent(output) == data
+    }
+
+    void 'writeDecodedTo - Compressed content is decompressed and closed'() {
+        given:
+        byte[] data = ('Compressible content ' * 10_000).bytes
+        FileDescriptor fileDescriptor = createCompressedFile(data)
+        FileContent content = FileContent.open(fileDescriptor)
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        content.writeDecodedTo(outputStream)
+
+        then:
+        outputStream.toByteArray() == data
+
+        when:
+        content.transferTo(0, 1, new ByteArrayOutputStream())
+
+        then:
+        thrown(ClosedChannelException)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'writeDecodedTo - Cached compressed content'() {
+        given:
+        byte[] data = ('Compressible content ' * 100).bytes
+        FileDescriptor fileDescriptor = createCompressedFile(data)
+        FileContent fileContent = FileContent.open(fileDescriptor)
+        CachedFile cachedFile = CachedFile.load(fileContent, null)
+        fileContent.close()
+        fileDescriptor.purge()
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        FileContent.of(cachedFile).writeDecodedTo(outputStream)
+
+        then:
+        cachedFile.encoding == 'gzip'
+        cachedFile.decodedSize == data.length
+        outputStream.toByteArray() == data
+    }
+
+    void 'writeDecodedTo - Content stored as is'() {
+        given:
+        FileDescriptor fileDescriptor = createFile(TEST_FILE_CONTENT)
+        FileContent content = FileContent.open(fileDescriptor)
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        content.writeDecodedTo(outputStream)
+
+        then:
+        !content.encoded
+        content.decodedSize == TEST_FILE_CONTENT.length
+        outputStream.toByteArray() == TEST_FILE_CONTENT
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    private static byte[] readContent(FileContent content) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+        content.writeTo(outputStream)
+        return outputStream.toByteArray()
+    }
+
+    private static FileDescriptor createCompressedFile(byte[] data) {
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, TEST_REQUSTED_FILE_DEPTH).ensureDirectoriesExist()
+        return fileDescriptor.replaceWith(fileDescriptor.writeTemporaryFile(new ByteArrayInputStream(data), false, JdkContentCodec.GZIP, 0))
+    }
+
+    private static FileDescriptor createFile(byte[] data) {
+        return FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, TEST_REQUSTED_FILE_DEPTH)
+                   .ensureDirectoriesExist()
+                   .write(data)
+    }
+
+}
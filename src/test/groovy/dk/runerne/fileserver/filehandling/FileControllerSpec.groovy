@@ -1,8 +1,15 @@
 package dk.runerne.fileserver.filehandling
 
+import org.springframework.http.MediaType
 import org.springframework.http.ResponseEntity
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody
 import spock.lang.Specification
 
+import java.time.Instant
+
+import static dk.runerne.fileserver.TestConstants.TEST_REQUSTED_FILE_DEPTH
+import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
 import static dk.runerne.fileserver.TestConstants.TEST_UUID
 import static dk.runerne.fileserver.TestConstants.TEST_FILE_CONTENT
 
@@ -12,97 +19,244 @@ class FileControllerSpec extends Specification {
 
     void setup() {
         fileController.fileService = Mock(FileService)
+        fileController.fileDownloadHandler = Mock(FileDownloadHandler)
+        fileController.batchUploadService = Mock(BatchUploadService)
+        fileController.batchDownloadService = Mock(BatchDownloadService)
+        fileController.uploadSessionService = Mock(UploadSessionService)
     }
 
     void 'create - OK'() {
+        given:
+        InputStream input = new ByteArrayInputStream(TEST_FILE_CONTENT)
+
         when:
-        ResponseEntity<UUID> output = fileController.create(TEST_FILE_CONTENT)
+        ResponseEntity<UUID> output = fileController.create(input)
 
         then:
         output.statusCode.is2xxSuccessful()
         output.body == TEST_UUID
 
         and:
-        1 * fileController.fileService.create(TEST_FILE_CONTENT) >> TEST_UUID
+        1 * fileController.fileService.create(input) >> TEST_UUID
     }
 
     void 'create - Internal error'() {
+        given:
+        InputStream input = new ByteArrayInputStream(TEST_FILE_CONTENT)
+
         when:
-        ResponseEntity<UUID> output = fileController.create(TEST_FILE_CONTENT)
+        ResponseEntity<UUID> output = fileController.create(input)
 
         then:
         output.statusCode.is5xxServerError()
         output.body == null
 
         and:
-        1 * fileController.fileService.create(TEST_FILE_CONTENT) >> { throw new RuntimeException('Internal error') }
+        1 * fileController.fileService.create(input) >> { throw new RuntimeException('Internal error') }
+    }
+
+    void 'createBatch - OK'() {
+        given:
+        InputStream input = new ByteArrayInputStream(TEST_FILE_CONTENT)
+        List<UUID> ids = [TEST_UUID, UUID.randomUUID()]
+
+        when:
+        ResponseEntity<List<UUID>> output = fileController.createBatch(input)
+
+        then:
+        output.statusCode.value() == 201
+        output.body == ids
+
+        and:
+        1 * fileController.batchUploadService.create(input) >> ids
+    }
+
+    void 'createBatch - Invalid batch'() {
+        given:
+        InputStream input = new ByteArrayInputStream(TEST_FILE_CONTENT)
+
+        when:
+        ResponseEntity<List<UUID>> output = fileController.createBatch(input)
+
+        then:
+        output == ResponseEntity.badRequest().build()
+
+        and:
+        1 * fileController.batchUploadService.create(input) >> { throw new IllegalArgumentException('Batch ends within an entry') }
+    }
+
+    void 'createBatch - Internal error'() {
+        given:
+        InputStream input = new ByteArrayInputStream(TEST_FILE_CONTENT)
+
+        when:
+        ResponseEntity<List<UUID>> output = fileController.createBatch(input)
+
+        then:
+        output.statusCode.is5xxServerError()
+
+        and:
+        1 * fileController.batchUploadService.create(input) >> { throw new RuntimeException('Internal error') }
     }
 
     void 'read - OK'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, TEST_REQUSTED_FILE_DEPTH)
+        MockHttpServletRequest request = new MockHttpServletRequest()
+        ResponseEntity<StreamingResponseBody> response = ResponseEntity.ok().build()
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileController.read(TEST_UUID, request)
+
+        then:
+        output.is(response)
+
+        and:
+        1 * fileController.fileService.getCachedFile(TEST_UUID) >> Optional.empty()
+        1 * fileController.fileService.locate(TEST_UUID) >> fileDescriptor
+        1 * fileController.fileDownloadHandler.handle(fileDescriptor, request) >> response
+    }
+
+    void 'read - File moved after it was located'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, TEST_REQUSTED_FILE_DEPTH)
+        FileDescriptor movedFileDescriptor = fileDescriptor.toDepth(1)
+        MockHttpServletRequest request = new MockHttpServletRequest()
+        ResponseEntity<StreamingResponseBody> response = ResponseEntity.ok().build()
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileController.read(TEST_UUID, request)
+
+        then:
+        output.is(response)
+
+        and:
+        1 * fileController.fileService.getCachedFile(TEST_UUID) >> Optional.empty()
+        1 * fileController.fileService.locate(TEST_UUID) >> fileDescriptor
+        1 * fileController.fileDownloadHandler.handle(fileDescriptor, request) >> { throw new FileNotFoundException('The file was moved') }
+        1 * fileController.fileService.relocate(TEST_UUID) >> movedFileDescriptor
+        1 * fileController.fileDownloadHandler.handle(movedFileDescriptor, request) >> response
+    }
+
+    void 'read - Cached'() {
+        given:
+        CachedFile cachedFile = Mock(CachedFile)
+        MockHttpServletRequest request = new MockHttpServletRequest()
+        ResponseEntity<StreamingResponseBody> response = ResponseEntity.ok().build()
+
         when:
-        ResponseEntity<byte[]> output = fileController.read(TEST_UUID)
+        ResponseEntity<StreamingResponseBody> output = fileController.read(TEST_UUID, request)
 
         then:
-        output == ResponseEntity.ok(TEST_FILE_CONTENT)
+        output.is(response)
 
         and:
-        1 * fileController.fileService.read(TEST_UUID) >> TEST_FILE_CONTENT
+        1 * fileController.fileService.getCachedFile(TEST_UUID) >> Optional.of(cachedFile)
+        0 * fileController.fileService.locate(_)
+        1 * fileController.fileDownloadHandler.handle(cachedFile, request) >> response
     }
 
     void 'read - File not found'() {
         when:
-        ResponseEntity<byte[]> output = fileController.read(TEST_UUID)
+        ResponseEntity<StreamingResponseBody> output = fileController.read(TEST_UUID, new MockHttpServletRequest())
 
         then:
         output == ResponseEntity.notFound().build()
 
         and:
-        1 * fileController.fileService.read(TEST_UUID) >> { throw new FileNotFoundException('The file was not found') }
+        1 * fileController.fileService.getCachedFile(TEST_UUID) >> Optional.empty()
+        1 * fileController.fileService.locate(TEST_UUID) >> { throw new FileNotFoundException('The file was not found') }
     }
 
     void 'read - Internal error'() {
         when:
-        ResponseEntity<byte[]> output = fileController.read(TEST_UUID)
+        ResponseEntity<StreamingResponseBody> output = fileController.read(TEST_UUID, new MockHttpServletRequest())
 
         then:
         output.statusCode.is5xxServerError()
         output.body == null
 
         and:
-        1 * fileController.fileService.read(TEST_UUID) >> { throw new RuntimeException('Internal error') }
+        1 * fileController.fileService.getCachedFile(TEST_UUID) >> Optional.empty()
+        1 * fileController.fileService.locate(TEST_UUID) >> { throw new RuntimeException('Internal error') }
+    }
+
+    void 'readBatch'() {
+        given:
+        List<UUID> ids = [TEST_UUID, UUID.randomUUID()]
+        InputStream input = new ByteArrayInputStream(new byte[0])
+        OutputStream outputStream = new ByteArrayOutputStream()
+        fileController.batchDownloadService.readIds(input) >> ids
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileController.readBatch(input)
+        output.body.writeTo(outputStream)
+
+        then:
+        output.statusCode.is2xxSuccessful()
+        output.headers.getContentType() == MediaType.APPLICATION_OCTET_STREAM
+
+        and:
+        1 * fileController.batchDownloadService.write(ids, outputStream)
+    }
+
+    void 'readBatch - #scenario'() {
+        given:
+        fileController.batchDownloadService.readIds(_ as InputStream) >> { throw exception }
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileController.readBatch(new ByteArrayInputStream(new byte[0]))
+
+        then:
+        output.statusCode.value() == status
+        output.body == null
+
+        where:
+        scenario                 | exception                                                   || status
+        'Invalid request'        | new IllegalArgumentException('More than 2 files requested') || 400
+        'Request cannot be read' | new RuntimeException('Error reading')                       || 500
     }
 
     void 'update - OK'() {
+        given:
+        InputStream input = new ByteArrayInputStream(TEST_FILE_CONTENT)
+
         when:
-        ResponseEntity<Void> output = fileController.update(TEST_FILE_CONTENT, TEST_UUID)
+        ResponseEntity<Void> output = fileController.update(input, TEST_UUID)
 
         then:
         output.statusCode.is2xxSuccessful()
 
         and:
-        1 * fileController.fileService.update(TEST_UUID, TEST_FILE_CONTENT)
+        1 * fileController.fileService.update(TEST_UUID, input)
     }
 
     void 'update - File not found'() {
+        given:
+        InputStream input = new ByteArrayInputStream(TEST_FILE_CONTENT)
+
         when:
-        ResponseEntity<Void> output = fileController.update(TEST_FILE_CONTENT, TEST_UUID)
+        ResponseEntity<Void> output = fileController.update(input, TEST_UUID)
 
         then:
         output == ResponseEntity.notFound().build()
 
         and:
-        1 * fileController.fileService.update(TEST_UUID, TEST_FILE_CONTENT) >> { throw new FileNotFoundException('The file was not found') }
+        1 * fileController.fileService.update(TEST_UUID, input) >> { throw new FileNotFoundException('The file was not found') }
     }
 
     void 'update - Internal error'() {
+        given:
+        InputStream input = new ByteArrayInputStream(TEST_FILE_CONTENT)
+
         when:
-        ResponseEntity<Void> output = fileController.update(TEST_FILE_CONTENT, TEST_UUID)
+        ResponseEntity<Void> output = fileController.update(input, TEST_UUID)
 
         then:
         output.statusCode.is5xxServerError()
 
         and:
-        1 * fileController.fileService.update(TEST_UUID, TEST_FILE_CONTENT) >> { throw new RuntimeException('Internal error') }
+        1 * fileController.fileService.update(TEST_UUID, input) >> { throw new RuntimeException('Internal error') }
     }
 
     void 'delete - OK'() {
@@ -138,4 +292,60 @@ class FileControllerSpec extends Specification {
         1 * fileController.fileService.delete(TEST_UUID) >> { throw new RuntimeException('Internal error') }
     }
 
-}
\ No newline at end of file
+    void 'openUpload - #scenario'() {
+        when:
+        ResponseEntity<UploadSessionStatus> output = fileController.openUpload(25, null)
+
+        then:
+        output.statusCode.value() == status
+
+        and:
+        1 * fileController.uploadSessionService.open(25, null) >> { result() }
+
+        where:
+        scenario         | result                                                                || status
+        'OK'             | { new UploadSessionStatus(TEST_UUID, 25, 10, 3, [], Instant.now()) } || 201
+        'Invalid size'   | { throw new IllegalArgumentException('Negative size') }               || 400
+        'Internal error' | { throw new RuntimeException('Internal error') }                      || 500
+    }
+
+    void 'uploadChunk - #scenario'() {
+        given:
+        InputStream input = new ByteArrayInputStream(TEST_FILE_CONTENT)
+
+        when:
+        ResponseEntity<Void> output = fileController.uploadChunk(input, TEST_UUID, 1)
+
+        then:
+        output.statusCode.value() == status
+
+        and:
+        1 * fileController.uploadSessionService.writeChunk(TEST_UUID, 1, input) >> { result() }
+
+        where:
+        scenario             | result                                                            || status
+        'OK'                 | { }                                                               || 204
+        'Session not found'  | { throw new FileNotFoundException('The session was not found') } || 404
+        'Wrong chunk length' | { throw new IllegalArgumentException('Chunk 1 is 12 bytes') }    || 400
+        'Internal error'     | { throw new RuntimeException('Internal error') }                 || 500
+    }
+
+    void 'commitUpload - #scenario'() {
+        when:
+        ResponseEntity<UUID> output = fileController.commitUpload(TEST_UUID)
+
+        then:
+        output.statusCode.value() == status
+
+        and:
+        1 * fileController.uploadSessionService.commit(TEST_UUID) >> { result() }
+
+        where:
+        scenario            | result                                                            || status
+        'OK'                | { UUID.randomUUID() }                                             || 201
+        'Session not found' | { throw new FileNotFoundException('The session was not found') } || 404
+        'Missing chunks'    | { throw new IllegalStateException('Missing chunks') }            || 409
+        'Internal error'    | { throw new RuntimeException('Internal error') }                 || 500
+    }
+
+}
@@ -4,9 +4,14 @@ import dk.runerne.common.InstantUtil
 import dk.runerne.common.UUIDUtil
 import spock.lang.Specification
 
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
 import java.nio.file.Files
+import java.nio.file.NoSuchFileException
 import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
 import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
 import java.time.Duration
 import java.time.Instant
 
@@ -97,6 +102,47 @@ class FileDescriptorSpec extends Specification {
         e.message == "Depth cannot be negative"
     }
 
+    void 'getPath - #depth'() {
+        when:
+        Path output = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, depth).path
+
+        then:
+        output == TEST_ROOT_FOLDER_PATH.resolve(expectedFolders).resolve(TEST_UUID.toString())
+
+        where:
+        depth || expectedFolders
+        0     || ''
+        1     || 'P'
+        3     || 'P/F/J'
+    }
+
+    void 'getPath - Wider segments'() {
+        given:
+        StorageLayout layout = new HashedStorageLayout(HashedStorageLayout.Encoding.HEX, 2, HashedStorageLayout.HashInput.STRING)
+        String hex = MessageDigest.getInstance('SHA-256').digest(TEST_UUID.toString().bytes).encodeHex().toString()
+
+        when:
+        FileDescriptor output = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, layout, TEST_UUID, 2)
+
+        then:
+        output.path == TEST_ROOT_FOLDER_PATH.resolve(hex.substring(0, 2)).resolve(hex.substring(2, 4)).resolve(TEST_UUID.toString())
+        FileDescriptor.fromPath(TEST_ROOT_FOLDER_PATH, layout, output.path) == output
+    }
+
+    void 'getPath - Same path at a depth reached by toDepth'() {
+        given:
+        FileDescriptor input = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1)
+        input.path
+
+        when:
+        FileDescriptor output = input.toDepth(3)
+
+        then:
+        output.path == TEST_FILE_PATH
+        output.path.is(output.path)
+        output == FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 3)
+    }
+
     void 'readAllBytes'() {
         given:
         FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 3).ensureDirectoriesExist()
@@ -112,6 +158,23 @@ class FileDescriptorSpec extends Specification {
         fileDescriptor.purge()
     }
 
+    void 'openReadChannel'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 3).ensureDirectoriesExist()
+        Files.write(fileDescriptor.getPath(), TEST_FILE_CONTENT)
+
+        when:
+        FileChannel output = fileDescriptor.openReadChannel()
+
+        then:
+        output.size() == TEST_FILE_CONTENT.length
+        output.position() == 0
+
+        cleanup:
+        output.close()
+        fileDescriptor.purge()
+    }
+
     void 'fileExists - #scenarie'() {
         given:
         FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, depth)
@@ -244,12 +307,223 @@ class FileDescriptorSpec extends Specification {
         then:
         output == fileDescriptor
         Files.readAllBytes(fileDescriptor.getPath()) == dataToWrite
+        fileDescriptor.readMetadata().digest == MessageDigest.getInstance('SHA-256').digest(dataToWrite).encodeHex().toString()
 
         cleanup:
         Files.deleteIfExists(fileDescriptor.getPath())
         deleteEmptyParentFolders(fileDescriptor.getFolderPath(), TEST_ROOT_FOLDER_PATH)
     }
 
+    void 'write - From stream larger than the copy buffer'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4).ensureDirectoriesExist()
+        byte[] dataToWrite = new byte[300_000]
+        new Random(42).nextBytes(dataToWrite)
+
+        when:
+        FileDescriptor output = fileDescriptor.write(new ByteArrayInputStream(dataToWrite))
+
+        then:
+        output == fileDescriptor
+        Files.readAllBytes(fileDescriptor.getPath()) == dataToWrite
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'write - From stream replaces longer content'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4).ensureDirectoriesExist()
+        fileDescriptor.write("Some much longer original content".getBytes())
+
+        when:
+        fileDescriptor.write(new ByteArrayInputStream("Short".getBytes()))
+
+        then:
+        Files.readAllBytes(fileDescriptor.getPath()) == "Short".getBytes()
+        fileDescriptor.readMetadata().digest == MessageDigest.getInstance('SHA-256').digest("Short".getBytes()).encodeHex().toString()
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'writeTemporaryFile - Compressible data is stored compressed'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4).ensureDirectoriesExist()
+        byte[] dataToWrite = (1..20_000).collect { "{\"id\": ${it}, \"name\": \"Name ${it}\"}" }.join(',\n').bytes
+
+        when:
+        fileDescriptor.replaceWith(fileDescriptor.writeTemporaryFile(new ByteArrayInputStream(dataToWrite), false, codec, 1024))
+
+        then:
+        FileMetadata metadata = fileDescriptor.readMetadata()
+        metadata.encoding == codec.name
+        metadata.size == dataToWrite.length
+        metadata.digest == MessageDigest.getInstance('SHA-256').digest(dataToWrite).encodeHex().toString()
+        Files.size(fileDescriptor.path) < dataToWrite.length / 5
+        codec.decode(Files.newInputStream(fileDescriptor.path)).bytes == dataToWrite
+        fileDescriptor.readAllBytes() == dataToWrite
+
+        cleanup:
+        fileDescriptor.purge()
+
+        where:
+        codec << JdkContentCodec.values()
+    }
+
+    void 'writeTemporaryFile - #scenarie is stored as is'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4).ensureDirectoriesExist()
+
+        when:
+        fileDescriptor.replaceWith(fileDescriptor.writeTemporaryFile(new ByteArrayInputStream(dataToWrite), false, JdkContentCodec.GZIP, 1024))
+
+        then:
+        FileMetadata metadata = fileDescriptor.readMetadata()
+        !metadata.encoded
+        metadata.size == null
+        metadata.digest == MessageDigest.getInstance('SHA-256').digest(dataToWrite).encodeHex().toString()
+        Files.readAllBytes(fileDescriptor.path) == dataToWrite
+        listTemporaryFiles(fileDescriptor).empty
+
+        cleanup:
+        fileDescriptor.purge()
+
+        where:
+        dataToWrite                                       | scenarie
+        randomBytes(200_000)                              | 'Random data'
+        concat(new byte[100_000], randomBytes(1_000_000)) | 'Data incompressible after the first block'
+        ('Small ' * 100).bytes                            | 'Data smaller than the minimum size'
+        new byte[0]                                       | 'Empty data'
+    }
+
+    void 'write - No input stream'() {
+        when:
+        FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4).write((InputStream) null)
+
+        then:
+        IllegalArgumentException e = thrown(IllegalArgumentException)
+        e.message == 'Input stream cannot be null'
+    }
+
+    void 'write - Open file keeps its content'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4).ensureDirectoriesExist().write("Original content".getBytes())
+        FileChannel channel = fileDescriptor.openReadChannel()
+
+        when:
+        fileDescriptor.write("New content".getBytes())
+
+        then:
+        Files.readAllBytes(fileDescriptor.getPath()) == "New content".getBytes()
+        Channels.newInputStream(channel).readAllBytes() == "Original content".getBytes()
+
+        cleanup:
+        channel?.close()
+        fileDescriptor.purge()
+    }
+
+    void 'write - Stream fails'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4).ensureDirectoriesExist().write("Original content".getBytes())
+        InputStream failingStream = new SequenceInputStream(new ByteArrayInputStream("New content".getBytes()), new InputStream() {
+            @Override
+            int read() throws IOException {
+                throw new IOException('Connection reset')
+            }
+        })
+
+        when:
+        fileDescriptor.write(failingStream)
+
+        then:
+        IOException e = thrown(IOException)
+        e.message == 'Connection reset'
+        Files.readAllBytes(fileDescriptor.getPath()) == "Original content".getBytes()
+        Files.list(fileDescriptor.getFolderPath()).withCloseable { it.toList() } == [fileDescriptor.getPath()]
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'writeTemporaryFile - Folder does not exist'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4)
+
+        when:
+        Path output = fileDescriptor.writeTemporaryFile(new ByteArrayInputStream(TEST_FILE_CONTENT), force)
+
+        then:
+        output.parent == fileDescriptor.getFolderPath()
+        FileDescriptor.isTemporaryFile(output)
+        Files.readAllBytes(output) == TEST_FILE_CONTENT
+        !fileDescriptor.fileExists()
+
+        when:
+        fileDescriptor.replaceWith(output)
+
+        then:
+        !Files.exists(output)
+        Files.readAllBytes(fileDescriptor.getPath()) == TEST_FILE_CONTENT
+        fileDescriptor.readMetadata().digest == MessageDigest.getInstance('SHA-256').digest(TEST_FILE_CONTENT).encodeHex().toString()
+
+        cleanup:
+        fileDescriptor.purge()
+
+        where:
+        force << [false, true]
+    }
+
+    void 'adoptTemporaryFile - Staged file is moved without copying'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4)
+        Path stagedPath = Files.createDirectories(Path.of('build/temp/staging')).resolve('staged.data')
+        Files.write(stagedPath, TEST_FILE_CONTENT)
+        Object fileKey = Files.readAttributes(stagedPath, BasicFileAttributes).fileKey()
+
+        when:
+        Path output = fileDescriptor.adoptTemporaryFile(stagedPath, force)
+
+        then:
+        !Files.exists(stagedPath)
+        output.parent == fileDescriptor.getFolderPath()
+        FileDescriptor.isTemporaryFile(output)
+        Files.readAttributes(output, BasicFileAttributes).fileKey() == fileKey
+
+        when:
+        fileDescriptor.replaceWith(output)
+
+        then:
+        Files.readAllBytes(fileDescriptor.getPath()) == TEST_FILE_CONTENT
+        fileDescriptor.readMetadata().digest == MessageDigest.getInstance('SHA-256').digest(TEST_FILE_CONTENT).encodeHex().toString()
+
+        cleanup:
+        fileDescriptor.purge()
+        Files.deleteIfExists(stagedPath)
+
+        where:
+        force << [false, true]
+    }
+
+    void 'isTemporaryFile - #fileName'() {
+        expect:
+        FileDescriptor.isTemporaryFile(TEST_ROOT_FOLDER_PATH.resolve(fileName)) == expected
+
+        where:
+        fileName                            | expected
+        "${TEST_UUID}"                      | false
+        "${TEST_UUID}.3f2a9c1b0d4e5f60.tmp" | true
+        'notes.txt'                         | false
+    }
+
+    void 'readMetadata - File does not exist'() {
+        when:
+        FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, 4).readMetadata()
+
+        then:
+        thrown(NoSuchFileException)
+    }
+
     private void deleteEmptyParentFolders(Path folderPath, Path stopAtPath) {
         Path currentPath = folderPath
         while (currentPath != null && !currentPath.equals(stopAtPath)) {
@@ -262,4 +536,22 @@ class FileDescriptorSpec extends Specification {
         }
     }
 
-}
\ No newline at end of file
+    private static List<Path> listTemporaryFiles(FileDescriptor fileDescriptor) {
+        Files.list(fileDescriptor.folderPath).withCloseable { stream ->
+            return stream.filter { FileDescriptor.isTemporaryFile(it) }.toList()
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length]
+        new Random(42).nextBytes(bytes)
+        return bytes
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length)
+        System.arraycopy(second, 0, bytes, first.length, second.length)
+        return bytes
+    }
+
+}
@@ -4,6 +4,7 @@ import dk.runerne.fileserver.ConfigurationService
 import spock.lang.Specification
 
 import java.nio.file.Files
+import java.nio.file.attribute.FileTime
 
 import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
 import static dk.runerne.fileserver.TestConstants.TEST_REQUSTED_FILE_DEPTH
@@ -18,7 +19,14 @@ class FileDistributorServiceSpec extends Specification {
         fileDistributorService.configurationService = Mock(ConfigurationService) {
             getDataRootFolderPath() >> TEST_ROOT_FOLDER_PATH
             getRequestedFileDepth() >> TEST_REQUSTED_FILE_DEPTH
+            getStorageLayout() >> StorageLayout.DEFAULT
         }
+        fileDistributorService.hotFileCache = Mock(HotFileCache)
+        fileDistributorService.fileLocationIndex = Mock(FileLocationIndex)
+        fileDistributorService.fileExistenceFilter = Mock(FileExistenceFilter)
+        fileDistributorService.misplacedFileTracker = Mock(MisplacedFileTracker)
+        fileDistributorService.fileLocks = new FileLocks(configurationService: fileDistributorService.configurationService)
+        fileDistributorService.fileLocks.init()
     }
 
     void 'cleanUpOrphans'() {
@@ -40,6 +48,24 @@ class FileDistributorServiceSpec extends Specification {
         level3FileDescriptor.purge()
     }
 
+    void 'cleanUpOrphans - File at the maximum depth'() {
+        given:
+        StorageLayout storageLayout = new HashedStorageLayout(HashedStorageLayout.Encoding.BASE64, 2, HashedStorageLayout.HashInput.STRING)
+        useStorageLayout(storageLayout, storageLayout.maxDepth)
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, storageLayout, TEST_UUID, storageLayout.maxDepth)
+                                                      .ensureDirectoriesExist()
+                                                      .write(TEST_FILE_CONTENT)
+
+        when:
+        fileDistributorService.cleanUpOrphans(fileDescriptor)
+
+        then:
+        Files.readAllBytes(fileDescriptor.path) == TEST_FILE_CONTENT
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
     void 'cleanUpOrphans - No file descriptor'() {
         when:
         fileDistributorService.cleanUpOrphans(null)
@@ -74,10 +100,30 @@ class FileDistributorServiceSpec extends Specification {
         then:
         output == (fileDescriptors as Set)
 
+        and:
+        1 * fileDistributorService.fileExistenceFilter.mightExist(TEST_UUID) >> true
+
         cleanup:
         fileDescriptors.each { it.purge() }
     }
 
+    void 'getAllFileDescriptorsForId - Rejected by the existence filter'() {
+        given:
+        FileDescriptor fileDescriptor = createFileAndFileDescriptor(TEST_REQUSTED_FILE_DEPTH)
+
+        when:
+        Set<FileDescriptor> output = fileDistributorService.getAllFileDescriptorsForId(TEST_UUID)
+
+        then:
+        output.isEmpty()
+
+        and:
+        1 * fileDistributorService.fileExistenceFilter.mightExist(TEST_UUID) >> false
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
     void 'getAllFileDescriptorsForId - No ID'() {
         when:
         fileDistributorService.getAllFileDescriptorsForId(null)
@@ -96,6 +142,8 @@ class FileDistributorServiceSpec extends Specification {
 
         then:
         output == fileDescriptor
+        0 * fileDistributorService.hotFileCache.invalidate(_)
+        0 * fileDistributorService.misplacedFileTracker.record(_)
 
         cleanup:
         output.purge()
@@ -110,11 +158,221 @@ class FileDistributorServiceSpec extends Specification {
 
         then:
         output.getDepth() == TEST_REQUSTED_FILE_DEPTH
+        1 * fileDistributorService.fileLocationIndex.put(TEST_UUID, TEST_REQUSTED_FILE_DEPTH)
+        1 * fileDistributorService.hotFileCache.invalidate(TEST_UUID)
+        1 * fileDistributorService.misplacedFileTracker.record(TEST_UUID)
+
+        cleanup:
+        output.purge()
+    }
+
+    void 'ensureCorrectLevel - Migrating'() {
+        given:
+        FileDescriptor fileDescriptor = createFileAndFileDescriptor(TEST_REQUSTED_FILE_DEPTH + 2)
+        fileDistributorService.startMigration(TEST_REQUSTED_FILE_DEPTH + 2)
+
+        when:
+        FileDescriptor output = fileDistributorService.ensureCorrectLevel(fileDescriptor)
+
+        then:
+        output == fileDescriptor
+        Files.exists(fileDescriptor.path)
+        0 * fileDistributorService.hotFileCache.invalidate(_)
+        1 * fileDistributorService.misplacedFileTracker.record(TEST_UUID)
+
+        cleanup:
+        output.purge()
+    }
+
+    void 'ensureCorrectLevel - File is in use'() {
+        given:
+        FileDescriptor fileDescriptor = createFileAndFileDescriptor(TEST_REQUSTED_FILE_DEPTH + 2)
+        fileDistributorService.fileLocks.readLock(TEST_UUID).lock()
+
+        when:
+        FileDescriptor output = fileDistributorService.ensureCorrectLevel(fileDescriptor)
+
+        then:
+        output == fileDescriptor
+        Files.exists(fileDescriptor.path)
+        0 * fileDistributorService.fileLocationIndex.put(_, _)
+        1 * fileDistributorService.misplacedFileTracker.record(TEST_UUID)
 
         cleanup:
+        fileDistributorService.fileLocks.readLock(TEST_UUID).unlock()
         output.purge()
     }
 
+    void 'ensureCorrectLevel - File has been moved'() {
+        given:
+        FileDescriptor fileDescriptor = createFileAndFileDescriptor(TEST_REQUSTED_FILE_DEPTH + 2)
+        FileDescriptor requestedFileDescriptor = fileDescriptor.toDepth(TEST_REQUSTED_FILE_DEPTH).ensureDirectoriesExist()
+        fileDescriptor.moveTo(requestedFileDescriptor)
+
+        when:
+        fileDistributorService.ensureCorrectLevel(fileDescriptor)
+
+        then:
+        Files.readAllBytes(requestedFileDescriptor.path) == TEST_FILE_CONTENT
+
+        cleanup:
+        requestedFileDescriptor.purge()
+    }
+
+    void 'relocate - Not at correct level'() {
+        given:
+        FileDescriptor fileDescriptor = createFileAndFileDescriptor(TEST_REQUSTED_FILE_DEPTH + 2)
+        FileDescriptor requestedFileDescriptor = fileDescriptor.toDepth(TEST_REQUSTED_FILE_DEPTH)
+
+        when:
+        boolean output = fileDistributorService.relocate(fileDescriptor)
+
+        then:
+        output
+        !Files.exists(fileDescriptor.path)
+        Files.readAllBytes(requestedFileDescriptor.path) == TEST_FILE_CONTENT
+        1 * fileDistributorService.fileLocationIndex.put(TEST_UUID, TEST_REQUSTED_FILE_DEPTH)
+        1 * fileDistributorService.hotFileCache.invalidate(TEST_UUID)
+
+        cleanup:
+        requestedFileDescriptor.purge()
+    }
+
+    void 'relocate - From the maximum depth'() {
+        given:
+        StorageLayout storageLayout = new HashedStorageLayout(HashedStorageLayout.Encoding.BASE64, 2, HashedStorageLayout.HashInput.STRING)
+        useStorageLayout(storageLayout, storageLayout.maxDepth - 1)
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, storageLayout, TEST_UUID, storageLayout.maxDepth)
+                                                      .ensureDirectoriesExist()
+                                                      .write(TEST_FILE_CONTENT)
+        FileDescriptor requestedFileDescriptor = fileDescriptor.toDepth(storageLayout.maxDepth - 1)
+
+        when:
+        boolean output = fileDistributorService.relocate(fileDescriptor)
+
+        then:
+        output
+        !fileDescriptor.folderExists()
+        Files.readAllBytes(requestedFileDescriptor.path) == TEST_FILE_CONTENT
+
+        cleanup:
+        requestedFileDescriptor.purge()
+    }
+
+    void 'relocate - More recent copy at correct level'() {
+        given:
+        FileDescriptor fileDescriptor = createFileAndFileDescriptor(TEST_REQUSTED_FILE_DEPTH + 2)
+        Files.setLastModifiedTime(fileDescriptor.path, FileTime.fromMillis(System.currentTimeMillis() - 60_000))
+        FileDescriptor requestedFileDescriptor = fileDescriptor.toDepth(TEST_REQUSTED_FILE_DEPTH).ensureDirectoriesExist().write("New content".getBytes())
+
+        when:
+        boolean output = fileDistributorService.relocate(fileDescriptor)
+
+        then:
+        output
+        !Files.exists(fileDescriptor.path)
+        Files.readAllBytes(requestedFileDescriptor.path) == "New content".getBytes()
+        0 * fileDistributorService.fileLocationIndex.put(_, _)
+
+        cleanup:
+        requestedFileDescriptor.purge()
+    }
+
+    void 'relocate - At correct level'() {
+        given:
+        FileDescriptor fileDescriptor = createFileAndFileDescriptor(TEST_REQUSTED_FILE_DEPTH)
+
+        when:
+        boolean output = fileDistributorService.relocate(fileDescriptor)
+
+        then:
+        !output
+        Files.exists(fileDescriptor.path)
+        0 * fileDistributorService.hotFileCache.invalidate(_)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'relocate - Migrating'() {
+        given:
+        FileDescriptor fileDescriptor = createFileAndFileDescriptor(TEST_REQUSTED_FILE_DEPTH + 2)
+        fileDistributorService.startMigration(TEST_REQUSTED_FILE_DEPTH + 2)
+
+        when:
+        boolean output = fileDistributorService.relocate(fileDescriptor)
+
+        then:
+        !output
+        Files.exists(fileDescriptor.path)
+        0 * fileDistributorService.hotFileCache.invalidate(_)
+
+        cleanup:
+        fileDistributorService.finishMigration()
+        fileDescriptor.purge()
+    }
+
+    void 'relocate - File has been deleted'() {
+        given:
+        FileDescriptor fileDescriptor = createFileAndFileDescriptor(TEST_REQUSTED_FILE_DEPTH + 2)
+        fileDescriptor.purge()
+
+        when:
+        boolean output = fileDistributorService.relocate(fileDescriptor)
+
+        then:
+        !output
+        !Files.exists(fileDescriptor.toDepth(TEST_REQUSTED_FILE_DEPTH).path)
+        0 * fileDistributorService.fileLocationIndex.put(_, _)
+    }
+
+    void 'getMigratingFileDescriptorsForId'() {
+        given:
+        FileDescriptor[] fileDescriptors = [
+                createFileAndFileDescriptor(1),
+                createFileAndFileDescriptor(TEST_REQUSTED_FILE_DEPTH),
+                createFileAndFileDescriptor(5),
+        ]
+        fileDistributorService.startMigration(5)
+
+        when:
+        Set<FileDescriptor> output = fileDistributorService.getMigratingFileDescriptorsForId(TEST_UUID)
+
+        then:
+        output == [fileDescriptors[1], fileDescriptors[2]] as Set
+
+        and:
+        1 * fileDistributorService.fileExistenceFilter.mightExist(TEST_UUID) >> true
+
+        cleanup:
+        fileDescriptors.each { it.purge() }
+    }
+
+    void 'getMigratingFileDescriptorsForId - Not migrating'() {
+        given:
+        FileDescriptor fileDescriptor = createFileAndFileDescriptor(TEST_REQUSTED_FILE_DEPTH)
+        fileDistributorService.startMigration(5)
+        fileDistributorService.finishMigration()
+
+        when:
+        Set<FileDescriptor> output = fileDistributorService.getMigratingFileDescriptorsForId(TEST_UUID)
+
+        then:
+        output.isEmpty()
+        !fileDistributorService.migrating
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    private void useStorageLayout(StorageLayout storageLayout, int requestedFileDepth) {
+        fileDistributorService.configurationService = Mock(ConfigurationService) {
+            getDataRootFolderPath() >> TEST_ROOT_FOLDER_PATH
+            getRequestedFileDepth() >> requestedFileDepth
+            getStorageLayout() >> storageLayout
+        }
+    }
+
     private static FileDescriptor createFileAndFileDescriptor(int depth) {
         FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, depth).ensureDirectoriesExist()
         fileDescriptor.write(TEST_FILE_CONTENT)
@@ -0,0 +1,390 @@
+package dk.runerne.fileserver.filehandling
+
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
+import org.springframework.http.MediaType
+import org.springframework.http.ResponseEntity
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.file.Files
+import java.security.MessageDigest
+import java.time.Instant
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+import java.util.zip.GZIPInputStream
+
+import static dk.runerne.fileserver.TestConstants.TEST_REQUSTED_FILE_DEPTH
+import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
+
+@Unroll
+class FileDownloadHandlerSpec extends Specification {
+
+    private static final byte[] DATA = ('0123456789' * 10).bytes
+    private static final String E_TAG = '"' + MessageDigest.getInstance('SHA-256').digest(DATA).encodeHex() + '"'
+
+    private FileDownloadHandler fileDownloadHandler = new FileDownloadHandler()
+    private FileDescriptor fileDescriptor
+    private Instant lastModified
+    private MockHttpServletRequest request = new MockHttpServletRequest()
+
+    void setup() {
+        fileDownloadHandler.hotFileCache = Mock(HotFileCache)
+        fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, TEST_REQUSTED_FILE_DEPTH)
+                             .ensureDirectoriesExist()
+                             .write(DATA)
+        lastModified = fileDescriptor.lastModifiedTime.toInstant()
+    }
+
+    void cleanup() {
+        if (fileDescriptor.fileExists()) {
+            fileDescriptor.purge()
+        }
+    }
+
+    void 'handle - Complete file'() {
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        output.statusCode == HttpStatus.OK
+        output.headers.getContentLength() == DATA.length
+        output.headers.getFirst(HttpHeaders.ACCEPT_RANGES) == 'bytes'
+        output.headers.getLastModified() == lastModified.toEpochMilli().intdiv(1000) * 1000
+        output.headers.getFirst(HttpHeaders.CONTENT_RANGE) == null
+        output.headers.getETag() == E_TAG
+        writeBody(output) == DATA
+    }
+
+    void 'handle - Single range'() {
+        given:
+        request.addHeader(HttpHeaders.RANGE, 'bytes=10-19')
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        output.statusCode == HttpStatus.PARTIAL_CONTENT
+        output.headers.getContentLength() == 10
+        output.headers.getFirst(HttpHeaders.CONTENT_RANGE) == "bytes 10-19/${DATA.length}"
+        output.headers.getETag() == E_TAG
+        writeBody(output) == '0123456789'.bytes
+    }
+
+    void 'handle - Multiple ranges'() {
+        given:
+        request.addHeader(HttpHeaders.RANGE, 'bytes=0-2,-3')
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+        byte[] body = writeBody(output)
+        String boundary = output.headers.getContentType().getParameter('boundary')
+
+        then:
+        output.statusCode == HttpStatus.PARTIAL_CONTENT
+        output.headers.getContentType().isCompatibleWith(MediaType.parseMediaType('multipart/byteranges'))
+        output.headers.getContentLength() == body.length
+        new String(body) == "\r\n--${boundary}\r\n" +
+                           "Content-Type: application/octet-stream\r\n" +
+                           "Content-Range: bytes 0-2/100\r\n" +
+                           "\r\n" +
+                           "012" +
+                           "\r\n--${boundary}\r\n" +
+                           "Content-Type: application/octet-stream\r\n" +
+                           "Content-Range: bytes 97-99/100\r\n" +
+                           "\r\n" +
+                           "789" +
+                           "\r\n--${boundary}--\r\n"
+    }
+
+    void 'handle - Range not satisfiable'() {
+        given:
+        request.addHeader(HttpHeaders.RANGE, 'bytes=500-')
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        output.statusCode == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE
+        output.headers.getFirst(HttpHeaders.CONTENT_RANGE) == "bytes */${DATA.length}"
+        output.body == null
+    }
+
+    void 'handle - Invalid range is ignored'() {
+        given:
+        request.addHeader(HttpHeaders.RANGE, 'bytes=20-10')
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        output.statusCode == HttpStatus.OK
+        writeBody(output) == DATA
+    }
+
+    void "handle - If-Range #scenarie"() {
+        given:
+        request.addHeader(HttpHeaders.RANGE, 'bytes=0-9')
+        request.addHeader(HttpHeaders.IF_RANGE, ifRange ?: httpDate(lastModified.minusSeconds(ageSeconds)))
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        output.statusCode == expectedStatus
+
+        where:
+        ifRange             | ageSeconds || expectedStatus             | scenarie
+        null                | 0          || HttpStatus.PARTIAL_CONTENT | 'matches last modified time'
+        null                | 60         || HttpStatus.OK              | 'does not match last modified time'
+        E_TAG               | 0          || HttpStatus.PARTIAL_CONTENT | 'matches entity tag'
+        'W/' + E_TAG        | 0          || HttpStatus.OK              | 'holds a weak entity tag'
+        '"some-entity-tag"' | 0          || HttpStatus.OK              | 'holds another entity tag'
+        'not a date'        | 0          || HttpStatus.OK              | 'is invalid'
+    }
+
+    void "handle - If-Match #scenarie"() {
+        given:
+        request.addHeader(HttpHeaders.IF_MATCH, ifMatch)
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        output.statusCode == expectedStatus
+
+        where:
+        ifMatch                        || expectedStatus                 | scenarie
+        E_TAG                          || HttpStatus.OK                  | 'matches'
+        '"other", ' + E_TAG            || HttpStatus.OK                  | 'matches one in a list'
+        '*'                            || HttpStatus.OK                  | 'is a wildcard'
+        '"other"'                      || HttpStatus.PRECONDITION_FAILED | 'does not match'
+        'W/' + E_TAG                   || HttpStatus.PRECONDITION_FAILED | 'is weak'
+    }
+
+    void "handle - If-None-Match #scenarie"() {
+        given:
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch)
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        output.statusCode == expectedStatus
+        output.headers.getETag() == E_TAG
+
+        where:
+        ifNoneMatch                    || expectedStatus          | scenarie
+        E_TAG                          || HttpStatus.NOT_MODIFIED | 'matches'
+        '"other", ' + E_TAG            || HttpStatus.NOT_MODIFIED | 'matches one in a list'
+        'W/' + E_TAG                   || HttpStatus.NOT_MODIFIED | 'matches weakly'
+        '*'                            || HttpStatus.NOT_MODIFIED | 'is a wildcard'
+        '"other"'                      || HttpStatus.OK           | 'does not match'
+    }
+
+    void 'handle - Not modified does not open the file'() {
+        given:
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, E_TAG)
+        FileDescriptor spiedFileDescriptor = Spy(fileDescriptor)
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(spiedFileDescriptor, request)
+
+        then:
+        output.statusCode == HttpStatus.NOT_MODIFIED
+        output.body == null
+        0 * spiedFileDescriptor.openReadChannel()
+    }
+
+    void 'handle - File replaced after the preconditions were evaluated, #scenario'() {
+        given:
+        FileDescriptor spiedFileDescriptor = Spy(fileDescriptor)
+        spiedFileDescriptor.readMetadata() >>> [new FileMetadata('0' * 64)] >> { callRealMethod() }
+        if (ifMatch) {
+            request.addHeader(HttpHeaders.IF_MATCH, ifMatch)
+        }
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(spiedFileDescriptor, request)
+
+        then:
+        output.statusCode == status
+        output.headers.getETag() == eTag
+
+        where:
+        scenario                      | ifMatch            || status                        | eTag
+        'If-Match of the old version' | "\"${'0' * 64}\"" || HttpStatus.PRECONDITION_FAILED | null
+        'no precondition'             | null               || HttpStatus.OK                  | E_TAG
+    }
+
+    void 'handle - File without entity tag'() {
+        given:
+        FileMetadata.NONE.write(fileDescriptor.path)
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, E_TAG)
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        output.statusCode == HttpStatus.OK
+        output.headers.getETag() == null
+        writeBody(output) == DATA
+    }
+
+    void 'handle - File not found'() {
+        given:
+        fileDescriptor.purge()
+
+        when:
+        fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        thrown(FileNotFoundException)
+    }
+
+    void 'handle - Small file is loaded into the cache'() {
+        given:
+        fileDownloadHandler.hotFileCache.getGeneration(fileDescriptor.id) >> 42L
+        fileDownloadHandler.hotFileCache.isCacheable(DATA.length) >> true
+        CachedFile cachedFile = null
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        1 * fileDownloadHandler.hotFileCache.put(_, 42L) >> { arguments -> cachedFile = arguments[0]; true }
+        cachedFile.id == fileDescriptor.id
+        cachedFile.ETag == E_TAG
+        output.statusCode == HttpStatus.OK
+        output.headers.getETag() == E_TAG
+        writeBody(output) == DATA
+    }
+
+    void 'handle - Cached file'() {
+        given:
+        fileDownloadHandler.hotFileCache.isCacheable(DATA.length) >> true
+        CachedFile cachedFile = null
+        fileDownloadHandler.hotFileCache.put(_, _) >> { arguments -> cachedFile = arguments[0]; true }
+        writeBody(fileDownloadHandler.handle(fileDescriptor, request))
+        fileDescriptor.purge()
+        request.addHeader(HttpHeaders.RANGE, 'bytes=10-19')
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(cachedFile, request)
+
+        then:
+        output.statusCode == HttpStatus.PARTIAL_CONTENT
+        output.headers.getETag() == E_TAG
+        output.headers.getLastModified() == lastModified.toEpochMilli().intdiv(1000) * 1000
+        writeBody(output) == '0123456789'.bytes
+    }
+
+    void 'handle - Cached file not modified'() {
+        given:
+        fileDownloadHandler.hotFileCache.isCacheable(DATA.length) >> true
+        CachedFile cachedFile = null
+        fileDownloadHandler.hotFileCache.put(_, _) >> { arguments -> cachedFile = arguments[0]; true }
+        writeBody(fileDownloadHandler.handle(fileDescriptor, request))
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, E_TAG)
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(cachedFile, request)
+
+        then:
+        output.statusCode == HttpStatus.NOT_MODIFIED
+        output.body == null
+    }
+
+    void 'handle - Compressed file is sent as stored to a client accepting #acceptEncoding'() {
+        given:
+        writeCompressed()
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding)
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        output.statusCode == HttpStatus.OK
+        output.headers.getFirst(HttpHeaders.CONTENT_ENCODING) == 'gzip'
+        output.headers.getVary() == [HttpHeaders.ACCEPT_ENCODING]
+        output.headers.getETag() == E_TAG[0..-2] + '-gzip"'
+        output.headers.getContentLength() == Files.size(fileDescriptor.path)
+        new GZIPInputStream(new ByteArrayInputStream(writeBody(output))).bytes == DATA
+
+        where:
+        acceptEncoding << ['gzip', 'deflate, gzip;q=0.5', '*', 'x-gzip']
+    }
+
+    void 'handle - Compressed file is decompressed for a client accepting #acceptEncoding'() {
+        given:
+        writeCompressed()
+        if (acceptEncoding != null) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding)
+        }
+        request.addHeader(HttpHeaders.RANGE, 'bytes=10-19')
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        output.statusCode == HttpStatus.OK
+        output.headers.getFirst(HttpHeaders.CONTENT_ENCODING) == null
+        output.headers.getVary() == [HttpHeaders.ACCEPT_ENCODING]
+        output.headers.getETag() == E_TAG
+        output.headers.getContentLength() == DATA.length
+        writeBody(output) == DATA
+
+        where:
+        acceptEncoding << [null, 'deflate', 'gzip;q=0', '*, gzip;q=0']
+    }
+
+    void 'handle - Compressed file not modified'() {
+        given:
+        writeCompressed()
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, 'gzip')
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, E_TAG[0..-2] + '-gzip"')
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(fileDescriptor, request)
+
+        then:
+        output.statusCode == HttpStatus.NOT_MODIFIED
+        output.headers.getVary() == [HttpHeaders.ACCEPT_ENCODING]
+    }
+
+    void 'handle - Cached compressed file'() {
+        given:
+        writeCompressed()
+        fileDownloadHandler.hotFileCache.isCacheable(_) >> true
+        CachedFile cachedFile = null
+        fileDownloadHandler.hotFileCache.put(_, _) >> { arguments -> cachedFile = arguments[0]; true }
+        writeBody(fileDownloadHandler.handle(fileDescriptor, request))
+
+        when:
+        ResponseEntity<StreamingResponseBody> output = fileDownloadHandler.handle(cachedFile, request)
+
+        then:
+        cachedFile.encoding == 'gzip'
+        cachedFile.ETag == E_TAG
+        output.headers.getETag() == E_TAG
+        writeBody(output) == DATA
+    }
+
+    private void writeCompressed() {
+        fileDescriptor.replaceWith(fileDescriptor.writeTemporaryFile(new ByteArrayInputStream(DATA), false, JdkContentCodec.GZIP, 0))
+        lastModified = fileDescriptor.lastModifiedTime.toInstant()
+    }
+
+    private static byte[] writeBody(ResponseEntity<StreamingResponseBody> response) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+        response.body.writeTo(outputStream)
+        return outputStream.toByteArray()
+    }
+
+    private static String httpDate(Instant instant) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(instant.atZone(ZoneOffset.UTC))
+    }
+
+}
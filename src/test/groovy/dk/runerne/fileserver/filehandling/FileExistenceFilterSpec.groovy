@@ -0,0 +1,104 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import static dk.runerne.fileserver.TestConstants.TEST_UUID
+
+class FileExistenceFilterSpec extends Specification {
+
+    private static final int EXPECTED_FILES = 10000
+
+    private FileExistenceFilter fileExistenceFilter = new FileExistenceFilter()
+
+    void setup() {
+        fileExistenceFilter.configurationService = Mock(ConfigurationService) {
+            isExistenceFilterEnabled() >> true
+            getExistenceFilterExpectedFiles() >> EXPECTED_FILES
+            getExistenceFilterFalsePositiveRate() >> 0.01
+        }
+    }
+
+    void 'mightExist - Not ready'() {
+        expect:
+        !fileExistenceFilter.ready
+        fileExistenceFilter.mightExist(TEST_UUID)
+    }
+
+    void 'Rebuild'() {
+        given:
+        List<UUID> ids = (1..EXPECTED_FILES).collect { UUID.randomUUID() }
+
+        when:
+        boolean started = fileExistenceFilter.startRebuild()
+        ids.each { fileExistenceFilter.add(it) }
+        fileExistenceFilter.completeRebuild()
+        int falsePositives = (1..EXPECTED_FILES).count { fileExistenceFilter.mightExist(UUID.randomUUID()) }
+
+        then:
+        started
+        fileExistenceFilter.ready
+        ids.every { fileExistenceFilter.mightExist(it) }
+        falsePositives < EXPECTED_FILES * 0.02
+    }
+
+    void 'add - Files created during a rebuild are kept'() {
+        given:
+        fileExistenceFilter.startRebuild()
+        fileExistenceFilter.completeRebuild()
+        fileExistenceFilter.startRebuild()
+
+        when:
+        fileExistenceFilter.add(TEST_UUID)
+
+        then:
+        fileExistenceFilter.mightExist(TEST_UUID)
+
+        when:
+        fileExistenceFilter.completeRebuild()
+
+        then:
+        fileExistenceFilter.mightExist(TEST_UUID)
+    }
+
+    void 'abortRebuild - Current filter remains in use'() {
+        given:
+        fileExistenceFilter.startRebuild()
+        fileExistenceFilter.add(TEST_UUID)
+        fileExistenceFilter.completeRebuild()
+        fileExistenceFilter.startRebuild()
+
+        when:
+        fileExistenceFilter.abortRebuild()
+
+        then:
+        fileExistenceFilter.ready
+        fileExistenceFilter.mightExist(TEST_UUID)
+        fileExistenceFilter.startRebuild()
+    }
+
+    void 'startRebuild - Already in progress'() {
+        given:
+        fileExistenceFilter.startRebuild()
+
+        expect:
+        !fileExistenceFilter.startRebuild()
+    }
+
+    void 'Disabled'() {
+        given:
+        fileExistenceFilter.configurationService = Mock(ConfigurationService) {
+            isExistenceFilterEnabled() >> false
+        }
+
+        when:
+        boolean started = fileExistenceFilter.startRebuild()
+        fileExistenceFilter.completeRebuild()
+
+        then:
+        !started
+        !fileExistenceFilter.ready
+        fileExistenceFilter.mightExist(TEST_UUID)
+    }
+
+}
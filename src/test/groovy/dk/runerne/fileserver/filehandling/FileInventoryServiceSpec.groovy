@@ -0,0 +1,113 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static dk.runerne.fileserver.TestConstants.TEST_FILE_CONTENT
+import static dk.runerne.fileserver.TestConstants.TEST_REQUSTED_FILE_DEPTH
+import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
+import static dk.runerne.fileserver.TestConstants.TEST_UUID
+
+class FileInventoryServiceSpec extends Specification {
+
+    private FileInventoryService fileInventoryService = new FileInventoryService()
+    private List<FileDescriptor> fileDescriptors = []
+
+    void setup() {
+        ConfigurationService configurationService = Mock(ConfigurationService) {
+            isLocationIndexEnabled() >> true
+            isExistenceFilterEnabled() >> true
+            getExistenceFilterExpectedFiles() >> 1000
+            getExistenceFilterFalsePositiveRate() >> 0.01
+            getDataRootFolderPath() >> TEST_ROOT_FOLDER_PATH
+            getRequestedFileDepth() >> TEST_REQUSTED_FILE_DEPTH
+        }
+        fileInventoryService.configurationService = configurationService
+        fileInventoryService.fileLocationIndex = new FileLocationIndex(configurationService: configurationService)
+        fileInventoryService.fileExistenceFilter = new FileExistenceFilter(configurationService: configurationService)
+    }
+
+    void cleanup() {
+        fileDescriptors.each { it.purge() }
+    }
+
+    void 'build'() {
+        given:
+        FileDescriptor level1FileDescriptor = createFile(UUID.randomUUID(), 1)
+        FileDescriptor level5FileDescriptor = createFile(UUID.randomUUID(), 5)
+        Path invalidFilePath = level1FileDescriptor.folderPath.resolve('not-a-uuid.txt')
+        Files.write(invalidFilePath, TEST_FILE_CONTENT)
+
+        when:
+        boolean output = fileInventoryService.build()
+
+        then:
+        output
+        fileInventoryService.fileLocationIndex.authoritative
+        fileInventoryService.fileLocationIndex.getDepth(level1FileDescriptor.id) == OptionalInt.of(1)
+        fileInventoryService.fileLocationIndex.getDepth(level5FileDescriptor.id) == OptionalInt.of(5)
+        fileInventoryService.fileExistenceFilter.ready
+        fileInventoryService.fileExistenceFilter.mightExist(level1FileDescriptor.id)
+        fileInventoryService.fileExistenceFilter.mightExist(level5FileDescriptor.id)
+
+        cleanup:
+        Files.delete(invalidFilePath)
+    }
+
+    void 'build - File at several depths'() {
+        given:
+        createFile(TEST_UUID, 1)
+        createFile(TEST_UUID, TEST_REQUSTED_FILE_DEPTH)
+        createFile(TEST_UUID, 5)
+
+        when:
+        fileInventoryService.build()
+
+        then:
+        fileInventoryService.fileLocationIndex.getDepth(TEST_UUID) == OptionalInt.of(TEST_REQUSTED_FILE_DEPTH)
+    }
+
+    void 'build - Files recorded during the build are kept'() {
+        given:
+        createFile(TEST_UUID, 1)
+        fileInventoryService.fileLocationIndex.put(TEST_UUID, 5)
+
+        when:
+        fileInventoryService.build()
+
+        then:
+        fileInventoryService.fileLocationIndex.getDepth(TEST_UUID) == OptionalInt.of(5)
+    }
+
+    void 'build - Folder deleted during the build'() {
+        given:
+        FileDescriptor firstFileDescriptor = createFile(UUID.fromString('00000000-0000-0000-0000-000000000001'), 1)
+        FileDescriptor secondFileDescriptor = createFile(UUID.fromString('ffffffff-0000-0000-0000-000000000001'), 1)
+        fileInventoryService.fileExistenceFilter = Spy(fileInventoryService.fileExistenceFilter) {
+            add(_ as UUID) >> { UUID id ->
+                // The file not found yet is deleted, and its folder is purged, after the data folder has been listed
+                (id == firstFileDescriptor.id ? secondFileDescriptor : firstFileDescriptor).purge()
+                callRealMethod()
+            }
+        }
+
+        when:
+        boolean output = fileInventoryService.build()
+
+        then:
+        output
+        fileInventoryService.fileLocationIndex.authoritative
+        fileInventoryService.fileExistenceFilter.ready
+        fileInventoryService.fileLocationIndex.size() == 1
+    }
+
+    private FileDescriptor createFile(UUID id, int depth) {
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, id, depth).ensureDirectoriesExist().write(TEST_FILE_CONTENT)
+        fileDescriptors << fileDescriptor
+        return fileDescriptor
+    }
+
+}
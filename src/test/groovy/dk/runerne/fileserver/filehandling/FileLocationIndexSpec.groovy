@@ -0,0 +1,95 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import static dk.runerne.fileserver.TestConstants.TEST_REQUSTED_FILE_DEPTH
+import static dk.runerne.fileserver.TestConstants.TEST_UUID
+
+class FileLocationIndexSpec extends Specification {
+
+    private FileLocationIndex fileLocationIndex = new FileLocationIndex()
+
+    void setup() {
+        fileLocationIndex.configurationService = Mock(ConfigurationService) {
+            isLocationIndexEnabled() >> true
+        }
+    }
+
+    void 'put and getDepth'() {
+        when:
+        fileLocationIndex.put(TEST_UUID, 2)
+
+        then:
+        fileLocationIndex.getDepth(TEST_UUID) == OptionalInt.of(2)
+        fileLocationIndex.getDepth(UUID.randomUUID()).isEmpty()
+        fileLocationIndex.size() == 1
+        !fileLocationIndex.authoritative
+    }
+
+    void 'remove'() {
+        given:
+        fileLocationIndex.put(TEST_UUID, 2)
+
+        when:
+        fileLocationIndex.remove(TEST_UUID)
+
+        then:
+        fileLocationIndex.getDepth(TEST_UUID).isEmpty()
+    }
+
+    void 'addFoundFile'() {
+        when:
+        fileLocationIndex.addFoundFile(TEST_UUID, 1, TEST_REQUSTED_FILE_DEPTH)
+
+        then:
+        fileLocationIndex.getDepth(TEST_UUID) == OptionalInt.of(1)
+    }
+
+    void 'addFoundFile - File at several depths'() {
+        when:
+        fileLocationIndex.addFoundFile(TEST_UUID, 1, TEST_REQUSTED_FILE_DEPTH)
+        fileLocationIndex.addFoundFile(TEST_UUID, TEST_REQUSTED_FILE_DEPTH, TEST_REQUSTED_FILE_DEPTH)
+        fileLocationIndex.addFoundFile(TEST_UUID, 5, TEST_REQUSTED_FILE_DEPTH)
+
+        then:
+        fileLocationIndex.getDepth(TEST_UUID) == OptionalInt.of(TEST_REQUSTED_FILE_DEPTH)
+    }
+
+    void 'addFoundFile - Files recorded by other operations are kept'() {
+        given:
+        fileLocationIndex.put(TEST_UUID, 5)
+
+        when:
+        fileLocationIndex.addFoundFile(TEST_UUID, 1, TEST_REQUSTED_FILE_DEPTH)
+
+        then:
+        fileLocationIndex.getDepth(TEST_UUID) == OptionalInt.of(5)
+    }
+
+    void 'markAuthoritative'() {
+        when:
+        fileLocationIndex.markAuthoritative()
+
+        then:
+        fileLocationIndex.authoritative
+    }
+
+    void 'Disabled'() {
+        given:
+        fileLocationIndex.configurationService = Mock(ConfigurationService) {
+            isLocationIndexEnabled() >> false
+        }
+
+        when:
+        fileLocationIndex.put(TEST_UUID, 2)
+        fileLocationIndex.addFoundFile(UUID.randomUUID(), 2, TEST_REQUSTED_FILE_DEPTH)
+        fileLocationIndex.markAuthoritative()
+
+        then:
+        fileLocationIndex.getDepth(TEST_UUID).isEmpty()
+        !fileLocationIndex.authoritative
+        fileLocationIndex.size() == 0
+    }
+
+}
@@ -0,0 +1,86 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import static dk.runerne.fileserver.TestConstants.TEST_UUID
+
+class FileLocksSpec extends Specification {
+
+    private FileLocks fileLocks = new FileLocks()
+
+    void setup() {
+        fileLocks.configurationService = Mock(ConfigurationService) {
+            getFileLockStripes() >> 16
+        }
+        fileLocks.init()
+    }
+
+    void 'init - #configured stripes'() {
+        given:
+        fileLocks.configurationService = Mock(ConfigurationService) {
+            getFileLockStripes() >> configured
+        }
+
+        when:
+        fileLocks.init()
+
+        then:
+        fileLocks.numberOfStripes == expected
+
+        where:
+        configured | expected
+        0          | 1
+        1          | 1
+        1000       | 1024
+        1024       | 1024
+        1 << 20    | FileLocks.MAX_STRIPES
+    }
+
+    void 'readLock - Reads share the lock'() {
+        given:
+        fileLocks.readLock(TEST_UUID).lock()
+
+        when:
+        boolean output = false
+        Thread.start {
+            output = fileLocks.readLock(TEST_UUID).tryLock()
+            fileLocks.readLock(TEST_UUID).unlock()
+        }.join()
+
+        then:
+        output
+
+        cleanup:
+        fileLocks.readLock(TEST_UUID).unlock()
+    }
+
+    void 'writeLock - Excludes reads and writes'() {
+        given:
+        fileLocks.writeLock(TEST_UUID).lock()
+
+        when:
+        boolean readLocked = true
+        boolean writeLocked = true
+        Thread.start {
+            readLocked = fileLocks.readLock(TEST_UUID).tryLock()
+            writeLocked = fileLocks.writeLock(TEST_UUID).tryLock()
+        }.join()
+
+        then:
+        !readLocked
+        !writeLocked
+
+        cleanup:
+        fileLocks.writeLock(TEST_UUID).unlock()
+    }
+
+    void 'writeLock - Files are spread over the stripes'() {
+        when:
+        Set<Object> locks = (1..1000).collect { fileLocks.writeLock(UUID.randomUUID()) } as Set
+
+        then:
+        locks.size() == 16
+    }
+
+}
@@ -0,0 +1,88 @@
+package dk.runerne.fileserver.filehandling
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+
+import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
+
+class FileMetadataSpec extends Specification {
+
+    private static final String DIGEST = 'a' * 64
+
+    private Path path
+
+    void setup() {
+        Files.createDirectories(TEST_ROOT_FOLDER_PATH)
+        path = Files.createTempFile(TEST_ROOT_FOLDER_PATH, 'metadata', '.tmp')
+    }
+
+    void cleanup() {
+        Files.deleteIfExists(path)
+    }
+
+    void 'write and read'() {
+        when:
+        new FileMetadata(DIGEST).write(path)
+
+        then:
+        FileMetadata.read(path) == new FileMetadata(DIGEST)
+    }
+
+    void 'write and read - Encoded content'() {
+        when:
+        new FileMetadata(DIGEST, 'gzip', 1234L).write(path)
+
+        then:
+        FileMetadata output = FileMetadata.read(path)
+        output == new FileMetadata(DIGEST, 'gzip', 1234L)
+        output.encoded
+        output.codec == JdkContentCodec.GZIP
+        FileMetadata.readEncoding(path) == 'gzip'
+    }
+
+    void 'getCodec - Unknown encoding'() {
+        when:
+        new FileMetadata(DIGEST, 'unknown', 1L).codec
+
+        then:
+        IOException e = thrown(IOException)
+        e.message == 'Unknown encoding: unknown'
+    }
+
+    void 'read - No metadata stored'() {
+        expect:
+        FileMetadata.read(path) == FileMetadata.NONE
+    }
+
+    void 'write - Null values are removed'() {
+        given:
+        new FileMetadata(DIGEST).write(path)
+
+        when:
+        FileMetadata.NONE.write(path)
+
+        then:
+        FileMetadata.read(path).digest == null
+    }
+
+    void 'read - File does not exist'() {
+        given:
+        Files.delete(path)
+
+        when:
+        FileMetadata.read(path)
+
+        then:
+        thrown(NoSuchFileException)
+    }
+
+    void 'getETag'() {
+        expect:
+        new FileMetadata(DIGEST).getETag() == '"' + DIGEST + '"'
+        FileMetadata.NONE.getETag() == null
+    }
+
+}
@@ -3,11 +3,14 @@ package dk.runerne.fileserver.filehandling
 import spock.lang.Specification
 
 import java.nio.file.Files
+import java.nio.file.Path
+import java.util.stream.Collectors
 import dk.runerne.fileserver.ConfigurationService
 
 import static dk.runerne.fileserver.TestConstants.TEST_FILE_CONTENT
 import static dk.runerne.fileserver.TestConstants.TEST_REQUSTED_FILE_DEPTH
 import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
+import static dk.runerne.fileserver.TestConstants.TEST_UUID
 
 class FileServiceSpec extends Specification {
 
@@ -17,8 +20,26 @@ class FileServiceSpec extends Specification {
         fileService.configurationService = Mock(ConfigurationService) {
             getDataRootFolderPath() >> TEST_ROOT_FOLDER_PATH
             getRequestedFileDepth() >> TEST_REQUSTED_FILE_DEPTH
+            getStorageLayout() >> StorageLayout.DEFAULT
+            getWriteDurability() >> WriteDurability.NONE
+            getCompressionCodec() >> Optional.empty()
         }
-        fileService.fileDistributorService = Mock(FileDistributorService)
+        fileService.fileDistributorService = Mock(FileDistributorService) {
+            getMigratingFileDescriptorsForId(_) >> ([] as Set)
+        }
+        fileService.hotFileCache = Mock(HotFileCache)
+        fileService.fileLocationIndex = Mock(FileLocationIndex) {
+            getDepth(_) >> OptionalInt.empty()
+        }
+        fileService.fileExistenceFilter = Mock(FileExistenceFilter)
+        fileService.relocationQueue = Mock(RelocationQueue)
+        fileService.fileLocks = new FileLocks(configurationService: fileService.configurationService)
+        fileService.fileLocks.init()
+        fileService.blobStore = Mock(BlobStore) {
+            share(_) >> { Path temporaryPath -> temporaryPath }
+        }
+        fileService.atomicFileWriter = new AtomicFileWriter(configurationService: fileService.configurationService, blobStore: fileService.blobStore)
+        fileService.atomicFileWriter.init()
     }
 
     void 'create'() {
@@ -28,11 +49,85 @@ class FileServiceSpec extends Specification {
         then:
         FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, uuid, TEST_REQUSTED_FILE_DEPTH)
         Files.exists(fileDescriptor.path)
+        1 * fileService.fileExistenceFilter.add(_ as UUID)
+        1 * fileService.fileLocationIndex.put(_ as UUID, TEST_REQUSTED_FILE_DEPTH)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'create - From stream'() {
+        given:
+        byte[] data = new byte[1_000_000]
+        new Random(42).nextBytes(data)
+
+        when:
+        UUID uuid = fileService.create(new ByteArrayInputStream(data))
+
+        then:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, uuid, TEST_REQUSTED_FILE_DEPTH)
+        Files.readAllBytes(fileDescriptor.path) == data
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'create - From staged file'() {
+        given:
+        Path stagedPath = Files.createDirectories(Path.of('build/temp/staging')).resolve('staged.data')
+        Files.write(stagedPath, TEST_FILE_CONTENT)
+
+        when:
+        UUID uuid = fileService.create(stagedPath)
+
+        then:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, uuid, TEST_REQUSTED_FILE_DEPTH)
+        Files.readAllBytes(fileDescriptor.path) == TEST_FILE_CONTENT
+        !Files.exists(stagedPath)
+        1 * fileService.fileExistenceFilter.add(_ as UUID)
+        1 * fileService.fileLocationIndex.put(_ as UUID, TEST_REQUSTED_FILE_DEPTH)
 
         cleanup:
         fileDescriptor.purge()
     }
 
+    void 'create - Stream fails'() {
+        given:
+        InputStream failingStream = new SequenceInputStream(new ByteArrayInputStream(TEST_FILE_CONTENT), new InputStream() {
+            @Override
+            int read() throws IOException {
+                throw new IOException('Connection reset')
+            }
+        })
+        Set<Path> pathsBefore = listPaths()
+
+        when:
+        fileService.create(failingStream)
+
+        then:
+        RuntimeException e = thrown(RuntimeException)
+        e.message == 'Error creating file'
+        e.cause.message == 'Connection reset'
+        listPaths() == pathsBefore
+    }
+
+    void 'create - Sharing fails'() {
+        given:
+        fileService.atomicFileWriter.blobStore = Mock(BlobStore) {
+            share(_) >> { throw new RuntimeException('Error sharing file') }
+        }
+        Set<Path> pathsBefore = listPaths()
+
+        when:
+        fileService.create(TEST_FILE_CONTENT)
+
+        then:
+        RuntimeException e = thrown(RuntimeException)
+        e.message == 'Error sharing file'
+        listPaths() == pathsBefore
+        0 * fileService.fileExistenceFilter.add(_)
+    }
+
     void 'update'() {
         given:
         UUID uuid = fileService.create(TEST_FILE_CONTENT)
@@ -45,12 +140,122 @@ class FileServiceSpec extends Specification {
         Files.readAllBytes(fileDescriptor.path) == "New content".getBytes()
 
         and:
+        1 * fileService.fileLocationIndex.put(uuid, TEST_REQUSTED_FILE_DEPTH)
+        1 * fileService.hotFileCache.invalidate(uuid)
         1 * fileService.fileDistributorService.cleanUpOrphans(fileDescriptor)
 
         cleanup:
         fileDescriptor.purge()
     }
 
+    void 'update - From stream'() {
+        given:
+        UUID uuid = fileService.create(TEST_FILE_CONTENT)
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, uuid, TEST_REQUSTED_FILE_DEPTH)
+
+        when:
+        fileService.update(uuid, new ByteArrayInputStream("New content".getBytes()))
+
+        then:
+        Files.readAllBytes(fileDescriptor.path) == "New content".getBytes()
+
+        and:
+        1 * fileService.fileDistributorService.cleanUpOrphans(fileDescriptor)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'update - File at another depth'() {
+        given:
+        FileDescriptor misplacedFileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1).ensureDirectoriesExist().write(TEST_FILE_CONTENT)
+        FileDescriptor fileDescriptor = misplacedFileDescriptor.toDepth(TEST_REQUSTED_FILE_DEPTH)
+        fileService.fileDistributorService.getAllFileDescriptorsForId(TEST_UUID) >> ([misplacedFileDescriptor] as Set)
+        fileService.relocationQueue.isEnabled() >> true
+
+        when:
+        fileService.update(TEST_UUID, "New content".getBytes())
+
+        then:
+        Files.readAllBytes(fileDescriptor.path) == "New content".getBytes()
+
+        and:
+        1 * fileService.fileLocationIndex.put(TEST_UUID, TEST_REQUSTED_FILE_DEPTH)
+        1 * fileService.fileDistributorService.cleanUpOrphans(fileDescriptor)
+
+        cleanup:
+        misplacedFileDescriptor.purge()
+        fileDescriptor.purge()
+    }
+
+    void 'update - Stream fails'() {
+        given:
+        UUID uuid = fileService.create(TEST_FILE_CONTENT)
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, uuid, TEST_REQUSTED_FILE_DEPTH)
+        InputStream failingStream = new SequenceInputStream(new ByteArrayInputStream("New content".getBytes()), new InputStream() {
+            @Override
+            int read() throws IOException {
+                throw new IOException('Connection reset')
+            }
+        })
+
+        when:
+        fileService.update(uuid, failingStream)
+
+        then:
+        RuntimeException e = thrown(RuntimeException)
+        e.cause.message == 'Connection reset'
+        Files.readAllBytes(fileDescriptor.path) == TEST_FILE_CONTENT
+        listTemporaryFiles(fileDescriptor).empty
+        0 * fileService.hotFileCache.invalidate(uuid)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'update - Data is written without holding the lock'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, TEST_REQUSTED_FILE_DEPTH).ensureDirectoriesExist().write(TEST_FILE_CONTENT)
+        fileService.fileLocks.writeLock(TEST_UUID).lock()
+
+        when:
+        Thread thread = Thread.start { fileService.update(TEST_UUID, "New content".getBytes()) }
+        long deadline = System.currentTimeMillis() + 5000
+        while (listTemporaryFiles(fileDescriptor).empty && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+
+        then:
+        thread.alive
+        listTemporaryFiles(fileDescriptor).size() == 1
+        Files.readAllBytes(fileDescriptor.path) == TEST_FILE_CONTENT
+
+        when:
+        fileService.fileLocks.writeLock(TEST_UUID).unlock()
+        thread.join(5000)
+
+        then:
+        !thread.alive
+        Files.readAllBytes(fileDescriptor.path) == "New content".getBytes()
+        listTemporaryFiles(fileDescriptor).empty
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'update - File does not exist'() {
+        given:
+        UUID uuid = UUID.randomUUID()
+        fileService.fileDistributorService.getAllFileDescriptorsForId(uuid) >> ([] as Set)
+
+        when:
+        fileService.update(uuid, new ByteArrayInputStream(TEST_FILE_CONTENT))
+
+        then:
+        FileNotFoundException e = thrown(FileNotFoundException)
+        e.message == "File with ID ${uuid} does not exist."
+    }
+
     void 'read'() {
         given:
         UUID uuid = fileService.create(TEST_FILE_CONTENT)
@@ -68,6 +273,250 @@ class FileServiceSpec extends Specification {
         fileDescriptor.purge()
     }
 
+    void 'open - OK'() {
+        given:
+        UUID uuid = fileService.create(TEST_FILE_CONTENT)
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, uuid, TEST_REQUSTED_FILE_DEPTH)
+        fileService.fileDistributorService.getAllFileDescriptorsForId(uuid) >> [fileDescriptor]
+        fileService.fileDistributorService.ensureCorrectLevel(fileDescriptor) >> fileDescriptor
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream()
+
+        when:
+        FileContent output = fileService.open(uuid)
+        output.writeTo(outputStream)
+
+        then:
+        output.fileDescriptor == fileDescriptor
+        output.size == TEST_FILE_CONTENT.length
+        outputStream.toByteArray() == TEST_FILE_CONTENT
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'open - File does not exist'() {
+        given:
+        UUID uuid = UUID.randomUUID()
+        fileService.fileDistributorService.getAllFileDescriptorsForId(uuid) >> []
+
+        when:
+        fileService.open(uuid)
+
+        then:
+        FileNotFoundException e = thrown(FileNotFoundException)
+        e.message == "File with ID ${uuid} does not exist."
+    }
+
+    void 'locate - Probes every depth when the file is not in the location index'() {
+        given:
+        UUID uuid = fileService.create(TEST_FILE_CONTENT)
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, uuid, TEST_REQUSTED_FILE_DEPTH)
+
+        when:
+        FileDescriptor output = fileService.locate(uuid)
+
+        then:
+        output == fileDescriptor
+
+        and:
+        1 * fileService.fileDistributorService.getAllFileDescriptorsForId(uuid) >> [fileDescriptor]
+        1 * fileService.fileDistributorService.ensureCorrectLevel(fileDescriptor) >> fileDescriptor
+        1 * fileService.fileLocationIndex.put(uuid, TEST_REQUSTED_FILE_DEPTH)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'locate - Looks up the new and the old depth first while migrating'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1).ensureDirectoriesExist().write(TEST_FILE_CONTENT)
+
+        when:
+        FileDescriptor output = fileService.locate(TEST_UUID)
+
+        then:
+        output == fileDescriptor
+
+        and:
+        1 * fileService.fileDistributorService.getMigratingFileDescriptorsForId(TEST_UUID) >> ([fileDescriptor] as Set)
+        0 * fileService.fileDistributorService.getAllFileDescriptorsForId(_)
+        1 * fileService.fileDistributorService.ensureCorrectLevel(fileDescriptor) >> fileDescriptor
+        1 * fileService.fileLocationIndex.put(TEST_UUID, 1)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'locate - File in the location index at the requested depth'() {
+        when:
+        FileDescriptor output = fileService.locate(TEST_UUID)
+
+        then:
+        output == FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, TEST_REQUSTED_FILE_DEPTH)
+
+        and:
+        1 * fileService.fileLocationIndex.getDepth(TEST_UUID) >> OptionalInt.of(TEST_REQUSTED_FILE_DEPTH)
+        0 * fileService.fileDistributorService._
+    }
+
+    void 'locate - File in the location index at another depth'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1).ensureDirectoriesExist().write(TEST_FILE_CONTENT)
+        FileDescriptor movedFileDescriptor = fileDescriptor.toDepth(TEST_REQUSTED_FILE_DEPTH)
+
+        when:
+        FileDescriptor output = fileService.locate(TEST_UUID)
+
+        then:
+        output == movedFileDescriptor
+
+        and:
+        1 * fileService.fileLocationIndex.getDepth(TEST_UUID) >> OptionalInt.of(1)
+        1 * fileService.fileDistributorService.ensureCorrectLevel(fileDescriptor) >> movedFileDescriptor
+        0 * fileService.fileDistributorService.getAllFileDescriptorsForId(_)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'locate - File at another depth is relocated in the background'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1).ensureDirectoriesExist().write(TEST_FILE_CONTENT)
+        fileService.relocationQueue.isEnabled() >> true
+
+        when:
+        FileDescriptor output = fileService.locate(TEST_UUID)
+
+        then:
+        output == fileDescriptor
+
+        and:
+        1 * fileService.fileLocationIndex.getDepth(TEST_UUID) >> OptionalInt.of(1)
+        1 * fileService.relocationQueue.enqueue(fileDescriptor) >> true
+        0 * fileService.fileDistributorService.ensureCorrectLevel(_)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'locate - File at another depth is not relocated while migrating'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1).ensureDirectoriesExist().write(TEST_FILE_CONTENT)
+        fileService.relocationQueue.isEnabled() >> true
+        fileService.fileDistributorService.isMigrating() >> true
+
+        when:
+        FileDescriptor output = fileService.locate(TEST_UUID)
+
+        then:
+        output == fileDescriptor
+
+        and:
+        1 * fileService.fileLocationIndex.getDepth(TEST_UUID) >> OptionalInt.of(1)
+        0 * fileService.relocationQueue.enqueue(_)
+        1 * fileService.fileDistributorService.ensureCorrectLevel(fileDescriptor) >> fileDescriptor
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'locate - Location index entry at another depth is out of date'() {
+        when:
+        fileService.locate(TEST_UUID)
+
+        then:
+        thrown(FileNotFoundException)
+
+        and:
+        1 * fileService.fileLocationIndex.getDepth(TEST_UUID) >> OptionalInt.of(1)
+        1 * fileService.fileLocationIndex.remove(TEST_UUID)
+        0 * fileService.fileDistributorService.ensureCorrectLevel(_)
+        1 * fileService.fileDistributorService.getAllFileDescriptorsForId(TEST_UUID) >> []
+    }
+
+    void 'locate - File not in authoritative location index'() {
+        when:
+        fileService.locate(TEST_UUID)
+
+        then:
+        FileNotFoundException e = thrown(FileNotFoundException)
+        e.message == "File with ID ${TEST_UUID} does not exist."
+
+        and:
+        1 * fileService.fileLocationIndex.isAuthoritative() >> true
+        0 * fileService.fileDistributorService._
+    }
+
+    void 'read - Location index is out of date'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1).ensureDirectoriesExist().write(TEST_FILE_CONTENT)
+        fileService.fileDistributorService.getAllFileDescriptorsForId(TEST_UUID) >> [fileDescriptor]
+        fileService.fileDistributorService.ensureCorrectLevel(fileDescriptor) >> fileDescriptor
+
+        when:
+        byte[] output = fileService.read(TEST_UUID)
+
+        then:
+        output == TEST_FILE_CONTENT
+
+        and:
+        1 * fileService.fileLocationIndex.getDepth(TEST_UUID) >> OptionalInt.of(TEST_REQUSTED_FILE_DEPTH)
+        1 * fileService.fileLocationIndex.remove(TEST_UUID)
+        1 * fileService.fileLocationIndex.put(TEST_UUID, 1)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'read - File at another depth is moved after the lock is released'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1).ensureDirectoriesExist().write(TEST_FILE_CONTENT)
+        fileService.fileDistributorService.getAllFileDescriptorsForId(TEST_UUID) >> ([fileDescriptor] as Set)
+        boolean unlocked = false
+
+        when:
+        byte[] output = fileService.read(TEST_UUID)
+
+        then:
+        output == TEST_FILE_CONTENT
+
+        and:
+        1 * fileService.fileDistributorService.ensureCorrectLevel(fileDescriptor) >> {
+            unlocked = fileService.fileLocks.writeLock(TEST_UUID).tryLock()
+            fileService.fileLocks.writeLock(TEST_UUID).unlock()
+            fileDescriptor
+        }
+        unlocked
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'update - Waits while the file is read'() {
+        given:
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, TEST_REQUSTED_FILE_DEPTH).ensureDirectoriesExist().write(TEST_FILE_CONTENT)
+        fileService.fileLocks.readLock(TEST_UUID).lock()
+
+        when:
+        Thread thread = Thread.start { fileService.update(TEST_UUID, "New content".getBytes()) }
+        thread.join(100)
+
+        then:
+        thread.alive
+        Files.readAllBytes(fileDescriptor.path) == TEST_FILE_CONTENT
+
+        when:
+        fileService.fileLocks.readLock(TEST_UUID).unlock()
+        thread.join(5000)
+
+        then:
+        !thread.alive
+        Files.readAllBytes(fileDescriptor.path) == "New content".getBytes()
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
     void 'delete - OK'() {
         given:
         UUID uuid = fileService.create(TEST_FILE_CONTENT)
@@ -79,6 +528,57 @@ class FileServiceSpec extends Specification {
 
         then:
         !Files.exists(fileDescriptor.path)
+
+        and:
+        1 * fileService.fileLocationIndex.remove(uuid)
+        1 * fileService.hotFileCache.invalidate(uuid)
+    }
+
+    void 'delete - Blob is released'() {
+        given:
+        UUID uuid = fileService.create(TEST_FILE_CONTENT)
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, uuid, TEST_REQUSTED_FILE_DEPTH)
+        String digest = fileDescriptor.readMetadata().digest
+        fileService.fileDistributorService.getAllFileDescriptorsForId(uuid) >> [fileDescriptor]
+        fileService.blobStore.isEnabled() >> true
+
+        when:
+        fileService.delete(uuid)
+
+        then:
+        1 * fileService.blobStore.release(digest)
+    }
+
+    void 'update - Blob of the old content is released'() {
+        given:
+        UUID uuid = fileService.create(TEST_FILE_CONTENT)
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, uuid, TEST_REQUSTED_FILE_DEPTH)
+        String digest = fileDescriptor.readMetadata().digest
+        fileService.fileDistributorService.getAllFileDescriptorsForId(uuid) >> [fileDescriptor]
+        fileService.blobStore.isEnabled() >> true
+
+        when:
+        fileService.update(uuid, "New content".getBytes())
+
+        then:
+        1 * fileService.blobStore.release(digest)
+
+        cleanup:
+        fileDescriptor.purge()
+    }
+
+    void 'getCachedFile'() {
+        given:
+        CachedFile cachedFile = Mock(CachedFile)
+
+        when:
+        Optional<CachedFile> output = fileService.getCachedFile(TEST_UUID)
+
+        then:
+        output.get().is(cachedFile)
+
+        and:
+        1 * fileService.hotFileCache.get(TEST_UUID) >> Optional.of(cachedFile)
     }
 
     void 'delete - File does not exist'() {
@@ -94,4 +594,19 @@ class FileServiceSpec extends Specification {
         !Files.exists(fileDescriptor.path)
     }
 
+    private static List<Path> listTemporaryFiles(FileDescriptor fileDescriptor) {
+        Files.list(fileDescriptor.folderPath).withCloseable { stream ->
+            return stream.filter { FileDescriptor.isTemporaryFile(it) }.collect(Collectors.toList())
+        }
+    }
+
+    private static Set<Path> listPaths() {
+        if (!Files.exists(TEST_ROOT_FOLDER_PATH)) {
+            return [] as Set
+        }
+        Files.walk(TEST_ROOT_FOLDER_PATH).withCloseable { stream ->
+            return stream.filter { it != TEST_ROOT_FOLDER_PATH }.collect(Collectors.toSet())
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import jakarta.servlet.FilterChain
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.mock.web.MockHttpServletResponse
+import spock.lang.Specification
+import spock.lang.Unroll
+
+@Unroll
+class ForegroundLoadMonitorSpec extends Specification {
+
+    private ForegroundLoadMonitor foregroundLoadMonitor = new ForegroundLoadMonitor()
+
+    void setup() {
+        foregroundLoadMonitor.configurationService = Mock(ConfigurationService) {
+            getApiBasePath() >> '/api/v1'
+        }
+    }
+
+    void 'sample - Requests for files are measured'() {
+        given:
+        ForegroundLoad inFlight = null
+        FilterChain filterChain = Mock(FilterChain) {
+            doFilter(_, _) >> {
+                inFlight = foregroundLoadMonitor.sample()
+                sleep(20)
+            }
+        }
+
+        when:
+        foregroundLoadMonitor.doFilter(new MockHttpServletRequest('GET', "/api/v1/file/${UUID.randomUUID()}"), new MockHttpServletResponse(), filterChain)
+        ForegroundLoad output = foregroundLoadMonitor.sample()
+
+        then:
+        inFlight.inFlightRequests == 1
+        output.requests == 1
+        output.averageLatencyMillis >= 20.0d
+        output.inFlightRequests == 0
+        foregroundLoadMonitor.sample() == ForegroundLoad.NONE
+    }
+
+    void 'sample - #path is not measured'() {
+        when:
+        foregroundLoadMonitor.doFilter(new MockHttpServletRequest('GET', path), new MockHttpServletResponse(), Mock(FilterChain))
+
+        then:
+        foregroundLoadMonitor.sample() == ForegroundLoad.NONE
+
+        where:
+        path << ['/api/v1/maintenance-job/status', '/api/v1/files']
+    }
+
+}
@@ -0,0 +1,76 @@
+package dk.runerne.fileserver.filehandling
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+import static dk.runerne.fileserver.TestConstants.TEST_UUID
+import static dk.runerne.fileserver.filehandling.HashedStorageLayout.Encoding.BASE64
+import static dk.runerne.fileserver.filehandling.HashedStorageLayout.Encoding.HEX
+import static dk.runerne.fileserver.filehandling.HashedStorageLayout.HashInput.BYTES
+import static dk.runerne.fileserver.filehandling.HashedStorageLayout.HashInput.STRING
+
+@Unroll
+class HashedStorageLayoutSpec extends Specification {
+
+    void 'getFanOut and getMaxDepth - #encoding #segmentLength'() {
+        given:
+        HashedStorageLayout layout = new HashedStorageLayout(encoding, segmentLength, STRING)
+
+        expect:
+        layout.fanOut == fanOut
+        layout.maxDepth == maxDepth
+
+        where:
+        encoding | segmentLength || fanOut | maxDepth
+        BASE64   | 1             || 64     | 43
+        BASE64   | 2             || 4096   | 21
+        HEX      | 1             || 16     | 64
+        HEX      | 2             || 256    | 32
+    }
+
+    void 'getFolderNames - #encoding #hashInput'() {
+        given:
+        byte[] digest = MessageDigest.getInstance('SHA-256').digest(input)
+
+        when:
+        String output = new String(new HashedStorageLayout(encoding, 1, hashInput).getFolderNames(TEST_UUID))
+
+        then:
+        output == expected(digest)
+
+        where:
+        encoding | hashInput || input                          | expected
+        BASE64   | STRING    || TEST_UUID.toString().bytes     | { byte[] d -> Base64.urlEncoder.withoutPadding().encodeToString(d) }
+        HEX      | STRING    || TEST_UUID.toString().bytes     | { byte[] d -> d.encodeHex().toString() }
+        HEX      | BYTES     || uuidBytes()                    | { byte[] d -> d.encodeHex().toString() }
+    }
+
+    void 'Default layout'() {
+        expect:
+        new String(StorageLayout.DEFAULT.getFolderNames(TEST_UUID)).startsWith('PFJ')
+        StorageLayout.DEFAULT.segmentLength == 1
+        StorageLayout.DEFAULT.fanOut == 64
+    }
+
+    void 'Invalid segment length - #encoding #segmentLength'() {
+        when:
+        new HashedStorageLayout(encoding, segmentLength, STRING)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        encoding | segmentLength
+        BASE64   | 0
+        BASE64   | 5
+        HEX      | 7
+    }
+
+    private static byte[] uuidBytes() {
+        return ByteBuffer.allocate(16).putLong(TEST_UUID.mostSignificantBits).putLong(TEST_UUID.leastSignificantBits).array()
+    }
+
+}
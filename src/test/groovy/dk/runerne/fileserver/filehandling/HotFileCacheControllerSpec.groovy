@@ -0,0 +1,26 @@
+package dk.runerne.fileserver.filehandling
+
+import spock.lang.Specification
+
+class HotFileCacheControllerSpec extends Specification {
+
+    private HotFileCacheController hotFileCacheController = new HotFileCacheController()
+
+    void setup() {
+        hotFileCacheController.hotFileCache = Mock(HotFileCache)
+    }
+
+    void 'getStatistics'() {
+        given:
+        HotFileCacheStatistics statistics = new HotFileCacheStatistics(true, 3, 1, 0, 2, 200, 1000)
+        hotFileCacheController.hotFileCache.getStatistics() >> statistics
+
+        when:
+        HotFileCacheStatistics output = hotFileCacheController.getStatistics()
+
+        then:
+        output == statistics
+        output.hitRatio == 0.75d
+    }
+
+}
@@ -0,0 +1,142 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import static dk.runerne.fileserver.TestConstants.TEST_REQUSTED_FILE_DEPTH
+import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
+
+class HotFileCacheSpec extends Specification {
+
+    private static final int FILE_SIZE = 100
+
+    private HotFileCache hotFileCache = new HotFileCache()
+    private List<FileDescriptor> fileDescriptors = []
+
+    void setup() {
+        hotFileCache.configurationService = Mock(ConfigurationService) {
+            isHotFileCacheEnabled() >> true
+            getHotFileCacheMaxEntrySize() >> FILE_SIZE
+            getHotFileCacheMaxTotalSize() >> 10 * FILE_SIZE
+        }
+    }
+
+    void cleanup() {
+        fileDescriptors.each { it.purge() }
+    }
+
+    void 'get - Miss'() {
+        expect:
+        hotFileCache.get(UUID.randomUUID()).isEmpty()
+        hotFileCache.statistics.misses == 1
+        hotFileCache.statistics.hits == 0
+    }
+
+    void 'put and get - Hit'() {
+        given:
+        CachedFile cachedFile = createCachedFile()
+
+        when:
+        boolean added = hotFileCache.put(cachedFile, hotFileCache.getGeneration(cachedFile.id))
+
+        then:
+        added
+        hotFileCache.get(cachedFile.id).get().is(cachedFile)
+        hotFileCache.statistics.hits == 1
+        hotFileCache.statistics.entries == 1
+        hotFileCache.statistics.size == FILE_SIZE
+    }
+
+    void 'put - Invalidated while loading'() {
+        given:
+        CachedFile cachedFile = createCachedFile()
+        long generation = hotFileCache.getGeneration(cachedFile.id)
+        hotFileCache.invalidate(cachedFile.id)
+
+        when:
+        boolean added = hotFileCache.put(cachedFile, generation)
+
+        then:
+        !added
+        hotFileCache.get(cachedFile.id).isEmpty()
+    }
+
+    void 'invalidate'() {
+        given:
+        CachedFile cachedFile = createCachedFile()
+        hotFileCache.put(cachedFile, hotFileCache.getGeneration(cachedFile.id))
+        hotFileCache.get(cachedFile.id)
+
+        when:
+        hotFileCache.invalidate(cachedFile.id)
+
+        then:
+        hotFileCache.get(cachedFile.id).isEmpty()
+        hotFileCache.statistics.entries == 0
+        hotFileCache.statistics.size == 0
+    }
+
+    void 'put - Budget exceeded evicts least recently used entries on probation'() {
+        given:
+        List<CachedFile> cachedFiles = (1..11).collect { createCachedFile() }
+
+        when:
+        cachedFiles.each { hotFileCache.put(it, hotFileCache.getGeneration(it.id)) }
+
+        then:
+        hotFileCache.statistics.evictions == 1
+        hotFileCache.statistics.size == 10 * FILE_SIZE
+        hotFileCache.get(cachedFiles[0].id).isEmpty()
+        hotFileCache.get(cachedFiles[10].id).isPresent()
+    }
+
+    void 'put - Files that are read again are protected from a burst of new files'() {
+        given:
+        CachedFile hotFile = createCachedFile()
+        hotFileCache.put(hotFile, hotFileCache.getGeneration(hotFile.id))
+        hotFileCache.get(hotFile.id)
+
+        when:
+        (1..20).collect { createCachedFile() }.each { hotFileCache.put(it, hotFileCache.getGeneration(it.id)) }
+
+        then:
+        hotFileCache.get(hotFile.id).isPresent()
+        hotFileCache.statistics.size == 10 * FILE_SIZE
+    }
+
+    void 'isCacheable'() {
+        expect:
+        hotFileCache.isCacheable(FILE_SIZE)
+        !hotFileCache.isCacheable(FILE_SIZE + 1)
+    }
+
+    void 'Disabled'() {
+        given:
+        hotFileCache.configurationService = Mock(ConfigurationService) {
+            isHotFileCacheEnabled() >> false
+            getHotFileCacheMaxEntrySize() >> FILE_SIZE
+            getHotFileCacheMaxTotalSize() >> 10 * FILE_SIZE
+        }
+        CachedFile cachedFile = createCachedFile()
+
+        expect:
+        !hotFileCache.isCacheable(FILE_SIZE)
+        !hotFileCache.put(cachedFile, hotFileCache.getGeneration(cachedFile.id))
+        hotFileCache.get(cachedFile.id).isEmpty()
+        hotFileCache.statistics.misses == 0
+    }
+
+    private CachedFile createCachedFile() {
+        FileDescriptor fileDescriptor = FileDescriptor.fromDepth(TEST_ROOT_FOLDER_PATH, TEST_REQUSTED_FILE_DEPTH)
+                                            .ensureDirectoriesExist()
+                                            .write(new byte[FILE_SIZE])
+        fileDescriptors << fileDescriptor
+        FileContent content = FileContent.open(fileDescriptor)
+        try {
+            return CachedFile.load(content, null)
+        } finally {
+            content.close()
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import static dk.runerne.fileserver.TestConstants.TEST_FILE_PATH
+import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
+import static dk.runerne.fileserver.TestConstants.TEST_UUID
+
+class MisplacedFileTrackerSpec extends Specification {
+
+    private MisplacedFileTracker misplacedFileTracker = new MisplacedFileTracker()
+
+    void setup() {
+        misplacedFileTracker.configurationService = Mock(ConfigurationService) {
+            getStorageLayout() >> StorageLayout.DEFAULT
+        }
+    }
+
+    void 'getBucket'() {
+        expect:
+        misplacedFileTracker.getBucket(TEST_UUID) == TEST_ROOT_FOLDER_PATH.relativize(TEST_FILE_PATH).getName(0).toString()
+    }
+
+    void 'byMostRecentActivity'() {
+        given:
+        List<String> buckets = ['A', 'B', 'C', 'D']
+        misplacedFileTracker.lastFound.put('C', 1L)
+        misplacedFileTracker.lastFound.put('B', 2L)
+
+        when:
+        buckets.sort(misplacedFileTracker.byMostRecentActivity())
+
+        then:
+        buckets == ['B', 'C', 'A', 'D']
+    }
+
+    void 'record'() {
+        given:
+        String bucket = misplacedFileTracker.getBucket(TEST_UUID)
+        List<String> buckets = ['0', bucket, 'z'].unique()
+
+        when:
+        misplacedFileTracker.record(TEST_UUID)
+        buckets.sort(misplacedFileTracker.byMostRecentActivity())
+
+        then:
+        buckets.first() == bucket
+    }
+
+}
@@ -0,0 +1,25 @@
+package dk.runerne.fileserver.filehandling
+
+import spock.lang.Specification
+
+class RelocationQueueControllerSpec extends Specification {
+
+    private RelocationQueueController relocationQueueController = new RelocationQueueController()
+
+    void setup() {
+        relocationQueueController.relocationQueue = Mock(RelocationQueue)
+    }
+
+    void 'getStatistics'() {
+        given:
+        RelocationQueueStatistics statistics = new RelocationQueueStatistics(true, 10, 2, 1, 7, 3, 1, 3, 1, 0)
+        relocationQueueController.relocationQueue.getStatistics() >> statistics
+
+        when:
+        RelocationQueueStatistics output = relocationQueueController.getStatistics()
+
+        then:
+        output == statistics
+    }
+
+}
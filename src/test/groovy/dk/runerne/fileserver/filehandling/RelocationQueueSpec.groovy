@@ -0,0 +1,163 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+
+import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
+
+class RelocationQueueSpec extends Specification {
+
+    private RelocationQueue relocationQueue = new RelocationQueue()
+    private CountDownLatch release = new CountDownLatch(1)
+
+    void setup() {
+        relocationQueue.configurationService = Mock(ConfigurationService) {
+            isRelocationQueueEnabled() >> true
+            getRelocationQueueCapacity() >> 1
+            getRelocationWorkerThreads() >> 1
+        }
+        relocationQueue.fileDistributorService = Mock(FileDistributorService)
+        relocationQueue.misplacedFileTracker = Mock(MisplacedFileTracker)
+    }
+
+    void cleanup() {
+        release.countDown()
+        relocationQueue.shutdown()
+    }
+
+    void 'enqueue - File is relocated'() {
+        given:
+        FileDescriptor fileDescriptor = createFileDescriptor()
+        relocationQueue.init()
+
+        when:
+        boolean output = relocationQueue.enqueue(fileDescriptor)
+        waitUntil { relocationQueue.statistics.relocated == 1 }
+
+        then:
+        output
+        1 * relocationQueue.misplacedFileTracker.record(fileDescriptor.id)
+        1 * relocationQueue.fileDistributorService.relocate(fileDescriptor) >> true
+
+        and:
+        relocationQueue.statistics == new RelocationQueueStatistics(true, 1, 0, 0, 1, 0, 0, 1, 0, 0)
+    }
+
+    void 'enqueue - File is skipped'() {
+        given:
+        FileDescriptor fileDescriptor = createFileDescriptor()
+        relocationQueue.fileDistributorService.relocate(fileDescriptor) >> false
+        relocationQueue.init()
+
+        when:
+        relocationQueue.enqueue(fileDescriptor)
+        waitUntil { relocationQueue.statistics.skipped == 1 }
+
+        then:
+        relocationQueue.statistics.relocated == 0
+    }
+
+    void 'enqueue - File is not relocated twice while queued'() {
+        given:
+        FileDescriptor fileDescriptor = createFileDescriptor()
+        relocationQueue.fileDistributorService = new BlockingFileDistributorService()
+        relocationQueue.init()
+
+        when:
+        boolean firstOutput = relocationQueue.enqueue(fileDescriptor)
+        boolean secondOutput = relocationQueue.enqueue(fileDescriptor)
+
+        then:
+        firstOutput
+        secondOutput
+        relocationQueue.statistics.enqueued == 1
+        relocationQueue.statistics.deduplicated == 1
+        2 * relocationQueue.misplacedFileTracker.record(fileDescriptor.id)
+    }
+
+    void 'enqueue - Queue is full'() {
+        given:
+        FileDescriptor activeFileDescriptor = createFileDescriptor()
+        FileDescriptor queuedFileDescriptor = createFileDescriptor()
+        FileDescriptor rejectedFileDescriptor = createFileDescriptor()
+        relocationQueue.fileDistributorService = new BlockingFileDistributorService()
+        relocationQueue.init()
+        relocationQueue.enqueue(activeFileDescriptor)
+        waitUntil { relocationQueue.statistics.active == 1 }
+
+        when:
+        boolean queuedOutput = relocationQueue.enqueue(queuedFileDescriptor)
+        boolean rejectedOutput = relocationQueue.enqueue(rejectedFileDescriptor)
+
+        then:
+        queuedOutput
+        !rejectedOutput
+        relocationQueue.statistics == new RelocationQueueStatistics(true, 1, 1, 1, 2, 0, 1, 0, 0, 0)
+
+        when:
+        release.countDown()
+        waitUntil { relocationQueue.statistics.relocated == 2 }
+
+        then:
+        relocationQueue.enqueue(rejectedFileDescriptor)
+    }
+
+    void 'enqueue - Relocation fails'() {
+        given:
+        FileDescriptor fileDescriptor = createFileDescriptor()
+        relocationQueue.fileDistributorService.relocate(fileDescriptor) >> { throw new RuntimeException("Error relocating file") }
+        relocationQueue.init()
+
+        when:
+        relocationQueue.enqueue(fileDescriptor)
+        waitUntil { relocationQueue.statistics.failed == 1 }
+        relocationQueue.enqueue(fileDescriptor)
+        waitUntil { relocationQueue.statistics.failed == 2 }
+
+        then:
+        relocationQueue.statistics.enqueued == 2
+        relocationQueue.statistics.deduplicated == 0
+    }
+
+    void 'init - Disabled'() {
+        given:
+        relocationQueue.configurationService = Mock(ConfigurationService) {
+            isRelocationQueueEnabled() >> false
+            getRelocationQueueCapacity() >> 1
+        }
+
+        when:
+        relocationQueue.init()
+
+        then:
+        !relocationQueue.isEnabled()
+        relocationQueue.statistics == new RelocationQueueStatistics(false, 1, 0, 0, 0, 0, 0, 0, 0, 0)
+    }
+
+    /**
+     * Spock mocks are locked while they respond, so a mock that waits would block the test as well.
+     */
+    private class BlockingFileDistributorService extends FileDistributorService {
+
+        @Override
+        boolean relocate(FileDescriptor fileDescriptor) {
+            release.await()
+            return true
+        }
+
+    }
+
+    private static FileDescriptor createFileDescriptor() {
+        return FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, UUID.randomUUID(), 1)
+    }
+
+    private static void waitUntil(Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 5000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+}
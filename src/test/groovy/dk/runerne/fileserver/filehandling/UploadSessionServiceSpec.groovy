@@ -0,0 +1,277 @@
+package dk.runerne.fileserver.filehandling
+
+import dk.runerne.fileserver.ConfigurationService
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+import static dk.runerne.fileserver.TestConstants.TEST_UUID
+
+class UploadSessionServiceSpec extends Specification {
+
+    private static final Path UPLOAD_FOLDER_PATH = Path.of('build/temp/uploads')
+
+    private UploadSessionService uploadSessionService = new UploadSessionService()
+    private long timeoutMinutes = 60
+    private byte[] committedContent
+
+    void setup() {
+        init()
+    }
+
+    void cleanup() {
+        uploadSessionService.shutdown()
+        if (Files.exists(UPLOAD_FOLDER_PATH)) {
+            Files.list(UPLOAD_FOLDER_PATH).withCloseable { stream -> stream.forEach { Files.delete(it) } }
+        }
+    }
+
+    void 'open'() {
+        when:
+        UploadSessionStatus output = uploadSessionService.open(25, 10)
+
+        then:
+        output.size == 25
+        output.chunkSize == 10
+        output.numberOfChunks == 3
+        output.receivedChunks.empty
+        !output.complete
+        uploadSessionService.getStatus(output.id) == output
+    }
+
+    void 'open - Configured chunk size'() {
+        expect:
+        uploadSessionService.open(20, null).numberOfChunks == 3
+    }
+
+    void 'open - #scenario'() {
+        when:
+        uploadSessionService.open(size, chunkSize)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        scenario          | size     | chunkSize
+        'Negative size'   | -1       | 10
+        'Zero chunk size' | 10       | 0
+        'Too many chunks' | 1L << 40 | 1
+    }
+
+    void 'writeChunk and commit - Chunks in any order'() {
+        given:
+        byte[] data = randomBytes(25)
+        UUID sessionId = uploadSessionService.open(data.length, 10).id
+
+        when:
+        writeChunk(sessionId, data, 2, 10)
+        writeChunk(sessionId, data, 0, 10)
+
+        then:
+        uploadSessionService.getStatus(sessionId).receivedChunks == [0, 2]
+
+        when:
+        uploadSessionService.commit(sessionId)
+
+        then:
+        thrown(IllegalStateException)
+
+        when:
+        writeChunk(sessionId, data, 1, 10)
+        UUID output = uploadSessionService.commit(sessionId)
+
+        then:
+        output == TEST_UUID
+        committedContent == data
+
+        when:
+        uploadSessionService.getStatus(sessionId)
+
+        then:
+        thrown(FileNotFoundException)
+        listUploadFolder().empty
+    }
+
+    void 'writeChunk - In parallel'() {
+        given:
+        byte[] data = randomBytes(1_000_000)
+        int chunkSize = 10_000
+        UUID sessionId = uploadSessionService.open(data.length, chunkSize).id
+        def executor = Executors.newFixedThreadPool(8)
+
+        when:
+        executor.invokeAll((0..<100).collect { chunk -> { -> writeChunk(sessionId, data, chunk, chunkSize) } as Callable })*.get()
+
+        then:
+        uploadSessionService.getStatus(sessionId).complete
+
+        when:
+        uploadSessionService.commit(sessionId)
+
+        then:
+        committedContent == data
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    void 'writeChunk - #scenario'() {
+        given:
+        UUID sessionId = uploadSessionService.open(25, 10).id
+
+        when:
+        uploadSessionService.writeChunk(sessionId, chunk, new ByteArrayInputStream(new byte[length]))
+
+        then:
+        thrown(IllegalArgumentException)
+        uploadSessionService.getStatus(sessionId).receivedChunks.empty
+
+        where:
+        scenario                 | chunk | length
+        'Chunk is too short'     | 0     | 9
+        'Chunk is too long'      | 0     | 11
+        'Last chunk is too long' | 2     | 10
+        'Negative chunk'         | -1    | 10
+        'Chunk out of range'     | 3     | 5
+    }
+
+    void 'writeChunk - Session does not exist'() {
+        when:
+        uploadSessionService.writeChunk(TEST_UUID, 0, new ByteArrayInputStream(new byte[10]))
+
+        then:
+        thrown(FileNotFoundException)
+    }
+
+    void 'commit - Empty file'() {
+        given:
+        UUID sessionId = uploadSessionService.open(0, 10).id
+
+        when:
+        uploadSessionService.commit(sessionId)
+
+        then:
+        committedContent == new byte[0]
+    }
+
+    void 'commit - Session is kept when the file cannot be created'() {
+        given:
+        byte[] data = randomBytes(10)
+        UUID sessionId = uploadSessionService.open(data.length, 10).id
+        writeChunk(sessionId, data, 0, 10)
+        uploadSessionService.fileService = Mock(FileService) {
+            create(_ as Path) >> { throw new RuntimeException('Error creating file') }
+        }
+
+        when:
+        uploadSessionService.commit(sessionId)
+
+        then:
+        thrown(RuntimeException)
+        uploadSessionService.getStatus(sessionId).complete
+    }
+
+    void 'init - Sessions are resumed'() {
+        given:
+        byte[] data = randomBytes(25)
+        UUID sessionId = uploadSessionService.open(data.length, 10).id
+        writeChunk(sessionId, data, 1, 10)
+        Files.write(UPLOAD_FOLDER_PATH.resolve('stray.data'), data)
+
+        when:
+        uploadSessionService.shutdown()
+        uploadSessionService = new UploadSessionService()
+        init()
+
+        then:
+        uploadSessionService.getStatus(sessionId).receivedChunks == [1]
+        !Files.exists(UPLOAD_FOLDER_PATH.resolve('stray.data'))
+
+        when:
+        writeChunk(sessionId, data, 0, 10)
+        writeChunk(sessionId, data, 2, 10)
+        uploadSessionService.commit(sessionId)
+
+        then:
+        committedContent == data
+    }
+
+    void 'abort'() {
+        given:
+        UUID sessionId = uploadSessionService.open(25, 10).id
+
+        when:
+        uploadSessionService.abort(sessionId)
+
+        then:
+        listUploadFolder().empty
+
+        when:
+        uploadSessionService.abort(sessionId)
+
+        then:
+        thrown(FileNotFoundException)
+    }
+
+    void 'collectAbandoned'() {
+        given:
+        UUID sessionId = uploadSessionService.open(25, 10).id
+
+        expect:
+        uploadSessionService.collectAbandoned() == 0
+        uploadSessionService.getStatus(sessionId)
+
+        when:
+        timeoutMinutes = 0
+        Thread.sleep(5)
+        int output = uploadSessionService.collectAbandoned()
+
+        then:
+        output == 1
+        listUploadFolder().empty
+
+        when:
+        uploadSessionService.getStatus(sessionId)
+
+        then:
+        thrown(FileNotFoundException)
+    }
+
+    private void init() {
+        uploadSessionService.configurationService = Mock(ConfigurationService) {
+            getUploadRootFolderPath() >> UPLOAD_FOLDER_PATH
+            getUploadChunkSize() >> 8
+            getUploadSessionTimeoutMinutes() >> { timeoutMinutes }
+        }
+        uploadSessionService.fileService = Mock(FileService) {
+            create(_ as Path) >> { Path stagedPath ->
+                committedContent = Files.readAllBytes(stagedPath)
+                Files.delete(stagedPath)
+                return TEST_UUID
+            }
+        }
+        uploadSessionService.atomicFileWriter = Mock(AtomicFileWriter) {
+            getWriteDurability() >> WriteDurability.NONE
+        }
+        uploadSessionService.init()
+    }
+
+    private void writeChunk(UUID sessionId, byte[] data, int chunk, int chunkSize) {
+        int from = chunk * chunkSize
+        uploadSessionService.writeChunk(sessionId, chunk, new ByteArrayInputStream(data, from, Math.min(chunkSize, data.length - from)))
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size]
+        new Random(42).nextBytes(data)
+        return data
+    }
+
+    private static List<Path> listUploadFolder() {
+        Files.list(UPLOAD_FOLDER_PATH).withCloseable { it.toList() }
+    }
+
+}
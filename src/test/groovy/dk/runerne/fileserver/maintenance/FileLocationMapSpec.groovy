@@ -0,0 +1,53 @@
+package dk.runerne.fileserver.maintenance
+
+import spock.lang.Specification
+
+import static dk.runerne.fileserver.TestConstants.TEST_UUID
+
+class FileLocationMapSpec extends Specification {
+
+    private FileLocationMap fileLocationMap = new FileLocationMap()
+
+    void 'add - Depths of the same file are merged'() {
+        when:
+        fileLocationMap.add(TEST_UUID, 1)
+        fileLocationMap.add(TEST_UUID, 5)
+        fileLocationMap.add(TEST_UUID, 1)
+
+        then:
+        fileLocationMap.size() == 1
+        entries() == [(TEST_UUID): (1L << 1) | (1L << 5)]
+    }
+
+    void 'add - Many files'() {
+        given:
+        List<UUID> ids = (1..10_000).collect { UUID.randomUUID() }
+
+        when:
+        ids.each { fileLocationMap.add(it, 2) }
+
+        then:
+        fileLocationMap.size() == 10_000
+        entries() == ids.collectEntries { [(it): 1L << 2] }
+    }
+
+    void 'add - Depth out of range - #depth'() {
+        when:
+        fileLocationMap.add(TEST_UUID, depth)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        depth << [-1, FileLocationMap.MAX_DEPTH + 1]
+    }
+
+    private Map<UUID, Long> entries() {
+        Map<UUID, Long> entries = [:]
+        (0..<FileLocationMap.SEGMENTS).each { segment ->
+            fileLocationMap.forEach(segment, { UUID id, long depths -> entries[id] = depths } as FileLocationMap.EntryConsumer)
+        }
+        return entries
+    }
+
+}
@@ -4,7 +4,12 @@ import ch.qos.logback.classic.Logger
 import ch.qos.logback.classic.spi.ILoggingEvent
 import ch.qos.logback.core.read.ListAppender
 import dk.runerne.fileserver.ConfigurationService
+import dk.runerne.fileserver.FileDepthChangedEvent
 import dk.runerne.fileserver.filehandling.FileDescriptor
+import dk.runerne.fileserver.filehandling.FileLocationIndex
+import dk.runerne.fileserver.filehandling.FileLocks
+import dk.runerne.fileserver.filehandling.HotFileCache
+import dk.runerne.fileserver.filehandling.StorageLayout
 import org.slf4j.LoggerFactory
 import spock.lang.Specification
 
@@ -13,18 +18,26 @@ import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.SimpleFileVisitor
 import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.attribute.FileTime
 
 import static dk.runerne.fileserver.TestConstants.TEST_FILE_PATH
 import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
 import static dk.runerne.fileserver.TestConstants.TEST_UUID
-import static dk.runerne.fileserver.TestConstants.getTEST_FILE_CONTENT
+import static dk.runerne.fileserver.TestConstants.TEST_FILE_CONTENT
 
 class FolderMaintenanceServiceSpec extends Specification {
 
     private FolderMaintenanceService folderMaintenanceService = new FolderMaintenanceService()
 
     void setup() {
-        folderMaintenanceService.configurationService = Mock(ConfigurationService)
+        folderMaintenanceService.configurationService = Mock(ConfigurationService) {
+            getStorageLayout() >> StorageLayout.DEFAULT
+        }
+        folderMaintenanceService.hotFileCache = Mock(HotFileCache)
+        folderMaintenanceService.fileLocationIndex = Mock(FileLocationIndex)
+        folderMaintenanceService.maintenanceThrottle = Mock(MaintenanceThrottle)
+        folderMaintenanceService.fileLocks = new FileLocks(configurationService: folderMaintenanceService.configurationService)
+        folderMaintenanceService.fileLocks.init()
     }
 
     void 'maintainFile - Depth as requested'() {
@@ -67,11 +80,134 @@ class FolderMaintenanceServiceSpec extends Specification {
         then:
         Files.exists(target.path)
         !Files.exists(source.path)
+        1 * folderMaintenanceService.fileLocationIndex.put(TEST_UUID, 1)
+        1 * folderMaintenanceService.hotFileCache.invalidate(TEST_UUID)
 
         cleanup:
         deleteFolderRecursively(Path.of("${TEST_ROOT_FOLDER_PATH}/P"))
     }
 
+    void 'reconcile - Moved bytes wait for the throttle'() {
+        given:
+        folderMaintenanceService.configurationService.getRequestedFileDepth() >> 1
+        folderMaintenanceService.configurationService.getDataRootFolderPath() >> TEST_ROOT_FOLDER_PATH
+        folderMaintenanceService.maintenanceThrottle.isLimitingBytes() >> true
+        FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 3).ensureDirectoriesExist().write('Content'.bytes)
+
+        when:
+        folderMaintenanceService.reconcile(TEST_UUID, 1L << 3)
+
+        then:
+        1 * folderMaintenanceService.maintenanceThrottle.acquireBytes('Content'.bytes.length)
+        Files.exists(FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1).path)
+
+        cleanup:
+        deleteFolderRecursively(Path.of("${TEST_ROOT_FOLDER_PATH}/P"))
+    }
+
+    void 'reconcile - Most recent copy is moved and the others are deleted'() {
+        given:
+        folderMaintenanceService.configurationService.getRequestedFileDepth() >> 1
+        folderMaintenanceService.configurationService.getDataRootFolderPath() >> TEST_ROOT_FOLDER_PATH
+        FileDescriptor older = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 3).ensureDirectoriesExist().write('Older'.bytes)
+        FileDescriptor newer = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 5).ensureDirectoriesExist().write('Newer'.bytes)
+        Files.setLastModifiedTime(older.path, FileTime.fromMillis(System.currentTimeMillis() - 60_000))
+        FileDescriptor target = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1)
+
+        when:
+        folderMaintenanceService.reconcile(TEST_UUID, (1L << 3) | (1L << 5))
+
+        then:
+        Files.readAllBytes(target.path) == 'Newer'.bytes
+        !Files.exists(older.path)
+        !Files.exists(newer.path)
+        1 * folderMaintenanceService.fileLocationIndex.put(TEST_UUID, 1)
+        1 * folderMaintenanceService.hotFileCache.invalidate(TEST_UUID)
+
+        cleanup:
+        deleteFolderRecursively(Path.of("${TEST_ROOT_FOLDER_PATH}/P"))
+    }
+
+    void 'reconcile - Copy at the requested depth is kept when it is the most recent'() {
+        given:
+        folderMaintenanceService.configurationService.getRequestedFileDepth() >> 1
+        folderMaintenanceService.configurationService.getDataRootFolderPath() >> TEST_ROOT_FOLDER_PATH
+        FileDescriptor older = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 3).ensureDirectoriesExist().write('Older'.bytes)
+        Files.setLastModifiedTime(older.path, FileTime.fromMillis(System.currentTimeMillis() - 60_000))
+        FileDescriptor target = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1).ensureDirectoriesExist().write('Newer'.bytes)
+
+        when:
+        folderMaintenanceService.reconcile(TEST_UUID, 1L << 3)
+
+        then:
+        Files.readAllBytes(target.path) == 'Newer'.bytes
+        !Files.exists(older.path)
+
+        cleanup:
+        deleteFolderRecursively(Path.of("${TEST_ROOT_FOLDER_PATH}/P"))
+    }
+
+    void 'reconcile - Copy is deleted while waiting for the throttle'() {
+        given:
+        folderMaintenanceService.configurationService.getRequestedFileDepth() >> 1
+        folderMaintenanceService.configurationService.getDataRootFolderPath() >> TEST_ROOT_FOLDER_PATH
+        folderMaintenanceService.maintenanceThrottle.isLimitingBytes() >> true
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 3).ensureDirectoriesExist().write('Content'.bytes)
+
+        when:
+        folderMaintenanceService.reconcile(TEST_UUID, 1L << 3)
+
+        then:
+        1 * folderMaintenanceService.maintenanceThrottle.acquireBytes(_) >> { fileDescriptor.purge() }
+        0 * folderMaintenanceService.fileLocationIndex.put(*_)
+        !Files.exists(FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 1).path)
+
+        cleanup:
+        deleteFolderRecursively(Path.of("${TEST_ROOT_FOLDER_PATH}/P"))
+    }
+
+    void 'reconcile - Waits while the file is read'() {
+        given:
+        folderMaintenanceService.configurationService.getRequestedFileDepth() >> 1
+        folderMaintenanceService.configurationService.getDataRootFolderPath() >> TEST_ROOT_FOLDER_PATH
+        FileDescriptor fileDescriptor = FileDescriptor.fromUUIDAndDepth(TEST_ROOT_FOLDER_PATH, TEST_UUID, 3).ensureDirectoriesExist().write('Content'.bytes)
+        FileDescriptor target = fileDescriptor.toDepth(1)
+        folderMaintenanceService.fileLocks.readLock(TEST_UUID).lock()
+
+        when:
+        Thread thread = Thread.start { folderMaintenanceService.reconcile(TEST_UUID, 1L << 3) }
+        thread.join(100)
+
+        then:
+        thread.alive
+        Files.exists(fileDescriptor.path)
+
+        when:
+        folderMaintenanceService.fileLocks.readLock(TEST_UUID).unlock()
+        thread.join(5000)
+
+        then:
+        !thread.alive
+        !Files.exists(fileDescriptor.path)
+        Files.readAllBytes(target.path) == 'Content'.bytes
+
+        cleanup:
+        deleteFolderRecursively(Path.of("${TEST_ROOT_FOLDER_PATH}/P"))
+    }
+
+    void 'reconcile - Copies no longer exist'() {
+        given:
+        folderMaintenanceService.configurationService.getRequestedFileDepth() >> 1
+        folderMaintenanceService.configurationService.getDataRootFolderPath() >> TEST_ROOT_FOLDER_PATH
+
+        when:
+        folderMaintenanceService.reconcile(TEST_UUID, 1L << 3)
+
+        then:
+        0 * folderMaintenanceService.fileLocationIndex.put(*_)
+        0 * folderMaintenanceService.hotFileCache.invalidate(_)
+    }
+
     static void deleteFolderRecursively(Path folderPath) {
         if (!Files.exists(folderPath)) return
 
@@ -90,5 +226,17 @@ class FolderMaintenanceServiceSpec extends Specification {
         })
     }
 
+    void 'onFileDepthChanged'() {
+        given:
+        folderMaintenanceService.configurationService.getRequestedFileDepth() >>> [1, 2]
+
+        when:
+        folderMaintenanceService.maintainFile(TEST_FILE_PATH, 1)
+        folderMaintenanceService.onFileDepthChanged(new FileDepthChangedEvent(1, 2))
+
+        then:
+        folderMaintenanceService.@requestedFileDepth == null
+        folderMaintenanceService.getRequestedFileDepth() == 2
+    }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,83 @@
+package dk.runerne.fileserver.maintenance
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+class MaintenanceCheckpointSpec extends Specification {
+
+    private static final Path CHECKPOINT_PATH = Path.of('build/temp/config/maintenance-checkpoint.properties')
+
+    void cleanup() {
+        Files.deleteIfExists(CHECKPOINT_PATH)
+    }
+
+    void 'save and load'() {
+        given:
+        MaintenanceCheckpoint checkpoint = MaintenanceCheckpoint.start(3)
+        checkpoint.completeRootFiles(10, 10, 0)
+        checkpoint.completeBucket('A', 100, 5, 1)
+        checkpoint.completeBucket('_', 50, 2, 0)
+
+        when:
+        checkpoint.save(CHECKPOINT_PATH)
+        MaintenanceCheckpoint output = MaintenanceCheckpoint.load(CHECKPOINT_PATH).get()
+
+        then:
+        output.requestedFileDepth == 3
+        output.startTime == checkpoint.startTime
+        output.rootFilesCompleted
+        output.isBucketCompleted('A')
+        output.isBucketCompleted('_')
+        !output.isBucketCompleted('B')
+        output.numberOfCompletedBuckets == 2
+        output.numberProcessed == 160
+        output.filesReconciled == 17
+        output.failedFiles == 1
+        !Files.exists(CHECKPOINT_PATH.resolveSibling('maintenance-checkpoint.properties.tmp'))
+    }
+
+    void 'load - No checkpoint'() {
+        expect:
+        MaintenanceCheckpoint.load(CHECKPOINT_PATH).isEmpty()
+    }
+
+    void 'load - Invalid checkpoint'() {
+        given:
+        Files.createDirectories(CHECKPOINT_PATH.parent)
+        Files.writeString(CHECKPOINT_PATH, 'requestedFileDepth=three')
+
+        when:
+        MaintenanceCheckpoint.load(CHECKPOINT_PATH)
+
+        then:
+        thrown(RuntimeException)
+    }
+
+    void 'hasProgress'() {
+        given:
+        MaintenanceCheckpoint checkpoint = MaintenanceCheckpoint.start(3)
+
+        expect:
+        !checkpoint.hasProgress()
+
+        when:
+        checkpoint.completeBucket('A', 1, 0, 0)
+
+        then:
+        checkpoint.hasProgress()
+    }
+
+    void 'delete'() {
+        given:
+        MaintenanceCheckpoint.start(3).save(CHECKPOINT_PATH)
+
+        when:
+        MaintenanceCheckpoint.delete(CHECKPOINT_PATH)
+
+        then:
+        !Files.exists(CHECKPOINT_PATH)
+    }
+
+}
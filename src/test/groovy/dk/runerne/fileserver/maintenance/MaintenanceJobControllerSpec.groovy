@@ -10,14 +10,15 @@ class MaintenanceJobControllerSpec extends Specification {
 
     void setup() {
         maintenanceJobController.maintenanceJobService = Mock(MaintenanceJobService)
+        maintenanceJobController.maintenanceThrottle = Mock(MaintenanceThrottle)
     }
 
     void 'start - success'() {
         given:
-        maintenanceJobController.maintenanceJobService.startJob() >> true
+        maintenanceJobController.maintenanceJobService.startJob(false) >> true
 
         when:
-        ResponseEntity<String> output = maintenanceJobController.start()
+        ResponseEntity<String> output = maintenanceJobController.start(false)
 
         then:
         output.statusCode == HttpStatus.OK
@@ -26,16 +27,25 @@ class MaintenanceJobControllerSpec extends Specification {
 
     void 'start - failure'() {
         given:
-        maintenanceJobController.maintenanceJobService.startJob() >> false
+        maintenanceJobController.maintenanceJobService.startJob(false) >> false
 
         when:
-        ResponseEntity<String> output = maintenanceJobController.start()
+        ResponseEntity<String> output = maintenanceJobController.start(false)
 
         then:
         output.statusCode == HttpStatus.CONFLICT
         output.body == 'Maintenance job is already running. Please wait until it completes.'
     }
 
+    void 'start - resume'() {
+        when:
+        ResponseEntity<String> output = maintenanceJobController.start(true)
+
+        then:
+        1 * maintenanceJobController.maintenanceJobService.startJob(true) >> true
+        output.statusCode == HttpStatus.OK
+    }
+
     void 'stop - success'() {
         given:
         maintenanceJobController.maintenanceJobService.terminateJob() >> true
@@ -72,4 +82,29 @@ class MaintenanceJobControllerSpec extends Specification {
         output.progressMetrics == new MaintenanceProgressMetrics(null, null, 0, 0)
     }
 
-}
\ No newline at end of file
+    void 'setThrottle - success'() {
+        given:
+        MaintenanceThrottleStatus status = new MaintenanceThrottleStatus(100, 0, true, 100, 32, 1.0, 100.0, 0.0, null)
+        maintenanceJobController.maintenanceThrottle.getStatus() >> status
+
+        when:
+        ResponseEntity<MaintenanceThrottleStatus> output = maintenanceJobController.setThrottle(100, null, true, null, null)
+
+        then:
+        1 * maintenanceJobController.maintenanceThrottle.update(100, null, true, null, null)
+        output.statusCode == HttpStatus.OK
+        output.body == status
+    }
+
+    void 'setThrottle - Negative setting'() {
+        given:
+        maintenanceJobController.maintenanceThrottle.update(-1, null, null, null, null) >> { throw new IllegalArgumentException('Negative') }
+
+        when:
+        ResponseEntity<MaintenanceThrottleStatus> output = maintenanceJobController.setThrottle(-1, null, null, null, null)
+
+        then:
+        output.statusCode == HttpStatus.BAD_REQUEST
+    }
+
+}
@@ -1,21 +1,42 @@
 package dk.runerne.fileserver.maintenance
 
 import dk.runerne.fileserver.ConfigurationService
+import dk.runerne.fileserver.FileDepthChangedEvent
+import dk.runerne.fileserver.filehandling.BlobStore
+import dk.runerne.fileserver.filehandling.FileDistributorService
+import dk.runerne.fileserver.filehandling.FileExistenceFilter
+import dk.runerne.fileserver.filehandling.MisplacedFileTracker
 import spock.lang.Specification
 
 import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.time.Duration
+import java.time.Instant
 
 import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
 import static dk.runerne.fileserver.TestConstants.TEST_FILE_CONTENT
 import static dk.runerne.fileserver.TestConstants.TEST_FILE_PATH
+import static dk.runerne.fileserver.TestConstants.TEST_UUID
 
 class MaintenanceJobServiceSpec extends Specification {
 
+    private static final Path CHECKPOINT_PATH = Path.of('build/temp/config/maintenance-checkpoint.properties')
+
     private MaintenanceJobService maintenanceJobService = new MaintenanceJobService()
 
     void setup() {
-        maintenanceJobService.configurationService = Mock(ConfigurationService)
+        maintenanceJobService.configurationService = Mock(ConfigurationService) {
+            getMaintenanceCheckpointFilePath() >> CHECKPOINT_PATH
+        }
         maintenanceJobService.folderMaintenanceService = Mock(FolderMaintenanceService)
+        maintenanceJobService.fileExistenceFilter = Mock(FileExistenceFilter)
+        maintenanceJobService.fileDistributorService = Mock(FileDistributorService)
+        maintenanceJobService.maintenanceThrottle = Mock(MaintenanceThrottle)
+        maintenanceJobService.misplacedFileTracker = Mock(MisplacedFileTracker) {
+            byMostRecentActivity() >> Comparator.naturalOrder()
+        }
+        maintenanceJobService.blobStore = Mock(BlobStore)
 
         Files.createDirectories(TEST_FILE_PATH.parent)
         Files.write(TEST_FILE_PATH, TEST_FILE_CONTENT)
@@ -25,6 +46,7 @@ class MaintenanceJobServiceSpec extends Specification {
         Files.walk(TEST_ROOT_FOLDER_PATH)
                 .sorted(Comparator.reverseOrder())
                 .forEach { path -> Files.deleteIfExists(path) }
+        Files.deleteIfExists(CHECKPOINT_PATH)
     }
 
     void 'start - success'() {
@@ -43,6 +65,216 @@ class MaintenanceJobServiceSpec extends Specification {
         maintenanceJobService.folderMaintenanceService.maintainFile(TEST_FILE_PATH, 3)
     }
 
+    void 'start - Existence filter is rebuilt'() {
+        given:
+        maintenanceJobService.configurationService.dataRootFolderPath >> TEST_ROOT_FOLDER_PATH
+        maintenanceJobService.configurationService.maxMaintenanceConcurrentThreads >> 3
+        maintenanceJobService.fileExistenceFilter.startRebuild() >> true
+
+        when:
+        maintenanceJobService.startJob()
+        waitForJobToFinish()
+
+        then:
+        1 * maintenanceJobService.fileExistenceFilter.add(TEST_UUID)
+        1 * maintenanceJobService.fileExistenceFilter.completeRebuild()
+        0 * maintenanceJobService.fileExistenceFilter.abortRebuild()
+    }
+
+    void 'start - Misplaced files are reconciled'() {
+        given:
+        maintenanceJobService.configurationService.dataRootFolderPath >> TEST_ROOT_FOLDER_PATH
+        maintenanceJobService.configurationService.maxMaintenanceConcurrentThreads >> 3
+        maintenanceJobService.configurationService.requestedFileDepth >> 1
+
+        when:
+        maintenanceJobService.startJob()
+        waitForJobToFinish()
+
+        then:
+        2 * maintenanceJobService.maintenanceThrottle.acquireFiles(1)
+        1 * maintenanceJobService.folderMaintenanceService.reconcile(TEST_UUID, 1L << 3)
+        maintenanceJobService.jobStatus.progressMetrics.numberProcessed == 1
+    }
+
+    void 'start - Abandoned temporary files are deleted'() {
+        given:
+        maintenanceJobService.configurationService.dataRootFolderPath >> TEST_ROOT_FOLDER_PATH
+        maintenanceJobService.configurationService.maxMaintenanceConcurrentThreads >> 3
+        maintenanceJobService.configurationService.requestedFileDepth >> 1
+        maintenanceJobService.fileExistenceFilter.startRebuild() >> true
+        Path abandonedFile = TEST_FILE_PATH.resolveSibling("${TEST_UUID}.1.tmp")
+        Files.write(abandonedFile, TEST_FILE_CONTENT)
+        Files.setLastModifiedTime(abandonedFile, FileTime.from(Instant.now() - MaintenanceJobService.ABANDONED_TEMPORARY_FILE_AGE - Duration.ofMinutes(1)))
+        Path activeFile = TEST_FILE_PATH.resolveSibling("${TEST_UUID}.2.tmp")
+        Files.write(activeFile, TEST_FILE_CONTENT)
+
+        when:
+        maintenanceJobService.startJob()
+        waitForJobToFinish()
+
+        then:
+        !Files.exists(abandonedFile)
+        Files.exists(activeFile)
+        1 * maintenanceJobService.folderMaintenanceService.reconcile(TEST_UUID, 1L << 3)
+        1 * maintenanceJobService.fileExistenceFilter.add(TEST_UUID)
+    }
+
+    void 'start - Checkpoint is deleted when every bucket has completed'() {
+        given:
+        maintenanceJobService.configurationService.dataRootFolderPath >> TEST_ROOT_FOLDER_PATH
+        maintenanceJobService.configurationService.maxMaintenanceConcurrentThreads >> 3
+        MaintenanceCheckpoint.start(0).save(CHECKPOINT_PATH)
+
+        when:
+        maintenanceJobService.startJob()
+        waitForJobToFinish()
+
+        then:
+        !Files.exists(CHECKPOINT_PATH)
+    }
+
+    void 'start - Unreferenced blobs are deleted when every bucket has completed'() {
+        given:
+        maintenanceJobService.configurationService.dataRootFolderPath >> TEST_ROOT_FOLDER_PATH
+        maintenanceJobService.configurationService.maxMaintenanceConcurrentThreads >> 3
+
+        when:
+        maintenanceJobService.startJob()
+        waitForJobToFinish()
+
+        then:
+        1 * maintenanceJobService.blobStore.collectGarbage()
+    }
+
+    void 'start - Resume skips completed buckets'() {
+        given:
+        Path otherFilePath = TEST_ROOT_FOLDER_PATH.resolve('Q/R/S/22de3d8e-0ab0-4d25-9c3a-4ea0ad24a62c')
+        Files.createDirectories(otherFilePath.parent)
+        Files.write(otherFilePath, TEST_FILE_CONTENT)
+        maintenanceJobService.configurationService.dataRootFolderPath >> TEST_ROOT_FOLDER_PATH
+        maintenanceJobService.configurationService.maxMaintenanceConcurrentThreads >> 3
+        maintenanceJobService.configurationService.requestedFileDepth >> 1
+        maintenanceJobService.fileExistenceFilter.startRebuild() >> true
+        MaintenanceCheckpoint checkpoint = MaintenanceCheckpoint.start(1)
+        checkpoint.completeRootFiles(0, 0, 0)
+        checkpoint.completeBucket('P', 4, 0, 0)
+        checkpoint.save(CHECKPOINT_PATH)
+
+        when:
+        maintenanceJobService.startJob(true)
+        waitForJobToFinish()
+
+        then:
+        0 * maintenanceJobService.folderMaintenanceService.reconcile(TEST_UUID, _)
+        1 * maintenanceJobService.folderMaintenanceService.reconcile(UUID.fromString('22de3d8e-0ab0-4d25-9c3a-4ea0ad24a62c'), 1L << 3)
+        0 * maintenanceJobService.fileExistenceFilter.completeRebuild()
+        1 * maintenanceJobService.fileExistenceFilter.abortRebuild()
+        !Files.exists(CHECKPOINT_PATH)
+    }
+
+    void 'start - Resume ignores a checkpoint for another depth'() {
+        given:
+        maintenanceJobService.configurationService.dataRootFolderPath >> TEST_ROOT_FOLDER_PATH
+        maintenanceJobService.configurationService.maxMaintenanceConcurrentThreads >> 3
+        maintenanceJobService.configurationService.requestedFileDepth >> 1
+        MaintenanceCheckpoint checkpoint = MaintenanceCheckpoint.start(2)
+        checkpoint.completeBucket('P', 4, 0, 0)
+        checkpoint.save(CHECKPOINT_PATH)
+
+        when:
+        maintenanceJobService.startJob(true)
+        waitForJobToFinish()
+
+        then:
+        1 * maintenanceJobService.folderMaintenanceService.reconcile(TEST_UUID, 1L << 3)
+    }
+
+    void 'terminateJob - Completed buckets remain in the checkpoint'() {
+        given:
+        Path otherFilePath = TEST_ROOT_FOLDER_PATH.resolve('Q/R/S/22de3d8e-0ab0-4d25-9c3a-4ea0ad24a62c')
+        Files.createDirectories(otherFilePath.parent)
+        Files.write(otherFilePath, TEST_FILE_CONTENT)
+        maintenanceJobService.configurationService.dataRootFolderPath >> TEST_ROOT_FOLDER_PATH
+        maintenanceJobService.configurationService.maxMaintenanceConcurrentThreads >> 3
+        maintenanceJobService.configurationService.requestedFileDepth >> 1
+        maintenanceJobService.folderMaintenanceService.reconcile(TEST_UUID, _) >> {
+            Thread.start { maintenanceJobService.terminateJob() }
+            while (!maintenanceJobService.jobIsTerminated) {
+                Thread.sleep(1)
+            }
+        }
+
+        when:
+        maintenanceJobService.startJob()
+        waitForJobToFinish()
+        MaintenanceCheckpoint checkpoint = MaintenanceCheckpoint.load(CHECKPOINT_PATH).get()
+
+        then:
+        checkpoint.rootFilesCompleted
+        !checkpoint.isBucketCompleted('P')
+        !checkpoint.isBucketCompleted('Q')
+        0 * maintenanceJobService.folderMaintenanceService.reconcile(UUID.fromString('22de3d8e-0ab0-4d25-9c3a-4ea0ad24a62c'), _)
+    }
+
+    void 'onFileDepthChanged - Files are migrated'() {
+        given:
+        maintenanceJobService.configurationService.depthMigrationEnabled >> true
+        maintenanceJobService.configurationService.dataRootFolderPath >> TEST_ROOT_FOLDER_PATH
+        maintenanceJobService.configurationService.maxMaintenanceConcurrentThreads >> 3
+        maintenanceJobService.configurationService.requestedFileDepth >> 1
+
+        when:
+        maintenanceJobService.onFileDepthChanged(new FileDepthChangedEvent(3, 1))
+        waitForJobToFinish()
+
+        then:
+        1 * maintenanceJobService.fileDistributorService.startMigration(3)
+
+        then:
+        1 * maintenanceJobService.folderMaintenanceService.reconcile(TEST_UUID, 1L << 3)
+
+        then:
+        1 * maintenanceJobService.fileDistributorService.finishMigration()
+        !maintenanceJobService.jobIsMigrating
+    }
+
+    void 'onFileDepthChanged - Migration disabled'() {
+        given:
+        maintenanceJobService.configurationService.depthMigrationEnabled >> false
+
+        when:
+        maintenanceJobService.onFileDepthChanged(new FileDepthChangedEvent(3, 1))
+
+        then:
+        !maintenanceJobService.jobRunning
+        0 * maintenanceJobService.fileDistributorService.startMigration(_)
+    }
+
+    void 'getJobStatus - Migrating'() {
+        given:
+        maintenanceJobService.jobIsRunning.set(true)
+        maintenanceJobService.jobIsMigrating = true
+
+        expect:
+        maintenanceJobService.jobStatus.state == MaintenanceJobState.MIGRATING
+    }
+
+    void 'start - Existence filter is not replaced when a folder fails'() {
+        given:
+        maintenanceJobService.configurationService.dataRootFolderPath >> TEST_FILE_PATH
+        maintenanceJobService.configurationService.maxMaintenanceConcurrentThreads >> 3
+        maintenanceJobService.fileExistenceFilter.startRebuild() >> true
+
+        when:
+        maintenanceJobService.startJob()
+        waitForJobToFinish()
+
+        then:
+        0 * maintenanceJobService.fileExistenceFilter.completeRebuild()
+        1 * maintenanceJobService.fileExistenceFilter.abortRebuild()
+    }
+
     void 'start - Job is already running'() {
         given:
         maintenanceJobService.jobIsRunning.set(true)
@@ -64,6 +296,55 @@ class MaintenanceJobServiceSpec extends Specification {
 
         then:
         output
+        1 * maintenanceJobService.multiThreadFolderTraverser.terminate()
+    }
+
+    void 'terminateJob - Job of another generation is left running'() {
+        given:
+        maintenanceJobService.jobIsRunning.set(true)
+        maintenanceJobService.jobGeneration = 8
+        maintenanceJobService.multiThreadFolderTraverser = Mock(MultiThreadFolderTraverser)
+
+        when:
+        boolean output = maintenanceJobService.terminateJob(7)
+
+        then:
+        !output
+        !maintenanceJobService.isJobRunning(7)
+        maintenanceJobService.isJobRunning(8)
+        0 * maintenanceJobService.multiThreadFolderTraverser.terminate()
+    }
+
+    void 'terminateJob - Job of the generation'() {
+        given:
+        maintenanceJobService.jobIsRunning.set(true)
+        maintenanceJobService.jobGeneration = 7
+        maintenanceJobService.multiThreadFolderTraverser = Mock(MultiThreadFolderTraverser)
+
+        when:
+        boolean output = maintenanceJobService.terminateJob(7)
+
+        then:
+        output
+        1 * maintenanceJobService.multiThreadFolderTraverser.terminate()
+    }
+
+    void 'startJobGeneration - Each job has a new generation'() {
+        given:
+        maintenanceJobService.configurationService.dataRootFolderPath >> TEST_ROOT_FOLDER_PATH
+        maintenanceJobService.configurationService.maxMaintenanceConcurrentThreads >> 3
+
+        when:
+        long first = maintenanceJobService.startJobGeneration(false)
+        waitForJobToFinish()
+        long second = maintenanceJobService.startJobGeneration(false)
+        waitForJobToFinish()
+
+        then:
+        first != MaintenanceJobService.NO_JOB
+        second != MaintenanceJobService.NO_JOB
+        second != first
+        !maintenanceJobService.isJobRunning(second)
     }
 
     void 'terminateJob - No job is running'() {
@@ -91,6 +372,22 @@ class MaintenanceJobServiceSpec extends Specification {
         output == MaintenanceJobStatus.maintaining()
     }
 
+    void 'getJobStatus - Completed buckets'() {
+        given:
+        MaintenanceCheckpoint checkpoint = MaintenanceCheckpoint.start(1)
+        checkpoint.completeBucket('P', 4, 0, 0)
+        maintenanceJobService.jobIsRunning.set(true)
+        maintenanceJobService.checkpoint = checkpoint
+        maintenanceJobService.numberOfBuckets = 64
+
+        when:
+        MaintenanceJobStatus output = maintenanceJobService.getJobStatus()
+
+        then:
+        output.bucketsCompleted == 1
+        output.numberOfBuckets == 64
+    }
+
     void 'getJobStatus - traverser says not running'() {
         given:
         maintenanceJobService.jobIsRunning.set(false)
@@ -115,4 +412,11 @@ class MaintenanceJobServiceSpec extends Specification {
         output == MaintenanceJobStatus.maintaining()
     }
 
-}
\ No newline at end of file
+    private void waitForJobToFinish() {
+        long deadline = System.currentTimeMillis() + 10_000
+        while (maintenanceJobService.jobIsRunning.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+}
@@ -86,6 +86,39 @@ class MaintenanceProgressMetricsSpec extends Specification {
         T1        | T2         | 1000            | 100             || 0.01           | 'Normal case'
     }
 
+    void "getThroughput - #scenarie"() {
+        given:
+        MaintenanceProgressMetrics maintenanceProgressMetrics = new MaintenanceProgressMetrics(startTime, statusTime, numberToProcess, numberProcessed)
+
+        when:
+        Double output = maintenanceProgressMetrics.throughput
+
+        then:
+        output == expectedOutput
+
+        where:
+        startTime | statusTime | numberToProcess | numberProcessed || expectedOutput | scenarie
+        null      | T2         | 1000            | 100             || 0.0            | 'No start time'
+        T1        | null       | 1000            | 100             || 0.0            | 'No status time'
+        T1        | T1         | 1000            | 100             || 0.0            | 'No time elapsed'
+        T1        | T2         | 0               | 100             || 10.0           | 'No items to process'
+        T1        | T2         | 1000            | 100             || 10.0           | 'Normal case'
+    }
+
+    void "getNumberRemaining - #scenarie"() {
+        given:
+        MaintenanceProgressMetrics maintenanceProgressMetrics = new MaintenanceProgressMetrics(T1, T2, numberToProcess, numberProcessed)
+
+        expect:
+        maintenanceProgressMetrics.numberRemaining == expectedOutput
+
+        where:
+        numberToProcess | numberProcessed || expectedOutput | scenarie
+        1000            | 100             || 900            | 'Normal case'
+        1000            | 1000            || 0              | 'All processed'
+        100             | 1000            || 0              | 'More processed than counted'
+    }
+
     void "getProgressBar - #scenarie"() {
         given:
         MaintenanceProgressMetrics maintenanceProgressMetrics = new MaintenanceProgressMetrics(T1, T2, numberToProcess, numberProcessed)
@@ -0,0 +1,137 @@
+package dk.runerne.fileserver.maintenance
+
+import dk.runerne.fileserver.ConfigurationService
+import org.springframework.scheduling.support.CronExpression
+import spock.lang.Specification
+
+import java.time.Clock
+import java.time.Duration
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.time.ZonedDateTime
+
+class MaintenanceSchedulerSpec extends Specification {
+
+    private static final ZoneId ZONE = ZoneId.of('Europe/Copenhagen')
+    private static final CronExpression NIGHTLY = CronExpression.parse('0 0 1 * * *')
+
+    private MaintenanceScheduler maintenanceScheduler = new MaintenanceScheduler()
+
+    void setup() {
+        maintenanceScheduler.configurationService = Mock(ConfigurationService)
+        maintenanceScheduler.maintenanceJobService = Mock(MaintenanceJobService)
+    }
+
+    void cleanup() {
+        maintenanceScheduler.stop()
+    }
+
+    void 'findWindowStart - #now'() {
+        expect:
+        MaintenanceScheduler.findWindowStart(NIGHTLY, Duration.ofHours(4), ZonedDateTime.of(LocalDateTime.parse(now), ZONE))
+            == ZonedDateTime.of(LocalDateTime.parse(expectedOutput), ZONE)
+
+        where:
+        now                                   || expectedOutput
+        '2026-10-17T00:30'                    || '2026-10-17T01:00'
+        '2026-10-17T01:00'                    || '2026-10-17T01:00'
+        '2026-10-17T03:15'                    || '2026-10-17T01:00'
+        '2026-10-17T05:00'                    || '2026-10-18T01:00'
+        '2026-10-17T12:00'                    || '2026-10-18T01:00'
+    }
+
+    void 'runWindow - Unfinished job is paused when the window closes'() {
+        given:
+        ZonedDateTime end = ZonedDateTime.now().plusNanos(200_000_000)
+
+        when:
+        maintenanceScheduler.runWindow(end)
+
+        then:
+        1 * maintenanceScheduler.maintenanceJobService.startJobGeneration(true) >> 7
+        _ * maintenanceScheduler.maintenanceJobService.isJobRunning(7) >> true
+        1 * maintenanceScheduler.maintenanceJobService.terminateJob(7) >> true
+        0 * maintenanceScheduler.maintenanceJobService.terminateJob()
+        !ZonedDateTime.now().isBefore(end)
+    }
+
+    void 'runWindow - Job replaced by a migration is left running'() {
+        given:
+        ZonedDateTime end = ZonedDateTime.now().plusNanos(200_000_000)
+
+        when:
+        maintenanceScheduler.runWindow(end)
+
+        then:
+        1 * maintenanceScheduler.maintenanceJobService.startJobGeneration(true) >> 7
+        _ * maintenanceScheduler.maintenanceJobService.isJobRunning(7) >> false
+        _ * maintenanceScheduler.maintenanceJobService.isJobRunning() >> true
+        0 * maintenanceScheduler.maintenanceJobService.terminateJob(_)
+        0 * maintenanceScheduler.maintenanceJobService.terminateJob()
+    }
+
+    void 'runWindow - Completed job'() {
+        given:
+        maintenanceScheduler.clock = Clock.fixed(ZonedDateTime.of(2026, 10, 17, 5, 0, 0, 0, ZONE).toInstant(), ZONE)
+
+        when:
+        maintenanceScheduler.runWindow(ZonedDateTime.of(2026, 10, 17, 5, 0, 0, 0, ZONE))
+
+        then:
+        1 * maintenanceScheduler.maintenanceJobService.startJobGeneration(true) >> 7
+        _ * maintenanceScheduler.maintenanceJobService.isJobRunning(7) >> false
+        _ * maintenanceScheduler.maintenanceJobService.terminateJob(7) >> false
+        0 * maintenanceScheduler.maintenanceJobService.terminateJob()
+    }
+
+    void 'runWindow - Job started by hand is left running'() {
+        given:
+        maintenanceScheduler.clock = Clock.fixed(ZonedDateTime.of(2026, 10, 17, 5, 0, 0, 0, ZONE).toInstant(), ZONE)
+
+        when:
+        maintenanceScheduler.runWindow(ZonedDateTime.of(2026, 10, 17, 5, 0, 0, 0, ZONE))
+
+        then:
+        1 * maintenanceScheduler.maintenanceJobService.startJobGeneration(true) >> MaintenanceJobService.NO_JOB
+        _ * maintenanceScheduler.maintenanceJobService.isJobRunning() >> true
+        0 * maintenanceScheduler.maintenanceJobService.terminateJob(_)
+        0 * maintenanceScheduler.maintenanceJobService.terminateJob()
+    }
+
+    void 'start - No windows'() {
+        given:
+        maintenanceScheduler.configurationService.getMaintenanceWindowSchedule() >> Optional.empty()
+
+        when:
+        maintenanceScheduler.start()
+
+        then:
+        maintenanceScheduler.thread == null
+    }
+
+    void 'start - Window is open'() {
+        given:
+        maintenanceScheduler.configurationService.getMaintenanceWindowSchedule() >> Optional.of(CronExpression.parse('0 0 0 * * *'))
+        maintenanceScheduler.configurationService.getMaintenanceWindowDurationMinutes() >> 24 * 60
+
+        when:
+        maintenanceScheduler.start()
+        Thread.sleep(500)
+
+        then:
+        1 * maintenanceScheduler.maintenanceJobService.startJobGeneration(true) >> 1
+    }
+
+    void 'start - Invalid duration'() {
+        given:
+        maintenanceScheduler.configurationService.getMaintenanceWindowSchedule() >> Optional.of(NIGHTLY)
+        maintenanceScheduler.configurationService.getMaintenanceWindowDurationMinutes() >> 0
+
+        when:
+        maintenanceScheduler.start()
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+}
@@ -0,0 +1,169 @@
+package dk.runerne.fileserver.maintenance
+
+import dk.runerne.fileserver.ConfigurationService
+import dk.runerne.fileserver.filehandling.ForegroundLoad
+import dk.runerne.fileserver.filehandling.ForegroundLoadMonitor
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+class MaintenanceThrottleSpec extends Specification {
+
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(MaintenanceThrottle.ADJUST_INTERVAL_MILLIS)
+    private static final ForegroundLoad SLOW = new ForegroundLoad(10, 500.0, 1)
+    private static final ForegroundLoad FAST = new ForegroundLoad(10, 5.0, 1)
+
+    private long now = 0
+    private MaintenanceThrottle maintenanceThrottle = new MaintenanceThrottle({ now } as LongSupplier)
+
+    void setup() {
+        maintenanceThrottle.configurationService = Mock(ConfigurationService) {
+            getMaintenanceMaxFilesPerSecond() >> 100
+            getMaintenanceMaxBytesPerSecond() >> 0
+            isMaintenanceAdaptiveThrottleEnabled() >> true
+            getMaintenanceTargetLatencyMillis() >> 100
+            getMaintenanceMaxInFlightRequests() >> 32
+        }
+        maintenanceThrottle.foregroundLoadMonitor = Mock(ForegroundLoadMonitor)
+        maintenanceThrottle.init()
+    }
+
+    void 'init - Settings from the configuration'() {
+        expect:
+        maintenanceThrottle.status.maxFilesPerSecond == 100
+        maintenanceThrottle.status.maxBytesPerSecond == 0
+        maintenanceThrottle.status.adaptive
+        maintenanceThrottle.status.factor == 1.0d
+        maintenanceThrottle.status.currentFilesPerSecond == 100.0d
+        maintenanceThrottle.status.currentBytesPerSecond == 0.0d
+    }
+
+    void 'Slow requests halve the rate'() {
+        given:
+        maintenanceThrottle.foregroundLoadMonitor.sample() >>> [SLOW, SLOW]
+
+        when:
+        now += INTERVAL_NANOS
+        maintenanceThrottle.reserveFiles(1)
+        now += INTERVAL_NANOS
+        maintenanceThrottle.reserveFiles(1)
+
+        then:
+        maintenanceThrottle.status.factor == 0.25d
+        maintenanceThrottle.status.currentFilesPerSecond == 25.0d
+        maintenanceThrottle.status.foregroundLoad == SLOW
+    }
+
+    void 'Too many requests in progress halve the rate'() {
+        given:
+        maintenanceThrottle.foregroundLoadMonitor.sample() >> new ForegroundLoad(0, 0.0, 33)
+
+        when:
+        now += INTERVAL_NANOS
+        maintenanceThrottle.reserveFiles(1)
+
+        then:
+        maintenanceThrottle.status.factor == 0.5d
+    }
+
+    void 'Rate recovers when requests are fast again'() {
+        given:
+        maintenanceThrottle.foregroundLoadMonitor.sample() >>> [SLOW, FAST, FAST, FAST, FAST, FAST, FAST]
+
+        when:
+        (1..7).each {
+            now += INTERVAL_NANOS
+            maintenanceThrottle.reserveFiles(1)
+        }
+
+        then:
+        maintenanceThrottle.status.factor == 1.0d
+        maintenanceThrottle.status.currentFilesPerSecond == 100.0d
+    }
+
+    void 'Unlimited rate is limited to a share of the observed rate'() {
+        given:
+        maintenanceThrottle.update(0, null, null, null, null)
+        maintenanceThrottle.foregroundLoadMonitor.sample() >> SLOW
+        (1..50).each { maintenanceThrottle.reserveBytes(1000) }
+
+        when:
+        now += INTERVAL_NANOS
+        maintenanceThrottle.reserveBytes(1000)
+
+        then:
+        maintenanceThrottle.status.factor == 0.5d
+        maintenanceThrottle.status.currentBytesPerSecond == 0.5d * 50 * 1000 / (MaintenanceThrottle.ADJUST_INTERVAL_MILLIS / 1000.0d)
+        maintenanceThrottle.status.currentFilesPerSecond == 0.0d
+    }
+
+    void 'Unlimited rate is not taken from the idle time between jobs'() {
+        given:
+        maintenanceThrottle.update(0, null, null, null, null)
+        ForegroundLoad load = FAST
+        maintenanceThrottle.foregroundLoadMonitor.sample() >> { load }
+        (1..1000).each {
+            now += TimeUnit.MILLISECONDS.toNanos(1)
+            maintenanceThrottle.reserveFiles(1)
+        }
+
+        when:
+        now += TimeUnit.HOURS.toNanos(3)
+        load = SLOW
+        List<Long> waits = (1..3).collect { maintenanceThrottle.reserveFiles(1) }
+
+        then:
+        waits == [0L, 0L, 0L]
+        maintenanceThrottle.status.factor == 1.0d
+        maintenanceThrottle.status.currentFilesPerSecond == 0.0d
+
+        when:
+        (1..250).each {
+            now += TimeUnit.MILLISECONDS.toNanos(1)
+            waits << maintenanceThrottle.reserveFiles(1)
+        }
+
+        then:
+        maintenanceThrottle.status.factor == 0.5d
+        maintenanceThrottle.status.currentFilesPerSecond > 100.0d
+        waits.max() < TimeUnit.SECONDS.toNanos(1)
+    }
+
+    void 'Unlimited rate stays unlimited when nothing is observed'() {
+        given:
+        maintenanceThrottle.update(0, null, null, null, null)
+        maintenanceThrottle.foregroundLoadMonitor.sample() >> SLOW
+
+        when:
+        now += INTERVAL_NANOS
+        maintenanceThrottle.reserveFiles(1)
+
+        then:
+        maintenanceThrottle.status.factor == 1.0d
+        maintenanceThrottle.status.currentFilesPerSecond == 0.0d
+    }
+
+    void 'Not adaptive'() {
+        given:
+        maintenanceThrottle.update(null, null, false, null, null)
+
+        when:
+        now += INTERVAL_NANOS
+        maintenanceThrottle.reserveFiles(1)
+
+        then:
+        0 * maintenanceThrottle.foregroundLoadMonitor.sample()
+        maintenanceThrottle.status.factor == 1.0d
+    }
+
+    void 'update - Negative setting'() {
+        when:
+        maintenanceThrottle.update(-1, null, null, null, null)
+
+        then:
+        thrown(IllegalArgumentException)
+        maintenanceThrottle.status.maxFilesPerSecond == 100
+    }
+
+}
@@ -1,12 +1,14 @@
 package dk.runerne.fileserver.maintenance
 
 import spock.lang.Specification
+import spock.lang.Unroll
 
 import java.nio.file.Files
 import java.nio.file.Path
 
 import static dk.runerne.fileserver.TestConstants.TEST_ROOT_FOLDER_PATH
 
+@Unroll
 class MultiThreadFolderTraverserSpec extends Specification {
 
     void "Multi-threaded folder traversal - start and run to end"() {
@@ -31,6 +33,8 @@ class MultiThreadFolderTraverserSpec extends Specification {
 
         then:
         files.every { filePath -> verifyContent(filePath, 'Inserted 3') }
+        traverser.maintenanceStatus.progressMetrics.numberProcessed == 23
+        traverser.maintenanceStatus.progressMetrics.numberToProcess == 23
 
         cleanup:
         deleteFolderRecursively(TEST_ROOT_FOLDER_PATH)
@@ -99,6 +103,61 @@ class MultiThreadFolderTraverserSpec extends Specification {
         deleteFolderRecursively(TEST_ROOT_FOLDER_PATH)
     }
 
+    void "Multi-threaded folder traversal - Number to process is estimated from the share of the tree processed"() {
+        given:
+        createFileInFolder('a/file1.txt', 'Created 1')
+        createFileInFolder('a/file2.txt', 'Created 2')
+        createFileInFolder('b/file1.txt', 'Created 3')
+        createFileInFolder('b/file2.txt', 'Created 4')
+        Files.createDirectories(TEST_ROOT_FOLDER_PATH.resolve('c'))
+        Files.createDirectories(TEST_ROOT_FOLDER_PATH.resolve('d'))
+        boolean finished = false
+        MultiThreadFolderTraverser traverser = new MultiThreadFolderTraverser(TEST_ROOT_FOLDER_PATH, 1, { filePath, i -> }, { finished = true })
+
+        when:
+        traverser.start()
+        while (!finished) {
+            Thread.sleep(10)
+        }
+        MaintenanceProgressMetrics progressMetrics = traverser.maintenanceStatus.progressMetrics
+
+        then:
+        traverser.shareProcessed.sum() == 1.0d
+        progressMetrics.numberToProcess == 8
+        progressMetrics.progress == 1.0d
+
+        cleanup:
+        deleteFolderRecursively(TEST_ROOT_FOLDER_PATH)
+    }
+
+    void "Multi-threaded folder traversal - #engine engine processes every file of deep and wide folders"() {
+        given:
+        Path[] files = createFiles()
+        (1..MultiThreadFolderTraverser.SPLIT_THRESHOLD * 3).each { createFileInFolder("wide/file${it}.txt", 'Created') }
+        Set<Path> processed = Collections.synchronizedSet(new HashSet<Path>())
+        boolean finished = false
+        MultiThreadFolderTraverser traverser = new MultiThreadFolderTraverser(TEST_ROOT_FOLDER_PATH, engine, 3, { filePath, i -> processed << filePath },
+                                                                              { finished = true })
+
+        when:
+        traverser.start()
+        while (!finished) {
+            Thread.sleep(10)
+        }
+
+        then:
+        processed.size() == files.length + MultiThreadFolderTraverser.SPLIT_THRESHOLD * 3
+        processed.containsAll(files)
+        traverser.failedFolders == 0
+        traverser.maintenanceStatus.progressMetrics.progress == 1.0d
+
+        cleanup:
+        deleteFolderRecursively(TEST_ROOT_FOLDER_PATH)
+
+        where:
+        engine << TraversalEngine.values()
+    }
+
     private static Path[] createFiles() {
         return [
                 createFileInFolder('a/b/c/file1.txt', 'Created 1'),
@@ -0,0 +1,82 @@
+package dk.runerne.fileserver.maintenance
+
+import spock.lang.Specification
+
+import java.nio.file.Path
+
+import static dk.runerne.fileserver.TestConstants.TEST_UUID
+
+class ReconciliationSpec extends Specification {
+
+    private FolderMaintenanceService folderMaintenanceService = Mock(FolderMaintenanceService)
+    private MaintenanceThrottle maintenanceThrottle = Mock(MaintenanceThrottle)
+    private boolean finished = false
+    private Reconciliation reconciliation = new Reconciliation(folderMaintenanceService, maintenanceThrottle, { 3 }, 2, { finished = true })
+
+    void 'record and start'() {
+        given:
+        UUID otherId = UUID.randomUUID()
+        reconciliation.record(Path.of("${TEST_UUID}"), 1)
+        reconciliation.record(Path.of("${TEST_UUID}"), 5)
+        reconciliation.record(Path.of("${otherId}"), 3)
+        reconciliation.record(Path.of('not-a-uuid.txt'), 1)
+
+        when:
+        reconciliation.start()
+        waitUntilFinished()
+
+        then:
+        1 * maintenanceThrottle.acquireFiles(1)
+        1 * folderMaintenanceService.reconcile(TEST_UUID, (1L << 1) | (1L << 5))
+        0 * folderMaintenanceService.reconcile(*_)
+        reconciliation.maintenanceStatus.state == MaintenanceJobState.IDLE
+        reconciliation.maintenanceStatus.progressMetrics.numberToProcess == 1
+        reconciliation.maintenanceStatus.progressMetrics.numberProcessed == 1
+    }
+
+    void 'start - Failing file does not stop the reconciliation'() {
+        given:
+        UUID otherId = UUID.randomUUID()
+        reconciliation.record(Path.of("${TEST_UUID}"), 1)
+        reconciliation.record(Path.of("${otherId}"), 1)
+
+        when:
+        reconciliation.start()
+        waitUntilFinished()
+
+        then:
+        1 * folderMaintenanceService.reconcile(TEST_UUID, 1L << 1) >> { throw new RuntimeException('Test') }
+        1 * folderMaintenanceService.reconcile(otherId, 1L << 1)
+        reconciliation.failedFiles == 1
+    }
+
+    void 'start - Nothing to reconcile'() {
+        when:
+        reconciliation.start()
+
+        then:
+        finished
+        reconciliation.started
+    }
+
+    void 'terminate - Before start'() {
+        given:
+        reconciliation.record(Path.of("${TEST_UUID}"), 1)
+
+        when:
+        reconciliation.terminate()
+        reconciliation.start()
+
+        then:
+        finished
+        0 * folderMaintenanceService.reconcile(*_)
+    }
+
+    private void waitUntilFinished() {
+        long deadline = System.currentTimeMillis() + 10_000
+        while (!finished && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package dk.runerne.fileserver.maintenance
+
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+class TokenBucketSpec extends Specification {
+
+    private long now = 0
+    private TokenBucket tokenBucket = new TokenBucket({ now } as LongSupplier)
+
+    void 'reserve - Unlimited'() {
+        expect:
+        tokenBucket.reserve(1_000_000) == 0
+    }
+
+    void 'reserve - Waits when the bucket is empty'() {
+        given:
+        tokenBucket.setRate(10)
+
+        expect:
+        tokenBucket.reserve(1) == TimeUnit.MILLISECONDS.toNanos(100)
+        tokenBucket.reserve(1) == TimeUnit.MILLISECONDS.toNanos(200)
+    }
+
+    void 'reserve - Refilled at the rate up to one second of permits'() {
+        given:
+        tokenBucket.setRate(10)
+        now += TimeUnit.SECONDS.toNanos(5)
+
+        expect:
+        (1..10).every { tokenBucket.reserve(1) == 0 }
+        tokenBucket.reserve(1) == TimeUnit.MILLISECONDS.toNanos(100)
+    }
+
+    void 'reserve - Request larger than the bucket is delayed'() {
+        given:
+        tokenBucket.setRate(1000)
+        now += TimeUnit.SECONDS.toNanos(1)
+
+        expect:
+        tokenBucket.reserve(3000) == TimeUnit.SECONDS.toNanos(2)
+    }
+
+    void 'setRate - Unlimited again'() {
+        given:
+        tokenBucket.setRate(10)
+        tokenBucket.reserve(100)
+
+        when:
+        tokenBucket.setRate(0)
+
+        then:
+        tokenBucket.rate == 0.0d
+        tokenBucket.reserve(100) == 0
+    }
+
+}